@@ -0,0 +1,19 @@
+package com.genersoft.iot.vmp.common;
+
+import java.util.Map;
+
+/**
+ * 运行指标来源， 实现此接口的组件会在 /api/server/metrics 中输出自身的统计信息
+ */
+public interface MetricsSource {
+
+    /**
+     * 指标分组名称
+     */
+    String getMetricsName();
+
+    /**
+     * 当前的指标快照
+     */
+    Map<String, Object> getMetrics();
+}
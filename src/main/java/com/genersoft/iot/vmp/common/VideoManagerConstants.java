@@ -32,6 +32,8 @@ public class VideoManagerConstants {
 	public static final String SIP_INVITE_SESSION = "VMP_SIP_INVITE_SESSION_INFO:";
 	public static final String SIP_INVITE_SESSION_CALL_ID = SIP_INVITE_SESSION + "CALL_ID:";
 	public static final String SIP_INVITE_SESSION_STREAM = SIP_INVITE_SESSION + "STREAM:";
+	public static final String SIP_INVITE_SESSION_DEVICE = SIP_INVITE_SESSION + "DEVICE:";
+	public static final String SIP_INVITE_SESSION_CHANNEL = SIP_INVITE_SESSION + "CHANNEL:";
 
 	public static final String MEDIA_STREAM_AUTHORITY = "VMP_MEDIA_STREAM_AUTHORITY:";
 
@@ -135,6 +137,42 @@ public class VideoManagerConstants {
 	 */
 	public static final String VM_MSG_SUBSCRIBE_DEVICE_STATUS = "device";
 
+	/**
+	 * 设备信息变化的通知，用于清除其他WVP节点的本地设备缓存， 消息内容： serverId deviceId
+	 */
+	public static final String VM_MSG_DEVICE_CHANGE = "VM_MSG_DEVICE_CHANGE";
+
+	/**
+	 * 上级平台信息变化的通知，用于刷新其他WVP节点的本地平台信息， 消息内容： serverId serverGBId
+	 */
+	public static final String VM_MSG_PLATFORM_CHANGE = "VM_MSG_PLATFORM_CHANGE";
+
+	/**
+	 * 通道共享关系变化的通知，用于刷新其他WVP节点的本地共享索引， 消息内容： serverId channelId,channelId... 或者 serverId * 表示全部
+	 */
+	public static final String VM_MSG_PLATFORM_CHANNEL_CHANGE = "VM_MSG_PLATFORM_CHANNEL_CHANGE";
+
+	/**
+	 * 设备通道变化的通知，用于清除其他WVP节点的本地通道缓存， 消息内容： serverId deviceDbId,deviceDbId... 或者 serverId * 表示全部
+	 */
+	public static final String VM_MSG_DEVICE_CHANNEL_CHANGE = "VM_MSG_DEVICE_CHANNEL_CHANGE";
+
+	/**
+	 * 用户或ApiKey变化的通知，用于清除其他WVP节点的本地Token缓存， 消息内容： serverId u:userId 或者 serverId k:apiKeyId
+	 */
+	public static final String VM_MSG_USER_CHANGE = "VM_MSG_USER_CHANGE";
+
+	/**
+	 * 行政区划、业务分组、虚拟组织或其下通道变化的通知，用于刷新其他WVP节点的本地树索引， 消息内容： serverId region:id,id... 、 serverId group:id,id... 、
+	 * serverId civilCode:code,code... 、 serverId parent:code,code... 、 serverId channel 或者 serverId * 表示全部
+	 */
+	public static final String VM_MSG_TREE_CHANGE = "VM_MSG_TREE_CHANGE";
+
+	/**
+	 * 通道新增、修改、删除的通知，用于刷新其他WVP节点的通道搜索索引， 消息内容： serverId c:id,id... 、 serverId d:deviceDbId,deviceDbId... 或者 serverId * 表示全部
+	 */
+	public static final String VM_MSG_CHANNEL_SEARCH_CHANGE = "VM_MSG_CHANNEL_SEARCH_CHANGE";
+
 
 	//**************************    第三方  ****************************************
 
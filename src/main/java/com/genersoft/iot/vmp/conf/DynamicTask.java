@@ -1,5 +1,6 @@
 package com.genersoft.iot.vmp.conf;
 
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ObjectUtils;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -7,8 +8,10 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.Instant;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -28,6 +31,15 @@ public class DynamicTask {
     private final Map<String, ScheduledFuture<?>> futureMap = new ConcurrentHashMap<>();
     private final Map<String, Runnable> runnableMap = new ConcurrentHashMap<>();
 
+    /**
+     * 使用时间轮的延时任务的key前缀， 这类任务数量多且刷新频繁（每次心跳都会刷新）
+     */
+    private static final String[] WHEEL_KEY_PREFIXES = {
+            VideoManagerConstants.REGISTER_EXPIRE_TASK_KEY_PREFIX
+    };
+
+    private TimingWheel timingWheel;
+
     @PostConstruct
     public void DynamicTask() {
         threadPoolTaskScheduler = new ThreadPoolTaskScheduler();
@@ -35,6 +47,25 @@ public class DynamicTask {
         threadPoolTaskScheduler.setWaitForTasksToCompleteOnShutdown(true);
         threadPoolTaskScheduler.setAwaitTerminationSeconds(10);
         threadPoolTaskScheduler.initialize();
+        // 槽位1秒，512个槽位一圈约8.5分钟，超过一圈的任务在槽位触发时顺延
+        timingWheel = new TimingWheel("expire-wheel", 1000, 512, threadPoolTaskScheduler);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        timingWheel.shutdown();
+    }
+
+    private boolean useWheel(String key) {
+        if (key == null) {
+            return false;
+        }
+        for (String prefix : WHEEL_KEY_PREFIXES) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -80,6 +111,10 @@ public class DynamicTask {
         if(ObjectUtils.isEmpty(key)) {
             return;
         }
+        if (useWheel(key)) {
+            timingWheel.schedule(key, task, delay);
+            return;
+        }
         stop(key);
 
         // 获取执行的时刻
@@ -109,6 +144,9 @@ public class DynamicTask {
         if(ObjectUtils.isEmpty(key)) {
             return false;
         }
+        if (useWheel(key)) {
+            return timingWheel.cancel(key);
+        }
         boolean result = false;
         if (!ObjectUtils.isEmpty(futureMap.get(key)) && !futureMap.get(key).isCancelled() && !futureMap.get(key).isDone()) {
             result = futureMap.get(key).cancel(false);
@@ -122,17 +160,22 @@ public class DynamicTask {
         if(ObjectUtils.isEmpty(key)) {
             return false;
         }
-        return futureMap.get(key) != null;
+        return futureMap.get(key) != null || timingWheel.contains(key);
     }
 
     public Set<String> getAllKeys() {
-        return futureMap.keySet();
+        Set<String> keys = new HashSet<>(futureMap.keySet());
+        keys.addAll(timingWheel.getAllKeys());
+        return keys;
     }
 
     public Runnable get(String key) {
         if(ObjectUtils.isEmpty(key)) {
             return null;
         }
+        if (useWheel(key)) {
+            return timingWheel.get(key);
+        }
         return runnableMap.get(key);
     }
 
@@ -153,6 +196,9 @@ public class DynamicTask {
     }
 
     public boolean isAlive(String key) {
+        if (useWheel(key)) {
+            return timingWheel.contains(key);
+        }
         return futureMap.get(key) != null && !futureMap.get(key).isDone() && !futureMap.get(key).isCancelled();
     }
 }
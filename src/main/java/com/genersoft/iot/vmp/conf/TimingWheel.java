@@ -0,0 +1,182 @@
+package com.genersoft.iot.vmp.conf;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮
+ * 适用于数量大、频繁刷新的超时任务（如设备注册过期）。刷新只更新任务的到期时间，不移动槽位；
+ * 槽位触发时才检查到期时间，未到期的任务挪到新的槽位，到期的任务交给执行器执行。
+ * 刷新和取消都是O(1)，不会像ScheduledFuture那样反复在延迟队列里删除和插入。
+ * 刷新和到期判断在任务自身的锁内进行，到期时重新读取到期时间，避免刚刷新的任务被按旧的到期时间触发
+ */
+@Slf4j
+public class TimingWheel {
+
+    private static class Timeout {
+        private volatile long deadline;
+        private volatile Runnable task;
+
+        /**
+         * 已触发或已取消，不能再刷新
+         */
+        private boolean done;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    private final long tickMs;
+
+    private final int mask;
+
+    private final Set<String>[] buckets;
+
+    private final Map<String, Timeout> timeoutMap = new ConcurrentHashMap<>();
+
+    private final Executor executor;
+
+    private final ScheduledExecutorService ticker;
+
+    private long lastTick;
+
+    /**
+     * @param tickMs 每个槽位代表的时间 /毫秒
+     * @param wheelSize 槽位数量， 会向上取整为2的幂
+     * @param executor 到期任务的执行器
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(String name, long tickMs, int wheelSize, Executor executor) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickMs = tickMs;
+        this.mask = size - 1;
+        this.buckets = new Set[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = ConcurrentHashMap.newKeySet();
+        }
+        this.executor = executor;
+        this.lastTick = System.currentTimeMillis() / tickMs;
+        this.ticker = new ScheduledThreadPoolExecutor(1,
+                new BasicThreadFactory.Builder().namingPattern(name + "-%d").daemon(true).build());
+        this.ticker.scheduleWithFixedDelay(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 添加或刷新超时任务
+     * @param key 任务ID
+     * @param task 任务
+     * @param delay 延时 /毫秒
+     */
+    public void schedule(String key, Runnable task, long delay) {
+        long deadline = System.currentTimeMillis() + delay;
+        Timeout timeout = timeoutMap.get(key);
+        if (timeout != null) {
+            // 已存在时只刷新到期时间，槽位触发时再挪动
+            synchronized (timeout) {
+                if (!timeout.done) {
+                    timeout.task = task;
+                    timeout.deadline = deadline;
+                    return;
+                }
+            }
+        }
+        timeoutMap.put(key, new Timeout(deadline, task));
+        buckets[bucketIndex(deadline)].add(key);
+    }
+
+    public boolean cancel(String key) {
+        // 槽位里的key在槽位触发时清理
+        Timeout timeout = timeoutMap.remove(key);
+        if (timeout == null) {
+            return false;
+        }
+        synchronized (timeout) {
+            timeout.done = true;
+        }
+        return true;
+    }
+
+    public boolean contains(String key) {
+        return timeoutMap.containsKey(key);
+    }
+
+    public Runnable get(String key) {
+        Timeout timeout = timeoutMap.get(key);
+        return timeout == null ? null : timeout.task;
+    }
+
+    public Set<String> getAllKeys() {
+        return timeoutMap.keySet();
+    }
+
+    public int size() {
+        return timeoutMap.size();
+    }
+
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private int bucketIndex(long deadline) {
+        return (int) ((deadline / tickMs) & mask);
+    }
+
+    private void tick() {
+        long currentTick = System.currentTimeMillis() / tickMs;
+        // 调度线程被延迟时补齐错过的槽位， 最多转一圈
+        long fromTick = Math.max(lastTick + 1, currentTick - mask);
+        for (long t = fromTick; t <= currentTick; t++) {
+            expireBucket(buckets[(int) (t & mask)]);
+        }
+        lastTick = currentTick;
+    }
+
+    private void expireBucket(Set<String> bucket) {
+        if (bucket.isEmpty()) {
+            return;
+        }
+        long nowTick = System.currentTimeMillis() / tickMs;
+        for (String key : bucket) {
+            Timeout timeout = timeoutMap.get(key);
+            if (timeout == null) {
+                bucket.remove(key);
+                continue;
+            }
+            synchronized (timeout) {
+                long deadline = timeout.deadline;
+                if (deadline / tickMs > nowTick) {
+                    // 已被刷新或者超过一圈，挪到新的槽位
+                    Set<String> target = buckets[bucketIndex(deadline)];
+                    if (target != bucket) {
+                        target.add(key);
+                        bucket.remove(key);
+                    }
+                    continue;
+                }
+                bucket.remove(key);
+                if (timeout.done || !timeoutMap.remove(key, timeout)) {
+                    continue;
+                }
+                timeout.done = true;
+            }
+            try {
+                executor.execute(timeout.task);
+            } catch (Exception e) {
+                log.error("[时间轮] 任务执行失败 {}", key, e);
+            }
+        }
+    }
+}
@@ -22,6 +22,18 @@ public class UserSetting {
      */
     private Boolean savePositionHistory = Boolean.FALSE;
 
+    /**
+     * 历史轨迹的分表方式
+     * none（默认）: 全部保存在wvp_device_mobile_position
+     * day: 按天分表， month: 按月分表，表名为wvp_device_mobile_position_后加日期
+     */
+    private String positionHistoryPartition = "none";
+
+    /**
+     * 历史轨迹保留天数，超过的数据定时删除（分表时直接删除整张表）， 0为不删除
+     */
+    private int positionHistoryKeepDays = 0;
+
     /**
      * 是否开始自动点播: 请求流为未拉起的流时,自动开启点播, 需要rtp.enable=true
      */
@@ -170,4 +182,27 @@ public class UserSetting {
      */
     private int gbDeviceOnline = 1;
 
+    /**
+     * 点播时选择流媒体节点的策略
+     * least-streams（默认）: 流数量最少的节点
+     * weighted: 综合流数量和节点线程负载
+     * consistent-hash: 按设备编号一致性哈希，同一设备尽量落在同一节点
+     */
+    private String mediaServerLoadBalance = "least-streams";
+
+    /**
+     * 设备注册后查询设备信息、同步通道、添加订阅等后续任务的最大并发数，实际并发数按设备的回复耗时自动调整
+     */
+    private int onboardingConcurrency = 32;
+
+    /**
+     * 同一流媒体节点下的设备，后续任务的最大并发数，未指定流媒体节点(自动分配)的设备不受此限制
+     */
+    private int onboardingConcurrencyPerMediaServer = 16;
+
+    /**
+     * 按app/stream查找流所在的流媒体节点时，并发查询所有节点的最长等待时间，单位毫秒。超时时返回错误，不视为流不存在
+     */
+    private long streamLocateTimeout = 3000;
+
 }
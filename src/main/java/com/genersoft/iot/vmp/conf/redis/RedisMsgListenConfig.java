@@ -2,12 +2,14 @@ package com.genersoft.iot.vmp.conf.redis;
 
 
 import com.genersoft.iot.vmp.common.VideoManagerConstants;
+import com.genersoft.iot.vmp.conf.UserSetting;
 import com.genersoft.iot.vmp.service.redisMsg.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.annotation.Order;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
 import org.springframework.data.redis.listener.PatternTopic;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 
@@ -42,9 +44,15 @@ public class RedisMsgListenConfig {
 	@Autowired
 	private RedisRpcConfig redisRpcConfig;
 
+	@Autowired
+	private UserSetting userSetting;
+
 	@Autowired
 	private RedisPushStreamResponseListener redisPushStreamCloseResponseListener;
 
+	@Autowired
+	private RedisClusterChangeMsgListener redisClusterChangeMsgListener;
+
 
 	/**
 	 * redis消息监听器容器 可以添加多个监听不同话题的redis监听器，只需要把消息监听器和相应的消息订阅处理器绑定，该消息监听器
@@ -63,8 +71,12 @@ public class RedisMsgListenConfig {
 		container.addMessageListener(redisPushStreamStatusMsgListener, new PatternTopic(VideoManagerConstants.VM_MSG_PUSH_STREAM_STATUS_CHANGE));
 		container.addMessageListener(pushStreamListMsgListener, new PatternTopic(VideoManagerConstants.VM_MSG_PUSH_STREAM_LIST_CHANGE));
 		container.addMessageListener(redisCloseStreamMsgListener, new PatternTopic(VideoManagerConstants.VM_MSG_STREAM_PUSH_CLOSE));
-		container.addMessageListener(redisRpcConfig, new PatternTopic(RedisRpcConfig.REDIS_REQUEST_CHANNEL_KEY));
+		container.addMessageListener(redisRpcConfig, new ChannelTopic(RedisRpcConfig.REDIS_REQUEST_CHANNEL_KEY));
+		container.addMessageListener(redisRpcConfig, new ChannelTopic(RedisRpcConfig.getInboxChannel(userSetting.getServerId())));
 		container.addMessageListener(redisPushStreamCloseResponseListener, new PatternTopic(VideoManagerConstants.VM_MSG_STREAM_PUSH_RESPONSE));
+		for (ClusterChangeHandler handler : redisClusterChangeMsgListener.getHandlerList()) {
+			container.addMessageListener(redisClusterChangeMsgListener, new PatternTopic(handler.getChangeTopic()));
+		}
         return container;
     }
 }
@@ -2,6 +2,8 @@ package com.genersoft.iot.vmp.conf.redis;
 
 import com.alibaba.fastjson2.JSON;
 import com.genersoft.iot.vmp.common.CommonCallback;
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.conf.TimingWheel;
 import com.genersoft.iot.vmp.conf.UserSetting;
 import com.genersoft.iot.vmp.conf.redis.bean.RedisRpcMessage;
 import com.genersoft.iot.vmp.conf.redis.bean.RedisRpcRequest;
@@ -16,22 +18,37 @@ import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
-import java.lang.reflect.InvocationTargetException;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * wvp之间通过redis的rpc调用
+ * 指定了目标的请求和所有回复都发到目标wvp自己的频道，只有未指定目标的请求才广播给所有wvp。
+ * 请求按序列号匹配回复，序列号在本节点内单调递增；处理方法启动时解析为方法句柄，请求并行处理并按uri限制并发
+ */
 @Slf4j
 @Component
-public class RedisRpcConfig implements MessageListener {
+public class RedisRpcConfig implements MessageListener, MetricsSource {
 
     public final static String REDIS_REQUEST_CHANNEL_KEY = "WVP_REDIS_REQUEST_CHANNEL_KEY";
 
-    private final Random random = new Random();
+    /**
+     * 单个uri同时处理的请求数量上限
+     */
+    private static final int URI_CONCURRENCY = 32;
+
+    /**
+     * 异步回调的最长等待时间，调用方都有自己的业务超时，这里只保证回调不会一直留在内存里 /毫秒
+     */
+    private static final long CALLBACK_TIMEOUT = 5 * 60 * 1000;
 
     @Autowired
     private UserSetting userSetting;
@@ -42,35 +59,84 @@ public class RedisRpcConfig implements MessageListener {
     @Autowired
     private RedisTemplate<Object, Object> redisTemplate;
 
-    private ConcurrentLinkedQueue<Message> taskQueue = new ConcurrentLinkedQueue<>();
-
     @Qualifier("taskExecutor")
     @Autowired
     private ThreadPoolTaskExecutor taskExecutor;
 
+    /**
+     * uri -> 处理方法
+     */
+    private Map<String, MethodHandle> handlerMap = new HashMap<>();
+
+    /**
+     * uri -> 并发限制
+     */
+    private Map<String, Semaphore> limitMap = new HashMap<>();
+
+    private TimingWheel callbackTimeoutWheel;
+
+    /**
+     * 以启动时间作为起点，重启后不会与重启前未完成请求的序列号重复
+     */
+    private final AtomicLong snGenerator = new AtomicLong(System.currentTimeMillis() << 16);
+
+    private final AtomicLong rejectCount = new AtomicLong();
+
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        Map<String, MethodHandle> handlers = new HashMap<>();
+        Map<String, Semaphore> limits = new HashMap<>();
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        for (Method method : redisRpcController.getClass().getMethods()) {
+            if (method.getParameterCount() != 1 || method.getParameterTypes()[0] != RedisRpcRequest.class
+                    || !RedisRpcResponse.class.isAssignableFrom(method.getReturnType())) {
+                continue;
+            }
+            try {
+                handlers.put(method.getName(), lookup.unreflect(method).bindTo(redisRpcController));
+                limits.put(method.getName(), new Semaphore(URI_CONCURRENCY));
+            } catch (IllegalAccessException e) {
+                log.error("[redis rpc] 加载处理方法失败 {}", method.getName(), e);
+            }
+        }
+        handlerMap = handlers;
+        limitMap = limits;
+        callbackTimeoutWheel = new TimingWheel("redis-rpc-callback-wheel", 1000, 512, taskExecutor);
+        log.info("[redis rpc] 处理方法： {}, 接收频道： {}", handlers.keySet(), getInboxChannel(userSetting.getServerId()));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (callbackTimeoutWheel != null) {
+            callbackTimeoutWheel.shutdown();
+        }
+    }
+
+    /**
+     * wvp自己的接收频道，指定了目标的请求和回复发到这里
+     */
+    public static String getInboxChannel(String serverId) {
+        return REDIS_REQUEST_CHANNEL_KEY + ":" + serverId;
+    }
+
     @Override
     public void onMessage(Message message, byte[] pattern) {
-        boolean isEmpty = taskQueue.isEmpty();
-        taskQueue.offer(message);
-        if (isEmpty) {
-            taskExecutor.execute(() -> {
-                while (!taskQueue.isEmpty()) {
-                    Message msg = taskQueue.poll();
-                    try {
-                        RedisRpcMessage redisRpcMessage = JSON.parseObject(new String(msg.getBody()), RedisRpcMessage.class);
-                        if (redisRpcMessage.getRequest() != null) {
-                            handlerRequest(redisRpcMessage.getRequest());
-                        } else if (redisRpcMessage.getResponse() != null){
-                            handlerResponse(redisRpcMessage.getResponse());
-                        } else {
-                            log.error("[redis rpc 解析失败] {}", JSON.toJSONString(redisRpcMessage));
-                        }
-                    } catch (Exception e) {
-                        log.error("[redis rpc 解析异常] ", e);
-                    }
+        taskExecutor.execute(() -> {
+            try {
+                RedisRpcMessage redisRpcMessage = JSON.parseObject(new String(message.getBody()), RedisRpcMessage.class);
+                if (redisRpcMessage.getRequest() != null) {
+                    handlerRequest(redisRpcMessage.getRequest());
+                } else if (redisRpcMessage.getResponse() != null){
+                    handlerResponse(redisRpcMessage.getResponse());
+                } else {
+                    log.error("[redis rpc 解析失败] {}", JSON.toJSONString(redisRpcMessage));
                 }
-            });
-        }
+            } catch (Exception e) {
+                log.error("[redis rpc 解析异常] ", e);
+            }
+        });
     }
 
     private void handlerResponse(RedisRpcResponse response) {
@@ -82,49 +148,46 @@ public class RedisRpcConfig implements MessageListener {
     }
 
     private void handlerRequest(RedisRpcRequest request) {
-        try {
-            if (userSetting.getServerId().equals(request.getFromId())) {
-                return;
+        if (userSetting.getServerId().equals(request.getFromId())) {
+            return;
+        }
+        // 指定了其他目标的请求不处理
+        if (request.getToId() != null && !userSetting.getServerId().equals(request.getToId())) {
+            return;
+        }
+        log.info("[redis-rpc] << {}", request);
+        MethodHandle handler = handlerMap.get(request.getUri());
+        // 没有携带目标ID的可以理解为哪个wvp有结果就哪个回复，携带目标ID，但是如果是不存在的uri则直接回复404
+        boolean targeted = request.getToId() != null;
+        if (handler == null) {
+            if (targeted) {
+                RedisRpcResponse response = request.getResponse();
+                response.setStatusCode(404);
+                sendResponse(response);
             }
-            log.info("[redis-rpc] << {}", request);
-            Method method = getMethod(request.getUri());
-            // 没有携带目标ID的可以理解为哪个wvp有结果就哪个回复，携带目标ID，但是如果是不存在的uri则直接回复404
-            if (userSetting.getServerId().equals(request.getToId())) {
-                if (method == null) {
-                    // 回复404结果
-                    RedisRpcResponse response = request.getResponse();
-                    response.setStatusCode(404);
-                    sendResponse(response);
-                    return;
-                }
-                RedisRpcResponse response = (RedisRpcResponse)method.invoke(redisRpcController, request);
-                if(response != null) {
-                    sendResponse(response);
-                }
-            }else {
-                if (method == null) {
-                    return;
-                }
-                RedisRpcResponse response = (RedisRpcResponse)method.invoke(redisRpcController, request);
-                if (response != null) {
-                    sendResponse(response);
-                }
+            return;
+        }
+        Semaphore limit = limitMap.get(request.getUri());
+        if (!limit.tryAcquire()) {
+            rejectCount.incrementAndGet();
+            log.warn("[redis rpc] 并发超过限制，拒绝处理 uri: {}, sn: {}", request.getUri(), request.getSn());
+            if (targeted) {
+                RedisRpcResponse response = request.getResponse();
+                response.setStatusCode(503);
+                sendResponse(response);
             }
-        }catch (InvocationTargetException | IllegalAccessException e) {
-            log.error("[redis rpc ] 处理请求失败 ", e);
+            return;
         }
-
-    }
-
-    private Method getMethod(String name) {
-        // 启动后扫描所有的路径注解
-        Method[] methods = redisRpcController.getClass().getMethods();
-        for (Method method : methods) {
-            if (method.getName().equals(name)) {
-                return method;
+        try {
+            RedisRpcResponse response = (RedisRpcResponse) handler.invoke(request);
+            if (response != null) {
+                sendResponse(response);
             }
+        } catch (Throwable e) {
+            log.error("[redis rpc ] 处理请求失败 ", e);
+        } finally {
+            limit.release();
         }
-        return null;
     }
 
     private void sendResponse(RedisRpcResponse response){
@@ -132,76 +195,75 @@ public class RedisRpcConfig implements MessageListener {
         response.setToId(userSetting.getServerId());
         RedisRpcMessage message = new RedisRpcMessage();
         message.setResponse(response);
-        redisTemplate.convertAndSend(REDIS_REQUEST_CHANNEL_KEY, message);
+        // 回复只发给请求方
+        redisTemplate.convertAndSend(getInboxChannel(response.getFromId()), message);
     }
 
     private void sendRequest(RedisRpcRequest request){
         log.info("[redis-rpc] >> {}", request);
         RedisRpcMessage message = new RedisRpcMessage();
         message.setRequest(request);
-        redisTemplate.convertAndSend(REDIS_REQUEST_CHANNEL_KEY, message);
+        String channel = request.getToId() == null ? REDIS_REQUEST_CHANNEL_KEY : getInboxChannel(request.getToId());
+        redisTemplate.convertAndSend(channel, message);
     }
 
 
-    private final Map<Long, SynchronousQueue<RedisRpcResponse>> topicSubscribers = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<RedisRpcResponse>> topicSubscribers = new ConcurrentHashMap<>();
     private final Map<Long, CommonCallback<RedisRpcResponse>> callbacks = new ConcurrentHashMap<>();
 
     public RedisRpcResponse request(RedisRpcRequest request, int timeOut) {
-        request.setSn((long) random.nextInt(1000) + 1);
-        SynchronousQueue<RedisRpcResponse> subscribe = subscribe(request.getSn());
-
+        request.setSn(snGenerator.incrementAndGet());
+        CompletableFuture<RedisRpcResponse> future = new CompletableFuture<>();
+        topicSubscribers.put(request.getSn(), future);
         try {
             sendRequest(request);
-            return subscribe.poll(timeOut, TimeUnit.SECONDS);
+            return future.get(timeOut, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             log.warn("[redis rpc timeout] uri: {}, sn: {}", request.getUri(), request.getSn(), e);
+        } catch (TimeoutException e) {
+            timeoutCount.incrementAndGet();
+            log.warn("[redis rpc timeout] uri: {}, sn: {}", request.getUri(), request.getSn());
+        } catch (ExecutionException e) {
+            log.warn("[redis rpc] 请求失败 uri: {}, sn: {}", request.getUri(), request.getSn(), e);
         } finally {
-            this.unsubscribe(request.getSn());
+            topicSubscribers.remove(request.getSn());
         }
         return null;
     }
 
     public void request(RedisRpcRequest request, CommonCallback<RedisRpcResponse> callback) {
-        request.setSn((long) random.nextInt(1000) + 1);
-        setCallback(request.getSn(), callback);
+        request.setSn(snGenerator.incrementAndGet());
+        long sn = request.getSn();
+        callbacks.put(sn, callback);
+        callbackTimeoutWheel.schedule(String.valueOf(sn), () -> {
+            if (callbacks.remove(sn) != null) {
+                timeoutCount.incrementAndGet();
+                log.info("[redis rpc] 等待回复超时，移除回调 uri: {}, sn: {}", request.getUri(), sn);
+            }
+        }, CALLBACK_TIMEOUT);
         sendRequest(request);
     }
 
     public Boolean response(RedisRpcResponse response) {
-        SynchronousQueue<RedisRpcResponse> queue = topicSubscribers.get(response.getSn());
-        CommonCallback<RedisRpcResponse> callback = callbacks.get(response.getSn());
-        if (queue != null) {
-            try {
-                return queue.offer(response, 2, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                log.error("{}", e.getMessage(), e);
-            }
-        }else if (callback != null) {
+        CompletableFuture<RedisRpcResponse> future = topicSubscribers.get(response.getSn());
+        if (future != null) {
+            // 广播的请求可能有多个回复，只取第一个
+            return future.complete(response);
+        }
+        CommonCallback<RedisRpcResponse> callback = callbacks.remove(response.getSn());
+        if (callback != null) {
+            callbackTimeoutWheel.cancel(String.valueOf(response.getSn()));
             callback.run(response);
-            callbacks.remove(response.getSn());
+            return true;
         }
         return false;
     }
 
-    private void unsubscribe(long key) {
-        topicSubscribers.remove(key);
-    }
-
-
-    private SynchronousQueue<RedisRpcResponse> subscribe(long key) {
-        SynchronousQueue<RedisRpcResponse> queue = null;
-        if (!topicSubscribers.containsKey(key))
-            topicSubscribers.put(key, queue = new SynchronousQueue<>());
-        return queue;
-    }
-
-    private void setCallback(long key, CommonCallback<RedisRpcResponse> callback)  {
-        // TODO 如果多个上级点播同一个通道会有问题
-        callbacks.put(key, callback);
-    }
-
     public void removeCallback(long key)  {
-        callbacks.remove(key);
+        if (callbacks.remove(key) != null) {
+            callbackTimeoutWheel.cancel(String.valueOf(key));
+        }
     }
 
 
@@ -209,11 +271,23 @@ public class RedisRpcConfig implements MessageListener {
         return callbacks.size();
     }
 
-//    @Scheduled(fixedRate = 1000)   //每1秒执行一次
-//    public void execute(){
-//        logger.info("callbacks的长度: " + callbacks.size());
-//        logger.info("队列的长度: " + topicSubscribers.size());
-//        logger.info("HOOK监听的长度: " + hookSubscribe.size());
-//        logger.info("");
-//    }
+    @Override
+    public String getMetricsName() {
+        return "redisRpc";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("pending", topicSubscribers.size());
+        metrics.put("callback", callbacks.size());
+        metrics.put("timeout", timeoutCount.get());
+        metrics.put("reject", rejectCount.get());
+        Map<String, Object> running = new LinkedHashMap<>();
+        for (Map.Entry<String, Semaphore> entry : limitMap.entrySet()) {
+            running.put(entry.getKey(), URI_CONCURRENCY - entry.getValue().availablePermits());
+        }
+        metrics.put("running", running);
+        return metrics;
+    }
 }
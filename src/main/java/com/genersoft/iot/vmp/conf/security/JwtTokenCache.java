@@ -0,0 +1,200 @@
+package com.genersoft.iot.vmp.conf.security;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeHandler;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeNotifier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 已验证token的本地缓存，key为token的SHA-256，保存验签后的声明和查到的用户信息
+ * 同一token在有效期内重复请求时不再验签和查库；用户或者ApiKey修改、禁用、删除后清除相关的缓存，并通过redis通知其他节点
+ */
+@Slf4j
+@Component
+public class JwtTokenCache implements MetricsSource, ClusterChangeHandler {
+
+    private static final int MAX_SIZE = 10000;
+
+    private static final int EXPIRE_SECONDS = 60;
+
+    private static final String USER_PREFIX = "u:";
+
+    private static final String API_KEY_PREFIX = "k:";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Autowired
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    /**
+     * 验证通过的token
+     */
+    public static class VerifiedToken {
+        final String userName;
+        final String password;
+        final int userId;
+        final int roleId;
+        /**
+         * token的过期时间 /秒， 为null时不过期
+         */
+        final Long expirationTime;
+        final Integer apiKeyId;
+        /**
+         * ApiKey已经禁用或者删除
+         */
+        final boolean apiKeyDisabled;
+
+        VerifiedToken(String userName, String password, int userId, int roleId, Long expirationTime,
+                      Integer apiKeyId, boolean apiKeyDisabled) {
+            this.userName = userName;
+            this.password = password;
+            this.userId = userId;
+            this.roleId = roleId;
+            this.expirationTime = expirationTime;
+            this.apiKeyId = apiKeyId;
+            this.apiKeyDisabled = apiKeyDisabled;
+        }
+    }
+
+    private final Cache<String, VerifiedToken> cache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .expireAfterWrite(EXPIRE_SECONDS, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    private final AtomicLong hitCost = new AtomicLong();
+
+    private final AtomicLong missCost = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong invalidateCount = new AtomicLong();
+
+    public static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            char[] chars = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                chars[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public VerifiedToken get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(String key, VerifiedToken verifiedToken) {
+        cache.put(key, verifiedToken);
+    }
+
+    public void invalidate(String key) {
+        cache.invalidate(key);
+    }
+
+    /**
+     * 记录一次验证的耗时
+     * @param hit 是否命中缓存
+     * @param cost 耗时 /纳秒
+     */
+    public void record(boolean hit, long cost) {
+        if (hit) {
+            hitCount.incrementAndGet();
+            hitCost.addAndGet(cost);
+        }else {
+            missCount.incrementAndGet();
+            missCost.addAndGet(cost);
+        }
+    }
+
+    /**
+     * 用户修改或删除后调用
+     */
+    public void invalidateUser(int userId) {
+        invalidateUserLocal(userId);
+        clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_USER_CHANGE, USER_PREFIX + userId);
+    }
+
+    /**
+     * ApiKey修改、禁用或删除后调用
+     */
+    public void invalidateApiKey(int apiKeyId) {
+        invalidateApiKeyLocal(apiKeyId);
+        clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_USER_CHANGE, API_KEY_PREFIX + apiKeyId);
+    }
+
+    private void invalidateUserLocal(int userId) {
+        cache.asMap().values().removeIf(verifiedToken -> verifiedToken.userId == userId);
+        invalidateCount.incrementAndGet();
+    }
+
+    private void invalidateApiKeyLocal(int apiKeyId) {
+        cache.asMap().values().removeIf(verifiedToken -> verifiedToken.apiKeyId != null && verifiedToken.apiKeyId == apiKeyId);
+        invalidateCount.incrementAndGet();
+    }
+
+    @Override
+    public String getChangeTopic() {
+        return VideoManagerConstants.VM_MSG_USER_CHANGE;
+    }
+
+    /**
+     * 处理其他节点的变化通知
+     */
+    @Override
+    public void onChange(String content) {
+        try {
+            if (content.startsWith(USER_PREFIX)) {
+                invalidateUserLocal(Integer.parseInt(content.substring(USER_PREFIX.length())));
+            }else if (content.startsWith(API_KEY_PREFIX)) {
+                invalidateApiKeyLocal(Integer.parseInt(content.substring(API_KEY_PREFIX.length())));
+            }else {
+                cache.invalidateAll();
+            }
+        } catch (NumberFormatException e) {
+            log.warn("[Token缓存] 无法解析的变化通知： {}", content);
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "tokenCache";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        long hit = hitCount.get();
+        long miss = missCount.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("size", cache.size());
+        metrics.put("hit", hit);
+        metrics.put("miss", miss);
+        metrics.put("hitRate", hit + miss == 0 ? 1.0 : (double) hit / (hit + miss));
+        metrics.put("eviction", cache.stats().evictionCount());
+        metrics.put("invalidate", invalidateCount.get());
+        // 平均每次验证的耗时 /微秒
+        metrics.put("hitCostUs", hit == 0 ? 0 : hitCost.get() / hit / 1000.0);
+        metrics.put("missCostUs", miss == 0 ? 0 : missCost.get() / miss / 1000.0);
+        return metrics;
+    }
+}
@@ -48,12 +48,24 @@ public class JwtUtils implements InitializingBean {
      */
     public static final long EXPIRATION_TIME = 30 * 24 * 60;
 
+    /**
+     * 允许的时钟偏差(秒)
+     */
+    private static final int ALLOWED_CLOCK_SKEW = 30;
+
     private static RsaJsonWebKey rsaJsonWebKey;
 
     private static IUserService userService;
 
     private static IUserApiKeyService userApiKeyService;
 
+    private static JwtTokenCache tokenCache;
+
+    /**
+     * 验签使用的consumer，构建后线程安全，所有请求共用
+     */
+    private static JwtConsumer jwtConsumer;
+
     public static String getApiKeyHeader() {
         return API_KEY_HEADER;
     }
@@ -68,10 +80,24 @@ public class JwtUtils implements InitializingBean {
         JwtUtils.userApiKeyService = userApiKeyService;
     }
 
+    @Resource
+    public void setTokenCache(JwtTokenCache tokenCache) {
+        JwtUtils.tokenCache = tokenCache;
+    }
+
     @Override
     public void afterPropertiesSet() {
         try {
             rsaJsonWebKey = generateRsaJsonWebKey();
+            jwtConsumer = new JwtConsumerBuilder()
+                    //.setRequireExpirationTime()
+                    //.setMaxFutureValidityInMinutes(5256000)
+                    .setAllowedClockSkewInSeconds(ALLOWED_CLOCK_SKEW)
+                    .setRequireSubject()
+                    //.setExpectedIssuer("")
+                    .setExpectedAudience(AUDIENCE)
+                    .setVerificationKey(rsaJsonWebKey.getPublicKey())
+                    .build();
         } catch (JoseException e) {
             log.error("生成RsaJsonWebKey报错。", e);
         }
@@ -161,52 +187,43 @@ public class JwtUtils implements InitializingBean {
     }
 
     public static JwtUser verifyToken(String token) {
+        long start = System.nanoTime();
+        String key = JwtTokenCache.hash(token);
+        JwtTokenCache.VerifiedToken verifiedToken = tokenCache.get(key);
+        if (verifiedToken != null) {
+            JwtUser jwtUser = buildJwtUser(verifiedToken);
+            if (jwtUser.getStatus() == JwtUser.TokenStatus.EXPIRED && !verifiedToken.apiKeyDisabled) {
+                // 缓存期间token已经过期
+                tokenCache.invalidate(key);
+            }
+            tokenCache.record(true, System.nanoTime() - start);
+            return jwtUser;
+        }
 
         JwtUser jwtUser = new JwtUser();
 
         try {
-            JwtConsumer consumer = new JwtConsumerBuilder()
-                    //.setRequireExpirationTime()
-                    //.setMaxFutureValidityInMinutes(5256000)
-                    .setAllowedClockSkewInSeconds(30)
-                    .setRequireSubject()
-                    //.setExpectedIssuer("")
-                    .setExpectedAudience(AUDIENCE)
-                    .setVerificationKey(rsaJsonWebKey.getPublicKey())
-                    .build();
-
-            JwtClaims claims = consumer.processToClaims(token);
+            JwtClaims claims = jwtConsumer.processToClaims(token);
             NumericDate expirationTime = claims.getExpirationTime();
-            if (expirationTime != null) {
-                // 判断是否即将过期, 默认剩余时间小于5分钟未即将过期
-                // 剩余时间 （秒）
-                long timeRemaining = LocalDateTime.now().toEpochSecond(ZoneOffset.ofHours(8)) - expirationTime.getValue();
-                if (timeRemaining < 5 * 60) {
-                    jwtUser.setStatus(JwtUser.TokenStatus.EXPIRING_SOON);
-                } else {
-                    jwtUser.setStatus(JwtUser.TokenStatus.NORMAL);
-                }
-            } else {
-                jwtUser.setStatus(JwtUser.TokenStatus.NORMAL);
-            }
 
             Long apiKeyId = claims.getClaimValue("apiKeyId", Long.class);
+            boolean apiKeyDisabled = false;
             if (apiKeyId != null) {
                 UserApiKey userApiKey = userApiKeyService.getUserApiKeyById(apiKeyId.intValue());
                 if (userApiKey == null || !userApiKey.isEnable()) {
-                    jwtUser.setStatus(JwtUser.TokenStatus.EXPIRED);
+                    apiKeyDisabled = true;
                 }
             }
 
             String username = (String) claims.getClaimValue("userName");
             User user = userService.getUserByUsername(username);
 
-            jwtUser.setUserName(username);
-            jwtUser.setPassword(user.getPassword());
-            jwtUser.setRoleId(user.getRole().getId());
-            jwtUser.setUserId(user.getId());
-
-            return jwtUser;
+            verifiedToken = new JwtTokenCache.VerifiedToken(username, user.getPassword(), user.getId(), user.getRole().getId(),
+                    expirationTime == null ? null : expirationTime.getValue(),
+                    apiKeyId == null ? null : apiKeyId.intValue(), apiKeyDisabled);
+            tokenCache.put(key, verifiedToken);
+            tokenCache.record(false, System.nanoTime() - start);
+            return buildJwtUser(verifiedToken);
         } catch (InvalidJwtException e) {
             if (e.hasErrorCode(ErrorCodes.EXPIRED)) {
                 jwtUser.setStatus(JwtUser.TokenStatus.EXPIRED);
@@ -220,4 +237,35 @@ public class JwtUtils implements InitializingBean {
             return jwtUser;
         }
     }
+
+    private static JwtUser buildJwtUser(JwtTokenCache.VerifiedToken verifiedToken) {
+        JwtUser jwtUser = new JwtUser();
+        Long expirationTime = verifiedToken.expirationTime;
+        if (expirationTime != null) {
+            if (System.currentTimeMillis() / 1000 > expirationTime + ALLOWED_CLOCK_SKEW) {
+                // 只会出现在缓存的token上，验签时已经检查过
+                jwtUser.setStatus(JwtUser.TokenStatus.EXPIRED);
+            } else {
+                // 判断是否即将过期, 默认剩余时间小于5分钟未即将过期
+                // 剩余时间 （秒）
+                long timeRemaining = LocalDateTime.now().toEpochSecond(ZoneOffset.ofHours(8)) - expirationTime;
+                if (timeRemaining < 5 * 60) {
+                    jwtUser.setStatus(JwtUser.TokenStatus.EXPIRING_SOON);
+                } else {
+                    jwtUser.setStatus(JwtUser.TokenStatus.NORMAL);
+                }
+            }
+        } else {
+            jwtUser.setStatus(JwtUser.TokenStatus.NORMAL);
+        }
+        if (verifiedToken.apiKeyDisabled) {
+            jwtUser.setStatus(JwtUser.TokenStatus.EXPIRED);
+        }
+
+        jwtUser.setUserName(verifiedToken.userName);
+        jwtUser.setPassword(verifiedToken.password);
+        jwtUser.setRoleId(verifiedToken.roleId);
+        jwtUser.setUserId(verifiedToken.userId);
+        return jwtUser;
+    }
 }
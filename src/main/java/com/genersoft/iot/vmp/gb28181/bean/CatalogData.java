@@ -4,9 +4,9 @@ import lombok.Data;
 import org.jetbrains.annotations.NotNull;
 
 import java.time.Instant;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 
@@ -21,11 +21,15 @@ public class CatalogData {
     private int sn;
     private int total;
     private Instant time;
+    /**
+     * 收到第一包数据的时间
+     */
+    private Instant startTime;
     private Device device;
     private String errorMsg;
-    private Set<String> redisKeysForChannel = new HashSet<>();
-    private Set<String> redisKeysForRegion = new HashSet<>();
-    private Set<String> redisKeysForGroup = new HashSet<>();
+    private Set<String> redisKeysForChannel = ConcurrentHashMap.newKeySet();
+    private Set<String> redisKeysForRegion = ConcurrentHashMap.newKeySet();
+    private Set<String> redisKeysForGroup = ConcurrentHashMap.newKeySet();
 
     public enum CatalogDataStatus{
         ready, runIng, end
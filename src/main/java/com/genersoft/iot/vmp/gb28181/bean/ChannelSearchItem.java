@@ -0,0 +1,30 @@
+package com.genersoft.iot.vmp.gb28181.bean;
+
+import lombok.Data;
+
+/**
+ * 通道搜索索引使用的通道信息
+ */
+@Data
+public class ChannelSearchItem {
+
+    /**
+     * 数据库ID
+     */
+    private int id;
+
+    /**
+     * 所属设备的数据库ID，非国标设备的通道为null
+     */
+    private Integer deviceDbId;
+
+    /**
+     * 国标编号，优先使用国标字段
+     */
+    private String deviceId;
+
+    /**
+     * 名称，优先使用国标字段
+     */
+    private String name;
+}
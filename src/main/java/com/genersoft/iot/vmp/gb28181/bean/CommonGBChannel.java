@@ -174,8 +174,20 @@ public class CommonGBChannel {
         return content;
     }
 
+    /**
+     * 完整的目录项直接写入调用方的缓冲，大量通道连续编码时复用同一个缓冲
+     */
+    public void encode(StringBuilder content, String serverDeviceId) {
+        appendFullContent(content, null, serverDeviceId);
+    }
+
     private String getFullContent(String event, String serverDeviceId) {
         StringBuilder content = new StringBuilder();
+        appendFullContent(content, event, serverDeviceId);
+        return content.toString();
+    }
+
+    private void appendFullContent(StringBuilder content, String event, String serverDeviceId) {
         // 行政区划目录项
         content.append("<Item>\n")
                 .append("<DeviceID>" + this.getGbDeviceId() + "</DeviceID>\n")
@@ -332,7 +344,6 @@ public class CommonGBChannel {
             content.append("<Event>" + event + "</Event>\n");
         }
         content.append("</Item>\n");
-        return content.toString();
     }
 
     public static CommonGBChannel build(Group group) {
@@ -22,4 +22,7 @@ public class GroupTree extends Group{
     @Schema(description = "在线状态")
     private String status;
 
+    @Schema(description = "节点及其全部下级节点中的通道数量")
+    private Long channelCount;
+
 }
@@ -0,0 +1,30 @@
+package com.genersoft.iot.vmp.gb28181.bean;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Data;
+
+/**
+ * 设备注册后的后续任务进度
+ */
+@Data
+@Schema(description = "设备注册后的后续任务进度")
+public class OnboardingStatus {
+
+    @Schema(description = "注册时间")
+    private String registerTime;
+
+    @Schema(description = "排队中的任务数")
+    private int pending;
+
+    @Schema(description = "执行中的任务数")
+    private int running;
+
+    @Schema(description = "排在前面的其他任务数")
+    private int queueAhead;
+
+    @Schema(description = "全部任务是否已完成")
+    private boolean finished;
+
+    @Schema(description = "从注册到全部任务完成的耗时，未完成时为已经过的时间 /毫秒")
+    private long cost;
+}
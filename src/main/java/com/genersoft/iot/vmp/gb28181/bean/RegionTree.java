@@ -21,4 +21,7 @@ public class RegionTree extends Region {
 
     @Schema(description = "在线状态")
     private String status;
+
+    @Schema(description = "节点及其全部下级节点中的通道数量")
+    private Long channelCount;
 }
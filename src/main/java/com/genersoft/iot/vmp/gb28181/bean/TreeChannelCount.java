@@ -0,0 +1,20 @@
+package com.genersoft.iot.vmp.gb28181.bean;
+
+import lombok.Data;
+
+/**
+ * 按行政区划或分组统计的通道数量
+ */
+@Data
+public class TreeChannelCount {
+
+    /**
+     * 行政区划编号或者父节点(虚拟组织/业务分组)编号
+     */
+    private String code;
+
+    /**
+     * 直属的通道数量
+     */
+    private int channelCount;
+}
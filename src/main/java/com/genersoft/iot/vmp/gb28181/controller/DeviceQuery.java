@@ -6,6 +6,7 @@ import com.genersoft.iot.vmp.conf.exception.ControllerException;
 import com.genersoft.iot.vmp.conf.security.JwtUtils;
 import com.genersoft.iot.vmp.gb28181.bean.Device;
 import com.genersoft.iot.vmp.gb28181.bean.DeviceChannel;
+import com.genersoft.iot.vmp.gb28181.bean.OnboardingStatus;
 import com.genersoft.iot.vmp.gb28181.bean.SyncStatus;
 import com.genersoft.iot.vmp.gb28181.service.IDeviceChannelService;
 import com.genersoft.iot.vmp.gb28181.service.IDeviceService;
@@ -427,6 +428,23 @@ public class DeviceQuery {
 		return wvpResult;
 	}
 
+	@GetMapping("/{deviceId}/onboarding_status")
+	@Operation(summary = "获取设备注册后的任务进度", security = @SecurityRequirement(name = JwtUtils.HEADER))
+	@Parameter(name = "deviceId", description = "设备国标编号", required = true)
+	public WVPResult<OnboardingStatus> getOnboardingStatus(@PathVariable String deviceId) {
+		OnboardingStatus onboardingStatus = deviceService.getOnboardingStatus(deviceId);
+		WVPResult<OnboardingStatus> wvpResult = new WVPResult<>();
+		if (onboardingStatus == null) {
+			wvpResult.setCode(-1);
+			wvpResult.setMsg("没有待执行的任务");
+		}else {
+			wvpResult.setCode(ErrorCode.SUCCESS.getCode());
+			wvpResult.setMsg(ErrorCode.SUCCESS.getMsg());
+			wvpResult.setData(onboardingStatus);
+		}
+		return wvpResult;
+	}
+
 	@GetMapping("/{deviceId}/subscribe_info")
 	@Operation(summary = "获取设备的订阅状态", security = @SecurityRequirement(name = JwtUtils.HEADER))
 	@Parameter(name = "deviceId", description = "设备国标编号", required = true)
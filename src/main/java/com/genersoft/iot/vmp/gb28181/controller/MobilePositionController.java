@@ -9,6 +9,7 @@ import com.genersoft.iot.vmp.gb28181.transmit.callback.DeferredResultHolder;
 import com.genersoft.iot.vmp.gb28181.transmit.callback.RequestMessage;
 import com.genersoft.iot.vmp.gb28181.transmit.cmd.impl.SIPCommander;
 import com.genersoft.iot.vmp.service.IMobilePositionService;
+import com.genersoft.iot.vmp.utils.DateUtil;
 import com.genersoft.iot.vmp.vmanager.bean.ErrorCode;
 import com.github.pagehelper.util.StringUtil;
 import io.swagger.v3.oas.annotations.Operation;
@@ -75,6 +76,32 @@ public class MobilePositionController {
         return mobilePositionService.queryMobilePositions(deviceId, channelId, start, end);
     }
 
+    /**
+     * 查询抽稀后的历史轨迹
+     * @param deviceId 设备ID
+     * @param start 开始时间
+     * @param end 结束时间
+     * @param maxPoints 最多返回的点数
+     * @return
+     */
+    @Operation(summary = "查询抽稀后的历史轨迹", security = @SecurityRequirement(name = JwtUtils.HEADER))
+    @Parameter(name = "deviceId", description = "设备国标编号", required = true)
+    @Parameter(name = "channelId", description = "通道国标编号")
+    @Parameter(name = "start", description = "开始时间", required = true)
+    @Parameter(name = "end", description = "结束时间", required = true)
+    @Parameter(name = "maxPoints", description = "最多返回的点数，按时间平均分段，每段保留一个点， 默认2000")
+    @GetMapping("/track/{deviceId}")
+    public List<MobilePosition> track(@PathVariable String deviceId,
+                                      @RequestParam(required = false) String channelId,
+                                      @RequestParam String start,
+                                      @RequestParam String end,
+                                      @RequestParam(required = false, defaultValue = "2000") int maxPoints) {
+        if (!DateUtil.verification(start, DateUtil.formatter) || !DateUtil.verification(end, DateUtil.formatter)) {
+            throw new ControllerException(ErrorCode.ERROR400.getCode(), "时间格式有误");
+        }
+        return mobilePositionService.queryTrack(deviceId, channelId, start, end, maxPoints);
+    }
+
     /**
      *  查询设备最新位置
      * @param deviceId 设备ID
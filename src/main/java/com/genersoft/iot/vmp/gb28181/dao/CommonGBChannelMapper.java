@@ -258,13 +258,15 @@ public interface CommonGBChannelMapper {
 
     @SelectProvider(type = ChannelProvider.class, method = "queryListByCivilCode")
     List<CommonGBChannel> queryListByCivilCode(@Param("query") String query, @Param("online") Boolean online,
-                                               @Param("channelType") Integer channelType, @Param("civilCode") String civilCode);
+                                               @Param("channelType") Integer channelType, @Param("civilCode") String civilCode,
+                                               @Param("ids") Collection<Integer> ids);
 
 
 
     @SelectProvider(type = ChannelProvider.class, method = "queryListByParentId")
     List<CommonGBChannel> queryListByParentId(@Param("query") String query, @Param("online") Boolean online,
-                                              @Param("channelType") Integer channelType, @Param("groupDeviceId") String groupDeviceId);
+                                              @Param("channelType") Integer channelType, @Param("groupDeviceId") String groupDeviceId,
+                                              @Param("ids") Collection<Integer> ids);
 
 
 
@@ -431,6 +433,13 @@ public interface CommonGBChannelMapper {
     @SelectProvider(type = ChannelProvider.class, method = "queryWithPlatform")
     List<CommonGBChannel> queryWithPlatform(@Param("platformId") Integer platformId);
 
+    @SelectProvider(type = ChannelProvider.class, method = "queryWithPlatformAfter")
+    List<CommonGBChannel> queryWithPlatformAfter(@Param("platformId") Integer platformId, @Param("lastId") Integer lastId, @Param("limit") int limit);
+
+    @Select("select count(1) from wvp_device_channel wdc left join wvp_platform_channel wpgc on wdc.id = wpgc.device_channel_id" +
+            " where wpgc.platform_id = #{platformId}")
+    int countWithPlatform(@Param("platformId") Integer platformId);
+
     @SelectProvider(type = ChannelProvider.class, method = "queryShareChannelByParentId")
     List<CommonGBChannel> queryShareChannelByParentId(@Param("parentId") String parentId, @Param("platformId") Integer platformId);
 
@@ -457,4 +466,40 @@ public interface CommonGBChannelMapper {
             " </script>"})
     void updateGpsByDeviceIdForStreamPush(List<CommonGBChannel> channels);
 
+    @Select(" <script>" +
+            " select coalesce(gb_civil_code, civil_code) as code, count(1) as channel_count" +
+            " from wvp_device_channel " +
+            " where coalesce(gb_civil_code, civil_code) is not null " +
+            " <if test='codes != null'> and coalesce(gb_civil_code, civil_code) in " +
+            " <foreach collection='codes'  item='item'  open='(' separator=',' close=')' > #{item}</foreach>" +
+            " </if>" +
+            " group by coalesce(gb_civil_code, civil_code)" +
+            " </script>")
+    List<TreeChannelCount> countByCivilCode(@Param("codes") Collection<String> codes);
+
+    @Select(" <script>" +
+            " select coalesce(gb_parent_id, parent_id) as code, count(1) as channel_count" +
+            " from wvp_device_channel " +
+            " where channel_type = 0 and coalesce(gb_parent_id, parent_id) is not null " +
+            " <if test='codes != null'> and coalesce(gb_parent_id, parent_id) in " +
+            " <foreach collection='codes'  item='item'  open='(' separator=',' close=')' > #{item}</foreach>" +
+            " </if>" +
+            " group by coalesce(gb_parent_id, parent_id)" +
+            " </script>")
+    List<TreeChannelCount> countByParentId(@Param("codes") Collection<String> codes);
+
+    @Select("select id, device_db_id, coalesce(gb_device_id, device_id) as device_id, coalesce(gb_name, name) as name" +
+            " from wvp_device_channel where id > #{lastId} order by id limit #{limit}")
+    List<ChannelSearchItem> queryForSearchAfter(@Param("lastId") int lastId, @Param("limit") int limit);
+
+    @Select(" <script>" +
+            " select id, device_db_id, coalesce(gb_device_id, device_id) as device_id, coalesce(gb_name, name) as name" +
+            " from wvp_device_channel where id in " +
+            " <foreach collection='ids'  item='item'  open='(' separator=',' close=')' > #{item}</foreach>" +
+            " </script>")
+    List<ChannelSearchItem> queryForSearchByIds(@Param("ids") Collection<Integer> ids);
+
+    @Select("select id, device_db_id, coalesce(gb_device_id, device_id) as device_id, coalesce(gb_name, name) as name" +
+            " from wvp_device_channel where device_db_id = #{deviceDbId}")
+    List<ChannelSearchItem> queryForSearchByDeviceDbId(@Param("deviceDbId") int deviceDbId);
 }
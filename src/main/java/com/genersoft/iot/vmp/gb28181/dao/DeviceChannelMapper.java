@@ -9,6 +9,7 @@ import com.genersoft.iot.vmp.web.gb28181.dto.DeviceChannelExtend;
 import org.apache.ibatis.annotations.*;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -88,7 +89,8 @@ public interface DeviceChannelMapper {
     List<DeviceChannel> queryChannels(@Param("deviceDbId") int deviceDbId, @Param("civilCode") String civilCode,
                                       @Param("businessGroupId") String businessGroupId, @Param("parentChannelId") String parentChannelId,
                                       @Param("query") String query, @Param("hasSubChannel") Boolean hasSubChannel,
-                                      @Param("online") Boolean online, @Param("channelIds") List<String> channelIds);
+                                      @Param("online") Boolean online, @Param("channelIds") List<String> channelIds,
+                                      @Param("ids") Collection<Integer> ids);
 
     @SelectProvider(type = DeviceChannelProvider.class, method = "queryChannelsByDeviceDbId")
     List<DeviceChannel> queryChannelsByDeviceDbId(@Param("deviceDbId") int deviceDbId);
@@ -402,6 +404,9 @@ public interface DeviceChannelMapper {
     @Select("select count(1) from wvp_device_channel")
     int getAllChannelCount();
 
+    @Select("select count(1) from wvp_device_channel where device_db_id = #{deviceDbId}")
+    int getChannelCountByDeviceDbId(@Param("deviceDbId") int deviceDbId);
+
     @Update("<script>" +
             "UPDATE wvp_device_channel SET stream_identification=#{streamIdentification} WHERE id=#{id}" +
             "</script>")
@@ -134,6 +134,24 @@ public interface DeviceMapper {
             " </script>"})
     int update(Device device);
 
+    /**
+     * 批量刷新心跳信息， 只更新仍在线的设备，避免延迟写入把已离线的设备重新置为在线
+     */
+    @Update(value = {" <script>" +
+            "<foreach collection='devices' item='item' separator=';'>" +
+            " UPDATE wvp_device " +
+            " SET update_time=#{item.updateTime}" +
+            ", keepalive_time=#{item.keepaliveTime}" +
+            ", keepalive_interval_time=#{item.keepaliveIntervalTime}" +
+            ", ip=#{item.ip}" +
+            ", port=#{item.port}" +
+            ", host_address=#{item.hostAddress}" +
+            ", on_line=#{item.onLine}" +
+            " WHERE device_id=#{item.deviceId} AND on_line = true" +
+            "</foreach>" +
+            " </script>"})
+    int batchUpdateKeepalive(@Param("devices") List<Device> devices);
+
     @Select(
             " <script>" +
             "SELECT " +
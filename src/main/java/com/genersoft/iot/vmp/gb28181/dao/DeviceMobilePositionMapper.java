@@ -1,11 +1,9 @@
 package com.genersoft.iot.vmp.gb28181.dao;
 
 import com.genersoft.iot.vmp.gb28181.bean.MobilePosition;
-import org.apache.ibatis.annotations.Delete;
-import org.apache.ibatis.annotations.Insert;
-import org.apache.ibatis.annotations.Mapper;
-import org.apache.ibatis.annotations.Param;
-import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.*;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.session.ResultHandler;
 
 import java.util.List;
 
@@ -16,23 +14,51 @@ public interface DeviceMobilePositionMapper {
             "VALUES (#{deviceId}, #{channelId}, #{deviceName}, #{time}, #{longitude}, #{latitude}, #{altitude}, #{speed}, #{direction}, #{reportSource}, #{createTime})")
     int insertNewPosition(MobilePosition mobilePosition);
 
+    /**
+     * 按时间顺序逐条读取轨迹， 表名只能是wvp_device_mobile_position及其分表
+     */
     @Select(value = {" <script>" +
-    "SELECT * FROM wvp_device_mobile_position" +
+    "SELECT * FROM ${table}" +
     " WHERE device_id = #{deviceId}" +
     "<if test=\"channelId != null\"> and channel_id = #{channelId}</if>" +
     "<if test=\"startTime != null\"> AND time&gt;=#{startTime}</if>" +
     "<if test=\"endTime != null\"> AND time&lt;=#{endTime}</if>" +
     " ORDER BY time ASC" +
     " </script>"})
-    List<MobilePosition> queryPositionByDeviceIdAndTime(@Param("deviceId") String deviceId, @Param("channelId") String channelId, @Param("startTime") String startTime, @Param("endTime") String endTime);
+    @Options(fetchSize = 1000, resultSetType = ResultSetType.FORWARD_ONLY)
+    void queryPositionByDeviceIdAndTime(@Param("table") String table, @Param("deviceId") String deviceId, @Param("channelId") String channelId,
+                                        @Param("startTime") String startTime, @Param("endTime") String endTime,
+                                        ResultHandler<MobilePosition> resultHandler);
 
-    @Select("SELECT * FROM wvp_device_mobile_position WHERE device_id = #{deviceId}" +
+    @Select("SELECT * FROM ${table} WHERE device_id = #{deviceId}" +
             " ORDER BY time DESC LIMIT 1")
-    MobilePosition queryLatestPositionByDevice(String deviceId);
+    MobilePosition queryLatestPositionByDevice(@Param("table") String table, @Param("deviceId") String deviceId);
 
+    /**
+     * 只删除主表中的数据，启用分表(user-settings.position-history-partition)时分表中的数据不删除，超过保留天数后随分表一起删除
+     */
     @Delete("DELETE FROM wvp_device_mobile_position WHERE device_id = #{deviceId}")
     int clearMobilePositionsByDeviceId(String deviceId);
 
+    @Delete("DELETE FROM wvp_device_mobile_position WHERE time < #{time}")
+    int deleteBefore(@Param("time") String time);
+
+    @Update(value = "CREATE TABLE IF NOT EXISTS ${table} LIKE wvp_device_mobile_position", databaseId = "mysql")
+    @Update(value = "CREATE TABLE IF NOT EXISTS ${table} (LIKE wvp_device_mobile_position INCLUDING ALL)", databaseId = "kingbase")
+    @Update(value = "CREATE TABLE IF NOT EXISTS ${table} (LIKE wvp_device_mobile_position INCLUDING ALL)", databaseId = "postgresql")
+    void createPartition(@Param("table") String table);
+
+    @Select(value = "SELECT table_name FROM information_schema.tables WHERE table_schema = database()" +
+            " AND table_name LIKE 'wvp_device_mobile_position_%'", databaseId = "mysql")
+    @Select(value = "SELECT tablename FROM pg_tables WHERE schemaname = current_schema()" +
+            " AND tablename LIKE 'wvp_device_mobile_position_%'", databaseId = "kingbase")
+    @Select(value = "SELECT tablename FROM pg_tables WHERE schemaname = current_schema()" +
+            " AND tablename LIKE 'wvp_device_mobile_position_%'", databaseId = "postgresql")
+    List<String> queryPartitions();
+
+    @Update("DROP TABLE IF EXISTS ${table}")
+    void dropPartition(@Param("table") String table);
+
     @Insert("<script> " +
             "<foreach collection='mobilePositions' index='index' item='item' separator=';'> " +
             "insert into wvp_device_mobile_position " +
@@ -46,4 +72,19 @@ public interface DeviceMobilePositionMapper {
             "</script>")
     void batchadd(List<MobilePosition> mobilePositions);
 
+    /**
+     * 单条多值插入
+     */
+    @Insert("<script> " +
+            "insert into ${table} " +
+            "(device_id,channel_id, device_name,time,longitude,latitude,altitude,speed,direction,report_source," +
+            "create_time) values " +
+            "<foreach collection='mobilePositions' index='index' item='item' separator=','> " +
+            "(#{item.deviceId}, #{item.channelId}, #{item.deviceName}, #{item.time}, #{item.longitude}, " +
+            "#{item.latitude}, #{item.altitude}, #{item.speed},#{item.direction}," +
+            "#{item.reportSource}, #{item.createTime}) " +
+            "</foreach> " +
+            "</script>")
+    int batchInsert(@Param("table") String table, @Param("mobilePositions") List<MobilePosition> mobilePositions);
+
 }
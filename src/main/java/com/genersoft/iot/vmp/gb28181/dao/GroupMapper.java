@@ -6,6 +6,7 @@ import com.genersoft.iot.vmp.gb28181.bean.GroupTree;
 import com.genersoft.iot.vmp.gb28181.bean.Platform;
 import org.apache.ibatis.annotations.*;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -266,4 +267,14 @@ public interface GroupMapper {
 
     @Delete("DELETE FROM wvp_platform_group WHERE group_id = #{groupId}")
     void deletePlatformGroup(@Param("groupId") int groupId);
+
+    @Select("SELECT * from wvp_common_group ORDER BY id")
+    List<Group> queryAll();
+
+    @Select(" <script>" +
+            " SELECT * from wvp_common_group " +
+            " where id in " +
+            " <foreach collection='ids'  item='item'  open='(' separator=',' close=')' > #{item}</foreach>" +
+            " </script>")
+    List<Group> queryByIds(@Param("ids") Collection<Integer> ids);
 }
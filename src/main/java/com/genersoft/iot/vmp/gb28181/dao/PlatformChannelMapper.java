@@ -61,6 +61,24 @@ public interface PlatformChannelMapper {
     @Select("SELECT pgc.platform_id from wvp_platform_channel pgc left join wvp_device_channel dc on dc.id = pgc.device_channel_id WHERE  dc.channel_type = 0 and dc.device_id=#{channelId}")
     List<Integer> queryParentPlatformByChannelId(@Param("channelId") String channelId);
 
+    @Select("<script>" +
+            " SELECT pgc.device_channel_id as gb_id, pgc.platform_id from wvp_platform_channel pgc WHERE pgc.device_channel_id in " +
+            "<foreach item='item' collection='channelIds' open='(' separator=',' close=')'> #{item} </foreach>" +
+            "</script>")
+    List<PlatformChannel> queryPlatformIdsByChannelIds(@Param("channelIds") List<Integer> channelIds);
+
+    @Select("<script>" +
+            " select wpgc.device_channel_id as gb_id, wpgc.platform_id," +
+            " coalesce(wpgc.custom_device_id, wdc.gb_device_id, wdc.device_id) as gb_device_id" +
+            " from wvp_platform_channel wpgc" +
+            " left join wvp_device_channel wdc on wdc.id = wpgc.device_channel_id" +
+            " where wdc.channel_type = 0" +
+            "<if test='channelIds != null'> AND wpgc.device_channel_id in " +
+            "<foreach item='item' collection='channelIds' open='(' separator=',' close=')'> #{item} </foreach>" +
+            "</if>" +
+            "</script>")
+    List<PlatformChannel> queryShareIndex(@Param("channelIds") Collection<Integer> channelIds);
+
     @Select("<script>" +
             " select " +
             "    wpgc.id ,\n" +
@@ -145,6 +163,8 @@ public interface PlatformChannelMapper {
             " <if test='query != null'> " +
             " AND (coalesce(wdc.gb_device_id, wdc.device_id) LIKE concat('%',#{query},'%') OR wpgc.custom_device_id LIKE concat('%',#{query},'%') " +
             "      OR coalesce(wdc.gb_name, wdc.name)  LIKE concat('%',#{query},'%') OR wpgc.custom_name LIKE concat('%',#{query},'%'))</if> " +
+            " <if test='ids != null'> AND wdc.id in " +
+            " <foreach collection='ids'  item='item'  open='(' separator=',' close=')' > #{item}</foreach></if>" +
             " <if test='online == true'> AND coalesce(wpgc.status, wdc.gb_status, wdc.status) = 'ON'</if> " +
             " <if test='online == false'> AND coalesce(wpgc.status, wdc.gb_status, wdc.status) = 'OFF'</if> " +
             " <if test='hasShare == true'> AND wpgc.platform_id = #{platformId}</if> " +
@@ -155,7 +175,11 @@ public interface PlatformChannelMapper {
             "</script>")
     List<PlatformChannel> queryForPlatformForWebList(@Param("platformId") Integer platformId, @Param("query") String query,
                                                      @Param("channelType") Integer channelType, @Param("online") Boolean online,
-                                                     @Param("hasShare") Boolean hasShare);
+                                                     @Param("hasShare") Boolean hasShare, @Param("ids") Collection<Integer> ids);
+
+    @Select("SELECT device_channel_id FROM wvp_platform_channel WHERE platform_id = #{platformId} " +
+            " AND (custom_device_id LIKE concat('%',#{query},'%') escape '/' OR custom_name LIKE concat('%',#{query},'%') escape '/')")
+    List<Integer> queryChannelIdByCustomKeyword(@Param("platformId") Integer platformId, @Param("query") String query);
 
     @Select("select\n" +
             "    wdc.id as gb_id,\n" +
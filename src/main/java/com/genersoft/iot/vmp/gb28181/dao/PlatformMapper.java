@@ -94,4 +94,7 @@ public interface PlatformMapper {
     @Select("SELECT * FROM wvp_platform WHERE enable=true")
     List<Platform> queryEnablePlatformList();
 
+    @Select("SELECT * FROM wvp_platform")
+    List<Platform> queryAll();
+
 }
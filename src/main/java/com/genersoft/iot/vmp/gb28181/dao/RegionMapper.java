@@ -5,6 +5,7 @@ import com.genersoft.iot.vmp.gb28181.bean.Region;
 import com.genersoft.iot.vmp.gb28181.bean.RegionTree;
 import org.apache.ibatis.annotations.*;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -179,4 +180,13 @@ public interface RegionMapper {
             " </script>")
     Set<Region> queryNotShareRegionForPlatformByRegionList(Set<Region> allRegion, @Param("platformId") Integer platformId);
 
+    @Select("SELECT * from wvp_common_region ORDER BY id")
+    List<Region> queryAll();
+
+    @Select(" <script>" +
+            " SELECT * from wvp_common_region " +
+            " where id in " +
+            " <foreach collection='ids'  item='item'  open='(' separator=',' close=')' > #{item}</foreach>" +
+            " </script>")
+    List<Region> queryByIds(@Param("ids") Collection<Integer> ids);
 }
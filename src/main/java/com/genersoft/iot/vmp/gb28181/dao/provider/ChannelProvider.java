@@ -121,7 +121,20 @@ public class ChannelProvider {
         StringBuilder sqlBuild = new StringBuilder();
         sqlBuild.append(BASE_SQL);
         sqlBuild.append(" where channel_type = 0 ");
-        if (params.get("query") != null) {
+        Collection<Integer> ids = (Collection<Integer>)params.get("ids");
+        if (ids != null) {
+            // 通道搜索索引已经找出了匹配关键字的通道
+            sqlBuild.append(" AND id in (");
+            boolean first = true;
+            for (Integer id : ids) {
+                if (!first) {
+                    sqlBuild.append(",");
+                }
+                sqlBuild.append(id);
+                first = false;
+            }
+            sqlBuild.append(" )");
+        }else if (params.get("query") != null) {
             sqlBuild.append(" AND (coalesce(gb_device_id, device_id) LIKE concat('%',#{query},'%') escape '/'" +
                     " OR coalesce(gb_name, name) LIKE concat('%',#{query},'%') escape '/' )")
             ;
@@ -153,7 +166,20 @@ public class ChannelProvider {
         StringBuilder sqlBuild = new StringBuilder();
         sqlBuild.append(BASE_SQL);
         sqlBuild.append(" where channel_type = 0 ");
-        if (params.get("query") != null) {
+        Collection<Integer> ids = (Collection<Integer>)params.get("ids");
+        if (ids != null) {
+            // 通道搜索索引已经找出了匹配关键字的通道
+            sqlBuild.append(" AND id in (");
+            boolean first = true;
+            for (Integer id : ids) {
+                if (!first) {
+                    sqlBuild.append(",");
+                }
+                sqlBuild.append(id);
+                first = false;
+            }
+            sqlBuild.append(" )");
+        }else if (params.get("query") != null) {
             sqlBuild.append(" AND (coalesce(gb_device_id, device_id) LIKE concat('%',#{query},'%') escape '/'" +
                     " OR coalesce(gb_name, name) LIKE concat('%',#{query},'%') escape '/' )")
             ;
@@ -346,6 +372,17 @@ public class ChannelProvider {
         return sqlBuild.toString() ;
     }
 
+    /**
+     * 按通道ID游标分页查询共享到平台的通道
+     */
+    public String queryWithPlatformAfter(Map<String, Object> params ){
+        StringBuilder sqlBuild = new StringBuilder();
+        sqlBuild.append(BASE_SQL_FOR_PLATFORM);
+        sqlBuild.append(" where wpgc.platform_id = #{platformId} and wdc.id > #{lastId}");
+        sqlBuild.append(" order by wdc.id limit #{limit}");
+        return sqlBuild.toString() ;
+    }
+
     public String queryShareChannelByParentId(Map<String, Object> params ){
         StringBuilder sqlBuild = new StringBuilder();
         sqlBuild.append(BASE_SQL_FOR_PLATFORM);
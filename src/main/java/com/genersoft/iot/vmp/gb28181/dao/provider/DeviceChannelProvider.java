@@ -2,6 +2,7 @@ package com.genersoft.iot.vmp.gb28181.dao.provider;
 
 import org.springframework.util.ObjectUtils;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -70,7 +71,20 @@ public class DeviceChannelProvider {
             sqlBuild.append(" AND (coalesce(dc.gb_civil_code, dc.civil_code) = #{civilCode} " +
                     "OR (LENGTH(coalesce(dc.gb_device_id, dc.device_id))=LENGTH(#{civilCode}) + 2) AND coalesce(dc.gb_device_id, dc.device_id) LIKE concat(#{civilCode},'%'))");
         }
-        if (params.get("query") != null && !ObjectUtils.isEmpty(params.get("query"))) {
+        Collection<Integer> ids = (Collection<Integer>)params.get("ids");
+        if (ids != null) {
+            // 通道搜索索引已经找出了匹配关键字的通道
+            sqlBuild.append(" AND dc.id in (");
+            boolean first = true;
+            for (Integer id : ids) {
+                if (!first) {
+                    sqlBuild.append(",");
+                }
+                sqlBuild.append(id);
+                first = false;
+            }
+            sqlBuild.append(" )");
+        }else if (params.get("query") != null && !ObjectUtils.isEmpty(params.get("query"))) {
             sqlBuild.append(" AND (coalesce(dc.gb_device_id, dc.device_id) LIKE concat('%',#{query},'%') escape '/'" +
                     " OR coalesce(dc.gb_name, dc.name) LIKE concat('%',#{query},'%') escape '/')")
             ;
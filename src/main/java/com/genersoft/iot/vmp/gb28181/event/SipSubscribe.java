@@ -1,63 +1,99 @@
 package com.genersoft.iot.vmp.gb28181.event;
 
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.conf.TimingWheel;
 import com.genersoft.iot.vmp.gb28181.bean.DeviceNotFoundEvent;
 import com.genersoft.iot.vmp.gb28181.event.sip.SipEvent;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ObjectUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.sip.DialogTerminatedEvent;
 import javax.sip.ResponseEvent;
 import javax.sip.TimeoutEvent;
 import javax.sip.TransactionTerminatedEvent;
 import javax.sip.header.WarningHeader;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * SIP请求回调管理
+ * 超时由时间轮处理：每个槽位触发时处理全部到期的请求，刷新和取消都是O(1)
  * @author lin
  */
 @Slf4j
 @Component
-public class SipSubscribe {
+public class SipSubscribe implements MetricsSource {
 
     private final Map<String, SipEvent> subscribes = new ConcurrentHashMap<>();
 
-    private final DelayQueue<SipEvent> delayQueue = new DelayQueue<>();
+    @Autowired
+    private ThreadPoolTaskExecutor taskExecutor;
 
-    @Scheduled(fixedDelay = 200)   //每200毫秒执行
-    public void execute(){
-        if (delayQueue.isEmpty()) {
+    private TimingWheel timingWheel;
+
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    private final AtomicLong completeCount = new AtomicLong();
+
+    private volatile long lastTimeoutCount = 0;
+
+    private volatile long timeoutPerMinute = 0;
+
+    @PostConstruct
+    public void init() {
+        // 槽位100毫秒，1024个槽位一圈约100秒，超过一圈的请求在槽位触发时顺延
+        timingWheel = new TimingWheel("sip-timeout-wheel", 100, 1024, taskExecutor);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        timingWheel.shutdown();
+    }
+
+    private void onTimeout(SipEvent sipEvent) {
+        if (!subscribes.remove(sipEvent.getKey(), sipEvent)) {
             return;
         }
-        try {
-            SipEvent take = delayQueue.take();
-            // 出现超时异常
-            if(take.getErrorEvent() != null) {
-                EventResult<Object> eventResult = new EventResult<>();
-                eventResult.type = EventResultType.timeout;
-                eventResult.msg = "消息超时未回复";
-                eventResult.statusCode = -1024;
-                take.getErrorEvent().response(eventResult);
+        timeoutCount.incrementAndGet();
+        // 出现超时异常
+        if(sipEvent.getErrorEvent() != null) {
+            EventResult<Object> eventResult = new EventResult<>();
+            eventResult.type = EventResultType.timeout;
+            eventResult.msg = "消息超时未回复";
+            eventResult.statusCode = -1024;
+            eventResult.callId = sipEvent.getKey();
+            try {
+                sipEvent.getErrorEvent().response(eventResult);
+            }catch (Exception e) {
+                log.error("[SIP超时回调] 执行失败 {}", sipEvent.getKey(), e);
             }
-            subscribes.remove(take.getKey());
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
         }
     }
 
     public void updateTimeout(String callId) {
         SipEvent sipEvent = subscribes.get(callId);
         if (sipEvent != null) {
-            delayQueue.remove(sipEvent);
-            delayQueue.offer(sipEvent);
+            timingWheel.schedule(callId, () -> onTimeout(sipEvent), sipEvent.getDelay());
         }
     }
 
+    @Scheduled(fixedRate = 60 * 1000)
+    public void statTimeoutRate() {
+        long current = timeoutCount.get();
+        timeoutPerMinute = current - lastTimeoutCount;
+        lastTimeoutCount = current;
+    }
+
     public interface Event { void response(EventResult eventResult);
     }
 
@@ -152,14 +188,16 @@ public class SipSubscribe {
     }
 
 
+    /**
+     * 按事务注册回调时使用的key，同一会话(callId相同)中连续发送的请求各自确认，例如订阅的NOTIFY
+     */
+    public static String getTransactionKey(String callId, long cSeq, String method) {
+        return callId + "_" + method + "_" + cSeq;
+    }
+
     public void addSubscribe(String key, SipEvent event) {
-        SipEvent sipEvent = subscribes.get(key);
-        if (sipEvent != null) {
-            subscribes.remove(key);
-            delayQueue.remove(sipEvent);
-        }
         subscribes.put(key, event);
-        delayQueue.offer(event);
+        timingWheel.schedule(key, () -> onTimeout(event), event.getDelay());
     }
 
     public SipEvent getSubscribe(String key) {
@@ -170,10 +208,9 @@ public class SipSubscribe {
         if(key == null){
             return;
         }
-        SipEvent sipEvent = subscribes.get(key);
-        if (sipEvent != null) {
-            subscribes.remove(key);
-            delayQueue.remove(sipEvent);
+        if (subscribes.remove(key) != null) {
+            completeCount.incrementAndGet();
+            timingWheel.cancel(key);
         }
     }
 
@@ -184,4 +221,20 @@ public class SipSubscribe {
     public Integer size() {
         return subscribes.size();
     }
+
+    @Override
+    public String getMetricsName() {
+        return "sipSubscribe";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("pending", subscribes.size());
+        metrics.put("scheduled", timingWheel.size());
+        metrics.put("complete", completeCount.get());
+        metrics.put("timeout", timeoutCount.get());
+        metrics.put("timeoutPerMinute", timeoutPerMinute);
+        return metrics;
+    }
 }
@@ -5,7 +5,7 @@ import com.genersoft.iot.vmp.gb28181.bean.Platform;
 import com.genersoft.iot.vmp.gb28181.bean.SubscribeHolder;
 import com.genersoft.iot.vmp.gb28181.bean.SubscribeInfo;
 import com.genersoft.iot.vmp.gb28181.service.IPlatformChannelService;
-import com.genersoft.iot.vmp.gb28181.service.IPlatformService;
+import com.genersoft.iot.vmp.gb28181.session.PlatformRegistry;
 import com.genersoft.iot.vmp.gb28181.transmit.cmd.ISIPCommanderForPlatform;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -31,7 +31,7 @@ public class CatalogEventLister implements ApplicationListener<CatalogEvent> {
     private IPlatformChannelService platformChannelService;
 
     @Autowired
-    private IPlatformService platformService;
+    private PlatformRegistry platformRegistry;
 
     @Autowired
     private ISIPCommanderForPlatform sipCommanderFroPlatform;
@@ -47,7 +47,7 @@ public class CatalogEventLister implements ApplicationListener<CatalogEvent> {
         Map<String, List<Platform>> parentPlatformMap = new HashMap<>();
         Map<String, CommonGBChannel> channelMap = new HashMap<>();
         if (event.getPlatformId() != null) {
-            parentPlatform = platformService.queryOne(event.getPlatformId());
+            parentPlatform = platformRegistry.getById(event.getPlatformId());
             if (parentPlatform == null) {
                 return;
             }
@@ -62,6 +62,7 @@ public class CatalogEventLister implements ApplicationListener<CatalogEvent> {
             if (event.getChannels() != null) {
                 if (!platforms.isEmpty()) {
                     for (CommonGBChannel deviceChannel : event.getChannels()) {
+                        // 共享关系来自本地索引，不查库
                         List<Platform> parentPlatformsForGB = platformChannelService.queryPlatFormListByChannelDeviceId(
                                 deviceChannel.getGbId(), platforms);
                         parentPlatformMap.put(deviceChannel.getGbDeviceId(), parentPlatformsForGB);
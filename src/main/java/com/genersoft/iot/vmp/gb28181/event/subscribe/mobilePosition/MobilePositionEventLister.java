@@ -4,31 +4,32 @@ import com.genersoft.iot.vmp.gb28181.bean.CommonGBChannel;
 import com.genersoft.iot.vmp.gb28181.bean.Platform;
 import com.genersoft.iot.vmp.gb28181.bean.SubscribeHolder;
 import com.genersoft.iot.vmp.gb28181.bean.SubscribeInfo;
-import com.genersoft.iot.vmp.gb28181.service.IPlatformChannelService;
-import com.genersoft.iot.vmp.gb28181.transmit.cmd.impl.SIPCommanderForPlatform;
+import com.genersoft.iot.vmp.gb28181.session.PlatformChannelShareIndex;
+import com.genersoft.iot.vmp.gb28181.session.PlatformRegistry;
 import com.genersoft.iot.vmp.service.bean.GPSMsgInfo;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationListener;
 import org.springframework.stereotype.Component;
 
-import javax.sip.InvalidArgumentException;
-import javax.sip.SipException;
-import java.text.ParseException;
-import java.util.List;
+import java.util.Map;
 
 /**
  * 移动位置通知消息转发
+ * 通道共享到哪些平台、向平台使用的编号都从本地索引获取，转发过程不查库，位置交给MobilePositionNotifier按平台合并发送
  */
 @Slf4j
 @Component
 public class MobilePositionEventLister implements ApplicationListener<MobilePositionEvent> {
 
     @Autowired
-    private IPlatformChannelService platformChannelService;
+    private PlatformChannelShareIndex platformChannelShareIndex;
 
     @Autowired
-    private SIPCommanderForPlatform sipCommanderForPlatform;
+    private PlatformRegistry platformRegistry;
+
+    @Autowired
+    private MobilePositionNotifier mobilePositionNotifier;
 
     @Autowired
     private SubscribeHolder subscribeHolder;
@@ -40,28 +41,32 @@ public class MobilePositionEventLister implements ApplicationListener<MobilePosi
         }
 
         // 获取所用订阅
-        List<String> platforms = subscribeHolder.getAllMobilePositionSubscribePlatform();
-        if (platforms.isEmpty()) {
+        if (subscribeHolder.getAllMobilePositionSubscribePlatform().isEmpty()) {
             return;
         }
-        List<Platform> platformsForGB = platformChannelService.queryPlatFormListByChannelDeviceId(event.getMobilePosition().getChannelId(), platforms);
-
-        for (Platform platform : platformsForGB) {
-            if (log.isDebugEnabled()){
-                log.debug("[向上级发送MobilePosition] 通道：{}，平台：{}， 位置： {}:{}", event.getMobilePosition().getChannelId(),
-                        platform.getServerGBId(), event.getMobilePosition().getLongitude(), event.getMobilePosition().getLatitude());
+        Map<Integer, String> shares = platformChannelShareIndex.getShares(event.getMobilePosition().getChannelId());
+        if (shares.isEmpty()) {
+            return;
+        }
+        GPSMsgInfo gpsMsgInfo = GPSMsgInfo.getInstance(event.getMobilePosition());
+        for (Map.Entry<Integer, String> entry : shares.entrySet()) {
+            Platform platform = platformRegistry.getById(entry.getKey());
+            if (platform == null || !platform.isStatus()) {
+                continue;
             }
             SubscribeInfo subscribe = subscribeHolder.getMobilePositionSubscribe(platform.getServerGBId());
-            try {
-                GPSMsgInfo gpsMsgInfo = GPSMsgInfo.getInstance(event.getMobilePosition());
-                // 获取通道编号
-                CommonGBChannel commonGBChannel = platformChannelService.queryChannelByPlatformIdAndChannelId(platform.getId(), event.getMobilePosition().getChannelId());
-                sipCommanderForPlatform.sendNotifyMobilePosition(platform, gpsMsgInfo, commonGBChannel,
-                        subscribe);
-            } catch (InvalidArgumentException | ParseException | NoSuchFieldException | SipException |
-                     IllegalAccessException e) {
-                log.error("[命令发送失败] 国标级联 Catalog通知: {}", e.getMessage());
+            if (subscribe == null) {
+                continue;
+            }
+            if (log.isDebugEnabled()){
+                log.debug("[向上级转发MobilePosition] 通道：{}，平台：{}， 位置： {}:{}", event.getMobilePosition().getChannelId(),
+                        platform.getServerGBId(), event.getMobilePosition().getLongitude(), event.getMobilePosition().getLatitude());
             }
+            // 向该平台使用的通道编号
+            CommonGBChannel commonGBChannel = new CommonGBChannel();
+            commonGBChannel.setGbId(event.getMobilePosition().getChannelId());
+            commonGBChannel.setGbDeviceId(entry.getValue());
+            mobilePositionNotifier.offer(platform, commonGBChannel, gpsMsgInfo);
         }
     }
 }
@@ -0,0 +1,256 @@
+package com.genersoft.iot.vmp.gb28181.event.subscribe.mobilePosition;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.gb28181.bean.CommonGBChannel;
+import com.genersoft.iot.vmp.gb28181.bean.Platform;
+import com.genersoft.iot.vmp.gb28181.bean.SubscribeHolder;
+import com.genersoft.iot.vmp.gb28181.bean.SubscribeInfo;
+import com.genersoft.iot.vmp.gb28181.event.SipSubscribe;
+import com.genersoft.iot.vmp.gb28181.transmit.cmd.ISIPCommanderForPlatform;
+import com.genersoft.iot.vmp.service.bean.GPSMsgInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.sip.InvalidArgumentException;
+import javax.sip.SipException;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 向上级平台发送移动位置通知
+ * 每个平台每个通道只保留最新的位置，按平台订阅的间隔成轮发送，未发出的旧位置被新位置覆盖。
+ * 国标的MobilePosition通知一条消息只能携带一个DeviceID，所以每个通道一条NOTIFY，每秒发送的数量有上限。
+ * 每条NOTIFY的回调按 callId+CSeq 注册，失败都会记录；每秒发送的最后一条作为探测，
+ * 探测未回复前不再继续发送，失败或超时后按指数退避暂停该平台，期间位置继续合并，超过上限的新通道丢弃
+ */
+@Slf4j
+@Component
+public class MobilePositionNotifier implements MetricsSource {
+
+    /**
+     * 订阅未指定间隔时的默认间隔 /毫秒
+     */
+    private static final long DEFAULT_INTERVAL = 5 * 1000;
+
+    /**
+     * 单个平台每秒最多发送的通知数量
+     */
+    private static final int MAX_SEND_PER_SECOND = 500;
+
+    /**
+     * 单个平台等待发送的通道数量上限
+     */
+    private static final int MAX_PENDING = 50000;
+
+    /**
+     * 探测消息等待回复的最长时间，超过后不再等待 /毫秒
+     */
+    private static final long PROBE_TIMEOUT = 30 * 1000;
+
+    /**
+     * 连续失败时的最长暂停时间 /毫秒
+     */
+    private static final long MAX_BACKOFF = 60 * 1000;
+
+    @Autowired
+    private ISIPCommanderForPlatform sipCommanderForPlatform;
+
+    @Autowired
+    private SubscribeHolder subscribeHolder;
+
+    /**
+     * 上级平台国标编号 -> 待发送的位置
+     */
+    private final Map<String, PlatformQueue> queueMap = new ConcurrentHashMap<>();
+
+    private final AtomicLong offerCount = new AtomicLong();
+
+    private final AtomicLong coalesceCount = new AtomicLong();
+
+    private final AtomicLong dropCount = new AtomicLong();
+
+    private final AtomicLong sendCount = new AtomicLong();
+
+    private final AtomicLong failCount = new AtomicLong();
+
+    private static class Pending {
+        private final CommonGBChannel channel;
+        private final GPSMsgInfo gpsMsgInfo;
+
+        private Pending(CommonGBChannel channel, GPSMsgInfo gpsMsgInfo) {
+            this.channel = channel;
+            this.gpsMsgInfo = gpsMsgInfo;
+        }
+    }
+
+    private static class PlatformQueue {
+
+        private volatile Platform platform;
+
+        /**
+         * 向平台使用的通道编号 -> 最新位置
+         */
+        private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+        /**
+         * 本轮待发送的通道编号，只在定时任务线程中使用
+         */
+        private final Deque<String> round = new ArrayDeque<>();
+
+        private long nextRoundTime;
+
+        /**
+         * 未收到回复的探测消息的发送时间， 0表示没有
+         */
+        private volatile long probeTime;
+
+        private volatile long backoff;
+
+        private volatile long backoffUntil;
+    }
+
+    /**
+     * 提交一个位置，同一通道未发出的旧位置被覆盖
+     */
+    public void offer(Platform platform, CommonGBChannel channel, GPSMsgInfo gpsMsgInfo) {
+        if (platform == null || channel == null || channel.getGbDeviceId() == null || gpsMsgInfo == null) {
+            return;
+        }
+        offerCount.incrementAndGet();
+        PlatformQueue queue = queueMap.computeIfAbsent(platform.getServerGBId(), key -> new PlatformQueue());
+        queue.platform = platform;
+        Pending pending = new Pending(channel, gpsMsgInfo);
+        if (queue.pending.size() >= MAX_PENDING) {
+            if (queue.pending.replace(channel.getGbDeviceId(), pending) != null) {
+                coalesceCount.incrementAndGet();
+            }else {
+                dropCount.incrementAndGet();
+            }
+            return;
+        }
+        if (queue.pending.put(channel.getGbDeviceId(), pending) != null) {
+            coalesceCount.incrementAndGet();
+        }
+    }
+
+    @Scheduled(fixedDelay = 1000)
+    public void execute() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PlatformQueue> entry : queueMap.entrySet()) {
+            String serverGBId = entry.getKey();
+            PlatformQueue queue = entry.getValue();
+            SubscribeInfo subscribe = subscribeHolder.getMobilePositionSubscribe(serverGBId);
+            if (subscribe == null) {
+                // 订阅已取消
+                queueMap.remove(serverGBId, queue);
+                dropCount.addAndGet(queue.pending.size());
+                continue;
+            }
+            if (queue.probeTime > 0) {
+                if (now - queue.probeTime < PROBE_TIMEOUT) {
+                    // 等待上级回复
+                    continue;
+                }
+                queue.probeTime = 0;
+            }
+            if (now < queue.backoffUntil) {
+                continue;
+            }
+            if (queue.round.isEmpty()) {
+                if (queue.pending.isEmpty() || now < queue.nextRoundTime) {
+                    continue;
+                }
+                // 本轮只发送开始时已有的通道，之后到达的留到下一轮
+                queue.round.addAll(queue.pending.keySet());
+                queue.nextRoundTime = now + (subscribe.getGpsInterval() > 0 ? subscribe.getGpsInterval() * 1000L : DEFAULT_INTERVAL);
+            }
+            send(queue, subscribe);
+        }
+    }
+
+    private void send(PlatformQueue queue, SubscribeInfo subscribe) {
+        Pending last = null;
+        int count = 0;
+        while (count < MAX_SEND_PER_SECOND && !queue.round.isEmpty()) {
+            Pending pending = queue.pending.remove(queue.round.poll());
+            if (pending == null) {
+                continue;
+            }
+            if (last != null) {
+                Pending sent = last;
+                sendNotify(queue, subscribe, sent, eventResult -> {
+                    failCount.incrementAndGet();
+                    log.warn("[移动位置通知] 上级未正常回复， 平台： {}， 通道： {}， 错误：{} {}", queue.platform.getServerGBId(),
+                            sent.channel.getGbDeviceId(), eventResult.statusCode, eventResult.msg);
+                }, null);
+            }
+            last = pending;
+            count++;
+        }
+        if (last == null) {
+            return;
+        }
+        String serverGBId = queue.platform.getServerGBId();
+        queue.probeTime = System.currentTimeMillis();
+        sendNotify(queue, subscribe, last, eventResult -> {
+            failCount.incrementAndGet();
+            queue.probeTime = 0;
+            queue.backoff = queue.backoff == 0 ? 1000 : Math.min(queue.backoff * 2, MAX_BACKOFF);
+            queue.backoffUntil = System.currentTimeMillis() + queue.backoff;
+            log.warn("[移动位置通知] 上级未正常回复，暂停发送 {}ms， 平台： {}， 错误：{} {}", queue.backoff, serverGBId,
+                    eventResult.statusCode, eventResult.msg);
+        }, eventResult -> {
+            queue.probeTime = 0;
+            queue.backoff = 0;
+        });
+    }
+
+    private void sendNotify(PlatformQueue queue, SubscribeInfo subscribe, Pending pending,
+                            SipSubscribe.Event errorEvent, SipSubscribe.Event okEvent) {
+        try {
+            sipCommanderForPlatform.sendNotifyMobilePosition(queue.platform, pending.gpsMsgInfo, pending.channel, subscribe, errorEvent, okEvent);
+            sendCount.incrementAndGet();
+        } catch (InvalidArgumentException | ParseException | SipException e) {
+            failCount.incrementAndGet();
+            log.error("[命令发送失败] 国标级联 移动位置通知: {}", e.getMessage());
+            if (okEvent != null) {
+                // 探测消息没有发出，不再等待回复
+                queue.probeTime = 0;
+            }
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "mobilePositionNotify";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("offer", offerCount.get());
+        metrics.put("coalesce", coalesceCount.get());
+        metrics.put("drop", dropCount.get());
+        metrics.put("send", sendCount.get());
+        metrics.put("fail", failCount.get());
+        Map<String, Object> platforms = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PlatformQueue> entry : queueMap.entrySet()) {
+            PlatformQueue queue = entry.getValue();
+            Map<String, Object> platformMetrics = new LinkedHashMap<>();
+            platformMetrics.put("pending", queue.pending.size());
+            platformMetrics.put("waiting", queue.probeTime > 0);
+            platformMetrics.put("backoff", Math.max(0, queue.backoffUntil - now));
+            platforms.put(entry.getKey(), platformMetrics);
+        }
+        metrics.put("platform", platforms);
+        return metrics;
+    }
+}
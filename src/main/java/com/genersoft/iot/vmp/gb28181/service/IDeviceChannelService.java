@@ -54,6 +54,11 @@ public interface IDeviceChannelService {
      */
     DeviceChannel getOne(String deviceId, String channelId);
 
+    /**
+     *  获取一个通道，优先使用本地缓存，用于移动位置、报警等高频上报。通道的状态等信息可能有延迟
+     */
+    DeviceChannel getOneWithCache(String deviceId, String channelId);
+
     DeviceChannel getOneForSource(String deviceId, String channelId);
 
     /**
@@ -2,6 +2,7 @@ package com.genersoft.iot.vmp.gb28181.service;
 
 import com.genersoft.iot.vmp.common.CommonCallback;
 import com.genersoft.iot.vmp.gb28181.bean.Device;
+import com.genersoft.iot.vmp.gb28181.bean.OnboardingStatus;
 import com.genersoft.iot.vmp.gb28181.bean.SipTransactionInfo;
 import com.genersoft.iot.vmp.gb28181.bean.SyncStatus;
 import com.genersoft.iot.vmp.vmanager.bean.ResourceBaseInfo;
@@ -62,6 +63,13 @@ public interface IDeviceService {
      */
     SyncStatus getChannelSyncStatus(String deviceId);
 
+    /**
+     * 查询设备注册后的查询设备信息、订阅、同步通道等任务的进度
+     * @param deviceId 设备ID
+     * @return 进度， 没有记录时为null
+     */
+    OnboardingStatus getOnboardingStatus(String deviceId);
+
     /**
      * 查看是否仍在同步
      * @param deviceId 设备ID
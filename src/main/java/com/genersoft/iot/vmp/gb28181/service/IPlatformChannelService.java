@@ -27,6 +27,11 @@ public interface IPlatformChannelService {
 
     List<CommonGBChannel> queryByPlatform(Platform platform);
 
+    /**
+     * 目录中通道之前的平台、行政区划和分组信息
+     */
+    List<CommonGBChannel> queryDirectoryByPlatform(Platform platform);
+
     void pushChannel(Integer platformId);
 
     void addChannelByDevice(Integer platformId, List<Integer> deviceIds);
@@ -1,6 +1,5 @@
 package com.genersoft.iot.vmp.gb28181.service.impl;
 
-import com.alibaba.fastjson2.JSONObject;
 import com.baomidou.dynamic.datasource.annotation.DS;
 import com.genersoft.iot.vmp.common.InviteInfo;
 import com.genersoft.iot.vmp.common.InviteSessionType;
@@ -10,18 +9,22 @@ import com.genersoft.iot.vmp.gb28181.bean.Device;
 import com.genersoft.iot.vmp.gb28181.bean.DeviceChannel;
 import com.genersoft.iot.vmp.gb28181.bean.GbCode;
 import com.genersoft.iot.vmp.gb28181.bean.MobilePosition;
+import com.genersoft.iot.vmp.gb28181.bean.PlatformChannel;
 import com.genersoft.iot.vmp.gb28181.controller.bean.ChannelReduce;
 import com.genersoft.iot.vmp.gb28181.dao.DeviceChannelMapper;
 import com.genersoft.iot.vmp.gb28181.dao.DeviceMapper;
-import com.genersoft.iot.vmp.gb28181.dao.DeviceMobilePositionMapper;
 import com.genersoft.iot.vmp.gb28181.dao.PlatformChannelMapper;
 import com.genersoft.iot.vmp.gb28181.event.EventPublisher;
 import com.genersoft.iot.vmp.gb28181.event.subscribe.catalog.CatalogEvent;
 import com.genersoft.iot.vmp.gb28181.service.IDeviceChannelService;
 import com.genersoft.iot.vmp.gb28181.service.IInviteStreamService;
 import com.genersoft.iot.vmp.gb28181.service.IPlatformChannelService;
+import com.genersoft.iot.vmp.gb28181.session.ChannelSearchIndex;
+import com.genersoft.iot.vmp.gb28181.session.MobilePositionWriter;
+import com.genersoft.iot.vmp.gb28181.session.RegionGroupTreeIndex;
 import com.genersoft.iot.vmp.gb28181.utils.SipUtils;
-import com.genersoft.iot.vmp.storager.IRedisCatchStorage;
+import com.genersoft.iot.vmp.storager.impl.DeviceChannelNearCache;
+import com.genersoft.iot.vmp.storager.impl.MobilePositionHistoryStore;
 import com.genersoft.iot.vmp.utils.DateUtil;
 import com.genersoft.iot.vmp.vmanager.bean.ErrorCode;
 import com.genersoft.iot.vmp.vmanager.bean.ResourceBaseInfo;
@@ -29,6 +32,7 @@ import com.genersoft.iot.vmp.web.gb28181.dto.DeviceChannelExtend;
 import com.github.pagehelper.PageHelper;
 import com.github.pagehelper.PageInfo;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -62,17 +66,26 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
     private DeviceMapper deviceMapper;
 
     @Autowired
-    private DeviceMobilePositionMapper deviceMobilePositionMapper;
+    private MobilePositionHistoryStore mobilePositionHistoryStore;
 
     @Autowired
     private UserSetting userSetting;
 
     @Autowired
-    private IRedisCatchStorage redisCatchStorage;
+    private MobilePositionWriter mobilePositionWriter;
 
     @Autowired
     private IPlatformChannelService platformChannelService;
 
+    @Autowired
+    private DeviceChannelNearCache deviceChannelNearCache;
+
+    @Autowired
+    private RegionGroupTreeIndex regionGroupTreeIndex;
+
+    @Autowired
+    private ChannelSearchIndex channelSearchIndex;
+
 
     @Override
     public int updateChannels(Device device, List<DeviceChannel> channels) {
@@ -160,6 +173,9 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
                     result += channelMapper.batchUpdate(updateChannelList);
                 }
             }
+            deviceChannelNearCache.invalidate(device.getId());
+            regionGroupTreeIndex.markChannelChanged();
+            channelSearchIndex.refreshDevice(device.getId());
         }
         return result;
     }
@@ -209,6 +225,9 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
             }else {
                 result += channelMapper.batchDel(channels);
             }
+            deviceChannelNearCache.invalidate(channels);
+            regionGroupTreeIndex.markChannelChanged();
+            channelSearchIndex.refreshChannels(channels);
         }
         return result;
     }
@@ -247,6 +266,9 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
     @Override
     public void delete(DeviceChannel channel) {
         channelMapper.del(channel.getId());
+        deviceChannelNearCache.invalidate(Collections.singletonList(channel));
+        regionGroupTreeIndex.markChannelChanged();
+        channelSearchIndex.refreshChannels(Collections.singletonList(channel));
     }
 
     @Override
@@ -258,6 +280,11 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
         return channelMapper.getOneByDeviceId(device.getId(), channelId);
     }
 
+    @Override
+    public DeviceChannel getOneWithCache(String deviceId, String channelId) {
+        return deviceChannelNearCache.getOne(deviceId, channelId);
+    }
+
     @Override
     public DeviceChannel getOneForSource(String deviceId, String channelId){
         Device device = deviceMapper.getDeviceByDeviceId(deviceId);
@@ -297,6 +324,9 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
             }else {
                 channelMapper.batchUpdateForNotify(channels);
             }
+            deviceChannelNearCache.invalidate(channels);
+            regionGroupTreeIndex.markChannelChanged();
+            channelSearchIndex.refreshChannels(channels);
         }
     }
 
@@ -321,6 +351,9 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
             }else {
                 channelMapper.batchAdd(channels);
             }
+            deviceChannelNearCache.invalidate(channels);
+            regionGroupTreeIndex.markChannelChanged();
+            channelSearchIndex.refreshChannels(channels);
         }
         for (DeviceChannel channel : channels) {
             if (channel.getParentId() != null) {
@@ -352,59 +385,59 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
 
     @Override
     public void updateChannelGPS(Device device, DeviceChannel deviceChannel, MobilePosition mobilePosition) {
-        if (userSetting.getSavePositionHistory()) {
-            deviceMobilePositionMapper.insertNewPosition(mobilePosition);
-        }
-
-        if (deviceChannel.getDeviceId().equals(deviceChannel.getDeviceId())) {
-            deviceChannel.setDeviceId(null);
-        }
         if (deviceChannel.getGpsTime() == null) {
             deviceChannel.setGpsTime(DateUtil.getNow());
         }
-
-        int updated = channelMapper.updatePosition(deviceChannel);
-        if (updated == 0) {
-            return;
-        }
-
         List<DeviceChannel> deviceChannels = new ArrayList<>();
-        if (deviceChannel.getDeviceId() == null) {
+        if (device.getDeviceId().equals(deviceChannel.getDeviceId())) {
             // 有的设备这里上报的deviceId与通道Id是一样，这种情况更新设备下的全部通道
             List<DeviceChannel> deviceChannelsInDb = queryChaneListByDeviceId(device.getDeviceId());
-            deviceChannels.addAll(deviceChannelsInDb);
+            if (deviceChannelsInDb.size() > 100) {
+                log.warn("[更新通道位置信息后发送通知] 设备可能是平台，上报的位置信息未标明通道编号，" +
+                        "导致所有通道被更新位置， deviceId:{}", device.getDeviceId());
+            }
+            for (DeviceChannel channel : deviceChannelsInDb) {
+                deviceChannels.add(buildPositionChannel(channel, deviceChannel));
+            }
         }else {
-            deviceChannels.add(deviceChannel);
+            deviceChannels.add(buildPositionChannel(deviceChannel, deviceChannel));
         }
         if (deviceChannels.isEmpty()) {
             return;
         }
-        if (deviceChannels.size() > 100) {
-            log.warn("[更新通道位置信息后发送通知] 设备可能是平台，上报的位置信息未标明通道编号，" +
-                    "导致所有通道被更新位置， deviceId:{}", device.getDeviceId());
-        }
+        // 历史位置、通道经纬度和redis通知异步批量写入
+        mobilePositionWriter.offer(mobilePosition, deviceChannels, userSetting.getSavePositionHistory());
+
         for (DeviceChannel channel : deviceChannels) {
             // 向关联了该通道并且开启移动位置订阅的上级平台发送移动位置订阅消息
-            mobilePosition.setChannelId(channel.getId());
+            MobilePosition channelPosition = mobilePosition;
+            if (mobilePosition.getChannelId() == null || channel.getId() != mobilePosition.getChannelId()) {
+                // 历史位置还未写入，不能修改原对象的通道
+                channelPosition = new MobilePosition();
+                BeanUtils.copyProperties(mobilePosition, channelPosition);
+                channelPosition.setChannelId(channel.getId());
+            }
             try {
-                eventPublisher.mobilePositionEventPublish(mobilePosition);
+                eventPublisher.mobilePositionEventPublish(channelPosition);
             }catch (Exception e) {
                 log.error("[向上级转发移动位置失败] ", e);
             }
-            // 发送redis消息。 通知位置信息的变化
-            JSONObject jsonObject = new JSONObject();
-            jsonObject.put("time", DateUtil.yyyy_MM_dd_HH_mm_ssToISO8601(mobilePosition.getTime()));
-            jsonObject.put("serial", mobilePosition.getDeviceId());
-            jsonObject.put("code", channel.getDeviceId());
-            jsonObject.put("longitude", mobilePosition.getLongitude());
-            jsonObject.put("latitude", mobilePosition.getLatitude());
-            jsonObject.put("altitude", mobilePosition.getAltitude());
-            jsonObject.put("direction", mobilePosition.getDirection());
-            jsonObject.put("speed", mobilePosition.getSpeed());
-            redisCatchStorage.sendMobilePositionMsg(jsonObject);
         }
     }
 
+    /**
+     * 只包含位置信息的通道，交给异步写入，不与调用方共用对象
+     */
+    private DeviceChannel buildPositionChannel(DeviceChannel channel, DeviceChannel position) {
+        DeviceChannel positionChannel = new DeviceChannel();
+        positionChannel.setId(channel.getId());
+        positionChannel.setDeviceId(channel.getDeviceId());
+        positionChannel.setLongitude(position.getLongitude());
+        positionChannel.setLatitude(position.getLatitude());
+        positionChannel.setGpsTime(position.getGpsTime());
+        return positionChannel;
+    }
+
     @Override
     public void startPlay(Integer channelId, String stream) {
         channelMapper.startPlay(channelId, stream);
@@ -455,12 +488,15 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
 //        }else {
 //            deviceMobilePositionMapper.batchadd(mobilePositions);
 //        }
-        deviceMobilePositionMapper.batchadd(mobilePositions);
+        mobilePositionHistoryStore.insert(mobilePositions);
     }
 
     @Override
     public void cleanChannelsForDevice(int deviceId) {
         channelMapper.cleanChannelsByDeviceId(deviceId);
+        deviceChannelNearCache.invalidate(deviceId);
+        regionGroupTreeIndex.markChannelChanged();
+        channelSearchIndex.refreshDevice(deviceId);
     }
 
     @Override
@@ -484,37 +520,24 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
         List<DeviceChannel> deleteChannels = new ArrayList<>();
         StringBuilder stringBuilder = new StringBuilder();
         Map<String, Integer> subContMap = new HashMap<>();
+        // 已存在的通道与库中记录的对应关系，子节点数量统计完成后再比较
+        Map<DeviceChannel, DeviceChannel> existChannelMap = new IdentityHashMap<>();
 
         for (DeviceChannel deviceChannel : deviceChannelList) {
-            DeviceChannel channelInDb = allChannelMap.get(deviceChannel.getDeviceDbId() + deviceChannel.getDeviceId());
+            DeviceChannel channelInDb = allChannelMap.remove(deviceChannel.getDeviceDbId() + deviceChannel.getDeviceId());
             if (channelInDb != null) {
                 deviceChannel.setStreamId(channelInDb.getStreamId());
                 deviceChannel.setHasAudio(channelInDb.isHasAudio());
                 deviceChannel.setId(channelInDb.getId());
-                if (channelInDb.getStatus() != null && channelInDb.getStatus().equalsIgnoreCase(deviceChannel.getStatus())){
-                    List<Integer> ids = platformChannelMapper.queryParentPlatformByChannelId(deviceChannel.getDeviceId());
-                    if (!CollectionUtils.isEmpty(ids)){
-                        ids.forEach(platformId->{
-                            eventPublisher.catalogEventPublish(platformId, deviceChannel, deviceChannel.getStatus().equals("ON")? CatalogEvent.ON:CatalogEvent.OFF);
-                        });
-                    }
-                }
-                deviceChannel.setUpdateTime(DateUtil.getNow());
-                updateChannels.add(deviceChannel);
+                existChannelMap.put(deviceChannel, channelInDb);
             }else {
                 deviceChannel.setCreateTime(DateUtil.getNow());
                 deviceChannel.setUpdateTime(DateUtil.getNow());
                 addChannels.add(deviceChannel);
             }
-            allChannelMap.remove(deviceChannel.getDeviceDbId() + deviceChannel.getDeviceId());
             channels.add(deviceChannel);
             if (!ObjectUtils.isEmpty(deviceChannel.getParentId())) {
-                if (subContMap.get(deviceChannel.getParentId()) == null) {
-                    subContMap.put(deviceChannel.getParentId(), 1);
-                }else {
-                    Integer count = subContMap.get(deviceChannel.getParentId());
-                    subContMap.put(deviceChannel.getParentId(), count++);
-                }
+                subContMap.merge(deviceChannel.getParentId(), 1, Integer::sum);
             }
         }
         deleteChannels.addAll(allChannelMap.values());
@@ -529,6 +552,19 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
                 }
             }
         }
+        // 只更新目录信息真正发生变化的通道
+        List<DeviceChannel> statusChangedChannels = new ArrayList<>();
+        for (Map.Entry<DeviceChannel, DeviceChannel> entry : existChannelMap.entrySet()) {
+            DeviceChannel deviceChannel = entry.getKey();
+            DeviceChannel channelInDb = entry.getValue();
+            if (isCatalogChanged(channelInDb, deviceChannel)) {
+                deviceChannel.setUpdateTime(DateUtil.getNow());
+                updateChannels.add(deviceChannel);
+                if (!Objects.equals(channelInDb.getStatus(), deviceChannel.getStatus())) {
+                    statusChangedChannels.add(deviceChannel);
+                }
+            }
+        }
 
         if (stringBuilder.length() > 0) {
             log.info("[目录查询]收到的数据存在重复： {}" , stringBuilder);
@@ -563,8 +599,7 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
             }else {
                 channelMapper.batchUpdate(updateChannels);
             }
-            // 不对收到的通道做比较，已确定是否真的发生变化，所以不发送更新通知
-
+            sendCatalogUpdateEvent(updateChannels, statusChangedChannels);
         }
         if (!deleteChannels.isEmpty()) {
             try {
@@ -589,13 +624,97 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
                 channelMapper.batchDel(deleteChannels);
             }
         }
+        if (!addChannels.isEmpty() || !updateChannels.isEmpty() || !deleteChannels.isEmpty()) {
+            deviceChannelNearCache.invalidate(deviceDbId);
+            regionGroupTreeIndex.markChannelChanged();
+            channelSearchIndex.refreshDevice(deviceDbId);
+        }
         return true;
 
     }
 
+    /**
+     * 比较目录中的通道信息与库中记录，更新时间、流信息、位置时间等不由目录决定的字段不参与比较
+     */
+    private boolean isCatalogChanged(DeviceChannel channelInDb, DeviceChannel channel) {
+        return !Objects.equals(channelInDb.getName(), channel.getName())
+                || !Objects.equals(channelInDb.getManufacturer(), channel.getManufacturer())
+                || !Objects.equals(channelInDb.getModel(), channel.getModel())
+                || !Objects.equals(channelInDb.getOwner(), channel.getOwner())
+                || !Objects.equals(channelInDb.getCivilCode(), channel.getCivilCode())
+                || !Objects.equals(channelInDb.getBlock(), channel.getBlock())
+                || !Objects.equals(channelInDb.getAddress(), channel.getAddress())
+                || !Objects.equals(channelInDb.getParental(), channel.getParental())
+                || !Objects.equals(channelInDb.getParentId(), channel.getParentId())
+                || !Objects.equals(channelInDb.getSafetyWay(), channel.getSafetyWay())
+                || !Objects.equals(channelInDb.getRegisterWay(), channel.getRegisterWay())
+                || !Objects.equals(channelInDb.getCertNum(), channel.getCertNum())
+                || !Objects.equals(channelInDb.getCertifiable(), channel.getCertifiable())
+                || !Objects.equals(channelInDb.getErrCode(), channel.getErrCode())
+                || !Objects.equals(channelInDb.getEndTime(), channel.getEndTime())
+                || !Objects.equals(channelInDb.getSecrecy(), channel.getSecrecy())
+                || !Objects.equals(channelInDb.getIpAddress(), channel.getIpAddress())
+                || !Objects.equals(channelInDb.getPort(), channel.getPort())
+                || !Objects.equals(channelInDb.getPassword(), channel.getPassword())
+                || !Objects.equals(channelInDb.getStatus(), channel.getStatus())
+                || !Objects.equals(channelInDb.getLongitude(), channel.getLongitude())
+                || !Objects.equals(channelInDb.getLatitude(), channel.getLatitude())
+                || !Objects.equals(channelInDb.getPtzType(), channel.getPtzType())
+                || !Objects.equals(channelInDb.getPositionType(), channel.getPositionType())
+                || !Objects.equals(channelInDb.getRoomType(), channel.getRoomType())
+                || !Objects.equals(channelInDb.getUseType(), channel.getUseType())
+                || !Objects.equals(channelInDb.getSupplyLightType(), channel.getSupplyLightType())
+                || !Objects.equals(channelInDb.getDirectionType(), channel.getDirectionType())
+                || !Objects.equals(channelInDb.getResolution(), channel.getResolution())
+                || !Objects.equals(channelInDb.getBusinessGroupId(), channel.getBusinessGroupId())
+                || !Objects.equals(channelInDb.getDownloadSpeed(), channel.getDownloadSpeed())
+                || !Objects.equals(channelInDb.getSvcSpaceSupportMod(), channel.getSvcSpaceSupportMod())
+                || !Objects.equals(channelInDb.getSvcTimeSupportMode(), channel.getSvcTimeSupportMode())
+                || !Objects.equals(channelInDb.getStreamIdentification(), channel.getStreamIdentification())
+                || channelInDb.getSubCount() != channel.getSubCount()
+                || channelInDb.getChannelType() != channel.getChannelType();
+    }
+
+    /**
+     * 向共享了这些通道的上级平台发送目录更新通知，关联的平台一次查出
+     */
+    private void sendCatalogUpdateEvent(List<DeviceChannel> updateChannels, List<DeviceChannel> statusChangedChannels) {
+        List<Integer> ids = new ArrayList<>(updateChannels.size());
+        for (DeviceChannel deviceChannel : updateChannels) {
+            ids.add(deviceChannel.getId());
+        }
+        Map<Integer, List<Integer>> platformIdMap = new HashMap<>();
+        int limitCount = 500;
+        for (int i = 0; i < ids.size(); i += limitCount) {
+            List<PlatformChannel> platformChannels = platformChannelMapper.queryPlatformIdsByChannelIds(ids.subList(i, Math.min(i + limitCount, ids.size())));
+            for (PlatformChannel platformChannel : platformChannels) {
+                platformIdMap.computeIfAbsent(platformChannel.getGbId(), key -> new ArrayList<>()).add(platformChannel.getPlatformId());
+            }
+        }
+        if (platformIdMap.isEmpty()) {
+            return;
+        }
+        Set<DeviceChannel> statusChangedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        statusChangedSet.addAll(statusChangedChannels);
+        for (DeviceChannel deviceChannel : updateChannels) {
+            List<Integer> platformIds = platformIdMap.get(deviceChannel.getId());
+            if (platformIds == null) {
+                continue;
+            }
+            String type;
+            if (statusChangedSet.contains(deviceChannel)) {
+                type = "ON".equalsIgnoreCase(deviceChannel.getStatus()) ? CatalogEvent.ON : CatalogEvent.OFF;
+            }else {
+                type = CatalogEvent.UPDATE;
+            }
+            for (Integer platformId : platformIds) {
+                eventPublisher.catalogEventPublish(platformId, deviceChannel, type);
+            }
+        }
+    }
+
     @Override
     public PageInfo<DeviceChannel> getSubChannels(int deviceDbId, String channelId, String query, Boolean channelType, Boolean online, int page, int count) {
-        PageHelper.startPage(page, count);
         String civilCode = null;
         String parentId = null;
         String businessGroupId = null;
@@ -609,12 +728,20 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
                 parentId = channelId;
             }
         }
-        if (query != null) {
+        // 关键字优先使用通道搜索索引
+        List<Integer> ids = channelSearchIndex.search(query, deviceDbId);
+        if (ids != null && ids.isEmpty()) {
+            return new PageInfo<>(new ArrayList<>());
+        }
+        if (ids != null) {
+            query = null;
+        }else if (query != null) {
             query = query.replaceAll("/", "//")
                     .replaceAll("%", "/%")
                     .replaceAll("_", "/_");
         }
-        List<DeviceChannel> all = channelMapper.queryChannels(deviceDbId, civilCode, businessGroupId, parentId, query, channelType, online,null);
+        PageHelper.startPage(page, count);
+        List<DeviceChannel> all = channelMapper.queryChannels(deviceDbId, civilCode, businessGroupId, parentId, query, channelType, online,null, ids);
         return new PageInfo<>(all);
     }
 
@@ -629,13 +756,20 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
         if (device == null) {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "未找到设备：" + deviceId);
         }
-        if (query != null) {
+        // 关键字优先使用通道搜索索引
+        List<Integer> ids = channelSearchIndex.search(query, device.getId());
+        if (ids != null && ids.isEmpty()) {
+            return new PageInfo<>(new ArrayList<>());
+        }
+        if (ids != null) {
+            query = null;
+        }else if (query != null) {
             query = query.replaceAll("/", "//")
                     .replaceAll("%", "/%")
                     .replaceAll("_", "/_");
         }
         PageHelper.startPage(page, count);
-        List<DeviceChannel> all = channelMapper.queryChannels(device.getId(), null,null, null, query, hasSubChannel, online,null);
+        List<DeviceChannel> all = channelMapper.queryChannels(device.getId(), null,null, null, query, hasSubChannel, online,null, ids);
         return new PageInfo<>(all);
     }
 
@@ -687,10 +821,16 @@ public class DeviceChannelServiceImpl implements IDeviceChannelService {
     @Override
     public void addChannel(DeviceChannel channel) {
         channelMapper.add(channel);
+        deviceChannelNearCache.invalidate(Collections.singletonList(channel));
+        regionGroupTreeIndex.markChannelChanged();
+        channelSearchIndex.refreshChannels(Collections.singletonList(channel));
     }
 
     @Override
     public void updateChannelForNotify(DeviceChannel channel) {
         channelMapper.updateChannelForNotify(channel);
+        deviceChannelNearCache.invalidate(Collections.singletonList(channel));
+        regionGroupTreeIndex.markChannelChanged();
+        channelSearchIndex.refreshChannels(Collections.singletonList(channel));
     }
 }
@@ -14,6 +14,9 @@ import com.genersoft.iot.vmp.gb28181.service.IDeviceChannelService;
 import com.genersoft.iot.vmp.gb28181.service.IDeviceService;
 import com.genersoft.iot.vmp.gb28181.service.IInviteStreamService;
 import com.genersoft.iot.vmp.gb28181.session.AudioBroadcastManager;
+import com.genersoft.iot.vmp.gb28181.session.DeviceKeepaliveManager;
+import com.genersoft.iot.vmp.gb28181.session.DeviceOnboardingScheduler;
+import com.genersoft.iot.vmp.gb28181.session.PlatformChannelShareIndex;
 import com.genersoft.iot.vmp.gb28181.session.SipInviteSessionManager;
 import com.genersoft.iot.vmp.gb28181.task.ISubscribeTask;
 import com.genersoft.iot.vmp.gb28181.task.impl.CatalogSubscribeTask;
@@ -40,6 +43,7 @@ import java.text.ParseException;
 import java.time.Instant;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 设备业务（目录订阅）
@@ -94,6 +98,15 @@ public class DeviceServiceImpl implements IDeviceService {
     @Autowired
     private AudioBroadcastManager audioBroadcastManager;
 
+    @Autowired
+    private DeviceKeepaliveManager deviceKeepaliveManager;
+
+    @Autowired
+    private PlatformChannelShareIndex platformChannelShareIndex;
+
+    @Autowired
+    private DeviceOnboardingScheduler deviceOnboardingScheduler;
+
     @Override
     public void online(Device device, SipTransactionInfo sipTransactionInfo) {
         log.info("[设备上线] deviceId：{}->{}:{}", device.getDeviceId(), device.getIp(), device.getPort());
@@ -127,12 +140,8 @@ public class DeviceServiceImpl implements IDeviceService {
             log.info("[设备上线,首次注册]: {}，查询设备信息以及通道信息", device.getDeviceId());
             deviceMapper.add(device);
             redisCatchStorage.updateDevice(device);
-            try {
-                commander.deviceInfoQuery(device);
-            } catch (InvalidArgumentException | SipException | ParseException e) {
-                log.error("[命令发送失败] 查询设备信息: {}", e.getMessage());
-            }
-            sync(device);
+            scheduleDeviceInfoQuery(device);
+            scheduleSync(device);
         }else {
             if(!device.isOnLine()){
                 device.setOnLine(true);
@@ -141,21 +150,13 @@ public class DeviceServiceImpl implements IDeviceService {
                 redisCatchStorage.updateDevice(device);
                 if (userSetting.getSyncChannelOnDeviceOnline()) {
                     log.info("[设备上线,离线状态下重新注册]: {}，查询设备信息以及通道信息", device.getDeviceId());
-                    try {
-                        commander.deviceInfoQuery(device);
-                    } catch (InvalidArgumentException | SipException | ParseException e) {
-                        log.error("[命令发送失败] 查询设备信息: {}", e.getMessage());
-                    }
-                    sync(device);
+                    scheduleDeviceInfoQuery(device);
+                    scheduleSync(device);
                     // TODO 如果设备下的通道级联到了其他平台，那么需要发送事件或者notify给上级平台
                 }
                 // 上线添加订阅
-                if (device.getSubscribeCycleForCatalog() > 0) {
-                    // 查询在线设备那些开启了订阅，为设备开启定时的目录订阅
-                    addCatalogSubscribe(device);
-                }
-                if (device.getSubscribeCycleForMobilePosition() > 0) {
-                    addMobilePositionSubscribe(device);
+                if (device.getSubscribeCycleForCatalog() > 0 || device.getSubscribeCycleForMobilePosition() > 0) {
+                    scheduleSubscribe(device);
                 }
                 if (userSetting.getDeviceStatusNotify()) {
                     // 发送redis消息
@@ -166,9 +167,9 @@ public class DeviceServiceImpl implements IDeviceService {
                 deviceMapper.update(device);
                 redisCatchStorage.updateDevice(device);
             }
-            if (deviceChannelMapper.queryChannelsByDeviceDbId(device.getId()).isEmpty()) {
+            if (deviceChannelMapper.getChannelCountByDeviceDbId(device.getId()) == 0) {
                 log.info("[设备上线]: {}，通道数为0,查询通道信息", device.getDeviceId());
-                sync(device);
+                scheduleSync(device);
             }
         }
 
@@ -190,6 +191,46 @@ public class DeviceServiceImpl implements IDeviceService {
 
     }
 
+    /**
+     * 注册后的查询设备信息交给调度器按并发上限执行，设备回复或失败后释放并发
+     */
+    private void scheduleDeviceInfoQuery(Device device) {
+        AtomicBoolean replied = new AtomicBoolean(false);
+        deviceOnboardingScheduler.submit(device, DeviceOnboardingScheduler.Stage.DEVICE_INFO, () -> {
+            try {
+                commander.deviceInfoQuery(device, event -> replied.set(true), event -> replied.set(true));
+            } catch (InvalidArgumentException | SipException | ParseException e) {
+                log.error("[命令发送失败] 查询设备信息: {}", e.getMessage());
+                replied.set(true);
+            }
+        }, replied::get);
+    }
+
+    /**
+     * 注册后的通道同步交给调度器按并发上限执行，同步结束后释放并发
+     */
+    private void scheduleSync(Device device) {
+        deviceOnboardingScheduler.submit(device, DeviceOnboardingScheduler.Stage.CATALOG_SYNC, () -> sync(device),
+                () -> !catalogResponseMessageHandler.isSyncRunning(device.getDeviceId()));
+    }
+
+    private void scheduleSubscribe(Device device) {
+        deviceOnboardingScheduler.submit(device, DeviceOnboardingScheduler.Stage.SUBSCRIBE, () -> {
+            if (device.getSubscribeCycleForCatalog() > 0) {
+                // 查询在线设备那些开启了订阅，为设备开启定时的目录订阅
+                addCatalogSubscribe(device);
+            }
+            if (device.getSubscribeCycleForMobilePosition() > 0) {
+                addMobilePositionSubscribe(device);
+            }
+        }, () -> true);
+    }
+
+    @Override
+    public OnboardingStatus getOnboardingStatus(String deviceId) {
+        return deviceOnboardingScheduler.getStatus(deviceId);
+    }
+
     @Override
     public void offline(String deviceId, String reason) {
         log.warn("[设备离线]，{}, device：{}", reason, deviceId);
@@ -199,6 +240,9 @@ public class DeviceServiceImpl implements IDeviceService {
         }
         String registerExpireTaskKey = VideoManagerConstants.REGISTER_EXPIRE_TASK_KEY_PREFIX + deviceId;
         dynamicTask.stop(registerExpireTaskKey);
+        deviceOnboardingScheduler.cancel(deviceId);
+        // 丢弃尚未写入的心跳，避免离线后被重新写为在线
+        deviceKeepaliveManager.remove(deviceId);
         if (device.isOnLine()) {
             if (userSetting.getDeviceStatusNotify()) {
                 // 发送redis消息
@@ -497,8 +541,10 @@ public class DeviceServiceImpl implements IDeviceService {
         if (device == null) {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "未找到设备:" + deviceId);
         }
-        platformChannelMapper.delChannelForDeviceId(deviceId);
-        deviceChannelMapper.cleanChannelsByDeviceId(device.getId());
+        if (platformChannelMapper.delChannelForDeviceId(deviceId) > 0) {
+            platformChannelShareIndex.refreshAll();
+        }
+        deviceChannelService.cleanChannelsForDevice(device.getId());
         deviceMapper.del(deviceId);
         redisCatchStorage.removeDevice(deviceId);
         return true;
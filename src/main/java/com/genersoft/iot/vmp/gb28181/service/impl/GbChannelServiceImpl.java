@@ -10,6 +10,8 @@ import com.genersoft.iot.vmp.gb28181.event.EventPublisher;
 import com.genersoft.iot.vmp.gb28181.event.subscribe.catalog.CatalogEvent;
 import com.genersoft.iot.vmp.gb28181.service.IGbChannelService;
 import com.genersoft.iot.vmp.gb28181.service.IPlatformChannelService;
+import com.genersoft.iot.vmp.gb28181.session.ChannelSearchIndex;
+import com.genersoft.iot.vmp.gb28181.session.RegionGroupTreeIndex;
 import com.genersoft.iot.vmp.streamPush.bean.StreamPush;
 import com.genersoft.iot.vmp.utils.DateUtil;
 import com.genersoft.iot.vmp.vmanager.bean.ErrorCode;
@@ -46,6 +48,12 @@ public class GbChannelServiceImpl implements IGbChannelService {
     @Autowired
     private GroupMapper groupMapper;
 
+    @Autowired
+    private RegionGroupTreeIndex regionGroupTreeIndex;
+
+    @Autowired
+    private ChannelSearchIndex channelSearchIndex;
+
     @Override
     public CommonGBChannel queryByDeviceId(String gbDeviceId) {
         return commonGBChannelMapper.queryByDeviceId(gbDeviceId);
@@ -67,7 +75,10 @@ public class GbChannelServiceImpl implements IGbChannelService {
         }
         commonGBChannel.setCreateTime(DateUtil.getNow());
         commonGBChannel.setUpdateTime(DateUtil.getNow());
-        return commonGBChannelMapper.insert(commonGBChannel);
+        int result = commonGBChannelMapper.insert(commonGBChannel);
+        regionGroupTreeIndex.markChannelChanged();
+        channelSearchIndex.refresh(Collections.singletonList(commonGBChannel.getGbId()));
+        return result;
     }
 
     @Override
@@ -83,6 +94,8 @@ public class GbChannelServiceImpl implements IGbChannelService {
         CommonGBChannel channel = commonGBChannelMapper.queryById(gbId);
         if (channel != null) {
             commonGBChannelMapper.delete(gbId);
+            regionGroupTreeIndex.markChannelChanged();
+            channelSearchIndex.refresh(Collections.singletonList(gbId));
             try {
                 // 发送通知
                 eventPublisher.catalogEventPublish(null, channel, CatalogEvent.DEL);
@@ -107,6 +120,8 @@ public class GbChannelServiceImpl implements IGbChannelService {
             return;
         }
         commonGBChannelMapper.batchDelete(channelListInDb);
+        regionGroupTreeIndex.markChannelChanged();
+        channelSearchIndex.refresh(ids);
     }
 
     @Override
@@ -119,6 +134,8 @@ public class GbChannelServiceImpl implements IGbChannelService {
         commonGBChannel.setUpdateTime(DateUtil.getNow());
         int result = commonGBChannelMapper.update(commonGBChannel);
         if (result > 0) {
+            regionGroupTreeIndex.markChannelChanged();
+            channelSearchIndex.refresh(Collections.singletonList(commonGBChannel.getGbId()));
             try {
                 // 发送通知
                 eventPublisher.catalogEventPublish(null, commonGBChannel, CatalogEvent.UPDATE);
@@ -261,6 +278,9 @@ public class GbChannelServiceImpl implements IGbChannelService {
             result += commonGBChannelMapper.batchAdd(commonGBChannels);
         }
         log.warn("[新增多个通道] 通道数量为{}，成功保存：{}", commonGBChannels.size(), result);
+        regionGroupTreeIndex.markChannelChanged();
+        // 批量新增不返回ID，全量刷新搜索索引
+        channelSearchIndex.refreshAll();
     }
 
     @Override
@@ -284,6 +304,12 @@ public class GbChannelServiceImpl implements IGbChannelService {
             result += commonGBChannelMapper.batchUpdate(commonGBChannels);
         }
         log.info("[更新多个通道] 通道数量为{}，成功保存：{}", commonGBChannels.size(), result);
+        regionGroupTreeIndex.markChannelChanged();
+        List<Integer> ids = new ArrayList<>();
+        for (CommonGBChannel commonGBChannel : commonGBChannels) {
+            ids.add(commonGBChannel.getGbId());
+        }
+        channelSearchIndex.refresh(ids);
         // 发送通过更新通知
         try {
             // 发送通知
@@ -377,6 +403,8 @@ public class GbChannelServiceImpl implements IGbChannelService {
         }
         // 这个多加一个参数,为了防止将非国标的通道通过此方法清空内容,导致意外发生
         commonGBChannelMapper.reset(id, channel.getGbDeviceDbId(), DateUtil.getNow());
+        regionGroupTreeIndex.markChannelChanged();
+        channelSearchIndex.refresh(Collections.singletonList(id));
         CommonGBChannel channelNew = getOne(id);
         // 发送通过更新通知
         try {
@@ -389,31 +417,52 @@ public class GbChannelServiceImpl implements IGbChannelService {
 
     @Override
     public PageInfo<CommonGBChannel> queryListByCivilCode(int page, int count, String query, Boolean online, Integer channelType, String civilCode) {
-        PageHelper.startPage(page, count);
-        if (query != null) {
+        // 关键字优先使用通道搜索索引
+        List<Integer> ids = channelSearchIndex.search(query, null);
+        if (ids != null && ids.isEmpty()) {
+            return new PageInfo<>(new ArrayList<>());
+        }
+        if (ids != null) {
+            query = null;
+        }else if (query != null) {
             query = query.replaceAll("/", "//")
                     .replaceAll("%", "/%")
                     .replaceAll("_", "/_");
         }
-        List<CommonGBChannel> all = commonGBChannelMapper.queryListByCivilCode(query, online, channelType, civilCode);
+        PageHelper.startPage(page, count);
+        List<CommonGBChannel> all = commonGBChannelMapper.queryListByCivilCode(query, online, channelType, civilCode, ids);
         return new PageInfo<>(all);
     }
 
     @Override
     public PageInfo<CommonGBChannel> queryListByParentId(int page, int count, String query, Boolean online, Integer channelType, String groupDeviceId) {
-        PageHelper.startPage(page, count);
-        if (query != null) {
+        // 关键字优先使用通道搜索索引
+        List<Integer> ids = channelSearchIndex.search(query, null);
+        if (ids != null && ids.isEmpty()) {
+            return new PageInfo<>(new ArrayList<>());
+        }
+        if (ids != null) {
+            query = null;
+        }else if (query != null) {
             query = query.replaceAll("/", "//")
                     .replaceAll("%", "/%")
                     .replaceAll("_", "/_");
         }
-        List<CommonGBChannel> all = commonGBChannelMapper.queryListByParentId(query, online, channelType, groupDeviceId);
+        PageHelper.startPage(page, count);
+        List<CommonGBChannel> all = commonGBChannelMapper.queryListByParentId(query, online, channelType, groupDeviceId, ids);
         return new PageInfo<>(all);
     }
 
     @Override
     public void removeCivilCode(List<Region> allChildren) {
         commonGBChannelMapper.removeCivilCode(allChildren);
+        Set<String> civilCodes = new HashSet<>();
+        for (Region region : allChildren) {
+            if (region != null) {
+                civilCodes.add(region.getDeviceId());
+            }
+        }
+        regionGroupTreeIndex.refreshRegionChannelCount(civilCodes);
         // TODO 是否需要通知上级, 或者等添加新的行政区划时发送更新通知
 
     }
@@ -424,10 +473,13 @@ public class GbChannelServiceImpl implements IGbChannelService {
         if (channelList.isEmpty()) {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "所有通道Id不存在");
         }
+        // 变化前后的行政区划，更新之后重新统计通道数量
+        Set<String> civilCodes = getCivilCodes(channelList, civilCode);
         for (CommonGBChannel channel : channelList) {
             channel.setGbCivilCode(civilCode);
         }
         int result = commonGBChannelMapper.updateRegion(civilCode, channelList);
+        regionGroupTreeIndex.refreshRegionChannelCount(civilCodes);
         // 发送通知
         if (result > 0) {
             platformChannelService.checkRegionAdd(channelList);
@@ -458,6 +510,7 @@ public class GbChannelServiceImpl implements IGbChannelService {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "所有通道Id不存在");
         }
         int result = commonGBChannelMapper.removeCivilCodeByChannels(channelList);
+        regionGroupTreeIndex.refreshRegionChannelCount(Collections.singletonList(civilCode));
         Region region = regionMapper.queryByDeviceId(civilCode);
         if (region == null) {
             platformChannelService.checkRegionRemove(channelList, null);
@@ -484,6 +537,7 @@ public class GbChannelServiceImpl implements IGbChannelService {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "所有通道Id不存在");
         }
         int result = commonGBChannelMapper.removeCivilCodeByChannels(channelList);
+        refreshRegionChannelCount(channelList, null);
 
         platformChannelService.checkRegionRemove(channelList, null);
         // TODO 发送通知
@@ -503,10 +557,13 @@ public class GbChannelServiceImpl implements IGbChannelService {
         if (channelList.isEmpty()) {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "所有通道Id不存在");
         }
+        // 变化前后的行政区划，更新之后重新统计通道数量
+        Set<String> civilCodes = getCivilCodes(channelList, civilCode);
         for (CommonGBChannel channel : channelList) {
             channel.setGbCivilCode(civilCode);
         }
         int result = commonGBChannelMapper.updateRegion(civilCode, channelList);
+        regionGroupTreeIndex.refreshRegionChannelCount(civilCodes);
         // 发送通知
         if (result > 0) {
             try {
@@ -525,6 +582,7 @@ public class GbChannelServiceImpl implements IGbChannelService {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "所有通道Id不存在");
         }
         int result = commonGBChannelMapper.removeCivilCodeByChannels(channelList);
+        refreshRegionChannelCount(channelList, null);
         platformChannelService.checkRegionRemove(channelList, null);
     }
 
@@ -536,6 +594,7 @@ public class GbChannelServiceImpl implements IGbChannelService {
             return;
         }
         int result = commonGBChannelMapper.removeParentIdByChannels(channelList);
+        refreshGroupChannelCount(channelList, null);
         List<Group> groupList = groupMapper.queryByBusinessGroup(businessGroup);
         platformChannelService.checkGroupRemove(channelList, groupList);
 
@@ -548,6 +607,7 @@ public class GbChannelServiceImpl implements IGbChannelService {
             return;
         }
         commonGBChannelMapper.removeParentIdByChannels(channelList);
+        refreshGroupChannelCount(channelList, null);
         platformChannelService.checkGroupRemove(channelList, groupList);
     }
 
@@ -578,6 +638,7 @@ public class GbChannelServiceImpl implements IGbChannelService {
         }
 
         int result = commonGBChannelMapper.updateParentIdByChannelList(newParentId, channelList);
+        regionGroupTreeIndex.refreshGroupChannelCount(Arrays.asList(oldParentId, newParentId));
         if (result > 0) {
             for (CommonGBChannel channel : channelList) {
                 channel.setGbParentId(newParentId);
@@ -598,7 +659,10 @@ public class GbChannelServiceImpl implements IGbChannelService {
         if (channelList.isEmpty()) {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "所有通道Id不存在");
         }
+        // 变化前后的父节点，更新之后重新统计通道数量
+        Set<String> parentIds = getParentIds(channelList, parentId);
         int result = commonGBChannelMapper.updateGroup(parentId, businessGroup, channelList);
+        regionGroupTreeIndex.refreshGroupChannelCount(parentIds);
         for (CommonGBChannel commonGBChannel : channelList) {
             commonGBChannel.setGbParentId(parentId);
             commonGBChannel.setGbBusinessGroupId(businessGroup);
@@ -623,6 +687,7 @@ public class GbChannelServiceImpl implements IGbChannelService {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "所有通道Id不存在");
         }
         commonGBChannelMapper.removeParentIdByChannels(channelList);
+        refreshGroupChannelCount(channelList, null);
 
         Group group = groupMapper.queryOneByDeviceId(parentId, businessGroup);
         if (group == null) {
@@ -641,11 +706,14 @@ public class GbChannelServiceImpl implements IGbChannelService {
         if (channelList.isEmpty()) {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "所有通道Id不存在");
         }
+        // 变化前后的父节点，更新之后重新统计通道数量
+        Set<String> parentIds = getParentIds(channelList, parentId);
         for (CommonGBChannel channel : channelList) {
             channel.setGbParentId(parentId);
             channel.setGbBusinessGroupId(businessGroup);
         }
         int result = commonGBChannelMapper.updateGroup(parentId, businessGroup, channelList);
+        regionGroupTreeIndex.refreshGroupChannelCount(parentIds);
 
         for (CommonGBChannel commonGBChannel : channelList) {
             commonGBChannel.setGbParentId(parentId);
@@ -670,6 +738,7 @@ public class GbChannelServiceImpl implements IGbChannelService {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "所有通道Id不存在");
         }
         commonGBChannelMapper.removeParentIdByChannels(channelList);
+        refreshGroupChannelCount(channelList, null);
         platformChannelService.checkGroupRemove(channelList, null);
     }
 
@@ -692,6 +761,7 @@ public class GbChannelServiceImpl implements IGbChannelService {
         }
 
         int result = commonGBChannelMapper.updateCivilCodeByChannelList(newCivilCode, channelList);
+        regionGroupTreeIndex.refreshRegionChannelCount(Arrays.asList(oldCivilCode, newCivilCode));
         if (result > 0) {
             for (CommonGBChannel channel : channelList) {
                 channel.setGbCivilCode(newCivilCode);
@@ -714,4 +784,36 @@ public class GbChannelServiceImpl implements IGbChannelService {
     public void updateGpsByDeviceIdForStreamPush(List<CommonGBChannel> channels) {
         commonGBChannelMapper.updateGpsByDeviceIdForStreamPush(channels);
     }
+
+    /**
+     * 通道的行政区划变化后，重新统计变化前后行政区划的通道数量
+     */
+    private void refreshRegionChannelCount(List<CommonGBChannel> channelList, String civilCode) {
+        regionGroupTreeIndex.refreshRegionChannelCount(getCivilCodes(channelList, civilCode));
+    }
+
+    private Set<String> getCivilCodes(List<CommonGBChannel> channelList, String civilCode) {
+        Set<String> civilCodes = new HashSet<>();
+        for (CommonGBChannel channel : channelList) {
+            civilCodes.add(channel.getGbCivilCode());
+        }
+        civilCodes.add(civilCode);
+        return civilCodes;
+    }
+
+    /**
+     * 通道的父节点变化后，重新统计变化前后分组的通道数量
+     */
+    private void refreshGroupChannelCount(List<CommonGBChannel> channelList, String parentId) {
+        regionGroupTreeIndex.refreshGroupChannelCount(getParentIds(channelList, parentId));
+    }
+
+    private Set<String> getParentIds(List<CommonGBChannel> channelList, String parentId) {
+        Set<String> parentIds = new HashSet<>();
+        for (CommonGBChannel channel : channelList) {
+            parentIds.add(channel.getGbParentId());
+        }
+        parentIds.add(parentId);
+        return parentIds;
+    }
 }
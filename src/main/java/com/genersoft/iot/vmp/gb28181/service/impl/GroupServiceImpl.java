@@ -8,6 +8,7 @@ import com.genersoft.iot.vmp.gb28181.event.EventPublisher;
 import com.genersoft.iot.vmp.gb28181.event.subscribe.catalog.CatalogEvent;
 import com.genersoft.iot.vmp.gb28181.service.IGbChannelService;
 import com.genersoft.iot.vmp.gb28181.service.IGroupService;
+import com.genersoft.iot.vmp.gb28181.session.RegionGroupTreeIndex;
 import com.genersoft.iot.vmp.utils.DateUtil;
 import com.genersoft.iot.vmp.vmanager.bean.ErrorCode;
 import lombok.extern.slf4j.Slf4j;
@@ -38,6 +39,9 @@ public class GroupServiceImpl implements IGroupService {
     @Autowired
     private EventPublisher eventPublisher;
 
+    @Autowired
+    private RegionGroupTreeIndex regionGroupTreeIndex;
+
     @Override
     public void add(Group group) {
         Assert.notNull(group, "参数不可为NULL");
@@ -71,6 +75,7 @@ public class GroupServiceImpl implements IGroupService {
         group.setCreateTime(DateUtil.getNow());
         group.setUpdateTime(DateUtil.getNow());
         groupManager.add(group);
+        regionGroupTreeIndex.refreshGroup(Collections.singletonList(group.getId()));
     }
 
     private void addBusinessGroup(Group group) {
@@ -78,6 +83,7 @@ public class GroupServiceImpl implements IGroupService {
         group.setCreateTime(DateUtil.getNow());
         group.setUpdateTime(DateUtil.getNow());
         groupManager.addBusinessGroup(group);
+        regionGroupTreeIndex.refreshGroup(Collections.singletonList(group.getId()));
     }
 
     private List<Group> queryAllChildren(Integer id) {
@@ -103,10 +109,15 @@ public class GroupServiceImpl implements IGroupService {
         group.setName(group.getName());
         group.setUpdateTime(DateUtil.getNow());
         groupManager.update(group);
+        List<Integer> changedIds = new ArrayList<>();
+        changedIds.add(group.getId());
         // 修改他的子节点
         if (!group.getDeviceId().equals(groupInDb.getDeviceId())
                 || !group.getBusinessGroup().equals(groupInDb.getBusinessGroup())) {
             List<Group> groupList = queryAllChildren(groupInDb.getId());
+            for (Group childGroup : groupList) {
+                changedIds.add(childGroup.getId());
+            }
             if (!groupList.isEmpty()) {
                int result =  groupManager.updateChild(groupInDb.getId(), group);
                if (result > 0) {
@@ -125,6 +136,7 @@ public class GroupServiceImpl implements IGroupService {
                }
             }
         }
+        regionGroupTreeIndex.refreshGroup(changedIds);
         // 将变化信息发送通知
         CommonGBChannel channel = CommonGBChannel.build(group);
         try {
@@ -154,6 +166,21 @@ public class GroupServiceImpl implements IGroupService {
 
     @Override
     public List<GroupTree> queryForTree(String query, Integer parentId, Boolean hasChannel) {
+        if (regionGroupTreeIndex.isReady()) {
+            List<GroupTree> groupTrees = regionGroupTreeIndex.getGroupChildren(parentId, query);
+            if (parentId == null) {
+                return groupTrees;
+            }
+            // 查询含有的通道
+            Group parentGroup = regionGroupTreeIndex.getGroup(parentId);
+            if (parentGroup != null && hasChannel != null && hasChannel) {
+                List<GroupTree> groupTreesForChannel = commonGBChannelMapper.queryForGroupTreeByParentId(query, parentGroup.getDeviceId());
+                if (!ObjectUtils.isEmpty(groupTreesForChannel)) {
+                    groupTrees.addAll(groupTreesForChannel);
+                }
+            }
+            return groupTrees;
+        }
 
         List<GroupTree> groupTrees = groupManager.queryForTree(query, parentId);
         if (parentId == null) {
@@ -198,6 +225,11 @@ public class GroupServiceImpl implements IGroupService {
             gbChannelService.removeParentIdByGroupList(groupListForDelete);
         }
         groupManager.batchDelete(groupListForDelete);
+        List<Integer> deletedIds = new ArrayList<>();
+        for (Group groupForDelete : groupListForDelete) {
+            deletedIds.add(groupForDelete.getId());
+        }
+        regionGroupTreeIndex.refreshGroup(deletedIds);
 
         for (Group groupForDelete : groupListForDelete) {
             // 删除平台关联的分组信息。同时发送通知
@@ -242,6 +274,11 @@ public class GroupServiceImpl implements IGroupService {
             // 更新分组关系
             groupManager.updateParentId(groupListForAdd);
             groupManager.updateParentIdWithBusinessGroup(groupListForAdd);
+            List<Integer> addedIds = new ArrayList<>(groupListForAdd.size());
+            for (Group group : groupListForAdd) {
+                addedIds.add(group.getId());
+            }
+            regionGroupTreeIndex.refreshGroup(addedIds);
         }
 
         return true;
@@ -249,6 +286,21 @@ public class GroupServiceImpl implements IGroupService {
 
     @Override
     public List<Group> getPath(String deviceId, String businessGroup) {
+        if (regionGroupTreeIndex.isReady()) {
+            Group businessGroupInIndex = regionGroupTreeIndex.getGroup(businessGroup, businessGroup);
+            if (businessGroupInIndex == null) {
+                throw new ControllerException(ErrorCode.ERROR100.getCode(), "业务分组不存在");
+            }
+            List<Group> groupList = new LinkedList<>();
+            groupList.add(businessGroupInIndex);
+            Group group = regionGroupTreeIndex.getGroup(deviceId, businessGroup);
+            if (group == null) {
+                throw new ControllerException(ErrorCode.ERROR100.getCode(), "虚拟组织不存在");
+            }
+            groupList.add(group);
+            groupList.addAll(regionGroupTreeIndex.getGroupParents(group));
+            return groupList;
+        }
         Group businessGroupInDb = groupManager.queryBusinessGroup(businessGroup);
         if (businessGroupInDb == null) {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "业务分组不存在");
@@ -6,6 +6,8 @@ import com.genersoft.iot.vmp.gb28181.dao.*;
 import com.genersoft.iot.vmp.gb28181.event.EventPublisher;
 import com.genersoft.iot.vmp.gb28181.event.subscribe.catalog.CatalogEvent;
 import com.genersoft.iot.vmp.gb28181.service.IPlatformChannelService;
+import com.genersoft.iot.vmp.gb28181.session.ChannelSearchIndex;
+import com.genersoft.iot.vmp.gb28181.session.PlatformChannelShareIndex;
 import com.genersoft.iot.vmp.gb28181.transmit.cmd.ISIPCommanderForPlatform;
 import com.genersoft.iot.vmp.jt1078.proc.request.Re;
 import com.github.pagehelper.PageHelper;
@@ -51,11 +53,31 @@ public class PlatformChannelServiceImpl implements IPlatformChannelService {
     @Autowired
     private ISIPCommanderForPlatform sipCommanderFroPlatform;
 
+    @Autowired
+    private PlatformChannelShareIndex platformChannelShareIndex;
+
+    @Autowired
+    private ChannelSearchIndex channelSearchIndex;
+
 
     @Override
     public PageInfo<PlatformChannel> queryChannelList(int page, int count, String query, Integer channelType, Boolean online, Integer platformId, Boolean hasShare) {
+        // 关键字优先使用通道搜索索引， 自定义编号和名称只在此平台的共享记录中匹配
+        List<Integer> ids = channelSearchIndex.search(query, null);
+        if (ids != null) {
+            String escapedQuery = query.replaceAll("/", "//")
+                    .replaceAll("%", "/%")
+                    .replaceAll("_", "/_");
+            Set<Integer> idSet = new TreeSet<>(ids);
+            idSet.addAll(platformChannelMapper.queryChannelIdByCustomKeyword(platformId, escapedQuery));
+            if (idSet.isEmpty()) {
+                return new PageInfo<>(new ArrayList<>());
+            }
+            ids = new ArrayList<>(idSet);
+            query = null;
+        }
         PageHelper.startPage(page, count);
-        List<PlatformChannel> all = platformChannelMapper.queryForPlatformForWebList(platformId, query, channelType, online, hasShare);
+        List<PlatformChannel> all = platformChannelMapper.queryForPlatformForWebList(platformId, query, channelType, online, hasShare, ids);
         return new PageInfo<>(all);
     }
 
@@ -212,6 +234,7 @@ public class PlatformChannelServiceImpl implements IPlatformChannelService {
     public int addChannelList(Integer platformId, List<CommonGBChannel> channelList) {
         int result = platformChannelMapper.addChannels(platformId, channelList);
         if (result > 0) {
+            platformChannelShareIndex.refresh(getChannelIds(channelList));
             // 查询通道相关的行政区划信息是否共享，如果没共享就添加
             Set<Region> regionListNotShare =  getRegionNotShareByChannelList(channelList, platformId);
             if (!regionListNotShare.isEmpty()) {
@@ -253,6 +276,7 @@ public class PlatformChannelServiceImpl implements IPlatformChannelService {
         Assert.notEmpty(channelListShare, "未共享任何通道");
         int result = platformChannelMapper.removeChannelsWithPlatform(platformId, channelListShare);
         if (result > 0) {
+            platformChannelShareIndex.refresh(getChannelIds(channelListShare));
             // 查询通道相关的分组信息
             Set<Region> regionSet = regionMapper.queryByChannelList(channelListShare);
             Set<Region> deleteRegion = deleteEmptyRegion(regionSet, platformId);
@@ -299,6 +323,7 @@ public class PlatformChannelServiceImpl implements IPlatformChannelService {
     public int removeChannelList(Integer platformId, List<CommonGBChannel> channelList) {
         int result = platformChannelMapper.removeChannelsWithPlatform(platformId, channelList);
         if (result > 0) {
+            platformChannelShareIndex.refresh(getChannelIds(channelList));
             // 查询通道相关的分组信息
             Set<Region> regionSet = regionMapper.queryByChannelList(channelList);
             Set<Region> deleteRegion = deleteEmptyRegion(regionSet, platformId);
@@ -373,6 +398,13 @@ public class PlatformChannelServiceImpl implements IPlatformChannelService {
         if (commonGBChannelList.isEmpty()) {
             return new ArrayList<>();
         }
+        List<CommonGBChannel> channelList = queryDirectoryByPlatform(platform);
+        channelList.addAll(commonGBChannelList);
+        return channelList;
+    }
+
+    @Override
+    public List<CommonGBChannel> queryDirectoryByPlatform(Platform platform) {
         List<CommonGBChannel> channelList = new ArrayList<>();
         // 是否包含平台信息
         if (platform.getCatalogWithPlatform() > 0) {
@@ -394,8 +426,6 @@ public class PlatformChannelServiceImpl implements IPlatformChannelService {
                 channelList.addAll(groupChannelList);
             }
         }
-
-        channelList.addAll(commonGBChannelList);
         return channelList;
     }
 
@@ -420,6 +450,7 @@ public class PlatformChannelServiceImpl implements IPlatformChannelService {
     @Override
     public void updateCustomChannel(PlatformChannel channel) {
         platformChannelMapper.updateCustomChannel(channel);
+        platformChannelShareIndex.refresh(Collections.singletonList(channel.getGbId()));
         CommonGBChannel commonGBChannel = platformChannelMapper.queryShareChannel(channel.getPlatformId(), channel.getGbId());
         // 发送消息
         try {
@@ -572,7 +603,15 @@ public class PlatformChannelServiceImpl implements IPlatformChannelService {
 
     @Override
     public List<Platform> queryPlatFormListByChannelDeviceId(Integer channelId, List<String> platforms) {
-        return platformChannelMapper.queryPlatFormListForGBWithGBId(channelId, platforms);
+        return platformChannelShareIndex.queryPlatforms(channelId, platforms);
+    }
+
+    private List<Integer> getChannelIds(List<CommonGBChannel> channelList) {
+        List<Integer> ids = new ArrayList<>(channelList.size());
+        for (CommonGBChannel channel : channelList) {
+            ids.add(channel.getGbId());
+        }
+        return ids;
     }
 
     @Override
@@ -10,9 +10,12 @@ import com.genersoft.iot.vmp.gb28181.bean.*;
 import com.genersoft.iot.vmp.gb28181.dao.PlatformChannelMapper;
 import com.genersoft.iot.vmp.gb28181.dao.PlatformMapper;
 import com.genersoft.iot.vmp.gb28181.event.SipSubscribe;
+import com.genersoft.iot.vmp.gb28181.event.subscribe.mobilePosition.MobilePositionNotifier;
 import com.genersoft.iot.vmp.gb28181.service.IGbChannelService;
 import com.genersoft.iot.vmp.gb28181.service.IInviteStreamService;
 import com.genersoft.iot.vmp.gb28181.service.IPlatformService;
+import com.genersoft.iot.vmp.gb28181.session.PlatformChannelShareIndex;
+import com.genersoft.iot.vmp.gb28181.session.PlatformRegistry;
 import com.genersoft.iot.vmp.gb28181.session.SSRCFactory;
 import com.genersoft.iot.vmp.gb28181.session.SipInviteSessionManager;
 import com.genersoft.iot.vmp.gb28181.transmit.cmd.ISIPCommanderForPlatform;
@@ -67,6 +70,9 @@ public class PlatformServiceImpl implements IPlatformService {
     @Autowired
     private IRedisCatchStorage redisCatchStorage;
 
+    @Autowired
+    private MobilePositionNotifier mobilePositionNotifier;
+
     @Autowired
     private SSRCFactory ssrcFactory;
 
@@ -100,6 +106,12 @@ public class PlatformServiceImpl implements IPlatformService {
     @Autowired
     private ISendRtpServerService sendRtpServerService;
 
+    @Autowired
+    private PlatformRegistry platformRegistry;
+
+    @Autowired
+    private PlatformChannelShareIndex platformChannelShareIndex;
+
     /**
      * 流离开的处理
      */
@@ -111,7 +123,7 @@ public class PlatformServiceImpl implements IPlatformService {
             for (SendRtpInfo sendRtpItem : sendRtpItems) {
                 if (sendRtpItem != null && sendRtpItem.getApp().equals(event.getApp()) && sendRtpItem.isSendToPlatform()) {
                     String platformId = sendRtpItem.getTargetId();
-                    Platform platform = platformMapper.getParentPlatByServerGBId(platformId);
+                    Platform platform = platformRegistry.get(platformId);
                     CommonGBChannel channel = channelService.getOne(sendRtpItem.getChannelId());
                     try {
                         if (platform != null && channel != null) {
@@ -137,7 +149,7 @@ public class PlatformServiceImpl implements IPlatformService {
         if (sendRtpItems != null && !sendRtpItems.isEmpty()) {
             for (SendRtpInfo sendRtpItem : sendRtpItems) {
                 if (sendRtpItem != null && sendRtpItem.getApp().equals(event.getApp()) && sendRtpItem.isSendToPlatform()) {
-                    Platform platform = platformMapper.getParentPlatByServerGBId(sendRtpItem.getTargetId());
+                    Platform platform = platformRegistry.get(sendRtpItem.getTargetId());
                     CommonGBChannel channel = channelService.getOne(sendRtpItem.getChannelId());
                     ssrcFactory.releaseSsrc(sendRtpItem.getMediaServerId(), sendRtpItem.getSsrc());
                     try {
@@ -153,7 +165,7 @@ public class PlatformServiceImpl implements IPlatformService {
 
     @Override
     public Platform queryPlatformByServerGBId(String platformGbId) {
-        return platformMapper.getParentPlatByServerGBId(platformGbId);
+        return platformRegistry.get(platformGbId);
     }
 
     @Override
@@ -176,6 +188,7 @@ public class PlatformServiceImpl implements IPlatformService {
             platform.setCatalogGroup(1);
         }
         int result = platformMapper.add(platform);
+        platformRegistry.refresh(platform.getServerGBId());
         // 添加缓存
         PlatformCatch platformCatch = new PlatformCatch();
         platformCatch.setPlatform(platform);
@@ -228,6 +241,10 @@ public class PlatformServiceImpl implements IPlatformService {
         }
 
         platformMapper.update(platform);
+        platformRegistry.refresh(platform.getServerGBId());
+        if (!platformInDb.getServerGBId().equals(platform.getServerGBId())) {
+            platformRegistry.refresh(platformInDb.getServerGBId());
+        }
         // 更新redis
         redisCatchStorage.delPlatformCatchInfo(platformInDb.getServerGBId());
         PlatformCatch platformCatch = new PlatformCatch();
@@ -258,6 +275,7 @@ public class PlatformServiceImpl implements IPlatformService {
         dynamicTask.stop(registerFailAgainTaskKey);
 
         platformMapper.updateStatus(platform.getServerGBId(), true);
+        platformRegistry.refresh(platform.getServerGBId());
         PlatformCatch platformCatch = redisCatchStorage.queryPlatformCatchInfo(platform.getServerGBId());
         if (platformCatch == null) {
             platformCatch = new PlatformCatch();
@@ -379,6 +397,7 @@ public class PlatformServiceImpl implements IPlatformService {
         platformCatch.setPlatform(catchPlatform);
         redisCatchStorage.updatePlatformCatchInfo(platformCatch);
         platformMapper.updateStatus(platform.getServerGBId(), false);
+        platformRegistry.refresh(platform.getServerGBId());
 
         // 停止所有推流
         log.info("[平台离线] {}({}), 停止所有推流", platform.getName(),  platform.getServerGBId());
@@ -452,7 +471,7 @@ public class PlatformServiceImpl implements IPlatformService {
 
     @Override
     public void sendNotifyMobilePosition(String platformId) {
-        Platform platform = platformMapper.getParentPlatByServerGBId(platformId);
+        Platform platform = platformRegistry.get(platformId);
         if (platform == null) {
             return;
         }
@@ -471,13 +490,8 @@ public class PlatformServiceImpl implements IPlatformService {
                     if (gpsMsgInfo.getLng() == 0 && gpsMsgInfo.getLat() == 0) {
                         continue;
                     }
-                    // 发送GPS消息
-                    try {
-                        commanderForPlatform.sendNotifyMobilePosition(platform, gpsMsgInfo, channel, subscribe);
-                    } catch (InvalidArgumentException | ParseException | NoSuchFieldException | SipException |
-                             IllegalAccessException e) {
-                        log.error("[命令发送失败] 国标级联 移动位置通知: {}", e.getMessage());
-                    }
+                    // 发送GPS消息， 与实时转发的位置合并后发送
+                    mobilePositionNotifier.offer(platform, channel, gpsMsgInfo);
                 }
             }
         }
@@ -871,6 +885,7 @@ public class PlatformServiceImpl implements IPlatformService {
     public void deletePlatformInfo(Platform platform) {
         // 删除关联的通道
         platformChannelMapper.removeChannelsByPlatformId(platform.getId());
+        platformChannelShareIndex.refreshAll();
         // 删除关联的分组
         platformChannelMapper.removePlatformGroupsByPlatformId(platform.getId());
         // 删除关联的行政区划
@@ -879,5 +894,6 @@ public class PlatformServiceImpl implements IPlatformService {
         redisCatchStorage.delPlatformCatchInfo(platform.getServerGBId());
         // 删除平台信息
         platformMapper.delete(platform.getId());
+        platformRegistry.refresh(platform.getServerGBId());
     }
 }
@@ -703,7 +703,7 @@ public class PlayServiceImpl implements IPlayService {
         }
         MediaServer mediaServerItem;
         if (ObjectUtils.isEmpty(device.getMediaServerId()) || "auto".equals(device.getMediaServerId())) {
-            mediaServerItem = mediaServerService.getMediaServerForMinimumLoad(null);
+            mediaServerItem = mediaServerService.getMediaServerForMinimumLoad(null, device.getDeviceId());
         } else {
             mediaServerItem = mediaServerService.getOne(device.getMediaServerId());
         }
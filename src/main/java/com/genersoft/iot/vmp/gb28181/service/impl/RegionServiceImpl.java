@@ -11,6 +11,7 @@ import com.genersoft.iot.vmp.gb28181.event.EventPublisher;
 import com.genersoft.iot.vmp.gb28181.event.subscribe.catalog.CatalogEvent;
 import com.genersoft.iot.vmp.gb28181.service.IGbChannelService;
 import com.genersoft.iot.vmp.gb28181.service.IRegionService;
+import com.genersoft.iot.vmp.gb28181.session.RegionGroupTreeIndex;
 import com.genersoft.iot.vmp.utils.CivilCodeUtil;
 import com.genersoft.iot.vmp.utils.DateUtil;
 import com.genersoft.iot.vmp.vmanager.bean.ErrorCode;
@@ -47,6 +48,9 @@ public class RegionServiceImpl implements IRegionService {
     @Autowired
     private EventPublisher eventPublisher;
 
+    @Autowired
+    private RegionGroupTreeIndex regionGroupTreeIndex;
+
     @Override
     public void add(Region region) {
         Assert.hasLength(region.getName(), "名称必须存在");
@@ -61,6 +65,7 @@ public class RegionServiceImpl implements IRegionService {
         }catch (DuplicateKeyException e){
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "此行政区划已存在");
         }
+        regionGroupTreeIndex.refreshRegion(Collections.singletonList(region.getId()));
 
     }
 
@@ -74,6 +79,13 @@ public class RegionServiceImpl implements IRegionService {
         // 设置使用这些节点的通道的civilCode为null,
         gbChannelService.removeCivilCode(allChildren);
         regionMapper.batchDelete(allChildren);
+        List<Integer> ids = new ArrayList<>();
+        for (Region child : allChildren) {
+            if (child != null) {
+                ids.add(child.getId());
+            }
+        }
+        regionGroupTreeIndex.refreshRegion(ids);
         return true;
     }
 
@@ -113,15 +125,21 @@ public class RegionServiceImpl implements IRegionService {
         Assert.notNull(region.getName(), "名称不可为NULL");
         Region regionInDb = regionMapper.queryOne(region.getId());
         Assert.notNull(regionInDb, "待更新行政区划在数据库中不存在");
+        List<Integer> changedIds = new ArrayList<>();
+        changedIds.add(region.getId());
         if (!regionInDb.getDeviceId().equals(region.getDeviceId())) {
             Region regionNewInDb = regionMapper.queryByDeviceId(region.getDeviceId());
             Assert.isNull(regionNewInDb, "此行政区划已存在");
             // 编号发生变化，把分配了这个行政区划的通道全部更新，并发送数据
             gbChannelService.updateCivilCode(regionInDb.getDeviceId(), region.getDeviceId());
             // 子节点信息更新
+            for (Region child : regionMapper.getChildren(region.getId())) {
+                changedIds.add(child.getId());
+            }
             regionMapper.updateChild(region.getId(), region.getDeviceId());
         }
         regionMapper.update(region);
+        regionGroupTreeIndex.refreshRegion(changedIds);
         // 发送变化通知
         try {
             // 发送catalog
@@ -145,11 +163,17 @@ public class RegionServiceImpl implements IRegionService {
 
     @Override
     public List<RegionTree> queryForTree(String query, Integer parent, Boolean hasChannel) {
-        if (query != null) {
-            query = query.replaceAll("/", "//")
-                    .replaceAll("%", "/%")
-                    .replaceAll("_", "/_");
+        if (regionGroupTreeIndex.isReady()) {
+            List<RegionTree> regionList = regionGroupTreeIndex.getRegionChildren(parent, query);
+            if (parent != null && hasChannel != null && hasChannel) {
+                Region parentRegion = regionGroupTreeIndex.getRegion(parent);
+                if (parentRegion != null) {
+                    regionList.addAll(commonGBChannelMapper.queryForRegionTreeByCivilCode(escape(query), parentRegion.getDeviceId()));
+                }
+            }
+            return regionList;
         }
+        query = escape(query);
         List<RegionTree> regionList = regionMapper.queryForTree(query, parent);
         if (parent != null && hasChannel != null && hasChannel) {
             Region parentRegion = regionMapper.queryOne(parent);
@@ -161,6 +185,15 @@ public class RegionServiceImpl implements IRegionService {
         return regionList;
     }
 
+    private String escape(String query) {
+        if (query == null) {
+            return null;
+        }
+        return query.replaceAll("/", "//")
+                .replaceAll("%", "/%")
+                .replaceAll("_", "/_");
+    }
+
     @Override
     public void syncFromChannel() {
         // 获取未初始化的行政区划节点
@@ -201,12 +234,24 @@ public class RegionServiceImpl implements IRegionService {
             regionMapForVerification.put(region.getDeviceId(), region);
         }
 
-        regionMapper.batchAdd(new ArrayList<>(regionMapForVerification.values()));
+        List<Region> regionListForAdd = new ArrayList<>(regionMapForVerification.values());
+        regionMapper.batchAdd(regionListForAdd);
+        refreshIndex(regionListForAdd);
     }
 
     @Override
     public boolean delete(int id) {
-        return regionMapper.delete(id) > 0;
+        boolean result = regionMapper.delete(id) > 0;
+        regionGroupTreeIndex.refreshRegion(Collections.singletonList(id));
+        return result;
+    }
+
+    private void refreshIndex(List<Region> regionList) {
+        List<Integer> ids = new ArrayList<>(regionList.size());
+        for (Region region : regionList) {
+            ids.add(region.getId());
+        }
+        regionGroupTreeIndex.refreshRegion(ids);
     }
 
     @Override
@@ -230,6 +275,7 @@ public class RegionServiceImpl implements IRegionService {
             List<Region> regions = new ArrayList<>(regionMapForVerification.values());
             regionMapper.batchAdd(regions);
             regionMapper.updateParentId(regions);
+            refreshIndex(regions);
         }
 
         return true;
@@ -237,6 +283,13 @@ public class RegionServiceImpl implements IRegionService {
 
     @Override
     public List<Region> getPath(String deviceId) {
+        if (regionGroupTreeIndex.isReady()) {
+            List<Region> path = regionGroupTreeIndex.getRegionPath(deviceId);
+            if (path == null) {
+                throw new ControllerException(ErrorCode.ERROR100.getCode(), "行政区划不存在");
+            }
+            return path;
+        }
         Region region = regionMapper.queryByDeviceId(deviceId);
         if (region == null) {
             throw new ControllerException(ErrorCode.ERROR100.getCode(), "行政区划不存在");
@@ -247,19 +300,20 @@ public class RegionServiceImpl implements IRegionService {
     }
 
 
+    /**
+     * 全部上级行政区划，从最上级开始，与索引的结果顺序一致
+     */
     private List<Region> getAllParent(Region region) {
         if (region.getParentId() == null) {
             return new ArrayList<>();
         }
 
-        List<Region> regionList = new LinkedList<>();
         Region parent = regionMapper.queryByDeviceId(region.getParentDeviceId());
         if (parent == null) {
-            return regionList;
+            return new ArrayList<>();
         }
+        List<Region> regionList = getAllParent(parent);
         regionList.add(parent);
-        List<Region> allParent = getAllParent(parent);
-        regionList.addAll(allParent);
         return regionList;
     }
 }
@@ -1,5 +1,6 @@
 package com.genersoft.iot.vmp.gb28181.session;
 
+import com.genersoft.iot.vmp.common.MetricsSource;
 import com.genersoft.iot.vmp.gb28181.bean.*;
 import com.genersoft.iot.vmp.gb28181.service.IDeviceChannelService;
 import com.genersoft.iot.vmp.gb28181.service.IGroupService;
@@ -10,18 +11,34 @@ import org.springframework.boot.CommandLineRunner;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 目录数据的接收缓存
+ * 每包数据的通道、行政区划、业务分组合并为一次HMSET写入redis，读取和清理也按批进行
+ */
 @Slf4j
 @Component
-public class CatalogDataManager implements CommandLineRunner {
+public class CatalogDataManager implements CommandLineRunner, MetricsSource {
+
+    /**
+     * 单个设备的同步统计
+     */
+    private static class SyncMetrics {
+        private final AtomicLong syncCount = new AtomicLong();
+        private final AtomicLong fragmentCount = new AtomicLong();
+        private final AtomicLong itemCount = new AtomicLong();
+        private volatile int lastTotal;
+        private volatile long lastCostMs;
+        private volatile Instant lastEndTime;
+    }
 
     @Autowired
     private IDeviceChannelService deviceChannelService;
@@ -39,6 +56,8 @@ public class CatalogDataManager implements CommandLineRunner {
 
     private final String key = "VMP_CATALOG_DATA";
 
+    private final Map<String, SyncMetrics> syncMetricsMap = new ConcurrentHashMap<>();
+
     public String buildMapKey(String deviceId, int sn ) {
         return deviceId + "_" + sn;
     }
@@ -46,24 +65,7 @@ public class CatalogDataManager implements CommandLineRunner {
     public void addReady(Device device, int sn ) {
         CatalogData catalogData = dataMap.get(buildMapKey(device.getDeviceId(),sn));
         if (catalogData != null) {
-            Set<String> redisKeysForChannel = catalogData.getRedisKeysForChannel();
-            if (redisKeysForChannel != null && !redisKeysForChannel.isEmpty()) {
-                for (String deleteKey : redisKeysForChannel) {
-                    redisTemplate.opsForHash().delete(key, deleteKey);
-                }
-            }
-            Set<String> redisKeysForRegion = catalogData.getRedisKeysForRegion();
-            if (redisKeysForRegion != null && !redisKeysForRegion.isEmpty()) {
-                for (String deleteKey : redisKeysForRegion) {
-                    redisTemplate.opsForHash().delete(key, deleteKey);
-                }
-            }
-            Set<String> redisKeysForGroup = catalogData.getRedisKeysForGroup();
-            if (redisKeysForGroup != null && !redisKeysForGroup.isEmpty()) {
-                for (String deleteKey : redisKeysForGroup) {
-                    redisTemplate.opsForHash().delete(key, deleteKey);
-                }
-            }
+            deleteRedisData(catalogData);
             dataMap.remove(buildMapKey(device.getDeviceId(),sn));
         }
         catalogData = new CatalogData();
@@ -84,30 +86,77 @@ public class CatalogDataManager implements CommandLineRunner {
         catalogData.setStatus(CatalogData.CatalogDataStatus.runIng);
         catalogData.setTotal(total);
         catalogData.setTime(Instant.now());
+        if (catalogData.getStartTime() == null) {
+            catalogData.setStartTime(catalogData.getTime());
+        }
 
+        // 一包数据合并为一次写入
+        Map<Object, Object> fragment = new HashMap<>();
+        List<String> keysForChannel = new ArrayList<>();
+        List<String> keysForRegion = new ArrayList<>();
+        List<String> keysForGroup = new ArrayList<>();
         if (deviceChannelList != null && !deviceChannelList.isEmpty()) {
             for (DeviceChannel deviceChannel : deviceChannelList) {
                 String keyForChannel = "CHANNEL:" + deviceId + ":" + deviceChannel.getDeviceId() + ":" + sn;
-                redisTemplate.opsForHash().put(key, keyForChannel, deviceChannel);
-                catalogData.getRedisKeysForChannel().add(keyForChannel);
+                fragment.put(keyForChannel, deviceChannel);
+                keysForChannel.add(keyForChannel);
             }
         }
 
         if (regionList != null && !regionList.isEmpty()) {
             for (Region region : regionList) {
                 String keyForRegion = "REGION:" + deviceId + ":" + region.getDeviceId() + ":" + sn;
-                redisTemplate.opsForHash().put(key, keyForRegion, region);
-                catalogData.getRedisKeysForRegion().add(keyForRegion);
+                fragment.put(keyForRegion, region);
+                keysForRegion.add(keyForRegion);
             }
         }
 
         if (groupList != null && !groupList.isEmpty()) {
             for (Group group : groupList) {
                 String keyForGroup = "GROUP:" + deviceId + ":" + group.getDeviceId() + ":" + sn;
-                redisTemplate.opsForHash().put(key, keyForGroup, group);
-                catalogData.getRedisKeysForGroup().add(keyForGroup);
+                fragment.put(keyForGroup, group);
+                keysForGroup.add(keyForGroup);
+            }
+        }
+        if (!fragment.isEmpty()) {
+            redisTemplate.opsForHash().putAll(key, fragment);
+        }
+        // 写入redis之后再计数，避免读到未写入的数据
+        catalogData.getRedisKeysForChannel().addAll(keysForChannel);
+        catalogData.getRedisKeysForRegion().addAll(keysForRegion);
+        catalogData.getRedisKeysForGroup().addAll(keysForGroup);
+
+        SyncMetrics syncMetrics = syncMetricsMap.computeIfAbsent(deviceId, k -> new SyncMetrics());
+        syncMetrics.fragmentCount.incrementAndGet();
+        syncMetrics.itemCount.addAndGet(fragment.size());
+    }
+
+    /**
+     * 按批读取缓存的数据
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> multiGet(Set<String> redisKeys) {
+        List<T> result = new ArrayList<>();
+        if (redisKeys.isEmpty()) {
+            return result;
+        }
+        List<Object> values = redisTemplate.opsForHash().multiGet(key, new ArrayList<>(redisKeys));
+        for (Object value : values) {
+            if (value != null) {
+                result.add((T) value);
             }
         }
+        return result;
+    }
+
+    private void deleteRedisData(CatalogData catalogData) {
+        List<Object> deleteKeys = new ArrayList<>();
+        deleteKeys.addAll(catalogData.getRedisKeysForChannel());
+        deleteKeys.addAll(catalogData.getRedisKeysForRegion());
+        deleteKeys.addAll(catalogData.getRedisKeysForGroup());
+        if (!deleteKeys.isEmpty()) {
+            redisTemplate.opsForHash().delete(key, deleteKeys.toArray());
+        }
     }
 
     public List<DeviceChannel> getDeviceChannelList(String deviceId, int sn) {
@@ -117,13 +166,7 @@ public class CatalogDataManager implements CommandLineRunner {
             log.warn("[Redis-Catalog] 未找到缓存对象，可能已经结束");
             return result;
         }
-        for (String objectKey : catalogData.getRedisKeysForChannel()) {
-            DeviceChannel deviceChannel = (DeviceChannel) redisTemplate.opsForHash().get(key, objectKey);
-            if (deviceChannel != null) {
-                result.add(deviceChannel);
-            }
-        }
-        return result;
+        return multiGet(catalogData.getRedisKeysForChannel());
     }
 
     public List<Region> getRegionList(String deviceId, int sn) {
@@ -133,13 +176,7 @@ public class CatalogDataManager implements CommandLineRunner {
             log.warn("[Redis-Catalog] 未找到缓存对象，可能已经结束");
             return result;
         }
-        for (String objectKey : catalogData.getRedisKeysForRegion()) {
-            Region region = (Region) redisTemplate.opsForHash().get(key, objectKey);
-            if (region != null) {
-                result.add(region);
-            }
-        }
-        return result;
+        return multiGet(catalogData.getRedisKeysForRegion());
     }
 
     public List<Group> getGroupList(String deviceId, int sn) {
@@ -149,11 +186,29 @@ public class CatalogDataManager implements CommandLineRunner {
             log.warn("[Redis-Catalog] 未找到缓存对象，可能已经结束");
             return result;
         }
-        for (String objectKey : catalogData.getRedisKeysForGroup()) {
-            Group group = (Group) redisTemplate.opsForHash().get(key, objectKey);
-            if (group != null) {
-                result.add(group);
-            }
+        return multiGet(catalogData.getRedisKeysForGroup());
+    }
+
+    /**
+     * 目录数据接收完整后写入数据库，通道、行政区划、业务分组在同一个事务中写入
+     */
+    @Transactional
+    public boolean saveData(Device device, int sn) {
+
+        boolean result = true;
+        List<DeviceChannel> deviceChannelList = getDeviceChannelList(device.getDeviceId(), sn);
+        if (deviceChannelList != null && !deviceChannelList.isEmpty()) {
+            result &= deviceChannelService.resetChannels(device.getId(), deviceChannelList);
+        }
+
+        List<Region> regionList = getRegionList(device.getDeviceId(), sn);
+        if ( regionList!= null && !regionList.isEmpty()) {
+            result &= regionService.batchAdd(regionList);
+        }
+
+        List<Group> groupList = getGroupList(device.getDeviceId(), sn);
+        if (groupList != null && !groupList.isEmpty()) {
+            result &= groupService.batchAdd(groupList);
         }
         return result;
     }
@@ -239,24 +294,7 @@ public class CatalogDataManager implements CommandLineRunner {
             }
             if (catalogData.getStatus().equals(CatalogData.CatalogDataStatus.end) && catalogData.getTime().isBefore(instantBefore30S)) { // 超过三十秒，如果标记为end则删除
                 dataMap.remove(dataKey);
-                Set<String> redisKeysForChannel = catalogData.getRedisKeysForChannel();
-                if (redisKeysForChannel != null && !redisKeysForChannel.isEmpty()) {
-                    for (String deleteKey : redisKeysForChannel) {
-                        redisTemplate.opsForHash().delete(key, deleteKey);
-                    }
-                }
-                Set<String> redisKeysForRegion = catalogData.getRedisKeysForRegion();
-                if (redisKeysForRegion != null && !redisKeysForRegion.isEmpty()) {
-                    for (String deleteKey : redisKeysForRegion) {
-                        redisTemplate.opsForHash().delete(key, deleteKey);
-                    }
-                }
-                Set<String> redisKeysForGroup = catalogData.getRedisKeysForGroup();
-                if (redisKeysForGroup != null && !redisKeysForGroup.isEmpty()) {
-                    for (String deleteKey : redisKeysForGroup) {
-                        redisTemplate.opsForHash().delete(key, deleteKey);
-                    }
-                }
+                deleteRedisData(catalogData);
             }
         }
     }
@@ -270,6 +308,13 @@ public class CatalogDataManager implements CommandLineRunner {
         catalogData.setStatus(CatalogData.CatalogDataStatus.end);
         catalogData.setErrorMsg(errorMsg);
         catalogData.setTime(Instant.now());
+        if (catalogData.getStartTime() != null) {
+            SyncMetrics syncMetrics = syncMetricsMap.computeIfAbsent(deviceId, k -> new SyncMetrics());
+            syncMetrics.syncCount.incrementAndGet();
+            syncMetrics.lastTotal = catalogData.getTotal();
+            syncMetrics.lastCostMs = Duration.between(catalogData.getStartTime(), catalogData.getTime()).toMillis();
+            syncMetrics.lastEndTime = catalogData.getTime();
+        }
     }
 
     public int size(String deviceId, int sn) {
@@ -287,4 +332,30 @@ public class CatalogDataManager implements CommandLineRunner {
         }
         return catalogData.getTotal();
     }
+
+    @Override
+    public String getMetricsName() {
+        return "catalogSync";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("running", dataMap.size());
+        Map<String, Object> devices = new LinkedHashMap<>();
+        for (Map.Entry<String, SyncMetrics> entry : syncMetricsMap.entrySet()) {
+            SyncMetrics syncMetrics = entry.getValue();
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("sync", syncMetrics.syncCount.get());
+            item.put("fragment", syncMetrics.fragmentCount.get());
+            item.put("item", syncMetrics.itemCount.get());
+            item.put("lastTotal", syncMetrics.lastTotal);
+            item.put("lastCostMs", syncMetrics.lastCostMs);
+            item.put("lastItemsPerSecond", syncMetrics.lastCostMs > 0 ? syncMetrics.lastTotal * 1000L / syncMetrics.lastCostMs : syncMetrics.lastTotal);
+            item.put("lastEndTime", syncMetrics.lastEndTime == null ? null : syncMetrics.lastEndTime.toString());
+            devices.put(entry.getKey(), item);
+        }
+        metrics.put("device", devices);
+        return metrics;
+    }
 }
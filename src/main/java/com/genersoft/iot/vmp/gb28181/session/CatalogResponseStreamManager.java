@@ -0,0 +1,392 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.gb28181.bean.CommonGBChannel;
+import com.genersoft.iot.vmp.gb28181.bean.Platform;
+import com.genersoft.iot.vmp.gb28181.dao.CommonGBChannelMapper;
+import com.genersoft.iot.vmp.gb28181.event.SipSubscribe;
+import com.genersoft.iot.vmp.gb28181.service.IPlatformChannelService;
+import com.genersoft.iot.vmp.gb28181.transmit.SIPSender;
+import com.genersoft.iot.vmp.gb28181.transmit.cmd.SIPRequestHeaderPlarformProvider;
+import com.genersoft.iot.vmp.gb28181.utils.SipUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.sip.InvalidArgumentException;
+import javax.sip.SipException;
+import javax.sip.header.CallIdHeader;
+import javax.sip.message.Request;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 向上级回复目录查询
+ * 通道按ID游标分页从数据库读取，不需要一次加载全部通道；每条消息在复用的缓冲里编码为平台字符集的字节。
+ * 同时等待回复的消息数量（窗口）根据200 OK的耗时调整：耗时平稳时加一，耗时明显变长时减半。
+ * 上级不回复200 OK时改为按固定间隔直接发送，回复错误时停止发送。
+ * 同一回复同时只有一个线程读取和发送，读库、编码和发送不持有锁，锁内只更新窗口计数
+ */
+@Slf4j
+@Component
+public class CatalogResponseStreamManager implements MetricsSource {
+
+    /**
+     * 每次从数据库读取的通道数量
+     */
+    private static final int PAGE_SIZE = 500;
+
+    private static final int INIT_WINDOW = 2;
+
+    private static final int MAX_WINDOW = 16;
+
+    /**
+     * 上级不回复时的发送间隔 /毫秒
+     */
+    private static final long PACE_INTERVAL = 100;
+
+    @Autowired
+    private IPlatformChannelService platformChannelService;
+
+    @Autowired
+    private CommonGBChannelMapper commonGBChannelMapper;
+
+    @Autowired
+    private SIPRequestHeaderPlarformProvider headerProviderPlatformProvider;
+
+    @Autowired
+    private SIPSender sipSender;
+
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2,
+            new BasicThreadFactory.Builder().namingPattern("catalog-response-%d").daemon(true).build());
+
+    /**
+     * 上级平台国标编号 -> 最近一次目录回复
+     */
+    private final Map<String, CatalogStream> streamMap = new ConcurrentHashMap<>();
+
+    private static class CatalogStream {
+        private final Platform platform;
+        private final String sn;
+        private final String fromTag;
+        private final int sumNum;
+        private final long startTime = System.currentTimeMillis();
+
+        /**
+         * 是否有线程正在读取和发送，buffer、lastId、dbEnd和编码缓冲只由该线程访问
+         */
+        private boolean pumping;
+
+        /**
+         * 已读取未发送的通道
+         */
+        private final Deque<CommonGBChannel> buffer = new ArrayDeque<>();
+        private int lastId;
+        private boolean dbEnd;
+
+        private final StringBuilder xml = new StringBuilder(16 * 1024);
+        private final CharsetEncoder encoder;
+        private ByteBuffer bytes = ByteBuffer.allocate(32 * 1024);
+
+        private int sent;
+        private int acked;
+        private int inFlight;
+        private int window = INIT_WINDOW;
+        private long minRtt = Long.MAX_VALUE;
+        private long srtt;
+        private int timeoutCount;
+
+        /**
+         * 上级不回复200 OK，按固定间隔发送
+         */
+        private boolean paced;
+        private boolean closed;
+        private long endTime;
+        private String error;
+
+        private CatalogStream(Platform platform, String sn, String fromTag, int sumNum) {
+            this.platform = platform;
+            this.sn = sn;
+            this.fromTag = fromTag;
+            this.sumNum = sumNum;
+            this.encoder = Charset.forName(platform.getCharacterSet()).newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    }
+
+    /**
+     * 开始回复目录，同一平台未完成的回复被新的查询取代
+     * @return 平台没有共享通道时返回false, 由调用方回复空目录
+     */
+    public boolean start(Platform platform, String sn, String fromTag) {
+        int channelCount = commonGBChannelMapper.countWithPlatform(platform.getId());
+        if (channelCount == 0) {
+            return false;
+        }
+        List<CommonGBChannel> directoryList = platformChannelService.queryDirectoryByPlatform(platform);
+        CatalogStream stream = new CatalogStream(platform, sn, fromTag, directoryList.size() + channelCount);
+        stream.buffer.addAll(directoryList);
+        CatalogStream old = streamMap.put(platform.getServerGBId(), stream);
+        if (old != null) {
+            synchronized (old) {
+                if (!old.closed) {
+                    finish(old, "被新的目录查询取代");
+                }
+            }
+        }
+        log.info("[目录查询回复] 国标级联{} 开始发送，共{}条", platform.getServerGBId(), stream.sumNum);
+        executor.execute(() -> pump(stream));
+        return true;
+    }
+
+    private void pump(CatalogStream stream) {
+        synchronized (stream) {
+            if (stream.closed || stream.pumping) {
+                // 正在发送的线程每发一条都会重新检查窗口，不会漏掉这次唤醒
+                return;
+            }
+            stream.pumping = true;
+        }
+        try {
+            while (true) {
+                boolean reserved;
+                synchronized (stream) {
+                    if (stream.closed || !(stream.paced || stream.inFlight < stream.window)) {
+                        release(stream);
+                        return;
+                    }
+                    reserved = !stream.paced;
+                    if (reserved) {
+                        stream.inFlight++;
+                    }
+                }
+                List<CommonGBChannel> items = next(stream);
+                if (items.isEmpty()) {
+                    synchronized (stream) {
+                        // 切换为按间隔发送时inFlight已经清零
+                        if (reserved && !stream.paced) {
+                            stream.inFlight--;
+                        }
+                        release(stream);
+                    }
+                    return;
+                }
+                send(stream, items);
+                synchronized (stream) {
+                    if (stream.paced && !stream.closed) {
+                        release(stream);
+                        if (!stream.closed) {
+                            executor.schedule(() -> pump(stream), PACE_INTERVAL, TimeUnit.MILLISECONDS);
+                        }
+                        return;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("[目录查询回复] 国标级联{} 发送失败", stream.platform.getServerGBId(), e);
+            synchronized (stream) {
+                if (!stream.closed) {
+                    finish(stream, e.getMessage());
+                }
+                release(stream);
+            }
+        }
+    }
+
+    /**
+     * 发送线程退出，需持有stream的锁
+     */
+    private void release(CatalogStream stream) {
+        stream.pumping = false;
+        if (stream.closed) {
+            stream.buffer.clear();
+        }else if (stream.inFlight == 0 && stream.buffer.isEmpty() && stream.dbEnd) {
+            finish(stream, null);
+        }
+    }
+
+    /**
+     * 取出下一条消息的通道， 不足时从数据库读取下一页
+     */
+    private List<CommonGBChannel> next(CatalogStream stream) {
+        int catalogGroup = Math.max(1, stream.platform.getCatalogGroup());
+        while (stream.buffer.size() < catalogGroup && !stream.dbEnd) {
+            List<CommonGBChannel> page = commonGBChannelMapper.queryWithPlatformAfter(stream.platform.getId(), stream.lastId, PAGE_SIZE);
+            if (page.size() < PAGE_SIZE) {
+                stream.dbEnd = true;
+            }
+            if (!page.isEmpty()) {
+                stream.lastId = page.get(page.size() - 1).getGbId();
+                stream.buffer.addAll(page);
+            }
+        }
+        // 分页期间新共享的通道不超过开始时告知的总数
+        int count = Math.min(catalogGroup, Math.min(stream.buffer.size(), stream.sumNum - stream.sent));
+        List<CommonGBChannel> items = new ArrayList<>(Math.max(count, 0));
+        for (int i = 0; i < count; i++) {
+            items.add(stream.buffer.poll());
+        }
+        if (stream.sent + count >= stream.sumNum) {
+            stream.buffer.clear();
+            stream.dbEnd = true;
+        }
+        return items;
+    }
+
+    private void send(CatalogStream stream, List<CommonGBChannel> items) throws SipException, InvalidArgumentException, ParseException {
+        Platform platform = stream.platform;
+        byte[] content = encode(stream, items);
+        CallIdHeader callIdHeader = sipSender.getNewCallIdHeader(platform.getDeviceIp(), platform.getTransport());
+        Request request = headerProviderPlatformProvider.createMessageRequest(platform, content, stream.fromTag, SipUtils.getNewViaTag(), callIdHeader);
+        int count = items.size();
+        synchronized (stream) {
+            stream.sent += count;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("[目录查询回复] 国标级联{} 共{}条，已发送{}条", platform.getServerGBId(), stream.sumNum, stream.sent);
+        }
+        long sendTime = System.currentTimeMillis();
+        sipSender.transmitRequest(platform.getDeviceIp(), request, eventResult -> {
+            onError(stream, eventResult);
+        }, eventResult -> {
+            onOk(stream, count, sendTime);
+        });
+    }
+
+    private byte[] encode(CatalogStream stream, List<CommonGBChannel> items) {
+        Platform platform = stream.platform;
+        StringBuilder xml = stream.xml;
+        xml.setLength(0);
+        xml.append("<?xml version=\"1.0\" encoding=\"").append(platform.getCharacterSet()).append("\"?>\r\n")
+                .append("<Response>\r\n")
+                .append("<CmdType>Catalog</CmdType>\r\n")
+                .append("<SN>").append(stream.sn).append("</SN>\r\n")
+                .append("<DeviceID>").append(platform.getDeviceGBId()).append("</DeviceID>\r\n")
+                .append("<SumNum>").append(stream.sumNum).append("</SumNum>\r\n")
+                .append("<DeviceList Num=\"").append(items.size()).append("\">\r\n");
+        for (CommonGBChannel channel : items) {
+            channel.encode(xml, platform.getDeviceGBId());
+        }
+        xml.append("</DeviceList>\r\n")
+                .append("</Response>\r\n");
+
+        CharsetEncoder encoder = stream.encoder;
+        int maxLength = (int) Math.ceil(xml.length() * (double) encoder.maxBytesPerChar());
+        if (stream.bytes.capacity() < maxLength) {
+            stream.bytes = ByteBuffer.allocate(maxLength);
+        }
+        ByteBuffer bytes = stream.bytes;
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(xml), bytes, true);
+        encoder.flush(bytes);
+        bytes.flip();
+        // 消息在重传时还会用到，不能直接使用复用的缓冲
+        byte[] content = new byte[bytes.remaining()];
+        bytes.get(content);
+        return content;
+    }
+
+    private void onOk(CatalogStream stream, int count, long sendTime) {
+        synchronized (stream) {
+            stream.acked += count;
+            if (stream.paced) {
+                return;
+            }
+            stream.inFlight--;
+            long rtt = System.currentTimeMillis() - sendTime;
+            stream.minRtt = Math.min(stream.minRtt, rtt);
+            stream.srtt = stream.srtt == 0 ? rtt : (stream.srtt * 7 + rtt) / 8;
+            if (rtt <= stream.minRtt * 2 + 10) {
+                stream.window = Math.min(stream.window + 1, MAX_WINDOW);
+            }else {
+                stream.window = Math.max(stream.window / 2, 1);
+            }
+        }
+        executor.execute(() -> pump(stream));
+    }
+
+    private void onError(CatalogStream stream, SipSubscribe.EventResult eventResult) {
+        synchronized (stream) {
+            if (stream.closed) {
+                return;
+            }
+            if (SipSubscribe.EventResultType.timeout.equals(eventResult.type)) {
+                stream.timeoutCount++;
+                if (!stream.paced) {
+                    // 上级不回复200 OK, 不再等待回复
+                    log.info("[目录查询回复] 国标级联{} 上级未回复，改为每{}毫秒发送一条", stream.platform.getServerGBId(), PACE_INTERVAL);
+                    stream.paced = true;
+                    stream.inFlight = 0;
+                    executor.execute(() -> pump(stream));
+                }
+                return;
+            }
+            log.error("[目录推送失败] 国标级联 platform : {}, code: {}, msg: {}, 停止发送", stream.platform.getServerGBId(), eventResult.statusCode, eventResult.msg);
+            finish(stream, eventResult.statusCode + " " + eventResult.msg);
+        }
+    }
+
+    private void finish(CatalogStream stream, String error) {
+        stream.closed = true;
+        stream.error = error;
+        stream.endTime = System.currentTimeMillis();
+        if (!stream.pumping) {
+            // 发送线程运行时由它退出时清理
+            stream.buffer.clear();
+        }
+        if (error == null) {
+            log.info("[目录查询回复] 国标级联{} 发送完成，共{}条，耗时{}ms", stream.platform.getServerGBId(),
+                    stream.sent, stream.endTime - stream.startTime);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "catalogResponse";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, CatalogStream> entry : streamMap.entrySet()) {
+            CatalogStream stream = entry.getValue();
+            Map<String, Object> streamMetrics = new LinkedHashMap<>();
+            synchronized (stream) {
+                long elapsed = (stream.closed ? stream.endTime : now) - stream.startTime;
+                streamMetrics.put("sn", stream.sn);
+                streamMetrics.put("sumNum", stream.sumNum);
+                streamMetrics.put("sent", stream.sent);
+                streamMetrics.put("acked", stream.acked);
+                streamMetrics.put("inFlight", stream.inFlight);
+                streamMetrics.put("window", stream.window);
+                streamMetrics.put("rtt", stream.srtt);
+                streamMetrics.put("timeout", stream.timeoutCount);
+                streamMetrics.put("paced", stream.paced);
+                streamMetrics.put("elapsed", elapsed);
+                streamMetrics.put("throughput", elapsed > 0 ? stream.sent * 1000L / elapsed : 0);
+                streamMetrics.put("finished", stream.closed);
+                streamMetrics.put("error", stream.error);
+            }
+            metrics.put(entry.getKey(), streamMetrics);
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,518 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
+import com.genersoft.iot.vmp.gb28181.bean.ChannelSearchItem;
+import com.genersoft.iot.vmp.gb28181.bean.DeviceChannel;
+import com.genersoft.iot.vmp.gb28181.dao.CommonGBChannelMapper;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeHandler;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeNotifier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 通道关键字搜索的本地索引，按国标编号和名称中相邻的两个字符建立倒排表。
+ * 搜索时取关键字中通道最少的两个字符对应的通道逐个校验，代替 LIKE '%关键字%' 的全表扫描，
+ * 返回匹配的通道ID，由调用方按ID查库并叠加其他查询条件。
+ * 通道的增删改在事务提交后按ID或者设备从数据库重新加载，并通过redis通知其他节点；倒排表只追加，失效的记录校验时过滤，
+ * 过多时全量重建；定时全量刷新兜底丢失的变化通知。未加载完成或者匹配的通道过多时返回null，调用方继续使用数据库查询
+ */
+@Slf4j
+@Component
+@Order(value=3)
+public class ChannelSearchIndex implements CommandLineRunner, MetricsSource, ClusterChangeHandler {
+
+    /**
+     * 通知其他节点全量刷新
+     */
+    private static final String ALL = "*";
+
+    private static final String CHANNEL = "c:";
+
+    private static final String DEVICE = "d:";
+
+    /**
+     * 匹配的通道超过此数量时不使用索引，由数据库直接分页
+     */
+    private static final int MAX_RESULT = 5000;
+
+    /**
+     * 单次变化的通道数量超过此值时改为全量刷新
+     */
+    private static final int MAX_NOTIFY_ITEMS = 1000;
+
+    /**
+     * 全量加载时每次查询的通道数量
+     */
+    private static final int LOAD_LIMIT = 5000;
+
+    /**
+     * 失效的倒排记录超过此数量并且超过有效记录的一半时全量重建
+     */
+    private static final long MIN_GARBAGE = 100000;
+
+    /**
+     * 编号和名称之间的分隔符，关键字不会跨过分隔符匹配
+     */
+    private static final char SEPARATOR = '\u0000';
+
+    @Autowired
+    private CommonGBChannelMapper commonGBChannelMapper;
+
+    @Autowired
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    private static class Entry {
+        /**
+         * 小写的 编号 + 分隔符 + 名称
+         */
+        private final String text;
+        private final Integer deviceDbId;
+        /**
+         * 此通道在倒排表中的记录数
+         */
+        private final int gramCount;
+
+        private Entry(String text, Integer deviceDbId, int gramCount) {
+            this.text = text;
+            this.deviceDbId = deviceDbId;
+            this.gramCount = gramCount;
+        }
+    }
+
+    /**
+     * 只追加的int列表，追加在锁内进行，读取不加锁：先写数据再增加size，读到的size以内的数据都是完整的
+     */
+    private static class IntList {
+        private volatile int[] data = new int[4];
+        private volatile int size;
+
+        private void add(int value) {
+            int[] array = data;
+            if (size == array.length) {
+                array = Arrays.copyOf(array, array.length * 2);
+                data = array;
+            }
+            array[size] = value;
+            size = size + 1;
+        }
+    }
+
+    /**
+     * 索引的全部数据，全量加载时整体替换；增量修改在ChannelSearchIndex的锁内进行，读取不加锁
+     */
+    private static class IndexData {
+        /**
+         * 通道ID -> 通道信息
+         */
+        private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+        /**
+         * 相邻两个字符 -> 包含它的通道ID，同一通道可能出现多次，已经删除或者修改的通道也可能存在，使用时按entries校验
+         */
+        private final Map<Integer, IntList> grams = new ConcurrentHashMap<>();
+        private volatile long postingCount;
+        private volatile long garbageCount;
+
+        private void put(ChannelSearchItem item) {
+            String text = toText(item.getDeviceId(), item.getName());
+            Entry old = entries.get(item.getId());
+            if (old != null && old.text.equals(text)) {
+                if (!Objects.equals(old.deviceDbId, item.getDeviceDbId())) {
+                    entries.put(item.getId(), new Entry(text, item.getDeviceDbId(), old.gramCount));
+                }
+                return;
+            }
+            Set<Integer> keys = gramKeys(text);
+            entries.put(item.getId(), new Entry(text, item.getDeviceDbId(), keys.size()));
+            for (Integer key : keys) {
+                grams.computeIfAbsent(key, k -> new IntList()).add(item.getId());
+            }
+            postingCount += keys.size();
+            if (old != null) {
+                garbageCount += old.gramCount;
+            }
+        }
+
+        private void remove(int id) {
+            Entry old = entries.remove(id);
+            if (old != null) {
+                garbageCount += old.gramCount;
+            }
+        }
+    }
+
+    private volatile IndexData indexData = new IndexData();
+
+    private volatile boolean ready = false;
+
+    private final Object reloadLock = new Object();
+
+    /**
+     * 全量加载期间发生变化的通道和设备，加载完成后重新加载一次，不在加载中时为null
+     */
+    private Set<Integer> pendingIds;
+
+    private Set<Integer> pendingDeviceDbIds;
+
+    /**
+     * 有大批量变化，等待定时任务全量刷新
+     */
+    private final AtomicBoolean reloadRequested = new AtomicBoolean(false);
+
+    private final AtomicLong searchCount = new AtomicLong();
+
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    private final AtomicLong searchCost = new AtomicLong();
+
+    private final AtomicLong reloadCount = new AtomicLong();
+
+    @Override
+    public void run(String... args) {
+        try {
+            reloadAll();
+        } catch (Exception e) {
+            log.error("[通道搜索索引] 加载失败，暂时使用数据库查询", e);
+        }
+    }
+
+    /**
+     * 定时全量刷新，兜底丢失的变化通知
+     */
+    @Scheduled(fixedDelay = 30 * 60 * 1000, initialDelay = 30 * 60 * 1000)
+    public void reloadAll() {
+        synchronized (reloadLock) {
+            long startTime = System.currentTimeMillis();
+            reloadRequested.set(false);
+            synchronized (this) {
+                pendingIds = new HashSet<>();
+                pendingDeviceDbIds = new HashSet<>();
+            }
+            IndexData data = new IndexData();
+            try {
+                int lastId = 0;
+                while (true) {
+                    List<ChannelSearchItem> items = commonGBChannelMapper.queryForSearchAfter(lastId, LOAD_LIMIT);
+                    for (ChannelSearchItem item : items) {
+                        data.put(item);
+                    }
+                    if (items.size() < LOAD_LIMIT) {
+                        break;
+                    }
+                    lastId = items.get(items.size() - 1).getId();
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    pendingIds = null;
+                    pendingDeviceDbIds = null;
+                }
+                throw e;
+            }
+            synchronized (this) {
+                Set<Integer> ids = pendingIds;
+                Set<Integer> deviceDbIds = pendingDeviceDbIds;
+                pendingIds = null;
+                pendingDeviceDbIds = null;
+                indexData = data;
+                boolean first = !ready;
+                ready = true;
+                // 加载期间发生的变化不一定包含在查询结果中，重新加载一次
+                if (!ids.isEmpty()) {
+                    reloadChannels(ids);
+                }
+                for (Integer deviceDbId : deviceDbIds) {
+                    reloadDevice(deviceDbId);
+                }
+                if (first) {
+                    log.info("[通道搜索索引] 加载完成， 通道： {}， 耗时： {}ms", data.entries.size(),
+                            System.currentTimeMillis() - startTime);
+                }
+            }
+            reloadCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 处理大批量变化的全量刷新请求，失效记录过多时重建索引
+     */
+    @Scheduled(fixedDelay = 30 * 1000)
+    public void reloadIfRequested() {
+        IndexData data = indexData;
+        if (reloadRequested.get()
+                || (ready && data.garbageCount > MIN_GARBAGE && data.garbageCount > data.postingCount / 2)) {
+            reloadAll();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // ------------------------------ 搜索 ------------------------------
+
+    /**
+     * 按关键字搜索通道，编号或者名称包含关键字即匹配，不区分大小写
+     * @param query 关键字，不需要转义
+     * @param deviceDbId 只搜索此设备下的通道，为null时搜索全部通道
+     * @return 按ID排序的通道ID，索引不可用或者匹配的通道过多时返回null，此时需要使用数据库查询
+     */
+    public List<Integer> search(String query, Integer deviceDbId) {
+        if (!ready || query == null || query.isEmpty() || query.indexOf(SEPARATOR) >= 0) {
+            return null;
+        }
+        long startTime = System.nanoTime();
+        searchCount.incrementAndGet();
+        String text = query.toLowerCase(Locale.ROOT);
+        IndexData data = indexData;
+        Set<Integer> matched = new HashSet<>();
+        boolean overflow = false;
+        if (text.length() < 2) {
+            for (Map.Entry<Integer, Entry> item : data.entries.entrySet()) {
+                if (matches(item.getValue(), text, deviceDbId)) {
+                    matched.add(item.getKey());
+                    if (matched.size() > MAX_RESULT) {
+                        overflow = true;
+                        break;
+                    }
+                }
+            }
+        }else {
+            // 取通道最少的两个字符，任意一个不存在时没有匹配的通道
+            IntList smallest = null;
+            for (int i = 0; i < text.length() - 1; i++) {
+                IntList list = data.grams.get(gramKey(text.charAt(i), text.charAt(i + 1)));
+                if (list == null) {
+                    smallest = null;
+                    break;
+                }
+                if (smallest == null || list.size < smallest.size) {
+                    smallest = list;
+                }
+            }
+            if (smallest != null) {
+                int size = smallest.size;
+                int[] array = smallest.data;
+                for (int i = 0; i < size; i++) {
+                    int id = array[i];
+                    if (matches(data.entries.get(id), text, deviceDbId)) {
+                        matched.add(id);
+                        if (matched.size() > MAX_RESULT) {
+                            overflow = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        searchCost.addAndGet(System.nanoTime() - startTime);
+        if (overflow) {
+            fallbackCount.incrementAndGet();
+            return null;
+        }
+        List<Integer> result = new ArrayList<>(matched);
+        Collections.sort(result);
+        return result;
+    }
+
+    private boolean matches(Entry entry, String text, Integer deviceDbId) {
+        return entry != null
+                && (deviceDbId == null || deviceDbId.equals(entry.deviceDbId))
+                && entry.text.contains(text);
+    }
+
+    private static String toText(String deviceId, String name) {
+        return (deviceId == null ? "" : deviceId.toLowerCase(Locale.ROOT)) + SEPARATOR
+                + (name == null ? "" : name.toLowerCase(Locale.ROOT));
+    }
+
+    private static int gramKey(char first, char second) {
+        return (first << 16) | second;
+    }
+
+    private static Set<Integer> gramKeys(String text) {
+        Set<Integer> keys = new HashSet<>();
+        for (int i = 0; i < text.length() - 1; i++) {
+            char first = text.charAt(i);
+            char second = text.charAt(i + 1);
+            if (first != SEPARATOR && second != SEPARATOR) {
+                keys.add(gramKey(first, second));
+            }
+        }
+        return keys;
+    }
+
+    // ------------------------------ 变化 ------------------------------
+
+    /**
+     * 通道新增、修改、删除后调用，事务提交后按ID从数据库重新加载并通知其他节点
+     */
+    public void refresh(Collection<Integer> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return;
+        }
+        Set<Integer> idSet = new HashSet<>(ids);
+        ClusterChangeNotifier.afterCommit(() -> {
+            if (idSet.size() > MAX_NOTIFY_ITEMS) {
+                reloadRequested.set(true);
+                clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_CHANNEL_SEARCH_CHANGE, ALL);
+                return;
+            }
+            reloadChannels(idSet);
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_CHANNEL_SEARCH_CHANGE, CHANNEL + ClusterChangeNotifier.join(idSet));
+        });
+    }
+
+    /**
+     * 设备下的通道发生变化后调用，事务提交后重新加载设备的全部通道并通知其他节点
+     */
+    public void refreshDevice(int deviceDbId) {
+        ClusterChangeNotifier.afterCommit(() -> {
+            reloadDevice(deviceDbId);
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_CHANNEL_SEARCH_CHANGE, DEVICE + deviceDbId);
+        });
+    }
+
+    /**
+     * 设备通道发生变化后调用，通道都有ID时按ID刷新，否则按所属设备刷新
+     */
+    public void refreshChannels(Collection<DeviceChannel> channels) {
+        if (channels == null || channels.isEmpty()) {
+            return;
+        }
+        Set<Integer> ids = new HashSet<>();
+        Set<Integer> deviceDbIds = new HashSet<>();
+        boolean unknownDevice = false;
+        for (DeviceChannel channel : channels) {
+            if (channel.getId() > 0) {
+                ids.add(channel.getId());
+            }
+            if (channel.getDeviceDbId() != null && channel.getDeviceDbId() > 0) {
+                deviceDbIds.add(channel.getDeviceDbId());
+            }else {
+                unknownDevice = true;
+            }
+        }
+        if (ids.size() == channels.size() && ids.size() <= MAX_NOTIFY_ITEMS) {
+            refresh(ids);
+        }else if (!unknownDevice && deviceDbIds.size() <= MAX_NOTIFY_ITEMS) {
+            ClusterChangeNotifier.afterCommit(() -> {
+                for (Integer deviceDbId : deviceDbIds) {
+                    reloadDevice(deviceDbId);
+                }
+                clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_CHANNEL_SEARCH_CHANGE, DEVICE + ClusterChangeNotifier.join(deviceDbIds));
+            });
+        }else {
+            refreshAll();
+        }
+    }
+
+    /**
+     * 无法确定变化的通道时调用，稍后全量刷新
+     */
+    public void refreshAll() {
+        ClusterChangeNotifier.afterCommit(() -> {
+            reloadRequested.set(true);
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_CHANNEL_SEARCH_CHANGE, ALL);
+        });
+    }
+
+    private synchronized void reloadChannels(Set<Integer> ids) {
+        if (pendingIds != null) {
+            pendingIds.addAll(ids);
+        }
+        if (!ready) {
+            return;
+        }
+        IndexData data = indexData;
+        Set<Integer> missing = new HashSet<>(ids);
+        List<Integer> idList = new ArrayList<>(ids);
+        for (int i = 0; i < idList.size(); i += MAX_NOTIFY_ITEMS) {
+            List<Integer> subList = idList.subList(i, Math.min(i + MAX_NOTIFY_ITEMS, idList.size()));
+            for (ChannelSearchItem item : commonGBChannelMapper.queryForSearchByIds(subList)) {
+                data.put(item);
+                missing.remove(item.getId());
+            }
+        }
+        missing.forEach(data::remove);
+    }
+
+    private synchronized void reloadDevice(int deviceDbId) {
+        if (pendingDeviceDbIds != null) {
+            pendingDeviceDbIds.add(deviceDbId);
+        }
+        if (!ready) {
+            return;
+        }
+        IndexData data = indexData;
+        Set<Integer> exist = new HashSet<>();
+        for (ChannelSearchItem item : commonGBChannelMapper.queryForSearchByDeviceDbId(deviceDbId)) {
+            data.put(item);
+            exist.add(item.getId());
+        }
+        List<Integer> removed = new ArrayList<>();
+        for (Map.Entry<Integer, Entry> item : data.entries.entrySet()) {
+            if (Objects.equals(item.getValue().deviceDbId, deviceDbId) && !exist.contains(item.getKey())) {
+                removed.add(item.getKey());
+            }
+        }
+        removed.forEach(data::remove);
+    }
+
+    @Override
+    public String getChangeTopic() {
+        return VideoManagerConstants.VM_MSG_CHANNEL_SEARCH_CHANGE;
+    }
+
+    /**
+     * 处理其他节点的变化通知
+     */
+    @Override
+    public void onChange(String content) {
+        try {
+            if (content.startsWith(CHANNEL)) {
+                reloadChannels(ClusterChangeNotifier.parseIds(content.substring(CHANNEL.length())));
+            }else if (content.startsWith(DEVICE)) {
+                for (Integer deviceDbId : ClusterChangeNotifier.parseIds(content.substring(DEVICE.length()))) {
+                    reloadDevice(deviceDbId);
+                }
+            }else {
+                reloadRequested.set(true);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("[通道搜索索引] 无法解析的变化通知： {}", content);
+            reloadRequested.set(true);
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "channelSearch";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        IndexData data = indexData;
+        long search = searchCount.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("ready", ready);
+        metrics.put("channel", data.entries.size());
+        metrics.put("gram", data.grams.size());
+        metrics.put("posting", data.postingCount);
+        metrics.put("garbage", data.garbageCount);
+        metrics.put("search", search);
+        metrics.put("fallback", fallbackCount.get());
+        metrics.put("reload", reloadCount.get());
+        // 平均每次搜索的耗时 /微秒
+        metrics.put("searchCostUs", search == 0 ? 0 : searchCost.get() / search / 1000.0);
+        return metrics;
+    }
+}
@@ -0,0 +1,163 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.gb28181.bean.Device;
+import com.genersoft.iot.vmp.gb28181.dao.DeviceMapper;
+import com.genersoft.iot.vmp.storager.IRedisCatchStorage;
+import com.genersoft.iot.vmp.utils.DateUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 心跳延迟写入
+ * 同一设备在一个窗口内的多次心跳只保留最后一次，窗口结束时批量写入数据库并一次写入redis。
+ * 地址变化、离线转在线等需要立即生效的变化不经过这里，由调用方同步处理；
+ * 批量写入期间被移除的设备不再写入redis，避免延迟的在线状态覆盖离线等同步写入的结果
+ */
+@Slf4j
+@Component
+public class DeviceKeepaliveManager implements MetricsSource {
+
+    /**
+     * 单条批量SQL包含的最大设备数
+     */
+    private final static int BATCH_SIZE = 500;
+
+    @Autowired
+    private DeviceMapper deviceMapper;
+
+    @Autowired
+    private IRedisCatchStorage redisCatchStorage;
+
+    private final Map<String, Device> pendingMap = new ConcurrentHashMap<>();
+
+    private final Object flushLock = new Object();
+
+    /**
+     * 本次批量写入取出数据后被移除的设备，写入redis时跳过，不在写入中时为null，在flushLock内访问
+     */
+    private Set<String> removedDuringFlush;
+
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedDeviceCount = new AtomicLong();
+    private final AtomicLong failedDeviceCount = new AtomicLong();
+    private volatile long lastFlushSize;
+    private volatile long lastFlushCostMs;
+    private volatile long maxFlushCostMs;
+
+    /**
+     * 记录一次心跳，等待下次批量写入
+     */
+    public void put(Device device) {
+        receivedCount.incrementAndGet();
+        if (pendingMap.put(device.getDeviceId(), device) != null) {
+            coalescedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 移除尚未写入的心跳，设备离线或者走同步更新时调用，避免旧数据覆盖新数据
+     */
+    public void remove(String deviceId) {
+        synchronized (flushLock) {
+            pendingMap.remove(deviceId);
+            if (removedDuringFlush != null) {
+                removedDuringFlush.add(deviceId);
+            }
+        }
+    }
+
+    public int getBacklog() {
+        return pendingMap.size();
+    }
+
+    @Scheduled(fixedDelay = 1000)
+    public void flush() {
+        if (pendingMap.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        List<Device> deviceList = new ArrayList<>(pendingMap.size());
+        synchronized (flushLock) {
+            for (String deviceId : pendingMap.keySet()) {
+                Device device = pendingMap.remove(deviceId);
+                if (device != null) {
+                    deviceList.add(device);
+                }
+            }
+            if (deviceList.isEmpty()) {
+                return;
+            }
+            removedDuringFlush = new HashSet<>();
+        }
+        String now = DateUtil.getNow();
+        for (Device device : deviceList) {
+            device.setUpdateTime(now);
+        }
+        for (int i = 0; i < deviceList.size(); i += BATCH_SIZE) {
+            List<Device> subList = deviceList.subList(i, Math.min(i + BATCH_SIZE, deviceList.size()));
+            try {
+                deviceMapper.batchUpdateKeepalive(subList);
+            } catch (Exception e) {
+                failedDeviceCount.addAndGet(subList.size());
+                log.error("[心跳批量写入] 写入数据库失败, 数量: {}", subList.size(), e);
+            }
+        }
+        // 在锁内写入redis，移除设备的调用方(例如设备离线)要么在此之前移除、这里跳过，要么在写入完成之后再写入自己的状态
+        synchronized (flushLock) {
+            Set<String> removed = removedDuringFlush;
+            removedDuringFlush = null;
+            List<Device> redisList = deviceList;
+            if (!removed.isEmpty()) {
+                redisList = new ArrayList<>(deviceList.size());
+                for (Device device : deviceList) {
+                    if (!removed.contains(device.getDeviceId())) {
+                        redisList.add(device);
+                    }
+                }
+            }
+            try {
+                redisCatchStorage.updateDevices(redisList);
+            } catch (Exception e) {
+                log.error("[心跳批量写入] 写入redis失败, 数量: {}", redisList.size(), e);
+            }
+        }
+        long cost = System.currentTimeMillis() - start;
+        flushCount.incrementAndGet();
+        flushedDeviceCount.addAndGet(deviceList.size());
+        lastFlushSize = deviceList.size();
+        lastFlushCostMs = cost;
+        if (cost > maxFlushCostMs) {
+            maxFlushCostMs = cost;
+        }
+        log.debug("[心跳批量写入] 数量: {}, 耗时: {}ms", deviceList.size(), cost);
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "keepalive";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("backlog", getBacklog());
+        metrics.put("received", receivedCount.get());
+        metrics.put("coalesced", coalescedCount.get());
+        metrics.put("flushCount", flushCount.get());
+        metrics.put("flushedDevices", flushedDeviceCount.get());
+        metrics.put("failedDevices", failedDeviceCount.get());
+        metrics.put("lastFlushSize", lastFlushSize);
+        metrics.put("lastFlushCostMs", lastFlushCostMs);
+        metrics.put("maxFlushCostMs", maxFlushCostMs);
+        return metrics;
+    }
+}
@@ -0,0 +1,443 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.conf.UserSetting;
+import com.genersoft.iot.vmp.gb28181.bean.Device;
+import com.genersoft.iot.vmp.gb28181.bean.OnboardingStatus;
+import com.genersoft.iot.vmp.utils.DateUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ObjectUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 设备注册后的后续任务调度
+ * 重启或者网络恢复后大量设备同时注册，注册本身只更新状态，查询设备信息、添加订阅、同步通道等任务进入有界的优先级队列，
+ * 按全局并发和每个流媒体节点的并发上限逐步执行（未指定流媒体节点、自动分配的设备只受全局并发限制）。任务发出后直到完成才释放并发，
+ * 全局并发按设备信息查询的回复耗时调整：回复变慢或者超时则减少，回复正常则逐步恢复到配置的上限
+ */
+@Slf4j
+@Component
+public class DeviceOnboardingScheduler implements MetricsSource {
+
+    public enum Stage {
+        /**
+         * 查询设备信息
+         */
+        DEVICE_INFO(0, 10 * 1000),
+        /**
+         * 添加目录和移动位置订阅
+         */
+        SUBSCRIBE(1, 10 * 1000),
+        /**
+         * 同步通道
+         */
+        CATALOG_SYNC(2, 120 * 1000);
+
+        private final int priority;
+
+        /**
+         * 任务最长占用并发的时间 /毫秒
+         */
+        private final long timeout;
+
+        Stage(int priority, long timeout) {
+            this.priority = priority;
+            this.timeout = timeout;
+        }
+    }
+
+    private static final int CAPACITY = 50000;
+
+    private static final long TICK = 100;
+
+    /**
+     * 设备信息查询的期望回复耗时，超过两倍时减少并发 /毫秒
+     */
+    private static final long TARGET_LATENCY = 1000;
+
+    /**
+     * 两次减少并发的最小间隔 /毫秒
+     */
+    private static final long DECREASE_INTERVAL = 1000;
+
+    /**
+     * 全部任务完成后，进度保留的时间 /毫秒
+     */
+    private static final long STATUS_KEEP_TIME = 10 * 60 * 1000;
+
+    /**
+     * 一次调度最多跳过的任务数量，避免被流媒体节点并发限制住的任务拖慢调度
+     */
+    private static final int MAX_SKIP = 1000;
+
+    /**
+     * 设备未指定流媒体节点时的取值，这类设备在点播时才分配节点
+     */
+    private static final String AUTO_MEDIA_SERVER = "auto";
+
+    @Autowired
+    private UserSetting userSetting;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("device-onboarding-%d").daemon(true).build());
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * 排队的任务，按阶段优先级和提交顺序排序， 访问时锁定自身
+     */
+    private final PriorityQueue<Job> queue = new PriorityQueue<>(Comparator.<Job>comparingInt(job -> job.stage.priority)
+            .thenComparingLong(job -> job.seq));
+
+    /**
+     * 设备编号 + 阶段 -> 排队的任务， 同一设备重复注册时只替换任务内容
+     */
+    private final Map<String, Job> queuedMap = new HashMap<>();
+
+    /**
+     * 执行中的任务，只在调度线程中使用
+     */
+    private final List<Job> runningList = new ArrayList<>();
+
+    /**
+     * 流媒体节点ID -> 执行中的任务数，只在调度线程中使用
+     */
+    private final Map<String, Integer> mediaServerRunning = new HashMap<>();
+
+    private final Map<String, Progress> progressMap = new HashMap<>();
+
+    private volatile int limit;
+
+    private volatile double latency;
+
+    private long lastDecreaseTime;
+
+    private long lastCleanTime;
+
+    private volatile int runningCount;
+
+    private final AtomicLong submitCount = new AtomicLong();
+
+    private final AtomicLong dropCount = new AtomicLong();
+
+    private final AtomicLong doneCount = new AtomicLong();
+
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    private volatile long lastFinishCost;
+
+    private volatile long maxFinishCost;
+
+    private static class Job {
+        private final String deviceId;
+        /**
+         * 设备指定的流媒体节点，自动分配时为null，不计入节点的并发
+         */
+        private final String mediaServerId;
+        private final Stage stage;
+        private final long seq;
+        private Runnable action;
+        private BooleanSupplier finished;
+        private long startTime;
+
+        private Job(String deviceId, String mediaServerId, Stage stage, long seq) {
+            this.deviceId = deviceId;
+            this.mediaServerId = mediaServerId;
+            this.stage = stage;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * 单个设备的进度
+     */
+    private static class Progress {
+        private long registerTime;
+        private int pending;
+        private int running;
+        private long finishTime;
+    }
+
+    @PostConstruct
+    public void init() {
+        limit = userSetting.getOnboardingConcurrency();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                tick();
+            } catch (Exception e) {
+                log.error("[设备注册调度] 调度异常", e);
+            }
+        }, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 提交一个后续任务
+     * @param action 任务内容，在调度线程中执行
+     * @param finished 任务是否已经完成，完成后释放并发
+     */
+    public void submit(Device device, Stage stage, Runnable action, BooleanSupplier finished) {
+        String deviceId = device.getDeviceId();
+        String key = deviceId + "_" + stage;
+        submitCount.incrementAndGet();
+        synchronized (queue) {
+            Job job = queuedMap.get(key);
+            if (job != null) {
+                job.action = action;
+                job.finished = finished;
+                return;
+            }
+            if (queue.size() >= CAPACITY) {
+                long dropped = dropCount.incrementAndGet();
+                if (dropped % 1000 == 1) {
+                    log.warn("[设备注册调度] 队列已满，丢弃任务： {} {}， 累计丢弃： {}", deviceId, stage, dropped);
+                }
+                return;
+            }
+            String mediaServerId = ObjectUtils.isEmpty(device.getMediaServerId()) || AUTO_MEDIA_SERVER.equals(device.getMediaServerId())
+                    ? null : device.getMediaServerId();
+            job = new Job(deviceId, mediaServerId, stage, sequence.incrementAndGet());
+            job.action = action;
+            job.finished = finished;
+            queue.add(job);
+            queuedMap.put(key, job);
+            Progress progress = progressMap.computeIfAbsent(deviceId, id -> new Progress());
+            if (progress.registerTime == 0 || (progress.pending == 0 && progress.running == 0 && progress.finishTime > 0)) {
+                progress.registerTime = System.currentTimeMillis();
+                progress.finishTime = 0;
+            }
+            progress.pending++;
+        }
+    }
+
+    /**
+     * 设备离线后调用，丢弃排队中的任务
+     */
+    public void cancel(String deviceId) {
+        synchronized (queue) {
+            for (Stage stage : Stage.values()) {
+                Job job = queuedMap.remove(deviceId + "_" + stage);
+                if (job != null) {
+                    queue.remove(job);
+                }
+            }
+            Progress progress = progressMap.get(deviceId);
+            if (progress != null) {
+                progress.pending = 0;
+                if (progress.running == 0) {
+                    progressMap.remove(deviceId);
+                }
+            }
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        checkRunning(now);
+        dispatch(now);
+        if (now - lastCleanTime > 60 * 1000) {
+            lastCleanTime = now;
+            cleanProgress(now);
+        }
+    }
+
+    private void checkRunning(long now) {
+        Iterator<Job> iterator = runningList.iterator();
+        while (iterator.hasNext()) {
+            Job job = iterator.next();
+            boolean finished;
+            try {
+                finished = job.finished.getAsBoolean();
+            } catch (Exception e) {
+                finished = true;
+            }
+            boolean timeout = !finished && now - job.startTime >= job.stage.timeout;
+            if (!finished && !timeout) {
+                continue;
+            }
+            iterator.remove();
+            runningCount = runningList.size();
+            if (job.mediaServerId != null) {
+                mediaServerRunning.computeIfPresent(job.mediaServerId, (key, count) -> count > 1 ? count - 1 : null);
+            }
+            if (timeout) {
+                timeoutCount.incrementAndGet();
+                decrease(now);
+                log.info("[设备注册调度] 任务超时： {} {}", job.deviceId, job.stage);
+            }else {
+                doneCount.incrementAndGet();
+                if (job.stage == Stage.DEVICE_INFO) {
+                    adjust(now, now - job.startTime);
+                }
+            }
+            synchronized (queue) {
+                Progress progress = progressMap.get(job.deviceId);
+                if (progress != null) {
+                    progress.running--;
+                    if (progress.running == 0 && progress.pending == 0) {
+                        progress.finishTime = now;
+                        lastFinishCost = now - progress.registerTime;
+                        maxFinishCost = Math.max(maxFinishCost, lastFinishCost);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 按设备信息查询的回复耗时调整并发
+     */
+    private void adjust(long now, long cost) {
+        latency = latency == 0 ? cost : latency * 0.8 + cost * 0.2;
+        if (latency > TARGET_LATENCY * 2) {
+            decrease(now);
+        }else if (latency < TARGET_LATENCY && limit < userSetting.getOnboardingConcurrency()) {
+            limit++;
+        }
+    }
+
+    private void decrease(long now) {
+        if (now - lastDecreaseTime < DECREASE_INTERVAL) {
+            return;
+        }
+        lastDecreaseTime = now;
+        int newLimit = Math.max(1, limit / 2);
+        if (newLimit != limit) {
+            log.info("[设备注册调度] 设备回复变慢，并发调整为： {}， 平均耗时： {}ms", newLimit, Math.round(latency));
+        }
+        limit = newLimit;
+    }
+
+    private void dispatch(long now) {
+        int mediaServerLimit = userSetting.getOnboardingConcurrencyPerMediaServer();
+        List<Job> jobs = new ArrayList<>();
+        synchronized (queue) {
+            List<Job> skipped = new ArrayList<>();
+            int available = Math.min(limit, userSetting.getOnboardingConcurrency()) - runningList.size();
+            Map<String, Integer> running = new HashMap<>(mediaServerRunning);
+            while (jobs.size() < available && !queue.isEmpty() && skipped.size() < MAX_SKIP) {
+                Job job = queue.poll();
+                if (job.mediaServerId != null) {
+                    int count = running.getOrDefault(job.mediaServerId, 0);
+                    if (mediaServerLimit > 0 && count >= mediaServerLimit) {
+                        skipped.add(job);
+                        continue;
+                    }
+                    running.put(job.mediaServerId, count + 1);
+                }
+                queuedMap.remove(job.deviceId + "_" + job.stage);
+                Progress progress = progressMap.get(job.deviceId);
+                if (progress != null) {
+                    progress.pending--;
+                    progress.running++;
+                }
+                jobs.add(job);
+            }
+            queue.addAll(skipped);
+        }
+        for (Job job : jobs) {
+            job.startTime = now;
+            runningList.add(job);
+            runningCount = runningList.size();
+            if (job.mediaServerId != null) {
+                mediaServerRunning.merge(job.mediaServerId, 1, Integer::sum);
+            }
+            try {
+                job.action.run();
+            } catch (Exception e) {
+                log.error("[设备注册调度] 任务执行失败： {} {}", job.deviceId, job.stage, e);
+            }
+        }
+    }
+
+    private void cleanProgress(long now) {
+        synchronized (queue) {
+            progressMap.values().removeIf(progress -> progress.finishTime > 0
+                    && progress.pending == 0 && progress.running == 0 && now - progress.finishTime > STATUS_KEEP_TIME);
+        }
+    }
+
+    /**
+     * 查询设备的进度
+     * @return 设备没有后续任务或者进度已过期时返回null
+     */
+    public OnboardingStatus getStatus(String deviceId) {
+        synchronized (queue) {
+            Progress progress = progressMap.get(deviceId);
+            if (progress == null) {
+                return null;
+            }
+            OnboardingStatus status = new OnboardingStatus();
+            status.setRegisterTime(DateUtil.timestampMsTo_yyyy_MM_dd_HH_mm_ss(progress.registerTime));
+            status.setPending(progress.pending);
+            status.setRunning(progress.running);
+            status.setFinished(progress.finishTime > 0);
+            status.setCost((progress.finishTime > 0 ? progress.finishTime : System.currentTimeMillis()) - progress.registerTime);
+            if (progress.pending > 0) {
+                Job first = null;
+                for (Stage stage : Stage.values()) {
+                    Job job = queuedMap.get(deviceId + "_" + stage);
+                    if (job != null && (first == null || queue.comparator().compare(job, first) < 0)) {
+                        first = job;
+                    }
+                }
+                int ahead = 0;
+                if (first != null) {
+                    for (Job job : queue) {
+                        if (queue.comparator().compare(job, first) < 0) {
+                            ahead++;
+                        }
+                    }
+                }
+                status.setQueueAhead(ahead);
+            }
+            return status;
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "deviceOnboarding";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        int waitingDevices = 0;
+        synchronized (queue) {
+            metrics.put("queue", queue.size());
+            for (Progress progress : progressMap.values()) {
+                if (progress.finishTime == 0) {
+                    waitingDevices++;
+                }
+            }
+        }
+        metrics.put("capacity", CAPACITY);
+        metrics.put("running", runningCount);
+        metrics.put("limit", limit);
+        metrics.put("latency", Math.round(latency));
+        metrics.put("unfinishedDevice", waitingDevices);
+        metrics.put("submit", submitCount.get());
+        metrics.put("drop", dropCount.get());
+        metrics.put("done", doneCount.get());
+        metrics.put("timeout", timeoutCount.get());
+        metrics.put("lastFinishCost", lastFinishCost);
+        metrics.put("maxFinishCost", maxFinishCost);
+        return metrics;
+    }
+}
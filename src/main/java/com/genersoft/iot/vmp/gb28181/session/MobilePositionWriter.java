@@ -0,0 +1,260 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.alibaba.fastjson2.JSONObject;
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.gb28181.bean.DeviceChannel;
+import com.genersoft.iot.vmp.gb28181.bean.MobilePosition;
+import com.genersoft.iot.vmp.gb28181.dao.DeviceChannelMapper;
+import com.genersoft.iot.vmp.storager.IRedisCatchStorage;
+import com.genersoft.iot.vmp.storager.impl.MobilePositionHistoryStore;
+import com.genersoft.iot.vmp.utils.DateUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 移动位置的异步批量写入
+ * 位置先进入定长队列，攒够一批或者等待超过间隔后由单独的线程写入：历史位置多值插入，通道经纬度每批每个通道只更新最新的一次，
+ * redis位置通知在一次管道中发送。队列满时丢弃新的位置
+ */
+@Slf4j
+@Component
+public class MobilePositionWriter implements MetricsSource {
+
+    private static final int CAPACITY = 100000;
+
+    /**
+     * 每批最多处理的位置数量
+     */
+    private static final int FLUSH_SIZE = 2000;
+
+    /**
+     * 位置最长等待时间 /毫秒
+     */
+    private static final long FLUSH_INTERVAL = 500;
+
+    /**
+     * 单条更新语句的最大行数
+     */
+    private static final int INSERT_LIMIT = 500;
+
+    /**
+     * 写入速率统计周期 /毫秒
+     */
+    private static final long RATE_PERIOD = 10 * 1000;
+
+    @Autowired
+    private MobilePositionHistoryStore mobilePositionHistoryStore;
+
+    @Autowired
+    private DeviceChannelMapper channelMapper;
+
+    @Autowired
+    private IRedisCatchStorage redisCatchStorage;
+
+    private final ArrayBlockingQueue<PositionRecord> queue = new ArrayBlockingQueue<>(CAPACITY);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new BasicThreadFactory.Builder().namingPattern("position-writer-%d").daemon(true).build());
+
+    private volatile boolean running = true;
+
+    private final AtomicLong offerCount = new AtomicLong();
+
+    private final AtomicLong dropCount = new AtomicLong();
+
+    private final AtomicLong historyCount = new AtomicLong();
+
+    private final AtomicLong channelUpdateCount = new AtomicLong();
+
+    private final AtomicLong flushCount = new AtomicLong();
+
+    private final AtomicLong errorCount = new AtomicLong();
+
+    private volatile long lastFlushCost;
+
+    private volatile long maxFlushCost;
+
+    private volatile long lastDelay;
+
+    private volatile double ingestRate;
+
+    private static class PositionRecord {
+        /**
+         * 需要保存的历史位置， 不保存历史时为null
+         */
+        private final MobilePosition history;
+        private final MobilePosition position;
+        private final List<DeviceChannel> channels;
+        private final long time = System.currentTimeMillis();
+
+        private PositionRecord(MobilePosition history, MobilePosition position, List<DeviceChannel> channels) {
+            this.history = history;
+            this.position = position;
+            this.channels = channels;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        executor.execute(this::work);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("[移动位置写入] 停止时仍有{}条位置未写入", queue.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 提交一次位置上报
+     * @param mobilePosition 上报的位置
+     * @param channels 需要更新经纬度的通道，经纬度和定位时间已设置
+     * @param saveHistory 是否保存历史位置
+     */
+    public void offer(MobilePosition mobilePosition, List<DeviceChannel> channels, boolean saveHistory) {
+        offerCount.incrementAndGet();
+        PositionRecord record = new PositionRecord(saveHistory ? mobilePosition : null, mobilePosition, channels);
+        if (!queue.offer(record)) {
+            long dropped = dropCount.incrementAndGet();
+            if (dropped % 1000 == 1) {
+                log.warn("[移动位置写入] 队列已满，丢弃位置， 累计丢弃： {}", dropped);
+            }
+        }
+    }
+
+    private void work() {
+        List<PositionRecord> batch = new ArrayList<>(FLUSH_SIZE);
+        long rateTime = System.currentTimeMillis();
+        long rateCount = 0;
+        while (running || !queue.isEmpty()) {
+            try {
+                PositionRecord first = queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    long deadline = first.time + FLUSH_INTERVAL;
+                    while (batch.size() < FLUSH_SIZE && running) {
+                        queue.drainTo(batch, FLUSH_SIZE - batch.size());
+                        long wait = deadline - System.currentTimeMillis();
+                        if (batch.size() >= FLUSH_SIZE || wait <= 0) {
+                            break;
+                        }
+                        PositionRecord next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    if (!running) {
+                        queue.drainTo(batch, FLUSH_SIZE - batch.size());
+                    }
+                    flush(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                errorCount.incrementAndGet();
+                log.error("[移动位置写入] 写入失败，丢弃{}条位置", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+            long now = System.currentTimeMillis();
+            if (now - rateTime >= RATE_PERIOD) {
+                long count = offerCount.get();
+                ingestRate = (count - rateCount) * 1000.0 / (now - rateTime);
+                rateCount = count;
+                rateTime = now;
+            }
+        }
+    }
+
+    private void flush(List<PositionRecord> batch) {
+        long start = System.currentTimeMillis();
+        List<MobilePosition> historyList = new ArrayList<>();
+        // 每个通道只更新最新的位置
+        Map<Integer, DeviceChannel> channelMap = new LinkedHashMap<>();
+        List<JSONObject> msgList = new ArrayList<>();
+        String now = DateUtil.getNow();
+        for (PositionRecord record : batch) {
+            if (record.history != null) {
+                historyList.add(record.history);
+            }
+            for (DeviceChannel channel : record.channels) {
+                channel.setUpdateTime(now);
+                channelMap.put(channel.getId(), channel);
+                // 发送redis消息。 通知位置信息的变化
+                JSONObject jsonObject = new JSONObject();
+                jsonObject.put("time", DateUtil.yyyy_MM_dd_HH_mm_ssToISO8601(record.position.getTime()));
+                jsonObject.put("serial", record.position.getDeviceId());
+                jsonObject.put("code", channel.getDeviceId());
+                jsonObject.put("longitude", record.position.getLongitude());
+                jsonObject.put("latitude", record.position.getLatitude());
+                jsonObject.put("altitude", record.position.getAltitude());
+                jsonObject.put("direction", record.position.getDirection());
+                jsonObject.put("speed", record.position.getSpeed());
+                msgList.add(jsonObject);
+            }
+        }
+        if (!historyList.isEmpty()) {
+            mobilePositionHistoryStore.insert(historyList);
+        }
+        List<DeviceChannel> channelList = new ArrayList<>(channelMap.values());
+        for (int i = 0; i < channelList.size(); i += INSERT_LIMIT) {
+            channelMapper.batchUpdatePosition(channelList.subList(i, Math.min(i + INSERT_LIMIT, channelList.size())));
+        }
+        redisCatchStorage.sendMobilePositionMsg(msgList);
+
+        long end = System.currentTimeMillis();
+        historyCount.addAndGet(historyList.size());
+        channelUpdateCount.addAndGet(channelList.size());
+        flushCount.incrementAndGet();
+        lastFlushCost = end - start;
+        maxFlushCost = Math.max(maxFlushCost, lastFlushCost);
+        lastDelay = end - batch.get(0).time;
+        if (log.isDebugEnabled()) {
+            log.debug("[移动位置写入] 位置： {}， 历史： {}， 通道： {}， 耗时： {}ms", batch.size(), historyList.size(),
+                    channelList.size(), lastFlushCost);
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "mobilePositionWriter";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("queue", queue.size());
+        metrics.put("capacity", CAPACITY);
+        metrics.put("offer", offerCount.get());
+        metrics.put("drop", dropCount.get());
+        metrics.put("rate", Math.round(ingestRate * 10) / 10.0);
+        metrics.put("history", historyCount.get());
+        metrics.put("channelUpdate", channelUpdateCount.get());
+        metrics.put("flush", flushCount.get());
+        metrics.put("error", errorCount.get());
+        metrics.put("lastFlushCost", lastFlushCost);
+        metrics.put("maxFlushCost", maxFlushCost);
+        metrics.put("lastDelay", lastDelay);
+        return metrics;
+    }
+}
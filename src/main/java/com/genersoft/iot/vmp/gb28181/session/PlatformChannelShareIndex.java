@@ -0,0 +1,208 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
+import com.genersoft.iot.vmp.gb28181.bean.Platform;
+import com.genersoft.iot.vmp.gb28181.bean.PlatformChannel;
+import com.genersoft.iot.vmp.gb28181.dao.PlatformChannelMapper;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeHandler;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeNotifier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 通道共享关系的本地索引, 通道ID -> (上级平台ID -> 向该平台使用的国标编号)
+ * 移动位置和目录变化转发时用来确定需要通知的上级平台，不需要查库。
+ * 共享/取消共享和自定义编号修改由本节点刷新，并通过redis通知其他节点刷新；通道自身编号的修改由定时全量刷新兜底
+ */
+@Slf4j
+@Component
+@Order(value=3)
+public class PlatformChannelShareIndex implements CommandLineRunner, MetricsSource, ClusterChangeHandler {
+
+    /**
+     * 通知其他节点全量刷新
+     */
+    private static final String ALL = "*";
+
+    /**
+     * 单次通知的通道数量超过此值时改为全量刷新
+     */
+    private static final int MAX_NOTIFY_CHANNELS = 1000;
+
+    @Autowired
+    private PlatformChannelMapper platformChannelMapper;
+
+    @Autowired
+    private PlatformRegistry platformRegistry;
+
+    @Autowired
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    private final Map<Integer, Map<Integer, String>> shareMap = new ConcurrentHashMap<>();
+
+    private volatile boolean ready = false;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong reloadCount = new AtomicLong();
+
+    @Override
+    public void run(String... args) {
+        reloadAll();
+    }
+
+    /**
+     * 定时全量刷新，兜底丢失的变化通知
+     */
+    @Scheduled(fixedDelay = 5 * 60 * 1000, initialDelay = 5 * 60 * 1000)
+    public void reloadAll() {
+        Map<Integer, Map<Integer, String>> newMap = build(platformChannelMapper.queryShareIndex(null));
+        shareMap.keySet().retainAll(newMap.keySet());
+        shareMap.putAll(newMap);
+        reloadCount.incrementAndGet();
+        if (!ready) {
+            log.info("[通道共享索引] 加载完成， 共享通道数： {}", shareMap.size());
+        }
+        ready = true;
+    }
+
+    /**
+     * 查询通道共享到的平台
+     * @return 上级平台ID -> 向该平台使用的国标编号， 未共享时返回空
+     */
+    public Map<Integer, String> getShares(Integer channelId) {
+        if (channelId == null) {
+            return Collections.emptyMap();
+        }
+        if (!ready) {
+            Map<Integer, String> shares = build(platformChannelMapper.queryShareIndex(Collections.singletonList(channelId))).get(channelId);
+            return shares == null ? Collections.emptyMap() : shares;
+        }
+        hitCount.incrementAndGet();
+        return shareMap.getOrDefault(channelId, Collections.emptyMap());
+    }
+
+    /**
+     * 查询通道共享到的、在线的且在指定范围内的平台
+     * @param serverGBIds 平台国标编号范围，一般是有订阅的平台
+     */
+    public List<Platform> queryPlatforms(Integer channelId, Collection<String> serverGBIds) {
+        Map<Integer, String> shares = getShares(channelId);
+        if (shares.isEmpty() || serverGBIds == null || serverGBIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Platform> result = new ArrayList<>(shares.size());
+        for (Integer platformId : shares.keySet()) {
+            Platform platform = platformRegistry.getById(platformId);
+            if (platform != null && platform.isStatus() && serverGBIds.contains(platform.getServerGBId())) {
+                result.add(platform);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 通道的共享关系在本节点发生变化后调用，从数据库重新加载并通知其他节点
+     */
+    public void refresh(Collection<Integer> channelIds) {
+        if (channelIds == null || channelIds.isEmpty()) {
+            return;
+        }
+        Set<Integer> ids = new HashSet<>(channelIds);
+        ClusterChangeNotifier.afterCommit(() -> {
+            if (ids.size() > MAX_NOTIFY_CHANNELS) {
+                reloadAll();
+                clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_PLATFORM_CHANNEL_CHANGE, ALL);
+                return;
+            }
+            reload(ids);
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_PLATFORM_CHANNEL_CHANGE, ClusterChangeNotifier.join(ids));
+        });
+    }
+
+    /**
+     * 整个平台或者整个设备的共享关系被删除后调用，全量刷新
+     */
+    public void refreshAll() {
+        ClusterChangeNotifier.afterCommit(() -> {
+            reloadAll();
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_PLATFORM_CHANNEL_CHANGE, ALL);
+        });
+    }
+
+    @Override
+    public String getChangeTopic() {
+        return VideoManagerConstants.VM_MSG_PLATFORM_CHANNEL_CHANGE;
+    }
+
+    /**
+     * 处理其他节点的变化通知
+     */
+    @Override
+    public void onChange(String content) {
+        if (ALL.equals(content)) {
+            reloadAll();
+            return;
+        }
+        Set<Integer> ids;
+        try {
+            ids = ClusterChangeNotifier.parseIds(content);
+        } catch (NumberFormatException e) {
+            log.warn("[通道共享索引] 无法解析的变化通知： {}", content);
+            return;
+        }
+        reload(ids);
+    }
+
+    private void reload(Set<Integer> channelIds) {
+        List<Integer> idList = new ArrayList<>(channelIds);
+        int limitCount = 500;
+        for (int i = 0; i < idList.size(); i += limitCount) {
+            List<Integer> part = idList.subList(i, Math.min(i + limitCount, idList.size()));
+            Map<Integer, Map<Integer, String>> newMap = build(platformChannelMapper.queryShareIndex(part));
+            for (Integer channelId : part) {
+                Map<Integer, String> shares = newMap.get(channelId);
+                if (shares == null) {
+                    shareMap.remove(channelId);
+                }else {
+                    shareMap.put(channelId, shares);
+                }
+            }
+        }
+    }
+
+    private Map<Integer, Map<Integer, String>> build(List<PlatformChannel> platformChannels) {
+        Map<Integer, Map<Integer, String>> result = new HashMap<>();
+        for (PlatformChannel platformChannel : platformChannels) {
+            result.computeIfAbsent(platformChannel.getGbId(), key -> new HashMap<>())
+                    .put(platformChannel.getPlatformId(), platformChannel.getGbDeviceId());
+        }
+        // 读多写少，内部的map整体替换，不做修改
+        result.replaceAll((key, value) -> Collections.unmodifiableMap(value));
+        return result;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "platformChannelShare";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("ready", ready);
+        metrics.put("channel", shareMap.size());
+        metrics.put("hit", hitCount.get());
+        metrics.put("reload", reloadCount.get());
+        return metrics;
+    }
+}
@@ -0,0 +1,152 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
+import com.genersoft.iot.vmp.gb28181.bean.Platform;
+import com.genersoft.iot.vmp.gb28181.dao.PlatformMapper;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeHandler;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeNotifier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 上级平台的本地索引, serverGBId -> Platform
+ * 启动时全量加载，加载完成后未命中即表示平台不存在（SIP MESSAGE大多来自设备，不需要再查库）。
+ * 平台的增删改和上下线由本节点刷新，并通过redis通知其他节点刷新
+ */
+@Slf4j
+@Component
+@Order(value=2)
+public class PlatformRegistry implements CommandLineRunner, ClusterChangeHandler {
+
+    @Autowired
+    private PlatformMapper platformMapper;
+
+    @Autowired
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    private final Map<String, Platform> platformMap = new ConcurrentHashMap<>();
+
+    /**
+     * 数据库ID -> serverGBId
+     */
+    private final Map<Integer, String> platformIdMap = new ConcurrentHashMap<>();
+
+    private volatile boolean ready = false;
+
+    @Override
+    public void run(String... args) {
+        reloadAll();
+    }
+
+    /**
+     * 定时全量刷新，兜底丢失的变化通知
+     */
+    @Scheduled(fixedDelay = 5 * 60 * 1000, initialDelay = 5 * 60 * 1000)
+    public void reloadAll() {
+        List<Platform> platforms = platformMapper.queryAll();
+        Map<String, Platform> newMap = new ConcurrentHashMap<>();
+        for (Platform platform : platforms) {
+            if (platform.getServerGBId() != null) {
+                newMap.put(platform.getServerGBId(), platform);
+            }
+        }
+        platformMap.keySet().retainAll(newMap.keySet());
+        platformMap.putAll(newMap);
+        Map<Integer, String> newIdMap = new ConcurrentHashMap<>();
+        for (Platform platform : newMap.values()) {
+            if (platform.getId() != null) {
+                newIdMap.put(platform.getId(), platform.getServerGBId());
+            }
+        }
+        platformIdMap.keySet().retainAll(newIdMap.keySet());
+        platformIdMap.putAll(newIdMap);
+        if (!ready) {
+            log.info("[平台索引] 加载完成， 平台数： {}", platformMap.size());
+        }
+        ready = true;
+    }
+
+    /**
+     * 根据上级平台国标编号查询， 返回副本
+     */
+    public Platform get(String serverGBId) {
+        if (serverGBId == null) {
+            return null;
+        }
+        if (!ready) {
+            return platformMapper.getParentPlatByServerGBId(serverGBId);
+        }
+        Platform platform = platformMap.get(serverGBId);
+        if (platform == null) {
+            return null;
+        }
+        Platform result = new Platform();
+        BeanUtils.copyProperties(platform, result);
+        return result;
+    }
+
+    /**
+     * 根据数据库ID查询， 返回副本
+     */
+    public Platform getById(Integer id) {
+        if (id == null) {
+            return null;
+        }
+        if (!ready) {
+            return platformMapper.query(id);
+        }
+        String serverGBId = platformIdMap.get(id);
+        return serverGBId == null ? null : get(serverGBId);
+    }
+
+    /**
+     * 平台信息在本节点发生变化后调用，从数据库重新加载并通知其他节点
+     */
+    public void refresh(String serverGBId) {
+        if (serverGBId == null) {
+            return;
+        }
+        ClusterChangeNotifier.afterCommit(() -> {
+            reload(serverGBId);
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_PLATFORM_CHANGE, serverGBId);
+        });
+    }
+
+    @Override
+    public String getChangeTopic() {
+        return VideoManagerConstants.VM_MSG_PLATFORM_CHANGE;
+    }
+
+    /**
+     * 处理其他节点的变化通知
+     */
+    @Override
+    public void onChange(String content) {
+        reload(content);
+    }
+
+    private void reload(String serverGBId) {
+        if (serverGBId == null) {
+            return;
+        }
+        Platform platform = platformMapper.getParentPlatByServerGBId(serverGBId);
+        if (platform == null) {
+            platformMap.remove(serverGBId);
+            platformIdMap.values().remove(serverGBId);
+        }else {
+            platformMap.put(serverGBId, platform);
+            if (platform.getId() != null) {
+                platformIdMap.put(platform.getId(), serverGBId);
+            }
+        }
+    }
+}
@@ -0,0 +1,648 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
+import com.genersoft.iot.vmp.gb28181.bean.*;
+import com.genersoft.iot.vmp.gb28181.dao.CommonGBChannelMapper;
+import com.genersoft.iot.vmp.gb28181.dao.GroupMapper;
+import com.genersoft.iot.vmp.gb28181.dao.RegionMapper;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeHandler;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeNotifier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 行政区划、业务分组和虚拟组织的本地树索引，保存节点、父子关系以及每个节点(含全部下级节点)的通道数量，
+ * 查询路径和子节点时不需要查库。
+ * 节点的增删改由本节点按ID从数据库重新加载，并通过redis通知其他节点；通道数量按变化的编号重新统计后沿父节点增量更新，
+ * 设备目录同步等批量变化先标记，定时重新统计；定时全量刷新兜底丢失的变化通知
+ */
+@Slf4j
+@Component
+@Order(value=3)
+public class RegionGroupTreeIndex implements CommandLineRunner, MetricsSource, ClusterChangeHandler {
+
+    /**
+     * 通知其他节点全量刷新
+     */
+    private static final String ALL = "*";
+
+    private static final String REGION = "region:";
+
+    private static final String GROUP = "group:";
+
+    private static final String CIVIL_CODE = "civilCode:";
+
+    private static final String PARENT = "parent:";
+
+    private static final String CHANNEL = "channel";
+
+    /**
+     * 单次变化的节点数量超过此值时改为全量刷新
+     */
+    private static final int MAX_NOTIFY_ITEMS = 1000;
+
+    /**
+     * parentId为null的节点放在此ID下
+     */
+    private static final int ROOT = 0;
+
+    /**
+     * 向上查找父节点的最大层级，防止错误数据形成环
+     */
+    private static final int MAX_DEPTH = 64;
+
+    @Autowired
+    private RegionMapper regionMapper;
+
+    @Autowired
+    private GroupMapper groupMapper;
+
+    @Autowired
+    private CommonGBChannelMapper commonGBChannelMapper;
+
+    @Autowired
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    private static class Node<T> {
+        private final int id;
+        private final Integer parentId;
+        /**
+         * 查询路径时使用的唯一标识
+         */
+        private final String key;
+        /**
+         * 通道引用此节点时使用的编号
+         */
+        private final String code;
+        /**
+         * 不做修改，返回给调用方时复制
+         */
+        private final T data;
+        /**
+         * 节点及其全部下级节点中的通道数量
+         */
+        private volatile long channelCount;
+
+        private Node(int id, Integer parentId, String key, String code, T data) {
+            this.id = id;
+            this.parentId = parentId;
+            this.key = key;
+            this.code = code;
+            this.data = data;
+        }
+    }
+
+    /**
+     * 一棵树的全部数据，修改在RegionGroupTreeIndex的锁内进行，读取不加锁
+     */
+    private static class Tree<T> {
+        private final Function<T, Node<T>> nodeBuilder;
+        /**
+         * 节点 -> 父节点的key，为null时没有父节点
+         */
+        private final Function<T, String> parentKeyFunction;
+        private final Map<Integer, Node<T>> nodeMap = new ConcurrentHashMap<>();
+        private final Map<String, Node<T>> keyMap = new ConcurrentHashMap<>();
+        private final Map<String, Node<T>> codeMap = new ConcurrentHashMap<>();
+        /**
+         * 父节点ID -> 按ID排序的子节点，整体替换，不做修改
+         */
+        private final Map<Integer, List<Node<T>>> childrenMap = new ConcurrentHashMap<>();
+        /**
+         * 编号 -> 直属的通道数量
+         */
+        private final Map<String, Integer> directCountMap = new ConcurrentHashMap<>();
+
+        private Tree(Function<T, Node<T>> nodeBuilder, Function<T, String> parentKeyFunction) {
+            this.nodeBuilder = nodeBuilder;
+            this.parentKeyFunction = parentKeyFunction;
+        }
+
+        private List<Node<T>> children(Integer parentId) {
+            return childrenMap.getOrDefault(parentId == null ? ROOT : parentId, Collections.emptyList());
+        }
+
+        private void load(List<T> dataList, List<TreeChannelCount> counts) {
+            for (TreeChannelCount count : counts) {
+                directCountMap.put(count.getCode(), count.getChannelCount());
+            }
+            Map<Integer, List<Node<T>>> children = new HashMap<>();
+            for (T data : dataList) {
+                Node<T> node = nodeBuilder.apply(data);
+                nodeMap.put(node.id, node);
+                if (node.key != null) {
+                    keyMap.put(node.key, node);
+                }
+                if (node.code != null) {
+                    codeMap.put(node.code, node);
+                }
+                children.computeIfAbsent(parentKey(node), key -> new ArrayList<>()).add(node);
+            }
+            for (Map.Entry<Integer, List<Node<T>>> entry : children.entrySet()) {
+                entry.getValue().sort(Comparator.comparingInt(node -> node.id));
+                childrenMap.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+            }
+            // 直属的通道数量累加到节点及其全部父节点
+            for (Node<T> node : codeMap.values()) {
+                Integer count = directCountMap.get(node.code);
+                if (count != null && count > 0) {
+                    addCount(node, count);
+                }
+            }
+        }
+
+        private void upsert(T data) {
+            Node<T> node = nodeBuilder.apply(data);
+            remove(node.id);
+            nodeMap.put(node.id, node);
+            if (node.key != null) {
+                keyMap.put(node.key, node);
+            }
+            if (node.code != null) {
+                codeMap.put(node.code, node);
+            }
+            childrenMap.compute(parentKey(node), (key, list) -> {
+                List<Node<T>> newList = list == null ? new ArrayList<>() : new ArrayList<>(list);
+                newList.add(node);
+                newList.sort(Comparator.comparingInt(item -> item.id));
+                return Collections.unmodifiableList(newList);
+            });
+            long count = node.code == null ? 0 : directCountMap.getOrDefault(node.code, 0);
+            for (Node<T> child : children(node.id)) {
+                count += child.channelCount;
+            }
+            if (count != 0) {
+                addCount(node, count);
+            }
+        }
+
+        private void remove(int id) {
+            Node<T> node = nodeMap.remove(id);
+            if (node == null) {
+                return;
+            }
+            if (node.key != null) {
+                keyMap.remove(node.key, node);
+            }
+            if (node.code != null) {
+                codeMap.remove(node.code, node);
+            }
+            childrenMap.computeIfPresent(parentKey(node), (key, list) -> {
+                List<Node<T>> newList = new ArrayList<>(list);
+                newList.remove(node);
+                return newList.isEmpty() ? null : Collections.unmodifiableList(newList);
+            });
+            if (node.channelCount != 0) {
+                addCount(node, -node.channelCount);
+            }
+            // 子节点保留在childrenMap中，节点重新加入时恢复关系
+        }
+
+        private void setDirectCount(String code, int count) {
+            Integer old = count == 0 ? directCountMap.remove(code) : directCountMap.put(code, count);
+            int delta = count - (old == null ? 0 : old);
+            if (delta == 0) {
+                return;
+            }
+            Node<T> node = codeMap.get(code);
+            if (node != null) {
+                addCount(node, delta);
+            }
+        }
+
+        /**
+         * 节点及其全部父节点的通道数量加上delta
+         */
+        private void addCount(Node<T> node, long delta) {
+            for (int depth = 0; node != null && depth < MAX_DEPTH; depth++) {
+                node.channelCount += delta;
+                node = node.parentId == null ? null : nodeMap.get(node.parentId);
+            }
+        }
+
+        /**
+         * 按父节点的key向上查找，返回的列表从最上级开始，不包含节点自身
+         */
+        private List<Node<T>> parents(Node<T> node) {
+            LinkedList<Node<T>> result = new LinkedList<>();
+            for (int depth = 0; depth < MAX_DEPTH; depth++) {
+                String parentKey = parentKeyFunction.apply(node.data);
+                if (parentKey == null) {
+                    break;
+                }
+                node = keyMap.get(parentKey);
+                if (node == null) {
+                    break;
+                }
+                result.addFirst(node);
+            }
+            return result;
+        }
+
+        private int parentKey(Node<T> node) {
+            return node.parentId == null ? ROOT : node.parentId;
+        }
+    }
+
+    private static String groupKey(String deviceId, String businessGroup) {
+        return businessGroup + "_" + deviceId;
+    }
+
+    private static Tree<Region> newRegionTree() {
+        return new Tree<>(
+                region -> new Node<>(region.getId(), region.getParentId(), region.getDeviceId(), region.getDeviceId(), region),
+                region -> region.getParentId() == null ? null : region.getParentDeviceId());
+    }
+
+    private static Tree<Group> newGroupTree() {
+        return new Tree<>(
+                group -> new Node<>(group.getId(), group.getParentId(), groupKey(group.getDeviceId(), group.getBusinessGroup()),
+                        group.getDeviceId(), group),
+                group -> group.getParentId() == null || group.getBusinessGroup() == null || group.getParentDeviceId() == null
+                        ? null : groupKey(group.getParentDeviceId(), group.getBusinessGroup()));
+    }
+
+    private volatile Tree<Region> regionTree = newRegionTree();
+
+    private volatile Tree<Group> groupTree = newGroupTree();
+
+    private volatile boolean ready = false;
+
+    /**
+     * 通道发生了无法确定编号的变化，需要重新统计全部通道数量
+     */
+    private final AtomicBoolean channelCountDirty = new AtomicBoolean(false);
+
+    /**
+     * 本节点有通道变化尚未通知其他节点，定时合并发送
+     */
+    private final AtomicBoolean channelChangeToNotify = new AtomicBoolean(false);
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong reloadCount = new AtomicLong();
+
+    private final AtomicLong recountCount = new AtomicLong();
+
+    @Override
+    public void run(String... args) {
+        reloadAll();
+    }
+
+    /**
+     * 定时全量刷新，兜底丢失的变化通知
+     */
+    @Scheduled(fixedDelay = 10 * 60 * 1000, initialDelay = 10 * 60 * 1000)
+    public synchronized void reloadAll() {
+        long startTime = System.currentTimeMillis();
+        channelCountDirty.set(false);
+        Tree<Region> newRegionTree = newRegionTree();
+        newRegionTree.load(regionMapper.queryAll(), commonGBChannelMapper.countByCivilCode(null));
+        Tree<Group> newGroupTree = newGroupTree();
+        newGroupTree.load(groupMapper.queryAll(), commonGBChannelMapper.countByParentId(null));
+        regionTree = newRegionTree;
+        groupTree = newGroupTree;
+        reloadCount.incrementAndGet();
+        if (!ready) {
+            log.info("[行政区划/分组索引] 加载完成， 行政区划： {}， 分组： {}， 耗时： {}ms", newRegionTree.nodeMap.size(),
+                    newGroupTree.nodeMap.size(), System.currentTimeMillis() - startTime);
+        }
+        ready = true;
+    }
+
+    /**
+     * 通道数量有未确定的变化时重新统计
+     */
+    @Scheduled(fixedDelay = 30 * 1000)
+    public void recountIfDirty() {
+        if (channelChangeToNotify.getAndSet(false)) {
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_TREE_CHANGE, CHANNEL);
+        }
+        if (!ready || !channelCountDirty.getAndSet(false)) {
+            return;
+        }
+        recount(null, null);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // ------------------------------ 查询 ------------------------------
+
+    /**
+     * 查询行政区划的子节点
+     * @param parentId 父节点ID，为null时查询根节点
+     * @param query 按编号或名称过滤，为null时不过滤
+     */
+    public List<RegionTree> getRegionChildren(Integer parentId, String query) {
+        hitCount.incrementAndGet();
+        List<RegionTree> result = new ArrayList<>();
+        for (Node<Region> node : regionTree.children(parentId)) {
+            if (match(node.data.getDeviceId(), node.data.getName(), query)) {
+                RegionTree regionTree = new RegionTree();
+                BeanUtils.copyProperties(node.data, regionTree);
+                regionTree.setTreeId("region" + node.id);
+                regionTree.setType(0);
+                regionTree.setStatus("ON");
+                regionTree.setLeaf(false);
+                regionTree.setChannelCount(node.channelCount);
+                result.add(regionTree);
+            }
+        }
+        return result;
+    }
+
+    public Region getRegion(int id) {
+        Node<Region> node = regionTree.nodeMap.get(id);
+        return node == null ? null : copy(node.data);
+    }
+
+    /**
+     * 查询行政区划的路径
+     * @return 从最上级开始，最后一个是行政区划自身，行政区划不存在时返回null
+     */
+    public List<Region> getRegionPath(String deviceId) {
+        Tree<Region> tree = regionTree;
+        Node<Region> node = deviceId == null ? null : tree.keyMap.get(deviceId);
+        if (node == null) {
+            return null;
+        }
+        hitCount.incrementAndGet();
+        List<Region> result = new ArrayList<>();
+        for (Node<Region> parent : tree.parents(node)) {
+            result.add(copy(parent.data));
+        }
+        result.add(copy(node.data));
+        return result;
+    }
+
+    /**
+     * 查询分组的子节点
+     * @param parentId 父节点ID，为null时查询根节点
+     * @param query 按编号或名称过滤，为null时不过滤
+     */
+    public List<GroupTree> getGroupChildren(Integer parentId, String query) {
+        hitCount.incrementAndGet();
+        List<GroupTree> result = new ArrayList<>();
+        for (Node<Group> node : groupTree.children(parentId)) {
+            if (match(node.data.getDeviceId(), node.data.getName(), query)) {
+                GroupTree groupTree = new GroupTree();
+                BeanUtils.copyProperties(node.data, groupTree);
+                groupTree.setTreeId("group" + node.id);
+                groupTree.setType(0);
+                groupTree.setStatus("ON");
+                groupTree.setLeaf(false);
+                groupTree.setChannelCount(node.channelCount);
+                result.add(groupTree);
+            }
+        }
+        return result;
+    }
+
+    public Group getGroup(int id) {
+        Node<Group> node = groupTree.nodeMap.get(id);
+        return node == null ? null : copy(node.data);
+    }
+
+    public Group getGroup(String deviceId, String businessGroup) {
+        Node<Group> node = groupTree.keyMap.get(groupKey(deviceId, businessGroup));
+        return node == null ? null : copy(node.data);
+    }
+
+    /**
+     * 查询分组的全部上级节点，与逐级查询数据库的结果一致，包含业务分组
+     * @return 从最上级开始，不包含分组自身
+     */
+    public List<Group> getGroupParents(Group group) {
+        Tree<Group> tree = groupTree;
+        Node<Group> node = tree.nodeMap.get(group.getId());
+        if (node == null) {
+            return new ArrayList<>();
+        }
+        hitCount.incrementAndGet();
+        List<Group> result = new ArrayList<>();
+        for (Node<Group> parent : tree.parents(node)) {
+            result.add(copy(parent.data));
+        }
+        return result;
+    }
+
+    private boolean match(String deviceId, String name, String query) {
+        if (query == null) {
+            return true;
+        }
+        return (deviceId != null && deviceId.contains(query)) || (name != null && name.contains(query));
+    }
+
+    private Region copy(Region region) {
+        Region result = new Region();
+        BeanUtils.copyProperties(region, result);
+        return result;
+    }
+
+    private Group copy(Group group) {
+        Group result = new Group();
+        BeanUtils.copyProperties(group, result);
+        return result;
+    }
+
+    // ------------------------------ 变化 ------------------------------
+
+    /**
+     * 行政区划新增、修改、删除后调用，事务提交后从数据库重新加载这些节点并通知其他节点
+     */
+    public void refreshRegion(Collection<Integer> ids) {
+        refresh(REGION, ids);
+    }
+
+    /**
+     * 业务分组、虚拟组织新增、修改、删除后调用，事务提交后从数据库重新加载这些节点并通知其他节点
+     */
+    public void refreshGroup(Collection<Integer> ids) {
+        refresh(GROUP, ids);
+    }
+
+    /**
+     * 通道的行政区划发生变化后调用，传入变化前后的行政区划编号
+     */
+    public void refreshRegionChannelCount(Collection<String> civilCodes) {
+        refreshCount(CIVIL_CODE, civilCodes);
+    }
+
+    /**
+     * 通道的父节点发生变化后调用，传入变化前后的父节点编号
+     */
+    public void refreshGroupChannelCount(Collection<String> parentIds) {
+        refreshCount(PARENT, parentIds);
+    }
+
+    /**
+     * 通道新增、删除或者目录同步后调用，无法确定涉及的编号，稍后重新统计全部通道数量
+     */
+    public void markChannelChanged() {
+        ClusterChangeNotifier.afterCommit(() -> {
+            channelCountDirty.set(true);
+            channelChangeToNotify.set(true);
+        });
+    }
+
+    private void refresh(String type, Collection<Integer> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return;
+        }
+        Set<Integer> idSet = new HashSet<>(ids);
+        ClusterChangeNotifier.afterCommit(() -> {
+            if (idSet.size() > MAX_NOTIFY_ITEMS) {
+                reloadAll();
+                clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_TREE_CHANGE, ALL);
+                return;
+            }
+            reload(type, idSet);
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_TREE_CHANGE, type + ClusterChangeNotifier.join(idSet));
+        });
+    }
+
+    private void refreshCount(String type, Collection<String> codes) {
+        if (codes == null) {
+            return;
+        }
+        Set<String> codeSet = new HashSet<>();
+        for (String code : codes) {
+            if (code != null && !code.trim().isEmpty()) {
+                codeSet.add(code);
+            }
+        }
+        if (codeSet.isEmpty()) {
+            return;
+        }
+        ClusterChangeNotifier.afterCommit(() -> {
+            if (codeSet.size() > MAX_NOTIFY_ITEMS) {
+                channelCountDirty.set(true);
+                channelChangeToNotify.set(true);
+                return;
+            }
+            if (CIVIL_CODE.equals(type)) {
+                recount(codeSet, null);
+            }else {
+                recount(null, codeSet);
+            }
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_TREE_CHANGE, type + ClusterChangeNotifier.join(codeSet));
+        });
+    }
+
+    private synchronized void reload(String type, Set<Integer> ids) {
+        if (!ready) {
+            return;
+        }
+        if (REGION.equals(type)) {
+            Tree<Region> tree = regionTree;
+            List<Region> regionList = regionMapper.queryByIds(ids);
+            Set<Integer> missing = new HashSet<>(ids);
+            for (Region region : regionList) {
+                tree.upsert(region);
+                missing.remove(region.getId());
+            }
+            missing.forEach(tree::remove);
+        }else {
+            Tree<Group> tree = groupTree;
+            List<Group> groupList = groupMapper.queryByIds(ids);
+            Set<Integer> missing = new HashSet<>(ids);
+            for (Group group : groupList) {
+                tree.upsert(group);
+                missing.remove(group.getId());
+            }
+            missing.forEach(tree::remove);
+        }
+    }
+
+    /**
+     * 重新统计通道数量
+     * @param civilCodes 需要统计的行政区划编号，两个参数都为null时统计全部
+     * @param parentIds 需要统计的父节点编号
+     */
+    private synchronized void recount(Set<String> civilCodes, Set<String> parentIds) {
+        if (!ready) {
+            return;
+        }
+        boolean all = civilCodes == null && parentIds == null;
+        if (all || civilCodes != null) {
+            recount(regionTree, civilCodes, commonGBChannelMapper.countByCivilCode(civilCodes));
+        }
+        if (all || parentIds != null) {
+            recount(groupTree, parentIds, commonGBChannelMapper.countByParentId(parentIds));
+        }
+        recountCount.incrementAndGet();
+    }
+
+    private <T> void recount(Tree<T> tree, Set<String> codes, List<TreeChannelCount> counts) {
+        Set<String> zeroCodes = new HashSet<>(codes == null ? tree.directCountMap.keySet() : codes);
+        for (TreeChannelCount count : counts) {
+            tree.setDirectCount(count.getCode(), count.getChannelCount());
+            zeroCodes.remove(count.getCode());
+        }
+        for (String code : zeroCodes) {
+            tree.setDirectCount(code, 0);
+        }
+    }
+
+    @Override
+    public String getChangeTopic() {
+        return VideoManagerConstants.VM_MSG_TREE_CHANGE;
+    }
+
+    /**
+     * 处理其他节点的变化通知
+     */
+    @Override
+    public void onChange(String content) {
+        try {
+            if (content.startsWith(REGION)) {
+                reload(REGION, ClusterChangeNotifier.parseIds(content.substring(REGION.length())));
+            }else if (content.startsWith(GROUP)) {
+                reload(GROUP, ClusterChangeNotifier.parseIds(content.substring(GROUP.length())));
+            }else if (content.startsWith(CIVIL_CODE)) {
+                recount(new HashSet<>(Arrays.asList(content.substring(CIVIL_CODE.length()).split(","))), null);
+            }else if (content.startsWith(PARENT)) {
+                recount(null, new HashSet<>(Arrays.asList(content.substring(PARENT.length()).split(","))));
+            }else if (CHANNEL.equals(content)) {
+                channelCountDirty.set(true);
+            }else {
+                reloadAll();
+            }
+        } catch (NumberFormatException e) {
+            log.warn("[行政区划/分组索引] 无法解析的变化通知： {}", content);
+            reloadAll();
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "regionGroupTree";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("ready", ready);
+        metrics.put("region", regionTree.nodeMap.size());
+        metrics.put("group", groupTree.nodeMap.size());
+        metrics.put("channelCountDirty", channelCountDirty.get());
+        metrics.put("hit", hitCount.get());
+        metrics.put("reload", reloadCount.get());
+        metrics.put("recount", recountCount.get());
+        return metrics;
+    }
+}
@@ -1,18 +1,25 @@
 package com.genersoft.iot.vmp.gb28181.session;
 
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
 import com.genersoft.iot.vmp.conf.SipConfig;
 import com.genersoft.iot.vmp.conf.UserSetting;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * ssrc使用
  */
+@Slf4j
 @Component
 public class SSRCFactory {
 
@@ -22,9 +29,28 @@ public class SSRCFactory {
     private static final Integer MAX_STREAM_COUNT = 10000;
 
     /**
-     * 播流最大并发个数
+     * ssrc块租用信息， hash结构， field为块序号，value为持有块的服务ID
+     */
+    private static final String SSRC_LEASE_KEY = "VMP_SSRC_LEASE_";
+
+    /**
+     * 本地空闲数超过此值时，完全空闲的块会归还给redis
+     */
+    private static final int RETURN_THRESHOLD = SsrcBitSet.BLOCK_SIZE * 2;
+
+    /**
+     * 块的持有者与预期一致时才替换持有者
      */
-    private static final String SSRC_INFO_KEY = "VMP_SSRC_INFO_";
+    private static final RedisScript<Long> COMPARE_AND_SET_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('hget', KEYS[1], ARGV[1]) == ARGV[2] then " +
+                    "redis.call('hset', KEYS[1], ARGV[1], ARGV[3]) return 1 end return 0", Long.class);
+
+    /**
+     * 块的持有者与预期一致时才删除
+     */
+    private static final RedisScript<Long> COMPARE_AND_DELETE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('hget', KEYS[1], ARGV[1]) == ARGV[2] then " +
+                    "return redis.call('hdel', KEYS[1], ARGV[1]) end return 0", Long.class);
 
     @Autowired
     private StringRedisTemplate redisTemplate;
@@ -35,24 +61,56 @@ public class SSRCFactory {
     @Autowired
     private UserSetting userSetting;
 
+    private final Map<String, SsrcBitSet> poolMap = new ConcurrentHashMap<>();
 
-    public void initMediaServerSSRC(String mediaServerId, Set<String> usedSet) {
-        String sipDomain = sipConfig.getDomain();
-        String ssrcPrefix = sipDomain.length() >= 8 ? sipDomain.substring(3, 8) : sipDomain;
-        String redisKey = SSRC_INFO_KEY + userSetting.getServerId() + "_" + mediaServerId;
-        List<String> ssrcList = new ArrayList<>();
-        for (int i = 1; i < MAX_STREAM_COUNT; i++) {
-            String ssrc = String.format("%s%04d", ssrcPrefix, i);
+    private volatile String ssrcPrefix;
 
-            if (null == usedSet || !usedSet.contains(ssrc)) {
-                ssrcList.add(ssrc);
+    private String getSsrcPrefix() {
+        if (ssrcPrefix == null) {
+            String sipDomain = sipConfig.getDomain();
+            ssrcPrefix = sipDomain.length() >= 8 ? sipDomain.substring(3, 8) : sipDomain;
+        }
+        return ssrcPrefix;
+    }
 
+    private String getLeaseKey(String mediaServerId) {
+        return SSRC_LEASE_KEY + mediaServerId;
+    }
+
+    public void initMediaServerSSRC(String mediaServerId, Set<String> usedSet) {
+        SsrcBitSet pool = new SsrcBitSet(MAX_STREAM_COUNT);
+        SsrcBitSet oldPool = poolMap.put(mediaServerId, pool);
+        String leaseKey = getLeaseKey(mediaServerId);
+        // 归还本服务之前持有的块，包括重启前遗留的
+        Map<Object, Object> leases = redisTemplate.opsForHash().entries(leaseKey);
+        for (Map.Entry<Object, Object> entry : leases.entrySet()) {
+            if (userSetting.getServerId().equals(entry.getValue())) {
+                redisTemplate.execute(COMPARE_AND_DELETE_SCRIPT, Collections.singletonList(leaseKey),
+                        entry.getKey().toString(), userSetting.getServerId());
             }
         }
-        if (redisTemplate.opsForSet().size(redisKey) != null) {
-            redisTemplate.delete(redisKey);
+        if (oldPool != null) {
+            log.info("[SSRC] 重置流媒体节点的ssrc: {}", mediaServerId);
+        }
+        if (usedSet != null && !usedSet.isEmpty()) {
+            // 已使用的ssrc所在的块需要立即租用，否则会被其他节点分配出去
+            Map<Integer, Long> usedMaskMap = new HashMap<>();
+            String prefix = getSsrcPrefix();
+            for (String ssrc : usedSet) {
+                int sn = parseSn(prefix, ssrc);
+                if (sn > 0) {
+                    usedMaskMap.merge(sn / SsrcBitSet.BLOCK_SIZE, 1L << (sn % SsrcBitSet.BLOCK_SIZE), (a, b) -> a | b);
+                }
+            }
+            for (Map.Entry<Integer, Long> entry : usedMaskMap.entrySet()) {
+                if (tryLease(leaseKey, entry.getKey())) {
+                    pool.addBlock(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        if (pool.freeCount() == 0) {
+            refill(mediaServerId, pool);
         }
-        redisTemplate.opsForSet().add(redisKey, ssrcList.toArray(new String[0]));
     }
 
 
@@ -78,26 +136,121 @@ public class SSRCFactory {
      * @param ssrc 需要重置的ssrc
      */
     public void releaseSsrc(String mediaServerId, String ssrc) {
-        if (ssrc == null) {
+        if (ssrc == null || ssrc.length() < 2) {
             return;
         }
-        String sn = ssrc.substring(1);
-        String redisKey = SSRC_INFO_KEY + userSetting.getServerId() + "_" + mediaServerId;
-        redisTemplate.opsForSet().add(redisKey, sn);
+        SsrcBitSet pool = poolMap.get(mediaServerId);
+        if (pool == null) {
+            return;
+        }
+        int sn = parseSn(getSsrcPrefix(), ssrc.substring(1));
+        if (sn <= 0) {
+            return;
+        }
+        if (pool.release(sn) && pool.freeCount() > RETURN_THRESHOLD) {
+            int block = sn / SsrcBitSet.BLOCK_SIZE;
+            if (pool.removeBlock(block)) {
+                returnLease(getLeaseKey(mediaServerId), block);
+            }
+        }
     }
 
     /**
-     * 获取后四位数SN,随机数
+     * 获取后四位数SN
      */
     private String getSN(String mediaServerId) {
-        String redisKey = SSRC_INFO_KEY + userSetting.getServerId() + "_" + mediaServerId;
-        Long size = redisTemplate.opsForSet().size(redisKey);
-        if (size == null || size == 0) {
-            throw new RuntimeException("ssrc已经用完");
-        } else {
-            // 在集合中移除并返回一个随机成员。
-            return redisTemplate.opsForSet().pop(redisKey);
+        SsrcBitSet pool = poolMap.get(mediaServerId);
+        if (pool == null) {
+            initMediaServerSSRC(mediaServerId, null);
+            pool = poolMap.get(mediaServerId);
+        }
+        int sn = pool.allocate();
+        while (sn < 0) {
+            if (!refill(mediaServerId, pool)) {
+                throw new RuntimeException("ssrc已经用完");
+            }
+            sn = pool.allocate();
+        }
+        return formatSn(getSsrcPrefix(), sn);
+    }
+
+    /**
+     * 向redis租用一个新的块
+     * @return 是否有新的可用ssrc
+     */
+    private boolean refill(String mediaServerId, SsrcBitSet pool) {
+        synchronized (pool) {
+            if (pool.freeCount() > 0) {
+                return true;
+            }
+            String leaseKey = getLeaseKey(mediaServerId);
+            for (int block = 0; block < pool.blockCount(); block++) {
+                if (pool.isLeased(block)) {
+                    continue;
+                }
+                if (tryLease(leaseKey, block)) {
+                    pool.addBlock(block, 0L);
+                    log.debug("[SSRC] 租用ssrc块, 流媒体节点: {}, 块: {}", mediaServerId, block);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private boolean tryLease(String leaseKey, int block) {
+        String field = String.valueOf(block);
+        if (Boolean.TRUE.equals(redisTemplate.opsForHash().putIfAbsent(leaseKey, field, userSetting.getServerId()))) {
+            return true;
+        }
+        Object owner = redisTemplate.opsForHash().get(leaseKey, field);
+        if (owner == null) {
+            return Boolean.TRUE.equals(redisTemplate.opsForHash().putIfAbsent(leaseKey, field, userSetting.getServerId()));
+        }
+        // 持有者已经不在线时回收它的块
+        if (!userSetting.getServerId().equals(owner)
+                && !Boolean.TRUE.equals(redisTemplate.hasKey(VideoManagerConstants.WVP_SERVER_PREFIX + owner))) {
+            Long result = redisTemplate.execute(COMPARE_AND_SET_SCRIPT, Collections.singletonList(leaseKey),
+                    field, owner.toString(), userSetting.getServerId());
+            if (result != null && result == 1L) {
+                log.info("[SSRC] 回收离线服务{}持有的ssrc块: {}", owner, field);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void returnLease(String leaseKey, int block) {
+        redisTemplate.execute(COMPARE_AND_DELETE_SCRIPT, Collections.singletonList(leaseKey),
+                String.valueOf(block), userSetting.getServerId());
+    }
+
+    private static String formatSn(String prefix, int sn) {
+        char[] chars = new char[prefix.length() + 4];
+        prefix.getChars(0, prefix.length(), chars, 0);
+        for (int i = chars.length - 1; i >= prefix.length(); i--) {
+            chars[i] = (char) ('0' + sn % 10);
+            sn /= 10;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 从去掉首位的ssrc中解析SN, 前缀不属于本服务时返回-1
+     */
+    private static int parseSn(String prefix, String ssrcWithoutType) {
+        if (ssrcWithoutType.length() != prefix.length() + 4 || !ssrcWithoutType.startsWith(prefix)) {
+            return -1;
+        }
+        int sn = 0;
+        for (int i = prefix.length(); i < ssrcWithoutType.length(); i++) {
+            char c = ssrcWithoutType.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            sn = sn * 10 + (c - '0');
         }
+        return sn;
     }
 
     /**
@@ -115,8 +268,7 @@ public class SSRCFactory {
      * @param mediaServerId 流媒体服务ID
      */
     public boolean hasMediaServerSSRC(String mediaServerId) {
-        String redisKey = SSRC_INFO_KEY + userSetting.getServerId() + "_" + mediaServerId;
-        return Boolean.TRUE.equals(redisTemplate.hasKey(redisKey));
+        return poolMap.containsKey(mediaServerId);
     }
 
 }
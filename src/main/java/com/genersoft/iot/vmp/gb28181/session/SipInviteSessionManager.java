@@ -3,18 +3,32 @@ package com.genersoft.iot.vmp.gb28181.session;
 import com.genersoft.iot.vmp.common.VideoManagerConstants;
 import com.genersoft.iot.vmp.conf.UserSetting;
 import com.genersoft.iot.vmp.gb28181.bean.SsrcTransaction;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 视频流session管理器，管理视频预览、预览回放的通信句柄
+ * 除了按callId和stream存储外，还维护按设备和按通道的callId索引（redis set + 本地缓存），
+ * 索引与主数据在同一个MULTI事务中写入
  */
+@Slf4j
 @Component
-public class SipInviteSessionManager {
+@Order(value=1)
+public class SipInviteSessionManager implements CommandLineRunner {
 
 	@Autowired
 	private UserSetting userSetting;
@@ -22,49 +36,131 @@ public class SipInviteSessionManager {
 	@Autowired
 	private RedisTemplate<Object, Object> redisTemplate;
 
+	/**
+	 * 本地索引 deviceId -> callId
+	 */
+	private final Map<String, Set<String>> deviceIndex = new ConcurrentHashMap<>();
+
+	/**
+	 * 本地索引 channelId -> callId
+	 */
+	private final Map<Integer, Set<String>> channelIndex = new ConcurrentHashMap<>();
+
+	private volatile boolean indexReady = false;
+
+	/**
+	 * 启动时根据已有的session重建索引， 兼容升级前没有索引的数据
+	 */
+	@Override
+	public void run(String... args) {
+		List<SsrcTransaction> all = getAll();
+		for (SsrcTransaction ssrcTransaction : all) {
+			if (ssrcTransaction == null || ssrcTransaction.getCallId() == null) {
+				continue;
+			}
+			addLocalIndex(ssrcTransaction);
+			if (ssrcTransaction.getDeviceId() != null) {
+				redisTemplate.opsForSet().add(getDeviceIndexKey(ssrcTransaction.getDeviceId()), ssrcTransaction.getCallId());
+			}
+			if (ssrcTransaction.getChannelId() != null) {
+				redisTemplate.opsForSet().add(getChannelIndexKey(ssrcTransaction.getChannelId()), ssrcTransaction.getCallId());
+			}
+		}
+		indexReady = true;
+		log.info("[点播会话] 索引重建完成， 会话数： {}", all.size());
+	}
+
+	private String getCallIdKey() {
+		return VideoManagerConstants.SIP_INVITE_SESSION_CALL_ID + userSetting.getServerId();
+	}
+
+	private String getStreamKey() {
+		return VideoManagerConstants.SIP_INVITE_SESSION_STREAM + userSetting.getServerId();
+	}
+
+	private String getDeviceIndexKey(String deviceId) {
+		return VideoManagerConstants.SIP_INVITE_SESSION_DEVICE + userSetting.getServerId() + ":" + deviceId;
+	}
+
+	private String getChannelIndexKey(Integer channelId) {
+		return VideoManagerConstants.SIP_INVITE_SESSION_CHANNEL + userSetting.getServerId() + ":" + channelId;
+	}
+
 	/**
 	 * 添加一个点播/回放的事务信息
 	 */
 	public void put(SsrcTransaction ssrcTransaction){
-		redisTemplate.opsForHash().put(VideoManagerConstants.SIP_INVITE_SESSION_STREAM + userSetting.getServerId()
-				, ssrcTransaction.getStream(), ssrcTransaction);
-
-		redisTemplate.opsForHash().put(VideoManagerConstants.SIP_INVITE_SESSION_CALL_ID + userSetting.getServerId()
-				, ssrcTransaction.getCallId(), ssrcTransaction);
+		SsrcTransaction old = null;
+		if (ssrcTransaction.getCallId() != null) {
+			old = getSsrcTransactionByCallId(ssrcTransaction.getCallId());
+		}
+		SsrcTransaction oldTransaction = old;
+		redisTemplate.execute(new SessionCallback<Object>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+				RedisOperations<Object, Object> redisOperations = (RedisOperations<Object, Object>) operations;
+				redisOperations.multi();
+				if (oldTransaction != null) {
+					removeRedisIndex(redisOperations, oldTransaction);
+				}
+				redisOperations.opsForHash().put(getStreamKey(), ssrcTransaction.getStream(), ssrcTransaction);
+				redisOperations.opsForHash().put(getCallIdKey(), ssrcTransaction.getCallId(), ssrcTransaction);
+				if (ssrcTransaction.getDeviceId() != null) {
+					redisOperations.opsForSet().add(getDeviceIndexKey(ssrcTransaction.getDeviceId()), ssrcTransaction.getCallId());
+				}
+				if (ssrcTransaction.getChannelId() != null) {
+					redisOperations.opsForSet().add(getChannelIndexKey(ssrcTransaction.getChannelId()), ssrcTransaction.getCallId());
+				}
+				return redisOperations.exec();
+			}
+		});
+		if (oldTransaction != null) {
+			removeLocalIndex(oldTransaction);
+		}
+		addLocalIndex(ssrcTransaction);
 	}
 
 	public SsrcTransaction getSsrcTransactionByStream(String stream){
-		String key = VideoManagerConstants.SIP_INVITE_SESSION_STREAM + userSetting.getServerId();
-		return (SsrcTransaction)redisTemplate.opsForHash().get(key, stream);
+		return (SsrcTransaction)redisTemplate.opsForHash().get(getStreamKey(), stream);
 	}
 
 	public SsrcTransaction getSsrcTransactionByCallId(String callId){
-		String key = VideoManagerConstants.SIP_INVITE_SESSION_CALL_ID + userSetting.getServerId();
-		return (SsrcTransaction)redisTemplate.opsForHash().get(key, callId);
+		return (SsrcTransaction)redisTemplate.opsForHash().get(getCallIdKey(), callId);
 	}
 
 	public List<SsrcTransaction> getSsrcTransactionByDeviceId(String deviceId){
-		String key = VideoManagerConstants.SIP_INVITE_SESSION_CALL_ID + userSetting.getServerId();
-		List<Object> values = redisTemplate.opsForHash().values(key);
-		List<SsrcTransaction> result = new ArrayList<>();
-		for (Object value : values) {
-			SsrcTransaction ssrcTransaction = (SsrcTransaction) value;
-			if (ssrcTransaction != null && deviceId.equals(ssrcTransaction.getDeviceId())) {
-				result.add(ssrcTransaction);
-			}
+		if (deviceId == null) {
+			return new ArrayList<>();
 		}
-		return result;
+		Set<String> callIds;
+		if (indexReady) {
+			callIds = deviceIndex.get(deviceId);
+		}else {
+			callIds = getRedisIndex(getDeviceIndexKey(deviceId));
+		}
+		return getByCallIds(callIds);
 	}
-	
+
+	public List<SsrcTransaction> getSsrcTransactionByChannelId(Integer channelId){
+		if (channelId == null) {
+			return new ArrayList<>();
+		}
+		Set<String> callIds;
+		if (indexReady) {
+			callIds = channelIndex.get(channelId);
+		}else {
+			callIds = getRedisIndex(getChannelIndexKey(channelId));
+		}
+		return getByCallIds(callIds);
+	}
+
 	public void removeByStream(String stream) {
 		SsrcTransaction ssrcTransaction = getSsrcTransactionByStream(stream);
 		if (ssrcTransaction == null ) {
 			return;
 		}
-		redisTemplate.opsForHash().delete(VideoManagerConstants.SIP_INVITE_SESSION_STREAM + userSetting.getServerId(), stream);
-		if (ssrcTransaction.getCallId() != null) {
-			redisTemplate.opsForHash().delete(VideoManagerConstants.SIP_INVITE_SESSION_CALL_ID + userSetting.getServerId(), ssrcTransaction.getCallId());
-		}
+		remove(ssrcTransaction);
 	}
 
 	public void removeByCallId(String callId) {
@@ -72,19 +168,116 @@ public class SipInviteSessionManager {
 		if (ssrcTransaction == null ) {
 			return;
 		}
-		redisTemplate.opsForHash().delete(VideoManagerConstants.SIP_INVITE_SESSION_CALL_ID + userSetting.getServerId(), callId);
-		if (ssrcTransaction.getStream() != null) {
-			redisTemplate.opsForHash().delete(VideoManagerConstants.SIP_INVITE_SESSION_STREAM + userSetting.getServerId(), ssrcTransaction.getStream());
-		}
+		remove(ssrcTransaction);
 	}
 
 	public List<SsrcTransaction> getAll() {
-		String key = VideoManagerConstants.SIP_INVITE_SESSION_CALL_ID + userSetting.getServerId();
-		List<Object> values = redisTemplate.opsForHash().values(key);
+		List<Object> values = redisTemplate.opsForHash().values(getCallIdKey());
 		List<SsrcTransaction> result = new ArrayList<>();
 		for (Object value : values) {
 			result.add((SsrcTransaction) value);
 		}
 		return result;
 	}
+
+	private void remove(SsrcTransaction ssrcTransaction) {
+		redisTemplate.execute(new SessionCallback<Object>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+				RedisOperations<Object, Object> redisOperations = (RedisOperations<Object, Object>) operations;
+				redisOperations.multi();
+				removeRedisIndex(redisOperations, ssrcTransaction);
+				if (ssrcTransaction.getStream() != null) {
+					redisOperations.opsForHash().delete(getStreamKey(), ssrcTransaction.getStream());
+				}
+				if (ssrcTransaction.getCallId() != null) {
+					redisOperations.opsForHash().delete(getCallIdKey(), ssrcTransaction.getCallId());
+				}
+				return redisOperations.exec();
+			}
+		});
+		removeLocalIndex(ssrcTransaction);
+	}
+
+	private void removeRedisIndex(RedisOperations<Object, Object> redisOperations, SsrcTransaction ssrcTransaction) {
+		if (ssrcTransaction.getCallId() == null) {
+			return;
+		}
+		if (ssrcTransaction.getDeviceId() != null) {
+			redisOperations.opsForSet().remove(getDeviceIndexKey(ssrcTransaction.getDeviceId()), ssrcTransaction.getCallId());
+		}
+		if (ssrcTransaction.getChannelId() != null) {
+			redisOperations.opsForSet().remove(getChannelIndexKey(ssrcTransaction.getChannelId()), ssrcTransaction.getCallId());
+		}
+	}
+
+	private void addLocalIndex(SsrcTransaction ssrcTransaction) {
+		if (ssrcTransaction.getCallId() == null) {
+			return;
+		}
+		// 在compute内添加， 避免与removeLocalIndex并发时加入已被移除的集合
+		if (ssrcTransaction.getDeviceId() != null) {
+			deviceIndex.compute(ssrcTransaction.getDeviceId(), (key, callIds) -> {
+				if (callIds == null) {
+					callIds = ConcurrentHashMap.newKeySet();
+				}
+				callIds.add(ssrcTransaction.getCallId());
+				return callIds;
+			});
+		}
+		if (ssrcTransaction.getChannelId() != null) {
+			channelIndex.compute(ssrcTransaction.getChannelId(), (key, callIds) -> {
+				if (callIds == null) {
+					callIds = ConcurrentHashMap.newKeySet();
+				}
+				callIds.add(ssrcTransaction.getCallId());
+				return callIds;
+			});
+		}
+	}
+
+	private void removeLocalIndex(SsrcTransaction ssrcTransaction) {
+		if (ssrcTransaction.getCallId() == null) {
+			return;
+		}
+		if (ssrcTransaction.getDeviceId() != null) {
+			deviceIndex.computeIfPresent(ssrcTransaction.getDeviceId(), (key, callIds) -> {
+				callIds.remove(ssrcTransaction.getCallId());
+				return callIds.isEmpty() ? null : callIds;
+			});
+		}
+		if (ssrcTransaction.getChannelId() != null) {
+			channelIndex.computeIfPresent(ssrcTransaction.getChannelId(), (key, callIds) -> {
+				callIds.remove(ssrcTransaction.getCallId());
+				return callIds.isEmpty() ? null : callIds;
+			});
+		}
+	}
+
+	private Set<String> getRedisIndex(String key) {
+		Set<Object> members = redisTemplate.opsForSet().members(key);
+		if (members == null || members.isEmpty()) {
+			return null;
+		}
+		Set<String> result = ConcurrentHashMap.newKeySet();
+		for (Object member : members) {
+			result.add(member.toString());
+		}
+		return result;
+	}
+
+	private List<SsrcTransaction> getByCallIds(Collection<String> callIds) {
+		List<SsrcTransaction> result = new ArrayList<>();
+		if (callIds == null || callIds.isEmpty()) {
+			return result;
+		}
+		List<Object> values = redisTemplate.opsForHash().multiGet(getCallIdKey(), new ArrayList<>(callIds));
+		for (Object value : values) {
+			if (value != null) {
+				result.add((SsrcTransaction) value);
+			}
+		}
+		return result;
+	}
 }
@@ -0,0 +1,148 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 单个流媒体节点的本地空闲ssrc位图
+ * 每一位代表一个SN(0-9999)，1表示空闲。以64个SN（一个long）为一个块，块是向redis租用的最小单位。
+ * 分配和释放都通过CAS完成，不加锁
+ */
+class SsrcBitSet {
+
+    static final int BLOCK_SIZE = Long.SIZE;
+
+    private final int maxSn;
+
+    /**
+     * 空闲位图
+     */
+    private final AtomicLongArray free;
+
+    /**
+     * 已经租用的块, 1表示本节点持有
+     */
+    private final AtomicLongArray leased;
+
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    /**
+     * @param maxSn 最大SN(不包含)， SN 0 不使用
+     */
+    SsrcBitSet(int maxSn) {
+        this.maxSn = maxSn;
+        int blockCount = (maxSn + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.free = new AtomicLongArray(blockCount);
+        this.leased = new AtomicLongArray(blockCount);
+    }
+
+    int blockCount() {
+        return free.length();
+    }
+
+    int freeCount() {
+        return freeCount.get();
+    }
+
+    int leasedCount() {
+        int count = 0;
+        for (int i = 0; i < leased.length(); i++) {
+            if (leased.get(i) == 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    boolean isLeased(int block) {
+        return leased.get(block) == 1;
+    }
+
+    /**
+     * 块内全部可用SN的掩码
+     */
+    long blockMask(int block) {
+        long mask = -1L;
+        if (block == 0) {
+            // SN 0 不使用
+            mask &= ~1L;
+        }
+        int remain = maxSn - block * BLOCK_SIZE;
+        if (remain < BLOCK_SIZE) {
+            mask &= (1L << remain) - 1;
+        }
+        return mask;
+    }
+
+    /**
+     * 加入新租到的块
+     * @param usedMask 块内已被占用的SN
+     */
+    void addBlock(int block, long usedMask) {
+        long mask = blockMask(block) & ~usedMask;
+        leased.set(block, 1);
+        free.set(block, mask);
+        freeCount.addAndGet(Long.bitCount(mask));
+    }
+
+    /**
+     * 分配一个空闲SN
+     * @return SN， 没有空闲时返回-1
+     */
+    int allocate() {
+        int blockCount = free.length();
+        int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % blockCount;
+        for (int i = 0; i < blockCount; i++) {
+            int block = (start + i) % blockCount;
+            long value;
+            while ((value = free.get(block)) != 0) {
+                long bit = Long.lowestOneBit(value);
+                if (free.compareAndSet(block, value, value & ~bit)) {
+                    freeCount.decrementAndGet();
+                    return block * BLOCK_SIZE + Long.numberOfTrailingZeros(bit);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 释放一个SN
+     * @return 所属的块是否已经全部空闲
+     */
+    boolean release(int sn) {
+        if (sn <= 0 || sn >= maxSn) {
+            return false;
+        }
+        int block = sn / BLOCK_SIZE;
+        if (!isLeased(block)) {
+            return false;
+        }
+        long bit = 1L << (sn % BLOCK_SIZE);
+        long value;
+        do {
+            value = free.get(block);
+            if ((value & bit) != 0) {
+                // 重复释放
+                return false;
+            }
+        } while (!free.compareAndSet(block, value, value | bit));
+        freeCount.incrementAndGet();
+        return (value | bit) == blockMask(block);
+    }
+
+    /**
+     * 归还一个完全空闲的块，块内有SN被占用时失败
+     */
+    boolean removeBlock(int block) {
+        long mask = blockMask(block);
+        if (!free.compareAndSet(block, mask, 0)) {
+            return false;
+        }
+        leased.set(block, 0);
+        freeCount.addAndGet(-Long.bitCount(mask));
+        return true;
+    }
+}
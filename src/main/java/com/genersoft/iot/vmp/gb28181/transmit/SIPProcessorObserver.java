@@ -94,15 +94,15 @@ public class SIPProcessorObserver implements ISIPProcessorObserver {
         // Success
         if (((status >= Response.OK) && (status < Response.MULTIPLE_CHOICES)) || status == Response.UNAUTHORIZED) {
             if (status != Response.UNAUTHORIZED && responseEvent.getResponse() != null && !sipSubscribe.isEmpty() ) {
-                CallIdHeader callIdHeader = response.getCallIdHeader();
-                if (callIdHeader != null) {
-                    SipEvent sipEvent = sipSubscribe.getSubscribe(callIdHeader.getCallId());
+                String key = getSubscribeKey(response);
+                if (key != null) {
+                    SipEvent sipEvent = sipSubscribe.getSubscribe(key);
                     if (sipEvent != null) {
                         if (sipEvent.getOkEvent() != null) {
                             SipSubscribe.EventResult<ResponseEvent> eventResult = new SipSubscribe.EventResult<>(responseEvent);
                             sipEvent.getOkEvent().response(eventResult);
                         }
-                        sipSubscribe.removeSubscribe(callIdHeader.getCallId());
+                        sipSubscribe.removeSubscribe(key);
                     }
                 }
             }
@@ -117,15 +117,15 @@ public class SIPProcessorObserver implements ISIPProcessorObserver {
         } else {
             log.warn("接收到失败的response响应！status：" + status + ",message:" + response.getReasonPhrase());
             if (responseEvent.getResponse() != null && !sipSubscribe.isEmpty() ) {
-                CallIdHeader callIdHeader = (CallIdHeader)responseEvent.getResponse().getHeader(CallIdHeader.NAME);
-                if (callIdHeader != null) {
-                    SipEvent sipEvent = sipSubscribe.getSubscribe(callIdHeader.getCallId());
+                String key = getSubscribeKey(response);
+                if (key != null) {
+                    SipEvent sipEvent = sipSubscribe.getSubscribe(key);
                     if (sipEvent != null ) {
                         if (sipEvent.getErrorEvent() != null) {
                             SipSubscribe.EventResult<ResponseEvent> eventResult = new SipSubscribe.EventResult<>(responseEvent);
                             sipEvent.getErrorEvent().response(eventResult);
                         }
-                        sipSubscribe.removeSubscribe(callIdHeader.getCallId());
+                        sipSubscribe.removeSubscribe(key);
                     }
                 }
             }
@@ -137,6 +137,24 @@ public class SIPProcessorObserver implements ISIPProcessorObserver {
 
     }
 
+    /**
+     * 回调的key，按事务注册的优先，否则使用callId
+     */
+    private String getSubscribeKey(SIPResponse response) {
+        CallIdHeader callIdHeader = response.getCallIdHeader();
+        if (callIdHeader == null) {
+            return null;
+        }
+        if (response.getCSeqHeader() != null) {
+            String key = SipSubscribe.getTransactionKey(callIdHeader.getCallId(), response.getCSeqHeader().getSeqNumber(),
+                    response.getCSeqHeader().getMethod());
+            if (sipSubscribe.getSubscribe(key) != null) {
+                return key;
+            }
+        }
+        return callIdHeader.getCallId();
+    }
+
     /**
      * 向超时订阅发送消息
      * @param timeoutEvent timeoutEvent事件
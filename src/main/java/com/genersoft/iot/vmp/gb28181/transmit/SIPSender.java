@@ -7,6 +7,7 @@ import com.genersoft.iot.vmp.gb28181.event.sip.SipEvent;
 import com.genersoft.iot.vmp.gb28181.utils.SipUtils;
 import com.genersoft.iot.vmp.utils.GitUtil;
 import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.message.SIPRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -54,6 +55,24 @@ public class SIPSender {
     }
 
     public void transmitRequest(String ip, Message message, SipSubscribe.Event errorEvent, SipSubscribe.Event okEvent, Long timeout) throws SipException {
+        String key = null;
+        if (okEvent != null || errorEvent != null) {
+            CallIdHeader callIdHeader = (CallIdHeader) message.getHeader(CallIdHeader.NAME);
+            key = callIdHeader.getCallId();
+        }
+        transmitRequest(ip, message, key, errorEvent, okEvent, timeout);
+    }
+
+    /**
+     * 发送请求，回调按 callId+CSeq 注册，用于同一会话中连续发送并且需要逐条确认的请求，例如订阅的NOTIFY
+     */
+    public void transmitRequestForTransaction(String ip, SIPRequest request, SipSubscribe.Event errorEvent, SipSubscribe.Event okEvent) throws SipException {
+        String key = SipSubscribe.getTransactionKey(request.getCallId().getCallId(), request.getCSeq().getSeqNumber(),
+                request.getCSeq().getMethod());
+        transmitRequest(ip, request, key, errorEvent, okEvent, null);
+    }
+
+    private void transmitRequest(String ip, Message message, String key, SipSubscribe.Event errorEvent, SipSubscribe.Event okEvent, Long timeout) throws SipException {
         ViaHeader viaHeader = (ViaHeader) message.getHeader(ViaHeader.NAME);
         String transport = "UDP";
         if (viaHeader == null) {
@@ -69,20 +88,19 @@ public class SIPSender {
             }
         }
 
-        if (okEvent != null || errorEvent != null) {
-            CallIdHeader callIdHeader = (CallIdHeader) message.getHeader(CallIdHeader.NAME);
-            SipEvent sipEvent = SipEvent.getInstance(callIdHeader.getCallId(), eventResult -> {
-                sipSubscribe.removeSubscribe(callIdHeader.getCallId());
+        if (key != null) {
+            SipEvent sipEvent = SipEvent.getInstance(key, eventResult -> {
+                sipSubscribe.removeSubscribe(key);
                 if(okEvent != null) {
                     okEvent.response(eventResult);
                 }
             }, (eventResult -> {
-                sipSubscribe.removeSubscribe(callIdHeader.getCallId());
+                sipSubscribe.removeSubscribe(key);
                 if (errorEvent != null) {
                     errorEvent.response(eventResult);
                 }
             }), timeout == null ? sipConfig.getTimeout() : timeout);
-            sipSubscribe.addSubscribe(callIdHeader.getCallId(), sipEvent);
+            sipSubscribe.addSubscribe(key, sipEvent);
         }
 
         if ("TCP".equals(transport)) {
@@ -256,6 +256,11 @@ public interface ISIPCommander {
 	 * @return 
 	 */
 	void deviceInfoQuery(Device device) throws InvalidArgumentException, SipException, ParseException;
+
+	/**
+	 * 查询设备信息，设备回复或失败时回调
+	 */
+	void deviceInfoQuery(Device device, SipSubscribe.Event errorEvent, SipSubscribe.Event okEvent) throws InvalidArgumentException, SipException, ParseException;
 	
 	/**
 	 * 查询目录列表
@@ -61,9 +61,6 @@ public interface ISIPCommanderForPlatform {
     void catalogQuery(CommonGBChannel channel, Platform parentPlatform, String sn, String fromTag, int size)
             throws SipException, InvalidArgumentException, ParseException;
 
-    void catalogQuery(List<CommonGBChannel> channels, Platform parentPlatform, String sn, String fromTag)
-            throws InvalidArgumentException, ParseException, SipException;
-
     /**
      * 向上级回复DeviceInfo查询信息
      *
@@ -95,6 +92,14 @@ public interface ISIPCommanderForPlatform {
     void sendNotifyMobilePosition(Platform parentPlatform, GPSMsgInfo gpsMsgInfo, CommonGBChannel channel, SubscribeInfo subscribeInfo)
             throws InvalidArgumentException, ParseException, NoSuchFieldException, SipException, IllegalAccessException;
 
+    /**
+     * 向上级回复移动位置订阅消息， 由调用方处理结果
+     * 回调按 callId+CSeq 注册， 同一订阅的每条NOTIFY各自确认
+     */
+    void sendNotifyMobilePosition(Platform parentPlatform, GPSMsgInfo gpsMsgInfo, CommonGBChannel channel, SubscribeInfo subscribeInfo,
+                                  SipSubscribe.Event errorEvent, SipSubscribe.Event okEvent)
+            throws InvalidArgumentException, ParseException, SipException;
+
     /**
      * 向上级回复报警消息
      *
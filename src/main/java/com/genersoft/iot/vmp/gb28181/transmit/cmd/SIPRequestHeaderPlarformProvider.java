@@ -174,6 +174,17 @@ public class SIPRequestHeaderPlarformProvider {
 
 
 	public Request createMessageRequest(Platform parentPlatform, String content, String fromTag, String viaTag, String toTag, CallIdHeader callIdHeader) throws PeerUnavailableException, ParseException, InvalidArgumentException {
+		return buildMessageRequest(parentPlatform, content, fromTag, viaTag, toTag, callIdHeader);
+	}
+
+	/**
+	 * 消息体已经按平台编码转换为字节
+	 */
+	public Request createMessageRequest(Platform parentPlatform, byte[] content, String fromTag, String viaTag, CallIdHeader callIdHeader) throws PeerUnavailableException, ParseException, InvalidArgumentException {
+		return buildMessageRequest(parentPlatform, content, fromTag, viaTag, null, callIdHeader);
+	}
+
+	private Request buildMessageRequest(Platform parentPlatform, Object content, String fromTag, String viaTag, String toTag, CallIdHeader callIdHeader) throws PeerUnavailableException, ParseException, InvalidArgumentException {
 		Request request = null;
 		String serverAddress = parentPlatform.getServerIp()+ ":" + parentPlatform.getServerPort();
 		// sipuri
@@ -946,6 +946,11 @@ public class SIPCommander implements ISIPCommander {
      */
     @Override
     public void deviceInfoQuery(Device device) throws InvalidArgumentException, SipException, ParseException {
+        deviceInfoQuery(device, null, null);
+    }
+
+    @Override
+    public void deviceInfoQuery(Device device, SipSubscribe.Event errorEvent, SipSubscribe.Event okEvent) throws InvalidArgumentException, SipException, ParseException {
 
         StringBuffer catalogXml = new StringBuffer(200);
         String charset = device.getCharset();
@@ -960,7 +965,7 @@ public class SIPCommander implements ISIPCommander {
 
         Request request = headerProvider.createMessageRequest(device, catalogXml.toString(), SipUtils.getNewViaTag(), SipUtils.getNewFromTag(), null,sipSender.getNewCallIdHeader(sipLayer.getLocalIp(device.getLocalIp()),device.getTransport()));
 
-        sipSender.transmitRequest(sipLayer.getLocalIp(device.getLocalIp()), request);
+        sipSender.transmitRequest(sipLayer.getLocalIp(device.getLocalIp()), request, errorEvent, okEvent);
 
     }
 
@@ -2,7 +2,6 @@ package com.genersoft.iot.vmp.gb28181.transmit.cmd.impl;
 
 import com.alibaba.fastjson2.JSON;
 import com.genersoft.iot.vmp.common.InviteSessionType;
-import com.genersoft.iot.vmp.conf.DynamicTask;
 import com.genersoft.iot.vmp.conf.UserSetting;
 import com.genersoft.iot.vmp.conf.exception.SsrcTransactionNotFoundException;
 import com.genersoft.iot.vmp.gb28181.SipLayer;
@@ -78,9 +77,6 @@ public class SIPCommanderForPlatform implements ISIPCommanderForPlatform {
     @Autowired
     private SipInviteSessionManager sessionManager;
 
-    @Autowired
-    private DynamicTask dynamicTask;
-
     @Autowired
     private GitUtil gitUtil;
 
@@ -193,13 +189,6 @@ public class SIPCommanderForPlatform implements ISIPCommanderForPlatform {
 
     }
 
-    @Override
-    public void catalogQuery(List<CommonGBChannel> channels, Platform parentPlatform, String sn, String fromTag) throws InvalidArgumentException, ParseException, SipException {
-        if ( parentPlatform ==null) {
-            return ;
-        }
-        sendCatalogResponse(channels, parentPlatform, sn, fromTag, 0, true);
-    }
     private String getCatalogXml(List<CommonGBChannel> channels, String sn, Platform platform, int size) {
         String characterSet = platform.getCharacterSet();
         StringBuffer catalogXml = new StringBuffer(600);
@@ -221,72 +210,6 @@ public class SIPCommanderForPlatform implements ISIPCommanderForPlatform {
         return catalogXml.toString();
     }
 
-    private void sendCatalogResponse(List<CommonGBChannel> channels, Platform parentPlatform, String sn, String fromTag, int index, boolean sendAfterResponse) throws SipException, InvalidArgumentException, ParseException {
-        if (index > channels.size()) {
-            return;
-        }
-        List<CommonGBChannel> deviceChannels;
-        if (index + parentPlatform.getCatalogGroup() < channels.size()) {
-            deviceChannels = channels.subList(index, index + parentPlatform.getCatalogGroup());
-        }else {
-            deviceChannels = channels.subList(index, channels.size());
-        }
-        if(deviceChannels.isEmpty()) {
-            return;
-        }
-        String catalogXml = getCatalogXml(deviceChannels, sn, parentPlatform, channels.size());
-        // callid
-        CallIdHeader callIdHeader = sipSender.getNewCallIdHeader(parentPlatform.getDeviceIp(),parentPlatform.getTransport());
-
-        SIPRequest request = (SIPRequest)headerProviderPlatformProvider.createMessageRequest(parentPlatform, catalogXml, fromTag, SipUtils.getNewViaTag(), callIdHeader);
-
-        String timeoutTaskKey = "catalog_task_" + parentPlatform.getServerGBId() + sn;
-
-        String callId = request.getCallIdHeader().getCallId();
-
-        log.info("[命令发送] 国标级联{} 目录查询回复: 共{}条，已发送{}条", parentPlatform.getServerGBId(),
-                channels.size(), Math.min(index + parentPlatform.getCatalogGroup(), channels.size()));
-        log.debug(catalogXml);
-        if (sendAfterResponse) {
-            // 默认按照收到200回复后发送下一条， 如果超时收不到回复，就以30毫秒的间隔直接发送。
-            sipSender.transmitRequest(parentPlatform.getDeviceIp(), request, eventResult -> {
-                if (eventResult.type.equals(SipSubscribe.EventResultType.timeout)) {
-                    // 消息发送超时, 以30毫秒的间隔直接发送
-                    int indexNext = index + parentPlatform.getCatalogGroup();
-                    try {
-                        sendCatalogResponse(channels, parentPlatform, sn, fromTag, indexNext, false);
-                    } catch (SipException | InvalidArgumentException | ParseException e) {
-                        log.error("[命令发送失败] 国标级联 目录查询回复: {}", e.getMessage());
-                    }
-                    return;
-                }
-                log.error("[目录推送失败] 国标级联 platform : {}, code: {}, msg: {}, 停止发送", parentPlatform.getServerGBId(), eventResult.statusCode, eventResult.msg);
-                dynamicTask.stop(timeoutTaskKey);
-            }, eventResult -> {
-                dynamicTask.stop(timeoutTaskKey);
-                int indexNext = index + parentPlatform.getCatalogGroup();
-                try {
-                    sendCatalogResponse(channels, parentPlatform, sn, fromTag, indexNext, true);
-                } catch (SipException | InvalidArgumentException | ParseException e) {
-                    log.error("[命令发送失败] 国标级联 目录查询回复: {}", e.getMessage());
-                }
-            });
-        }else {
-            sipSender.transmitRequest(parentPlatform.getDeviceIp(), request, eventResult -> {
-                log.error("[目录推送失败] 国标级联 platform : {}, code: {}, msg: {}, 停止发送", parentPlatform.getServerGBId(), eventResult.statusCode, eventResult.msg);
-                dynamicTask.stop(timeoutTaskKey);
-            }, null);
-            dynamicTask.startDelay(timeoutTaskKey, ()->{
-                int indexNext = index + parentPlatform.getCatalogGroup();
-                try {
-                    sendCatalogResponse(channels, parentPlatform, sn, fromTag, indexNext, false);
-                } catch (SipException | InvalidArgumentException | ParseException e) {
-                    log.error("[命令发送失败] 国标级联 目录查询回复: {}", e.getMessage());
-                }
-            }, 100);
-        }
-    }
-
     /**
      * 向上级回复DeviceInfo查询信息
      * @param parentPlatform 平台信息
@@ -358,6 +281,14 @@ public class SIPCommanderForPlatform implements ISIPCommanderForPlatform {
 
     @Override
     public void sendNotifyMobilePosition(Platform parentPlatform, GPSMsgInfo gpsMsgInfo, CommonGBChannel channel, SubscribeInfo subscribeInfo) throws InvalidArgumentException, ParseException, NoSuchFieldException, SipException, IllegalAccessException {
+        sendNotifyMobilePosition(parentPlatform, gpsMsgInfo, channel, subscribeInfo, eventResult -> {
+            log.error("发送NOTIFY通知消息失败。错误：{} {}", eventResult.statusCode, eventResult.msg);
+        }, null);
+    }
+
+    @Override
+    public void sendNotifyMobilePosition(Platform parentPlatform, GPSMsgInfo gpsMsgInfo, CommonGBChannel channel, SubscribeInfo subscribeInfo,
+                                         SipSubscribe.Event errorEvent, SipSubscribe.Event okEvent) throws InvalidArgumentException, ParseException, SipException {
         if (parentPlatform == null) {
             return;
         }
@@ -380,10 +311,12 @@ public class SIPCommanderForPlatform implements ISIPCommanderForPlatform {
                 .append("<Altitude>" + gpsMsgInfo.getAltitude() + "</Altitude>\r\n")
                 .append("</Notify>\r\n");
 
-       sendNotify(parentPlatform, deviceStatusXml.toString(), subscribeInfo, eventResult -> {
-            log.error("发送NOTIFY通知消息失败。错误：{} {}", eventResult.statusCode, eventResult.msg);
-        }, null);
-
+        MessageFactoryImpl messageFactory = (MessageFactoryImpl) SipFactory.getInstance().createMessageFactory();
+        // 设置编码， 防止中文乱码
+        messageFactory.setDefaultContentEncodingCharset(characterSet);
+        SIPRequest notifyRequest = headerProviderPlatformProvider.createNotifyRequest(parentPlatform, deviceStatusXml.toString(), subscribeInfo);
+        // 同一订阅的NOTIFY共用callId，按事务注册回调，每条消息各自确认
+        sipSender.transmitRequestForTransaction(parentPlatform.getDeviceIp(), notifyRequest, errorEvent, okEvent);
     }
 
     @Override
@@ -2,8 +2,8 @@ package com.genersoft.iot.vmp.gb28181.transmit.event.request;
 
 import com.genersoft.iot.vmp.gb28181.bean.Platform;
 import com.genersoft.iot.vmp.gb28181.transmit.SIPSender;
+import com.genersoft.iot.vmp.gb28181.utils.FlatXmlScanner;
 import com.genersoft.iot.vmp.gb28181.utils.SipUtils;
-import com.google.common.primitives.Bytes;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
 import lombok.extern.slf4j.Slf4j;
@@ -12,7 +12,6 @@ import org.dom4j.DocumentException;
 import org.dom4j.Element;
 import org.dom4j.io.SAXReader;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.util.ObjectUtils;
 
 import javax.sip.*;
 import javax.sip.address.Address;
@@ -24,10 +23,9 @@ import javax.sip.message.MessageFactory;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
 import java.text.ParseException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 /**    
  * @description:处理接收IPCamera发来的SIP协议请求消息
@@ -166,6 +164,24 @@ public abstract class SIPRequestProcessorParent {
 		return responseAck(request, Response.OK, null, responseAckExtraParam);
 	}
 
+	/**
+	 * 同一个请求的解析结果， 保存在请求的applicationData里，同一请求的后续处理不再重复解析
+	 */
+	private static class ParsedContent {
+		private final String charset;
+		private final Element rootElement;
+
+		private ParsedContent(String charset, Element rootElement) {
+			this.charset = charset;
+			this.rootElement = rootElement;
+		}
+	}
+
+	private static final ThreadLocal<SAXReader> saxReader = ThreadLocal.withInitial(SAXReader::new);
+
+	private static final byte[][] escapeArray = new byte[][]{"&lt;".getBytes(), "&gt;".getBytes(), "&amp;".getBytes(),
+			"&apos;".getBytes(), "&quot;".getBytes()};
+
 	public Element getRootElement(RequestEvent evt) throws DocumentException {
 		return getRootElement(evt, "gb2312");
 	}
@@ -174,39 +190,50 @@ public abstract class SIPRequestProcessorParent {
 		byte[] rawContent = evt.getRequest().getRawContent();
 		if (evt.getRequest().getContentLength().getContentLength() == 0
 				|| rawContent == null
-				|| rawContent.length == 0
-				|| ObjectUtils.isEmpty(new String(rawContent))) {
+				|| isBlank(rawContent)) {
 			return null;
 		}
 
 		if (charset == null) {
 			charset = "gb2312";
 		}
-		SAXReader reader = new SAXReader();
-		reader.setEncoding(charset);
-		// 对海康出现的未转义字符做处理。
-		String[] destStrArray = new String[]{"&lt;","&gt;","&amp;","&apos;","&quot;"};
-		// 或许可扩展兼容其他字符
-		char despChar = '&';
-		byte destBye = (byte) despChar;
-		List<Byte> result = new ArrayList<>();
-		for (int i = 0; i < rawContent.length; i++) {
-			if (rawContent[i] == destBye) {
-				boolean resul = false;
-				for (String destStr : destStrArray) {
-					if (i + destStr.length() <= rawContent.length) {
-						byte[] bytes = Arrays.copyOfRange(rawContent, i, i + destStr.length());
-						resul = resul || (Arrays.equals(bytes,destStr.getBytes()));
-					}
-				}
-				if (resul) {
-					result.add(rawContent[i]);
-				}
-			}else {
-				result.add(rawContent[i]);
+		SIPRequest sipRequest = evt.getRequest() instanceof SIPRequest ? (SIPRequest) evt.getRequest() : null;
+		if (sipRequest != null && sipRequest.getApplicationData() instanceof ParsedContent) {
+			ParsedContent parsedContent = (ParsedContent) sipRequest.getApplicationData();
+			if (parsedContent.charset.equalsIgnoreCase(charset)) {
+				return parsedContent.rootElement;
+			}
+		}
+		Element rootElement = parse(rawContent, charset);
+		if (sipRequest != null) {
+			sipRequest.setApplicationData(new ParsedContent(charset, rootElement));
+		}
+		return rootElement;
+	}
+
+	private boolean isBlank(byte[] content) {
+		for (byte b : content) {
+			if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+				return false;
 			}
 		}
-		byte[] bytesResult = Bytes.toArray(result);
+		return true;
+	}
+
+	private Element parse(byte[] rawContent, String charset) throws DocumentException {
+		// 心跳、位置通知等只有一层子节点的消息直接扫描
+		try {
+			Element element = FlatXmlScanner.scan(rawContent, Charset.forName(charset));
+			if (element != null) {
+				return element;
+			}
+		}catch (IllegalArgumentException ignored) {
+			// 不支持的字符集交给SAX处理
+		}
+		SAXReader reader = saxReader.get();
+		reader.setEncoding(charset);
+		// 对海康出现的未转义字符做处理。
+		byte[] bytesResult = removeUnescapedAmpersand(rawContent);
 
 		Document xml;
 		try {
@@ -229,5 +256,46 @@ public abstract class SIPRequestProcessorParent {
 		return xml.getRootElement();
 	}
 
+	/**
+	 * 去掉不是实体引用开头的'&'， 没有需要去掉的字符时直接返回原数组
+	 */
+	private byte[] removeUnescapedAmpersand(byte[] rawContent) {
+		byte[] result = null;
+		int length = 0;
+		for (int i = 0; i < rawContent.length; i++) {
+			if (rawContent[i] == '&' && !isEscape(rawContent, i)) {
+				if (result == null) {
+					result = new byte[rawContent.length];
+					System.arraycopy(rawContent, 0, result, 0, i);
+					length = i;
+				}
+				continue;
+			}
+			if (result != null) {
+				result[length++] = rawContent[i];
+			}
+		}
+		return result == null ? rawContent : Arrays.copyOf(result, length);
+	}
+
+	private boolean isEscape(byte[] content, int index) {
+		for (byte[] escape : escapeArray) {
+			if (index + escape.length > content.length) {
+				continue;
+			}
+			boolean match = true;
+			for (int i = 1; i < escape.length; i++) {
+				if (content[index + i] != escape[i]) {
+					match = false;
+					break;
+				}
+			}
+			if (match) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 
 }
@@ -104,7 +104,7 @@ public class NotifyRequestForMobilePositionProcessor extends SIPRequestProcessor
 					switch (element.getName()){
 						case "DeviceID":
 							String channelId = element.getStringValue();
-							deviceChannel = deviceChannelService.getOne(device.getDeviceId(), channelId);
+							deviceChannel = deviceChannelService.getOneWithCache(device.getDeviceId(), channelId);
 							if (deviceChannel != null) {
 								mobilePosition.setChannelId(deviceChannel.getId());
 							}else {
@@ -104,7 +104,8 @@ public class MessageRequestProcessor extends SIPRequestProcessorParent implement
             }else {
                 Element rootElement;
                 try {
-                    rootElement = getRootElement(evt);
+                    // 按设备的字符集解析一次，后续处理类使用相同字符集时直接复用解析结果
+                    rootElement = getRootElement(evt, device != null ? device.getCharset() : null);
                     if (rootElement == null) {
                         log.error("处理MESSAGE请求  未获取到消息体{}", evt.getRequest());
                         responseAck(request, Response.BAD_REQUEST, "content is null");
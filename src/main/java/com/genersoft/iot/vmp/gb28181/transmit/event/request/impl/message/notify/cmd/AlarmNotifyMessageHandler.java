@@ -145,7 +145,7 @@ public class AlarmNotifyMessageHandler extends SIPRequestProcessorParent impleme
                 }
 
                 if (!ObjectUtils.isEmpty(deviceAlarm.getAlarmMethod()) && deviceAlarm.getAlarmMethod().contains(DeviceAlarmMethod.GPS.getVal() + "")) {
-                    DeviceChannel deviceChannel = deviceChannelService.getOne(device.getDeviceId(), channelId);
+                    DeviceChannel deviceChannel = deviceChannelService.getOneWithCache(device.getDeviceId(), channelId);
                     if (deviceChannel == null) {
                         log.warn("[解析报警消息] 未找到通道：{}/{}", device.getDeviceId(), channelId);
                     } else {
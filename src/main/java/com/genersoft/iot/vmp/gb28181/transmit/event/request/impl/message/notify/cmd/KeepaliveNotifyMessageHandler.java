@@ -4,6 +4,7 @@ import com.genersoft.iot.vmp.common.VideoManagerConstants;
 import com.genersoft.iot.vmp.conf.DynamicTask;
 import com.genersoft.iot.vmp.conf.UserSetting;
 import com.genersoft.iot.vmp.gb28181.bean.*;
+import com.genersoft.iot.vmp.gb28181.session.DeviceKeepaliveManager;
 import com.genersoft.iot.vmp.gb28181.transmit.event.request.SIPRequestProcessorParent;
 import com.genersoft.iot.vmp.gb28181.transmit.event.request.impl.message.IMessageHandler;
 import com.genersoft.iot.vmp.gb28181.transmit.event.request.impl.message.notify.NotifyMessageHandler;
@@ -25,7 +26,9 @@ import javax.sip.SipException;
 import javax.sip.message.Response;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
@@ -52,6 +55,9 @@ public class KeepaliveNotifyMessageHandler extends SIPRequestProcessorParent imp
     @Autowired
     private DynamicTask dynamicTask;
 
+    @Autowired
+    private DeviceKeepaliveManager deviceKeepaliveManager;
+
     @Override
     public void afterPropertiesSet() throws Exception {
         notifyMessageHandler.addHandler(cmdType, this);
@@ -82,6 +88,8 @@ public class KeepaliveNotifyMessageHandler extends SIPRequestProcessorParent imp
         if (handlerCatchDataList.isEmpty()) {
             return;
         }
+        // 同一设备在本批次内的多次心跳只处理最后一次， 但每条心跳都需要回复
+        Map<String, SipMsgInfo> latestMsgMap = new LinkedHashMap<>();
         for (SipMsgInfo sipMsgInfo : handlerCatchDataList) {
             if (sipMsgInfo == null) {
                 continue;
@@ -93,16 +101,22 @@ public class KeepaliveNotifyMessageHandler extends SIPRequestProcessorParent imp
             } catch (SipException | InvalidArgumentException | ParseException e) {
                 log.error("[命令发送失败] 心跳回复: {}", e.getMessage());
             }
+            latestMsgMap.put(sipMsgInfo.getDevice().getDeviceId(), sipMsgInfo);
+        }
+        for (SipMsgInfo sipMsgInfo : latestMsgMap.values()) {
+            RequestEvent evt = sipMsgInfo.getEvt();
             Device device = sipMsgInfo.getDevice();
             SIPRequest request = (SIPRequest) evt.getRequest();
             if (!ObjectUtils.isEmpty(device.getKeepaliveTime()) && DateUtil.getDifferenceForNow(device.getKeepaliveTime()) <= 3000L) {
                 log.info("[收到心跳] 心跳发送过于频繁，已忽略 device: {}, callId: {}", device.getDeviceId(), request.getCallIdHeader().getCallId());
-                return;
+                continue;
             }
 
+            boolean addressChanged = false;
             RemoteAddressInfo remoteAddressInfo = SipUtils.getRemoteAddressFromRequest(request, userSetting.getSipUseSourceIpAsRemoteAddress());
             if (!device.getIp().equalsIgnoreCase(remoteAddressInfo.getIp()) || device.getPort() != remoteAddressInfo.getPort()) {
                 log.info("[收到心跳] 地址变化, {}({}), {}:{}->{}", device.getName(), device.getDeviceId(), remoteAddressInfo.getIp(), remoteAddressInfo.getPort(), request.getLocalAddress().getHostAddress());
+                addressChanged = true;
                 device.setPort(remoteAddressInfo.getPort());
                 device.setHostAddress(remoteAddressInfo.getIp().concat(":").concat(String.valueOf(remoteAddressInfo.getPort())));
                 device.setIp(remoteAddressInfo.getIp());
@@ -126,10 +140,17 @@ public class KeepaliveNotifyMessageHandler extends SIPRequestProcessorParent imp
             device.setKeepaliveTime(DateUtil.getNow());
 
             if (device.isOnLine()) {
-                deviceService.updateDevice(device);
+                if (addressChanged) {
+                    // 地址变化需要立即生效
+                    deviceKeepaliveManager.remove(device.getDeviceId());
+                    deviceService.updateDevice(device);
+                } else {
+                    deviceKeepaliveManager.put(device);
+                }
             } else {
                 if (userSetting.getGbDeviceOnline() == 1) {
                     // 对于已经离线的设备判断他的注册是否已经过期
+                    deviceKeepaliveManager.remove(device.getDeviceId());
                     device.setOnLine(true);
                     device.setRegisterTime(DateUtil.getNow());
                     deviceService.online(device, null);
@@ -76,7 +76,7 @@ public class MobilePositionNotifyMessageHandler extends SIPRequestProcessorParen
                             continue;
                         }
                         String channelId = getText(rootElementAfterCharset, "DeviceID");
-                        DeviceChannel deviceChannel = deviceChannelService.getOne(device.getDeviceId(), channelId);
+                        DeviceChannel deviceChannel = deviceChannelService.getOneWithCache(device.getDeviceId(), channelId);
                         if (deviceChannel == null) {
                             log.warn("[解析报警消息] 未找到通道：{}/{}", device.getDeviceId(), channelId);
                             continue;
@@ -1,10 +1,9 @@
 package com.genersoft.iot.vmp.gb28181.transmit.event.request.impl.message.query.cmd;
 
-import com.genersoft.iot.vmp.gb28181.bean.CommonGBChannel;
 import com.genersoft.iot.vmp.gb28181.bean.Device;
 import com.genersoft.iot.vmp.gb28181.bean.Platform;
 import com.genersoft.iot.vmp.gb28181.service.IGbChannelService;
-import com.genersoft.iot.vmp.gb28181.service.IPlatformChannelService;
+import com.genersoft.iot.vmp.gb28181.session.CatalogResponseStreamManager;
 import com.genersoft.iot.vmp.gb28181.transmit.cmd.impl.SIPCommanderForPlatform;
 import com.genersoft.iot.vmp.gb28181.transmit.event.request.SIPRequestProcessorParent;
 import com.genersoft.iot.vmp.gb28181.transmit.event.request.impl.message.IMessageHandler;
@@ -22,7 +21,6 @@ import javax.sip.SipException;
 import javax.sip.header.FromHeader;
 import javax.sip.message.Response;
 import java.text.ParseException;
-import java.util.List;
 
 @Slf4j
 @Component
@@ -37,7 +35,7 @@ public class CatalogQueryMessageHandler extends SIPRequestProcessorParent implem
     private IGbChannelService channelService;
 
     @Autowired
-    private IPlatformChannelService platformChannelService;
+    private CatalogResponseStreamManager catalogResponseStreamManager;
 
     @Autowired
     private SIPCommanderForPlatform cmderFroPlatform;
@@ -68,12 +66,10 @@ public class CatalogQueryMessageHandler extends SIPRequestProcessorParent implem
         }
         Element snElement = rootElement.element("SN");
         String sn = snElement.getText();
-        List<CommonGBChannel> channelList = platformChannelService.queryByPlatform(platform);
 
         try {
-            if (!channelList.isEmpty()) {
-                cmderFroPlatform.catalogQuery(channelList, platform, sn, fromHeader.getTag());
-            }else {
+            // 通道分页读取并按窗口发送
+            if (!catalogResponseStreamManager.start(platform, sn, fromHeader.getTag())) {
                 // 回复无通道
                 cmderFroPlatform.catalogQuery(null, platform, sn, fromHeader.getTag(), 0);
             }
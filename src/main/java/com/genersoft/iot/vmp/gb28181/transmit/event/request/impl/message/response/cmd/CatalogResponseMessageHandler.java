@@ -3,22 +3,20 @@ package com.genersoft.iot.vmp.gb28181.transmit.event.request.impl.message.respon
 import com.genersoft.iot.vmp.conf.SipConfig;
 import com.genersoft.iot.vmp.gb28181.bean.*;
 import com.genersoft.iot.vmp.gb28181.service.IDeviceChannelService;
-import com.genersoft.iot.vmp.gb28181.service.IGroupService;
-import com.genersoft.iot.vmp.gb28181.service.IRegionService;
 import com.genersoft.iot.vmp.gb28181.session.CatalogDataManager;
 import com.genersoft.iot.vmp.gb28181.transmit.event.request.SIPRequestProcessorParent;
 import com.genersoft.iot.vmp.gb28181.transmit.event.request.impl.message.IMessageHandler;
 import com.genersoft.iot.vmp.gb28181.transmit.event.request.impl.message.response.ResponseMessageHandler;
 import gov.nist.javax.sip.message.SIPRequest;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PreDestroy;
 import javax.sip.InvalidArgumentException;
 import javax.sip.RequestEvent;
 import javax.sip.SipException;
@@ -27,10 +25,14 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 目录查询的回复
+ * 按设备分队列处理，同一设备的数据包按到达顺序串行处理，不同设备之间在线程池中并行，大目录设备不会拖慢其他设备的同步。
+ * 设备的队列处理完并且没有新数据时移除
  */
 @Slf4j
 @Component
@@ -41,16 +43,33 @@ public class CatalogResponseMessageHandler extends SIPRequestProcessorParent imp
     @Autowired
     private ResponseMessageHandler responseMessageHandler;
 
-    private final ConcurrentLinkedQueue<HandlerCatchData> taskQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * 每次调度最多处理的数据包数量，处理完后让出线程给其他设备
+     */
+    private static final int BATCH_SIZE = 64;
 
-    @Autowired
-    private IDeviceChannelService deviceChannelService;
+    private static class DeviceTaskQueue {
+        private final String deviceId;
+        private final ConcurrentLinkedQueue<HandlerCatchData> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean(false);
 
-    @Autowired
-    private IRegionService regionService;
+        private DeviceTaskQueue(String deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    /**
+     * deviceId -> 该设备待处理的数据包， 数据包在compute内加入，与移除空队列互斥
+     */
+    private final Map<String, DeviceTaskQueue> taskQueueMap = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            Math.max(4, Runtime.getRuntime().availableProcessors()), Math.max(4, Runtime.getRuntime().availableProcessors()),
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new BasicThreadFactory.Builder().namingPattern("catalog-sync-%d").daemon(true).build());
 
     @Autowired
-    private IGroupService groupService;
+    private IDeviceChannelService deviceChannelService;
 
     @Autowired
     private CatalogDataManager catalogDataCatch;
@@ -65,7 +84,13 @@ public class CatalogResponseMessageHandler extends SIPRequestProcessorParent imp
 
     @Override
     public void handForDevice(RequestEvent evt, Device device, Element element) {
-        taskQueue.offer(new HandlerCatchData(evt, device, element));
+        HandlerCatchData data = new HandlerCatchData(evt, device, element);
+        DeviceTaskQueue deviceTaskQueue = taskQueueMap.compute(device.getDeviceId(), (key, old) -> {
+            DeviceTaskQueue taskQueue = old == null ? new DeviceTaskQueue(key) : old;
+            taskQueue.queue.offer(data);
+            return taskQueue;
+        });
+        dispatch(deviceTaskQueue);
         // 回复200 OK
         try {
             responseAck((SIPRequest) evt.getRequest(), Response.OK);
@@ -74,136 +99,137 @@ public class CatalogResponseMessageHandler extends SIPRequestProcessorParent imp
         }
     }
 
-    @Scheduled(fixedDelay = 50)
-    @Transactional
-    public void executeTaskQueue(){
-        if (taskQueue.isEmpty()) {
+    /**
+     * 设备队列没有在处理时提交到线程池，保证同一设备同时只有一个线程在处理
+     */
+    private void dispatch(DeviceTaskQueue deviceTaskQueue) {
+        if (deviceTaskQueue.queue.isEmpty() || !deviceTaskQueue.running.compareAndSet(false, true)) {
             return;
         }
-        List<HandlerCatchData> handlerCatchDataList = new ArrayList<>();
-        int size = taskQueue.size();
-        for (int i = 0; i < size; i++) {
-            HandlerCatchData poll = taskQueue.poll();
-            if (poll != null) {
-                handlerCatchDataList.add(poll);
-            }
-        }
-        if (handlerCatchDataList.isEmpty()) {
-            return;
+        try {
+            executor.execute(() -> executeTaskQueue(deviceTaskQueue));
+        } catch (RejectedExecutionException e) {
+            deviceTaskQueue.running.set(false);
+            log.warn("[收到通道] 处理线程池已关闭");
         }
-        for (HandlerCatchData take : handlerCatchDataList) {
-            if (take == null) {
-                continue;
-            }
-            RequestEvent evt = take.getEvt();
-            int sn = 0;
-            // 全局异常捕获，保证下一条可以得到处理
-            try {
-                Element rootElement = null;
-                try {
-                    rootElement = getRootElement(take.getEvt(), take.getDevice().getCharset());
-                } catch (DocumentException e) {
-                    log.error("[xml解析] 失败： ", e);
-                    continue;
+    }
+
+    private void executeTaskQueue(DeviceTaskQueue deviceTaskQueue) {
+        try {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                HandlerCatchData take = deviceTaskQueue.queue.poll();
+                if (take == null) {
+                    break;
                 }
-                if (rootElement == null) {
-                    log.warn("[ 收到通道 ] content cannot be null, {}", evt.getRequest());
-                    continue;
+                try {
+                    handle(take);
+                } catch (Exception e) {
+                    log.error("[收到通道] 写入失败， 设备： {}", take.getDevice().getDeviceId(), e);
                 }
-                Element deviceListElement = rootElement.element("DeviceList");
-                Element sumNumElement = rootElement.element("SumNum");
-                Element snElement = rootElement.element("SN");
-                int sumNum = Integer.parseInt(sumNumElement.getText());
-
-                if (sumNum == 0) {
-                    log.info("[收到通道]设备:{}的: 0个", take.getDevice().getDeviceId());
-                    // 数据已经完整接收
-                    deviceChannelService.cleanChannelsForDevice(take.getDevice().getId());
-                    catalogDataCatch.setChannelSyncEnd(take.getDevice().getDeviceId(), sn, null);
-                } else {
-                    Iterator<Element> deviceListIterator = deviceListElement.elementIterator();
-                    if (deviceListIterator != null) {
-                        List<DeviceChannel> channelList = new ArrayList<>();
-                        List<Region> regionList = new ArrayList<>();
-                        List<Group> groupList = new ArrayList<>();
-                        // 遍历DeviceList
-                        while (deviceListIterator.hasNext()) {
-                            Element itemDevice = deviceListIterator.next();
-                            Element channelDeviceElement = itemDevice.element("DeviceID");
-                            if (channelDeviceElement == null) {
-                                continue;
-                            }
-                            // 从xml解析内容到 DeviceChannel 对象
-                            DeviceChannel channel = DeviceChannel.decode(itemDevice);
-                            if (channel.getDeviceId() == null) {
-                                log.info("[收到目录订阅]：但是解析失败 {}", new String(evt.getRequest().getRawContent()));
-                                continue;
-                            }
-                            channel.setDeviceDbId(take.getDevice().getId());
-                            if (channel.getParentId() != null && channel.getParentId().equals(sipConfig.getId())) {
-                                channel.setParentId(null);
-                            }
-                            // 解析通道类型
-                            if (channel.getDeviceId().length() <= 8) {
-                                // 行政区划
-                                Region region = Region.getInstance(channel);
-                                regionList.add(region);
-                                channel.setChannelType(1);
-                            }else if (channel.getDeviceId().length() == 20){
-                                // 业务分组/虚拟组织
-                                Group group = Group.getInstance(channel);
-                                if (group != null) {
-                                    channel.setParental(1);
-                                    channel.setChannelType(2);
-                                    groupList.add(group);
-                                }
+            }
+        } finally {
+            deviceTaskQueue.running.set(false);
+            // 处理期间新到达的数据
+            dispatch(deviceTaskQueue);
+            // 队列已空并且没有在处理时移除
+            taskQueueMap.computeIfPresent(deviceTaskQueue.deviceId, (key, taskQueue) ->
+                    taskQueue == deviceTaskQueue && taskQueue.queue.isEmpty() && !taskQueue.running.get() ? null : taskQueue);
+        }
+    }
+
+    private void handle(HandlerCatchData take) {
+        RequestEvent evt = take.getEvt();
+        int sn = 0;
+        // 全局异常捕获，保证下一条可以得到处理
+        try {
+            Element rootElement = null;
+            try {
+                rootElement = getRootElement(take.getEvt(), take.getDevice().getCharset());
+            } catch (DocumentException e) {
+                log.error("[xml解析] 失败： ", e);
+                return;
+            }
+            if (rootElement == null) {
+                log.warn("[ 收到通道 ] content cannot be null, {}", evt.getRequest());
+                return;
+            }
+            Element deviceListElement = rootElement.element("DeviceList");
+            Element sumNumElement = rootElement.element("SumNum");
+            Element snElement = rootElement.element("SN");
+            int sumNum = Integer.parseInt(sumNumElement.getText());
+
+            if (sumNum == 0) {
+                log.info("[收到通道]设备:{}的: 0个", take.getDevice().getDeviceId());
+                // 数据已经完整接收
+                deviceChannelService.cleanChannelsForDevice(take.getDevice().getId());
+                catalogDataCatch.setChannelSyncEnd(take.getDevice().getDeviceId(), sn, null);
+            } else {
+                Iterator<Element> deviceListIterator = deviceListElement.elementIterator();
+                if (deviceListIterator != null) {
+                    List<DeviceChannel> channelList = new ArrayList<>();
+                    List<Region> regionList = new ArrayList<>();
+                    List<Group> groupList = new ArrayList<>();
+                    // 遍历DeviceList
+                    while (deviceListIterator.hasNext()) {
+                        Element itemDevice = deviceListIterator.next();
+                        Element channelDeviceElement = itemDevice.element("DeviceID");
+                        if (channelDeviceElement == null) {
+                            continue;
+                        }
+                        // 从xml解析内容到 DeviceChannel 对象
+                        DeviceChannel channel = DeviceChannel.decode(itemDevice);
+                        if (channel.getDeviceId() == null) {
+                            log.info("[收到目录订阅]：但是解析失败 {}", new String(evt.getRequest().getRawContent()));
+                            continue;
+                        }
+                        channel.setDeviceDbId(take.getDevice().getId());
+                        if (channel.getParentId() != null && channel.getParentId().equals(sipConfig.getId())) {
+                            channel.setParentId(null);
+                        }
+                        // 解析通道类型
+                        if (channel.getDeviceId().length() <= 8) {
+                            // 行政区划
+                            Region region = Region.getInstance(channel);
+                            regionList.add(region);
+                            channel.setChannelType(1);
+                        }else if (channel.getDeviceId().length() == 20){
+                            // 业务分组/虚拟组织
+                            Group group = Group.getInstance(channel);
+                            if (group != null) {
+                                channel.setParental(1);
+                                channel.setChannelType(2);
+                                groupList.add(group);
                             }
-                            channelList.add(channel);
                         }
-                        sn = Integer.parseInt(snElement.getText());
-                        catalogDataCatch.put(take.getDevice().getDeviceId(), sn, sumNum, take.getDevice(),
-                                channelList, regionList, groupList);
-                        log.info("[收到通道]设备: {} -> {}个，{}/{}", take.getDevice().getDeviceId(), channelList.size(), catalogDataCatch.size(take.getDevice().getDeviceId(), sn), sumNum);
+                        channelList.add(channel);
                     }
+                    sn = Integer.parseInt(snElement.getText());
+                    catalogDataCatch.put(take.getDevice().getDeviceId(), sn, sumNum, take.getDevice(),
+                            channelList, regionList, groupList);
+                    log.info("[收到通道]设备: {} -> {}个，{}/{}", take.getDevice().getDeviceId(), channelList.size(), catalogDataCatch.size(take.getDevice().getDeviceId(), sn), sumNum);
                 }
-            } catch (Exception e) {
-                log.warn("[收到通道] 发现未处理的异常, \r\n{}", evt.getRequest());
-                log.error("[收到通道] 异常内容： ", e);
-            } finally {
-                if (catalogDataCatch.size(take.getDevice().getDeviceId(), sn) == catalogDataCatch.sumNum(take.getDevice().getDeviceId(), sn)) {
-                    // 数据已经完整接收， 此时可能存在某个设备离线变上线的情况，但是考虑到性能，此处不做处理，
-                    // 目前支持设备通道上线通知时和设备上线时向上级通知
-                    boolean resetChannelsResult = saveData(take.getDevice(), sn);
-                    if (!resetChannelsResult) {
-                        String errorMsg = "接收成功，写入失败，共" + catalogDataCatch.sumNum(take.getDevice().getDeviceId(), sn) + "条，已接收" + catalogDataCatch.getDeviceChannelList(take.getDevice().getDeviceId(), sn).size() + "条";
-                        catalogDataCatch.setChannelSyncEnd(take.getDevice().getDeviceId(), sn, errorMsg);
-                    } else {
-                        catalogDataCatch.setChannelSyncEnd(take.getDevice().getDeviceId(), sn, null);
-                    }
+            }
+        } catch (Exception e) {
+            log.warn("[收到通道] 发现未处理的异常, \r\n{}", evt.getRequest());
+            log.error("[收到通道] 异常内容： ", e);
+        } finally {
+            if (catalogDataCatch.size(take.getDevice().getDeviceId(), sn) == catalogDataCatch.sumNum(take.getDevice().getDeviceId(), sn)) {
+                // 数据已经完整接收， 此时可能存在某个设备离线变上线的情况，但是考虑到性能，此处不做处理，
+                // 目前支持设备通道上线通知时和设备上线时向上级通知
+                boolean resetChannelsResult = catalogDataCatch.saveData(take.getDevice(), sn);
+                if (!resetChannelsResult) {
+                    String errorMsg = "接收成功，写入失败，共" + catalogDataCatch.sumNum(take.getDevice().getDeviceId(), sn) + "条，已接收" + catalogDataCatch.getDeviceChannelList(take.getDevice().getDeviceId(), sn).size() + "条";
+                    catalogDataCatch.setChannelSyncEnd(take.getDevice().getDeviceId(), sn, errorMsg);
+                } else {
+                    catalogDataCatch.setChannelSyncEnd(take.getDevice().getDeviceId(), sn, null);
                 }
             }
         }
     }
 
-    @Transactional
-    public boolean saveData(Device device, int sn) {
-
-        boolean result = true;
-        List<DeviceChannel> deviceChannelList = catalogDataCatch.getDeviceChannelList(device.getDeviceId(), sn);
-        if (deviceChannelList != null && !deviceChannelList.isEmpty()) {
-            result &= deviceChannelService.resetChannels(device.getId(), deviceChannelList);
-        }
-
-        List<Region> regionList = catalogDataCatch.getRegionList(device.getDeviceId(), sn);
-        if ( regionList!= null && !regionList.isEmpty()) {
-            result &= regionService.batchAdd(regionList);
-        }
-
-        List<Group> groupList = catalogDataCatch.getGroupList(device.getDeviceId(), sn);
-        if (groupList != null && !groupList.isEmpty()) {
-            result &= groupService.batchAdd(groupList);
-        }
-        return result;
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
     }
 
     @Override
@@ -70,7 +70,7 @@ public class MobilePositionResponseMessageHandler extends SIPRequestProcessorPar
                 return;
             }
             String channelId = getText(rootElement, "DeviceID");
-            DeviceChannel deviceChannel = deviceChannelService.getOne(device.getDeviceId(), channelId);
+            DeviceChannel deviceChannel = deviceChannelService.getOneWithCache(device.getDeviceId(), channelId);
             if (deviceChannel == null) {
                 log.warn("[解析报警消息] 未找到通道：{}/{}", device.getDeviceId(), channelId);
             }else {
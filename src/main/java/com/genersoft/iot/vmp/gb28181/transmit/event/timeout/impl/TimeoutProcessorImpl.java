@@ -4,6 +4,7 @@ import com.genersoft.iot.vmp.gb28181.event.SipSubscribe;
 import com.genersoft.iot.vmp.gb28181.event.sip.SipEvent;
 import com.genersoft.iot.vmp.gb28181.transmit.SIPProcessorObserver;
 import com.genersoft.iot.vmp.gb28181.transmit.event.timeout.ITimeoutProcessor;
+import gov.nist.javax.sip.message.SIPRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -30,6 +31,20 @@ public class TimeoutProcessorImpl implements InitializingBean, ITimeoutProcessor
     @Override
     public void process(TimeoutEvent event) {
         try {
+            if (!event.isServerTransaction() && event.getClientTransaction() != null) {
+                // 按事务注册的回调
+                SIPRequest request = (SIPRequest) event.getClientTransaction().getRequest();
+                String key = SipSubscribe.getTransactionKey(request.getCallId().getCallId(), request.getCSeq().getSeqNumber(),
+                        request.getCSeq().getMethod());
+                SipEvent sipEvent = sipSubscribe.getSubscribe(key);
+                if (sipEvent != null) {
+                    if (sipEvent.getErrorEvent() != null) {
+                        sipEvent.getErrorEvent().response(new SipSubscribe.EventResult<>(event));
+                    }
+                    sipSubscribe.removeSubscribe(key);
+                    return;
+                }
+            }
             // TODO Auto-generated method stub
             CallIdHeader callIdHeader = event.getClientTransaction().getDialog().getCallId();
             String callId = callIdHeader.getCallId();
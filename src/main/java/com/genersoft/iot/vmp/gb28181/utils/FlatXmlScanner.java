@@ -0,0 +1,172 @@
+package com.genersoft.iot.vmp.gb28181.utils;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+import java.nio.charset.Charset;
+
+/**
+ * 只有一层子节点的简单MANSCDP消息体（心跳、移动位置通知等）的快速解析
+ * 直接扫描原始字节构建dom4j节点，不经过SAX解析。GB2312/GBK/UTF-8的多字节字符不会出现'<'、'>'、'/'、'&'，可以直接按字节扫描。
+ * 遇到嵌套节点、子节点属性、实体引用、注释、CDATA等情况返回null，由调用方回退到完整解析
+ */
+public class FlatXmlScanner {
+
+    private final byte[] content;
+
+    private int pos;
+
+    private FlatXmlScanner(byte[] content) {
+        this.content = content;
+    }
+
+    /**
+     * @return 根节点， 不是简单结构时返回null
+     */
+    public static Element scan(byte[] content, Charset charset) {
+        if (content == null || content.length == 0) {
+            return null;
+        }
+        return new FlatXmlScanner(content).scan(charset);
+    }
+
+    private Element scan(Charset charset) {
+        skipWhitespace();
+        if (startsWith("<?")) {
+            int end = indexOf("?>", pos);
+            if (end < 0) {
+                return null;
+            }
+            pos = end + 2;
+            skipWhitespace();
+        }
+        if (!startsWith("<")) {
+            return null;
+        }
+        pos++;
+        String rootName = readName();
+        if (rootName == null) {
+            return null;
+        }
+        // 根节点允许带属性
+        int rootEnd = indexOf(">", pos);
+        if (rootEnd < 0 || content[rootEnd - 1] == '/') {
+            return null;
+        }
+        pos = rootEnd + 1;
+        Element root = DocumentHelper.createDocument().addElement(rootName);
+        while (true) {
+            skipWhitespace();
+            if (pos >= content.length) {
+                return null;
+            }
+            if (startsWith("</")) {
+                pos += 2;
+                if (!rootName.equals(readName()) || !expect('>')) {
+                    return null;
+                }
+                skipWhitespace();
+                return pos == content.length ? root : null;
+            }
+            if (!expect('<')) {
+                return null;
+            }
+            String name = readName();
+            if (name == null) {
+                return null;
+            }
+            if (startsWith("/>")) {
+                pos += 2;
+                root.addElement(name);
+                continue;
+            }
+            if (!expect('>')) {
+                return null;
+            }
+            int textStart = pos;
+            while (pos < content.length && content[pos] != '<') {
+                if (content[pos] == '&') {
+                    return null;
+                }
+                pos++;
+            }
+            int textEnd = pos;
+            if (!startsWith("</")) {
+                return null;
+            }
+            pos += 2;
+            if (!name.equals(readName()) || !expect('>')) {
+                return null;
+            }
+            root.addElement(name).setText(new String(content, textStart, textEnd - textStart, charset));
+        }
+    }
+
+    /**
+     * 读取节点名称， 只接受ASCII字母、数字和 _ - . :
+     */
+    private String readName() {
+        int start = pos;
+        while (pos < content.length) {
+            byte b = content[pos];
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '_' || b == '-' || b == '.' || b == ':') {
+                pos++;
+            }else {
+                break;
+            }
+        }
+        if (pos == start) {
+            return null;
+        }
+        char[] chars = new char[pos - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) content[start + i];
+        }
+        return new String(chars);
+    }
+
+    private boolean expect(char c) {
+        if (pos < content.length && content[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < content.length) {
+            byte b = content[pos];
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                pos++;
+            }else {
+                break;
+            }
+        }
+    }
+
+    private boolean startsWith(String prefix) {
+        return startsWith(prefix, pos);
+    }
+
+    private boolean startsWith(String prefix, int from) {
+        if (from + prefix.length() > content.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (content[from + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(String target, int from) {
+        for (int i = from; i <= content.length - target.length(); i++) {
+            if (startsWith(target, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
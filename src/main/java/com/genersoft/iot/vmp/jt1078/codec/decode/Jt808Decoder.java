@@ -24,31 +24,35 @@ import java.util.List;
 @Slf4j
 public class Jt808Decoder extends ByteToMessageDecoder {
 
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
         Session session = ctx.channel().attr(Session.KEY).get();
-        log.info("> {} hex:{}", session, ByteBufUtil.hexDump(in));
+        if (log.isDebugEnabled()) {
+            log.debug("> {} hex:{}", session, ByteBufUtil.hexDump(in));
+        }
 
         try {
             ByteBuf buf = unEscapeAndCheck(in);
 
             Header header = new Header();
-            header.setMsgId(ByteBufUtil.hexDump(buf.readSlice(2)));
+            int msgId = buf.readUnsignedShort();
             header.setMsgPro(buf.readUnsignedShort());
             if (header.is2019Version()) {
                 header.setVersion(buf.readUnsignedByte());
-                String devId = ByteBufUtil.hexDump(buf.readSlice(10));
-                header.setDevId(devId.replaceFirst("^0*", ""));
+                header.setDevId(readDevId(buf, 10, session));
             } else {
-                header.setDevId(ByteBufUtil.hexDump(buf.readSlice(6)).replaceFirst("^0*", ""));
+                header.setDevId(readDevId(buf, 6, session));
             }
             header.setSn(buf.readUnsignedShort());
 
-            Re handler = CodecFactory.getHandler(header.getMsgId());
+            Re handler = CodecFactory.getHandler(msgId);
             if (handler == null) {
-                log.error("get msgId is null {}", header.getMsgId());
+                log.error("get msgId is null {}", String.format("%04x", msgId));
                 return;
             }
+            header.setMsgId(CodecFactory.getMsgId(msgId));
             Rs decode = handler.decode(buf, header, session);
             if (decode != null) {
                 out.add(decode);
@@ -60,6 +64,46 @@ public class Jt808Decoder extends ByteToMessageDecoder {
 
     }
 
+    /**
+     * 读取BCD编码的终端手机号并去掉前导0
+     * 与连接上次解析的原始字节相同时直接复用缓存的结果，不产生新的对象
+     */
+    private String readDevId(ByteBuf buf, int length, Session session) {
+        int index = buf.readerIndex();
+        if (session != null) {
+            byte[] cached = session.getDevIdBytes();
+            if (cached != null && cached.length == length) {
+                boolean same = true;
+                for (int i = 0; i < length; i++) {
+                    if (buf.getByte(index + i) != cached[i]) {
+                        same = false;
+                        break;
+                    }
+                }
+                if (same) {
+                    buf.skipBytes(length);
+                    return session.getDevIdString();
+                }
+            }
+        }
+        byte[] bytes = new byte[length];
+        buf.readBytes(bytes);
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            chars[i * 2] = HEX_CHARS[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX_CHARS[bytes[i] & 0x0f];
+        }
+        int start = 0;
+        while (start < chars.length && chars[start] == '0') {
+            start++;
+        }
+        String devId = new String(chars, start, chars.length - start);
+        if (session != null) {
+            session.cacheDevId(bytes, devId);
+        }
+        return devId;
+    }
+
 
     /**
      * 转义与验证校验码
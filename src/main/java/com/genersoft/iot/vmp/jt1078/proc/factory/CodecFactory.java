@@ -5,11 +5,15 @@ import com.genersoft.iot.vmp.jt1078.proc.request.Re;
 import com.genersoft.iot.vmp.jt1078.util.ClassUtil;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.HashMap;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.List;
-import java.util.Map;
 
 /**
+ * 消息处理类的分发表，按数值消息ID直接索引
+ * 没有实例字段的处理类是无状态的，全局共用一个实例；有实例字段的处理类（解析结果保存在字段里）每条消息新建实例，构造器在启动时缓存
+ *
  * @author QingtaiJiang
  * @date 2023/4/27 18:29
  * @email qingtaij@163.com
@@ -17,26 +21,92 @@ import java.util.Map;
 @Slf4j
 public class CodecFactory {
 
-    private static Map<String, Class<?>> protocolHash;
+    private static class Handler {
+        private final String msgId;
+        private final Re singleton;
+        private final Constructor<? extends Re> constructor;
+
+        private Handler(String msgId, Re singleton, Constructor<? extends Re> constructor) {
+            this.msgId = msgId;
+            this.singleton = singleton;
+            this.constructor = constructor;
+        }
+
+        private Re get() {
+            if (singleton != null) {
+                return singleton;
+            }
+            try {
+                return constructor.newInstance();
+            } catch (Exception e) {
+                log.error("创建消息处理类失败 {}", msgId, e);
+                return null;
+            }
+        }
+    }
+
+    private static volatile Handler[] handlers = new Handler[0x10000];
 
     public static void init() {
-        protocolHash = new HashMap<>();
+        Handler[] newHandlers = new Handler[0x10000];
         List<Class<?>> classList = ClassUtil.getClassList("com.genersoft.iot.vmp.jt1078.proc", MsgId.class);
         for (Class<?> handlerClass : classList) {
+            if (!Re.class.isAssignableFrom(handlerClass)) {
+                continue;
+            }
             String id = handlerClass.getAnnotation(MsgId.class).id();
-            protocolHash.put(id, handlerClass);
+            try {
+                Constructor<? extends Re> constructor = handlerClass.asSubclass(Re.class).getDeclaredConstructor();
+                constructor.setAccessible(true);
+                Re singleton = isStateless(handlerClass) ? constructor.newInstance() : null;
+                newHandlers[Integer.parseInt(id, 16)] = new Handler(id, singleton, constructor);
+            } catch (Exception e) {
+                log.error("加载消息处理类失败 {}", handlerClass.getName(), e);
+            }
         }
+        handlers = newHandlers;
         if (log.isDebugEnabled()) {
-            log.debug("消息ID缓存表 protocolHash:{}", protocolHash);
+            for (Handler handler : newHandlers) {
+                if (handler != null) {
+                    log.debug("消息ID缓存表 {}: {}, 共用实例: {}", handler.msgId,
+                            handler.constructor.getDeclaringClass().getSimpleName(), handler.singleton != null);
+                }
+            }
         }
     }
 
+    /**
+     * 处理类及其父类（到Re为止）都没有实例字段时认为是无状态的
+     */
+    private static boolean isStateless(Class<?> handlerClass) {
+        for (Class<?> c = handlerClass; c != null && c != Re.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public static Re getHandler(int msgId) {
+        Handler handler = handlers[msgId & 0xffff];
+        return handler == null ? null : handler.get();
+    }
+
     public static Re getHandler(String msgId) {
-        Class<?> aClass = protocolHash.get(msgId);
-        Object bean = ClassUtil.getBean(aClass);
-        if (bean instanceof Re) {
-            return (Re) bean;
+        try {
+            return getHandler(Integer.parseInt(msgId, 16));
+        } catch (NumberFormatException e) {
+            return null;
         }
-        return null;
+    }
+
+    /**
+     * 已注册消息的ID字符串， 未注册时返回null
+     */
+    public static String getMsgId(int msgId) {
+        Handler handler = handlers[msgId & 0xffff];
+        return handler == null ? null : handler.msgId;
     }
 }
@@ -37,6 +37,11 @@ public class Session {
 
     private Header header;
 
+    // 上一条消息头中终端手机号的原始字节和解析结果，同一连接的手机号不变，避免每条消息重复转换
+    private byte[] devIdBytes;
+
+    private String devIdString;
+
     protected Session(Channel channel) {
         this.channel = channel;
         this.creationTime = System.currentTimeMillis();
@@ -101,6 +106,22 @@ public class Session {
         return header;
     }
 
+    public byte[] getDevIdBytes() {
+        return devIdBytes;
+    }
+
+    public String getDevIdString() {
+        return devIdString;
+    }
+
+    /**
+     * 缓存消息头中终端手机号的解析结果， 只在连接的IO线程中调用
+     */
+    public void cacheDevId(byte[] devIdBytes, String devIdString) {
+        this.devIdBytes = devIdBytes;
+        this.devIdString = devIdString;
+    }
+
     @Override
     public String toString() {
         return "[" +
@@ -10,6 +10,7 @@ import com.genersoft.iot.vmp.vmanager.bean.WVPResult;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface IMediaNodeServerService {
     int createRTPServer(MediaServer mediaServer, String streamId, long ssrc, Integer port, Boolean onlyAuto, Boolean disableAudio, Boolean reUsePort, Integer tcpMode);
@@ -42,6 +43,16 @@ public interface IMediaNodeServerService {
 
     MediaInfo getMediaInfo(MediaServer mediaServer, String app, String stream);
 
+    /**
+     * 异步查询流信息， 流不存在或查询失败时为null； 取消返回的future时中止查询
+     */
+    CompletableFuture<MediaInfo> getMediaInfoAsync(MediaServer mediaServer, String app, String stream);
+
+    /**
+     * 节点工作线程的平均负载(0-100)， 获取失败时为null
+     */
+    CompletableFuture<Float> getThreadsLoad(MediaServer mediaServer);
+
     Boolean pauseRtpCheck(MediaServer mediaServer, String streamKey);
 
     Boolean resumeRtpCheck(MediaServer mediaServer, String streamKey);
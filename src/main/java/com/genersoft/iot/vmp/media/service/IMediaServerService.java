@@ -32,6 +32,8 @@ public interface IMediaServerService {
 
     MediaServer getMediaServerForMinimumLoad(Boolean hasAssist);
 
+    MediaServer getMediaServerForMinimumLoad(Boolean hasAssist, String hashKey);
+
     void updateVmServer(List<MediaServer>  mediaServerItemList);
 
     SSRCInfo openRTPServer(MediaServer mediaServerItem, String streamId, String presetSsrc, boolean ssrcCheck,
@@ -146,6 +148,9 @@ public interface IMediaServerService {
 
     void startSendRtp(MediaServer mediaServer, SendRtpInfo sendRtpItem);
 
+    /**
+     * 查找流所在的在线节点，流不存在时返回null，查询所有节点超时时抛出ControllerException
+     */
     MediaServer getMediaServerByAppAndStream(String app, String stream);
 
     Long updateDownloadProcess(MediaServer mediaServerItem, String app, String stream);
@@ -154,6 +159,9 @@ public interface IMediaServerService {
 
     void stopProxy(MediaServer mediaServer, String streamKey);
 
+    /**
+     * 查找流所在的在线节点并返回流信息，流不存在时返回null，查询所有节点超时时抛出ControllerException
+     */
     StreamInfo getMediaByAppAndStream(String app, String stream);
 
     int createRTPServer(MediaServer mediaServerItem, String streamId, long ssrc, Integer port, boolean onlyAuto, boolean disableAudio, boolean reUsePort, Integer tcpMode);
@@ -0,0 +1,282 @@
+package com.genersoft.iot.vmp.media.service.impl;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
+import com.genersoft.iot.vmp.conf.UserSetting;
+import com.genersoft.iot.vmp.media.bean.MediaServer;
+import com.genersoft.iot.vmp.media.event.mediaServer.MediaServerDeleteEvent;
+import com.genersoft.iot.vmp.media.event.mediaServer.MediaServerOfflineEvent;
+import com.genersoft.iot.vmp.media.service.IMediaNodeServerService;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在线流媒体节点的负载快照， 用于点播时选择节点
+ * 流数量随addCount/removeCount实时更新，节点线程负载定时从节点获取；选择节点只读内存，不访问redis。
+ * redis中的在线节点集合仍然保留，定时与之对账，修正遗漏的上下线和计数偏差
+ */
+@Slf4j
+@Component
+public class MediaServerLoadIndex implements MetricsSource {
+
+    public static final String LEAST_STREAMS = "least-streams";
+
+    public static final String WEIGHTED = "weighted";
+
+    public static final String CONSISTENT_HASH = "consistent-hash";
+
+    /**
+     * 一致性哈希中每个节点的虚拟节点数
+     */
+    private static final int VIRTUAL_NODES = 160;
+
+    private static class Node {
+        private volatile MediaServer mediaServer;
+        private final AtomicInteger streams;
+        private volatile Float load;
+
+        private Node(MediaServer mediaServer, int streams) {
+            this.mediaServer = mediaServer;
+            this.streams = new AtomicInteger(streams);
+        }
+
+        private boolean matchAssist(Boolean hasAssist) {
+            if (hasAssist == null) {
+                return true;
+            }
+            return hasAssist == (mediaServer.getRecordAssistPort() > 0);
+        }
+
+        private double weightedLoad() {
+            Float currentLoad = load;
+            return (streams.get() + 1) * (100 + (currentLoad == null ? 0 : currentLoad));
+        }
+    }
+
+    @Autowired
+    private UserSetting userSetting;
+
+    @Autowired
+    private RedisTemplate<Object, Object> redisTemplate;
+
+    @Autowired
+    private Map<String, IMediaNodeServerService> nodeServerServiceMap;
+
+    private final Map<String, Node> nodeMap = new ConcurrentHashMap<>();
+
+    private volatile TreeMap<Integer, String> hashRing = new TreeMap<>();
+
+    private final AtomicLong selectCount = new AtomicLong();
+
+    /**
+     * 节点上线或者信息更新
+     * @param streams 节点上新加入时的流数量，已存在的节点保留当前计数
+     */
+    public void online(MediaServer mediaServer, int streams) {
+        Node node = nodeMap.get(mediaServer.getId());
+        if (node != null) {
+            node.mediaServer = copy(mediaServer);
+            return;
+        }
+        nodeMap.putIfAbsent(mediaServer.getId(), new Node(copy(mediaServer), streams));
+        rebuildHashRing();
+    }
+
+    public void remove(String mediaServerId) {
+        if (mediaServerId != null && nodeMap.remove(mediaServerId) != null) {
+            rebuildHashRing();
+        }
+    }
+
+    public void clear() {
+        nodeMap.clear();
+        rebuildHashRing();
+    }
+
+    public void addCount(String mediaServerId, int delta) {
+        Node node = nodeMap.get(mediaServerId);
+        if (node != null) {
+            node.streams.addAndGet(delta);
+        }
+    }
+
+    @EventListener
+    public void onApplicationEvent(MediaServerOfflineEvent event) {
+        if (event.getMediaServer() != null) {
+            remove(event.getMediaServer().getId());
+        }
+    }
+
+    @EventListener
+    public void onApplicationEvent(MediaServerDeleteEvent event) {
+        if (event.getMediaServer() != null) {
+            remove(event.getMediaServer().getId());
+        }
+    }
+
+    /**
+     * 选择节点
+     * @param hasAssist null： 不限制， true：需要有assist服务， false：没有assist服务的节点
+     * @param hashKey 一致性哈希使用的key（设备编号等），为空时按流数量选择
+     * @return 节点信息的副本， 无可用节点时返回null
+     */
+    public MediaServer select(Boolean hasAssist, String hashKey) {
+        selectCount.incrementAndGet();
+        Node result;
+        String strategy = userSetting.getMediaServerLoadBalance();
+        if (CONSISTENT_HASH.equals(strategy) && hashKey != null) {
+            result = selectByHash(hasAssist, hashKey);
+        }else if (WEIGHTED.equals(strategy)) {
+            result = selectByWeightedLoad(hasAssist);
+        }else {
+            result = selectByLeastStreams(hasAssist);
+        }
+        if (result == null) {
+            log.info("获取负载最低的节点时无在线节点");
+            return null;
+        }
+        return copy(result.mediaServer);
+    }
+
+    private Node selectByLeastStreams(Boolean hasAssist) {
+        Node result = null;
+        for (Node node : nodeMap.values()) {
+            if (node.matchAssist(hasAssist) && (result == null || node.streams.get() < result.streams.get())) {
+                result = node;
+            }
+        }
+        return result;
+    }
+
+    private Node selectByWeightedLoad(Boolean hasAssist) {
+        Node result = null;
+        double resultLoad = 0;
+        for (Node node : nodeMap.values()) {
+            if (!node.matchAssist(hasAssist)) {
+                continue;
+            }
+            double load = node.weightedLoad();
+            if (result == null || load < resultLoad) {
+                result = node;
+                resultLoad = load;
+            }
+        }
+        return result;
+    }
+
+    private Node selectByHash(Boolean hasAssist, String hashKey) {
+        TreeMap<Integer, String> ring = hashRing;
+        if (ring.isEmpty()) {
+            return null;
+        }
+        int hash = hash(hashKey);
+        // 从哈希位置顺时针查找第一个满足条件的节点
+        for (Map<Integer, String> part : Arrays.asList(ring.tailMap(hash, true), ring.headMap(hash, false))) {
+            for (String mediaServerId : part.values()) {
+                Node node = nodeMap.get(mediaServerId);
+                if (node != null && node.matchAssist(hasAssist)) {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+    private synchronized void rebuildHashRing() {
+        TreeMap<Integer, String> ring = new TreeMap<>();
+        for (String mediaServerId : nodeMap.keySet()) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(mediaServerId + "#" + i), mediaServerId);
+            }
+        }
+        hashRing = ring;
+    }
+
+    private int hash(String key) {
+        return Hashing.murmur3_32_fixed().hashString(key, StandardCharsets.UTF_8).asInt();
+    }
+
+    /**
+     * 与redis中的在线节点对账，并刷新节点线程负载
+     */
+    @Scheduled(fixedDelay = 30 * 1000, initialDelay = 30 * 1000)
+    public void refresh() {
+        String onlineKey = VideoManagerConstants.ONLINE_MEDIA_SERVERS_PREFIX + userSetting.getServerId();
+        String serverKey = VideoManagerConstants.MEDIA_SERVER_PREFIX + userSetting.getServerId();
+        Set<ZSetOperations.TypedTuple<Object>> tuples = redisTemplate.opsForZSet().rangeWithScores(onlineKey, 0, -1);
+        Set<String> onlineIds = new HashSet<>();
+        if (tuples != null) {
+            for (ZSetOperations.TypedTuple<Object> tuple : tuples) {
+                if (tuple.getValue() == null) {
+                    continue;
+                }
+                String mediaServerId = tuple.getValue().toString();
+                MediaServer mediaServer = (MediaServer) redisTemplate.opsForHash().get(serverKey, mediaServerId);
+                if (mediaServer == null || !mediaServer.isStatus()) {
+                    continue;
+                }
+                onlineIds.add(mediaServerId);
+                int streams = tuple.getScore() == null ? 0 : tuple.getScore().intValue();
+                Node node = nodeMap.get(mediaServerId);
+                if (node == null) {
+                    online(mediaServer, streams);
+                }else {
+                    node.streams.set(streams);
+                }
+            }
+        }
+        if (nodeMap.keySet().retainAll(onlineIds)) {
+            rebuildHashRing();
+        }
+        for (Node node : nodeMap.values()) {
+            MediaServer mediaServer = node.mediaServer;
+            IMediaNodeServerService mediaNodeServerService = nodeServerServiceMap.get(mediaServer.getType());
+            if (mediaNodeServerService == null) {
+                continue;
+            }
+            mediaNodeServerService.getThreadsLoad(mediaServer).thenAccept(load -> node.load = load);
+        }
+    }
+
+    private MediaServer copy(MediaServer mediaServer) {
+        MediaServer result = new MediaServer();
+        BeanUtils.copyProperties(mediaServer, result);
+        return result;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "mediaServerLoad";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("strategy", userSetting.getMediaServerLoadBalance());
+        metrics.put("select", selectCount.get());
+        Map<String, Object> nodes = new LinkedHashMap<>();
+        for (Map.Entry<String, Node> entry : nodeMap.entrySet()) {
+            Node node = entry.getValue();
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("streams", node.streams.get());
+            item.put("load", node.load);
+            item.put("assist", node.mediaServer.getRecordAssistPort() > 0);
+            nodes.put(entry.getKey(), item);
+        }
+        metrics.put("node", nodes);
+        return metrics;
+    }
+}
@@ -80,6 +80,12 @@ public class MediaServerServiceImpl implements IMediaServerService {
     @Autowired
     private MediaConfig mediaConfig;
 
+    @Autowired
+    private MediaStreamLocator mediaStreamLocator;
+
+    @Autowired
+    private MediaServerLoadIndex mediaServerLoadIndex;
+
 
     /**
      * 流到来的处理
@@ -317,6 +323,8 @@ public class MediaServerServiceImpl implements IMediaServerService {
         redisTemplate.opsForHash().put(key, mediaServerInDataBase.getId(), mediaServerInDataBase);
         if (mediaServerInDataBase.isStatus()) {
             resetOnlineServerItem(mediaServerInDataBase);
+        }else {
+            mediaServerLoadIndex.remove(mediaServerInDataBase.getId());
         }
     }
 
@@ -412,6 +420,7 @@ public class MediaServerServiceImpl implements IMediaServerService {
     public void clearMediaServerForOnline() {
         String key = VideoManagerConstants.ONLINE_MEDIA_SERVERS_PREFIX + userSetting.getServerId();
         redisTemplate.delete(key);
+        mediaServerLoadIndex.clear();
     }
 
     @Override
@@ -446,13 +455,16 @@ public class MediaServerServiceImpl implements IMediaServerService {
         // 更新缓存
         String key = VideoManagerConstants.ONLINE_MEDIA_SERVERS_PREFIX + userSetting.getServerId();
         // 使用zset的分数作为当前并发量， 默认值设置为0
-        if (redisTemplate.opsForZSet().score(key, serverItem.getId()) == null) {  // 不存在则设置默认值 已存在则重置
+        Double score = redisTemplate.opsForZSet().score(key, serverItem.getId());
+        if (score == null) {  // 不存在则设置默认值 已存在则重置
             redisTemplate.opsForZSet().add(key, serverItem.getId(), 0L);
             // 查询服务流数量
             int count = getMediaList(serverItem);
             redisTemplate.opsForZSet().add(key, serverItem.getId(), count);
+            mediaServerLoadIndex.online(serverItem, count);
         }else {
             clearRTPServer(serverItem);
+            mediaServerLoadIndex.online(serverItem, score.intValue());
         }
     }
 
@@ -469,6 +481,7 @@ public class MediaServerServiceImpl implements IMediaServerService {
         }
         String key = VideoManagerConstants.ONLINE_MEDIA_SERVERS_PREFIX + userSetting.getServerId();
         redisTemplate.opsForZSet().incrementScore(key, mediaServerId, 1);
+        mediaServerLoadIndex.addCount(mediaServerId, 1);
 
     }
 
@@ -476,6 +489,7 @@ public class MediaServerServiceImpl implements IMediaServerService {
     public void removeCount(String mediaServerId) {
         String key = VideoManagerConstants.ONLINE_MEDIA_SERVERS_PREFIX + userSetting.getServerId();
         redisTemplate.opsForZSet().incrementScore(key, mediaServerId, - 1);
+        mediaServerLoadIndex.addCount(mediaServerId, -1);
     }
 
     /**
@@ -484,41 +498,17 @@ public class MediaServerServiceImpl implements IMediaServerService {
      */
     @Override
     public MediaServer getMediaServerForMinimumLoad(Boolean hasAssist) {
-        String key = VideoManagerConstants.ONLINE_MEDIA_SERVERS_PREFIX + userSetting.getServerId();
-        Long size = redisTemplate.opsForZSet().zCard(key);
-        if (size  == null || size == 0) {
-            log.info("获取负载最低的节点时无在线节点");
-            return null;
-        }
-
-        // 获取分数最低的，及并发最低的
-        Set<Object> objects = redisTemplate.opsForZSet().range(key, 0, -1);
-        ArrayList<Object> mediaServerObjectS = new ArrayList<>(objects);
-        MediaServer mediaServer = null;
-        if (hasAssist == null) {
-            String mediaServerId = (String)mediaServerObjectS.get(0);
-            mediaServer = getOne(mediaServerId);
-        }else if (hasAssist) {
-            for (Object mediaServerObject : mediaServerObjectS) {
-                String mediaServerId = (String)mediaServerObject;
-                MediaServer serverItem = getOne(mediaServerId);
-                if (serverItem.getRecordAssistPort() > 0) {
-                    mediaServer = serverItem;
-                    break;
-                }
-            }
-        }else if (!hasAssist) {
-            for (Object mediaServerObject : mediaServerObjectS) {
-                String mediaServerId = (String)mediaServerObject;
-                MediaServer serverItem = getOne(mediaServerId);
-                if (serverItem.getRecordAssistPort() == 0) {
-                    mediaServer = serverItem;
-                    break;
-                }
-            }
-        }
+        return getMediaServerForMinimumLoad(hasAssist, null);
+    }
 
-        return mediaServer;
+    /**
+     * 按配置的策略选择节点， 只读取内存中的负载快照
+     * @param hashKey 一致性哈希策略使用的key，一般为设备编号
+     * @return mediaServer
+     */
+    @Override
+    public MediaServer getMediaServerForMinimumLoad(Boolean hasAssist, String hashKey) {
+        return mediaServerLoadIndex.select(hasAssist, hashKey);
     }
 
     @Override
@@ -564,6 +554,7 @@ public class MediaServerServiceImpl implements IMediaServerService {
     public void delete(MediaServer mediaServer) {
         mediaServerMapper.delOne(mediaServer.getId());
         redisTemplate.opsForZSet().remove(VideoManagerConstants.ONLINE_MEDIA_SERVERS_PREFIX + userSetting.getServerId(), mediaServer.getId());
+        mediaServerLoadIndex.remove(mediaServer.getId());
         String key = VideoManagerConstants.MEDIA_SERVER_PREFIX + userSetting.getServerId() + ":" + mediaServer.getId();
         redisTemplate.delete(key);
         // 发送节点移除通知
@@ -894,27 +885,31 @@ public class MediaServerServiceImpl implements IMediaServerService {
 
     @Override
     public MediaServer getMediaServerByAppAndStream(String app, String stream) {
-        List<MediaServer> mediaServerList = getAll();
-        for (MediaServer mediaServer : mediaServerList) {
-            MediaInfo mediaInfo = getMediaInfo(mediaServer, app, stream);
-            if (mediaInfo != null) {
-                return mediaServer;
-            }
-        }
-        return null;
+        MediaStreamLocator.Located located = mediaStreamLocator.locate(app, stream, getOnlineForLocate());
+        return located == null ? null : located.getMediaServer();
     }
 
     @Override
     public StreamInfo getMediaByAppAndStream(String app, String stream) {
+        MediaStreamLocator.Located located = mediaStreamLocator.locate(app, stream, getOnlineForLocate());
+        if (located == null) {
+            return null;
+        }
+        MediaInfo mediaInfo = located.getMediaInfo();
+        return getStreamInfoByAppAndStream(located.getMediaServer(), app, stream, mediaInfo, mediaInfo.getCallId());
+    }
 
-        List<MediaServer> mediaServerList = getAll();
-        for (MediaServer mediaServer : mediaServerList) {
-            MediaInfo mediaInfo = getMediaInfo(mediaServer, app, stream);
-            if (mediaInfo != null) {
-                return getStreamInfoByAppAndStream(mediaServer, app, stream, mediaInfo, mediaInfo.getCallId());
+    /**
+     * 流只可能存在于在线节点上，直接从缓存读取，不再查库
+     */
+    private List<MediaServer> getOnlineForLocate() {
+        List<MediaServer> result = new ArrayList<>();
+        for (MediaServer mediaServer : getAllOnline()) {
+            if (mediaServer != null) {
+                result.add(mediaServer);
             }
         }
-        return null;
+        return result;
     }
 
     @Override
@@ -0,0 +1,251 @@
+package com.genersoft.iot.vmp.media.service.impl;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.conf.UserSetting;
+import com.genersoft.iot.vmp.conf.exception.ControllerException;
+import com.genersoft.iot.vmp.media.bean.MediaInfo;
+import com.genersoft.iot.vmp.media.bean.MediaServer;
+import com.genersoft.iot.vmp.media.event.media.MediaArrivalEvent;
+import com.genersoft.iot.vmp.media.event.media.MediaDepartureEvent;
+import com.genersoft.iot.vmp.media.event.mediaServer.MediaServerDeleteEvent;
+import com.genersoft.iot.vmp.media.event.mediaServer.MediaServerOfflineEvent;
+import com.genersoft.iot.vmp.media.service.IMediaNodeServerService;
+import com.genersoft.iot.vmp.vmanager.bean.ErrorCode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 流所在的媒体节点定位
+ * 优先使用由流注册/注销hook维护的 app/stream -> mediaServerId 索引，命中后只向该节点确认一次；
+ * 未命中时通过各节点的异步接口并发查询所有在线节点，取第一个查到的结果，
+ * 并发请求数由每个节点的舱壁限制，不再占用额外的线程； 得到结果或超时后取消其他节点未完成的请求
+ */
+@Slf4j
+@Component
+public class MediaStreamLocator implements MetricsSource {
+
+    /**
+     * 查询结果
+     */
+    public static class Located {
+        private final MediaServer mediaServer;
+        private final MediaInfo mediaInfo;
+
+        private Located(MediaServer mediaServer, MediaInfo mediaInfo) {
+            this.mediaServer = mediaServer;
+            this.mediaInfo = mediaInfo;
+        }
+
+        public MediaServer getMediaServer() {
+            return mediaServer;
+        }
+
+        public MediaInfo getMediaInfo() {
+            return mediaInfo;
+        }
+    }
+
+    @Autowired
+    private Map<String, IMediaNodeServerService> nodeServerServiceMap;
+
+    @Autowired
+    private UserSetting userSetting;
+
+    /**
+     * app/stream -> mediaServerId
+     */
+    private final Map<String, String> streamIndex = new ConcurrentHashMap<>();
+
+    private final AtomicLong indexHit = new AtomicLong();
+
+    private final AtomicLong indexStale = new AtomicLong();
+
+    private final AtomicLong fanOut = new AtomicLong();
+
+    private final AtomicLong notFound = new AtomicLong();
+
+    private final AtomicLong timeout = new AtomicLong();
+
+    @EventListener
+    public void onApplicationEvent(MediaArrivalEvent event) {
+        if (event.getMediaServer() == null) {
+            return;
+        }
+        streamIndex.put(getKey(event.getApp(), event.getStream()), event.getMediaServer().getId());
+    }
+
+    @EventListener
+    public void onApplicationEvent(MediaDepartureEvent event) {
+        if (event.getMediaServer() == null) {
+            return;
+        }
+        streamIndex.remove(getKey(event.getApp(), event.getStream()), event.getMediaServer().getId());
+    }
+
+    @EventListener
+    public void onApplicationEvent(MediaServerOfflineEvent event) {
+        if (event.getMediaServer() != null) {
+            removeByMediaServer(event.getMediaServer().getId());
+        }
+    }
+
+    @EventListener
+    public void onApplicationEvent(MediaServerDeleteEvent event) {
+        if (event.getMediaServer() != null) {
+            removeByMediaServer(event.getMediaServer().getId());
+        }
+    }
+
+    private void removeByMediaServer(String mediaServerId) {
+        streamIndex.values().removeIf(mediaServerId::equals);
+    }
+
+    /**
+     * 查找流所在的媒体节点
+     * @param mediaServerList 候选的媒体节点
+     * @return 未找到时返回null
+     * @throws ControllerException 并发查询所有节点超时，无法确定流是否存在
+     */
+    public Located locate(String app, String stream, List<MediaServer> mediaServerList) {
+        if (mediaServerList == null || mediaServerList.isEmpty()) {
+            return null;
+        }
+        String key = getKey(app, stream);
+        String mediaServerId = streamIndex.get(key);
+        if (mediaServerId != null) {
+            for (MediaServer mediaServer : mediaServerList) {
+                if (mediaServerId.equals(mediaServer.getId())) {
+                    MediaInfo mediaInfo = query(mediaServer, app, stream);
+                    if (mediaInfo != null) {
+                        indexHit.incrementAndGet();
+                        return new Located(mediaServer, mediaInfo);
+                    }
+                    break;
+                }
+            }
+            indexStale.incrementAndGet();
+            streamIndex.remove(key, mediaServerId);
+        }
+        Located located = fanOut(app, stream, mediaServerList);
+        if (located == null) {
+            notFound.incrementAndGet();
+            return null;
+        }
+        streamIndex.put(key, located.getMediaServer().getId());
+        return located;
+    }
+
+    private Located fanOut(String app, String stream, List<MediaServer> mediaServerList) {
+        fanOut.incrementAndGet();
+        if (mediaServerList.size() == 1) {
+            MediaServer mediaServer = mediaServerList.get(0);
+            MediaInfo mediaInfo = query(mediaServer, app, stream);
+            return mediaInfo == null ? null : new Located(mediaServer, mediaInfo);
+        }
+        CompletableFuture<Located> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(mediaServerList.size());
+        List<CompletableFuture<MediaInfo>> queryList = new ArrayList<>(mediaServerList.size());
+        for (MediaServer mediaServer : mediaServerList) {
+            if (result.isDone()) {
+                break;
+            }
+            CompletableFuture<MediaInfo> query = queryAsync(mediaServer, app, stream);
+            queryList.add(query);
+            query.whenComplete((mediaInfo, throwable) -> {
+                if (query.isCancelled()) {
+                    return;
+                }
+                if (throwable != null) {
+                    // 节点不可达等异常视为未找到，不影响其他节点的结果
+                    log.debug("[流定位] 查询节点失败 {}, {}/{}", mediaServer.getId(), app, stream, throwable);
+                }else if (mediaInfo != null) {
+                    result.complete(new Located(mediaServer, mediaInfo));
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    result.complete(null);
+                }
+            });
+        }
+        // 已经得到结果或者超时，取消其他节点未完成的请求，释放节点的舱壁
+        result.whenComplete((located, throwable) -> queryList.forEach(query -> query.cancel(false)));
+        try {
+            return result.get(userSetting.getStreamLocateTimeout(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(false);
+            timeout.incrementAndGet();
+            log.warn("[流定位] 查询超时 {}/{}, 节点数： {}", app, stream, mediaServerList.size());
+            throw new ControllerException(ErrorCode.ERROR100.getCode(), "查询流所在的媒体节点超时");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            log.warn("[流定位] 查询失败 {}/{}", app, stream, e);
+            return null;
+        }
+    }
+
+    private CompletableFuture<MediaInfo> queryAsync(MediaServer mediaServer, String app, String stream) {
+        IMediaNodeServerService mediaNodeServerService = nodeServerServiceMap.get(mediaServer.getType());
+        if (mediaNodeServerService == null) {
+            log.info("[流定位] 失败, mediaServer的类型： {}，未找到对应的实现类", mediaServer.getType());
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return mediaNodeServerService.getMediaInfoAsync(mediaServer, app, stream);
+        } catch (Exception e) {
+            CompletableFuture<MediaInfo> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    private MediaInfo query(MediaServer mediaServer, String app, String stream) {
+        IMediaNodeServerService mediaNodeServerService = nodeServerServiceMap.get(mediaServer.getType());
+        if (mediaNodeServerService == null) {
+            log.info("[流定位] 失败, mediaServer的类型： {}，未找到对应的实现类", mediaServer.getType());
+            return null;
+        }
+        try {
+            return mediaNodeServerService.getMediaInfo(mediaServer, app, stream);
+        } catch (Exception e) {
+            // 节点不可达等异常视为未找到，不影响其他节点的结果
+            log.debug("[流定位] 查询节点失败 {}, {}/{}", mediaServer.getId(), app, stream, e);
+            return null;
+        }
+    }
+
+    private String getKey(String app, String stream) {
+        return app + "/" + stream;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "streamLocator";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("indexSize", streamIndex.size());
+        metrics.put("indexHit", indexHit.get());
+        metrics.put("indexStale", indexStale.get());
+        metrics.put("fanOut", fanOut.get());
+        metrics.put("notFound", notFound.get());
+        metrics.put("timeout", timeout.get());
+        return metrics;
+    }
+}
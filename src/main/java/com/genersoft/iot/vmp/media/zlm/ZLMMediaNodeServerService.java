@@ -21,6 +21,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.ObjectUtils;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @Service("zlm")
@@ -240,6 +241,34 @@ public class ZLMMediaNodeServerService implements IMediaNodeServerService {
         return MediaInfo.getInstance(jsonObject, mediaServer, userSetting.getServerId());
     }
 
+    @Override
+    public CompletableFuture<MediaInfo> getMediaInfoAsync(MediaServer mediaServer, String app, String stream) {
+        return ZLMRESTfulUtils.thenApplyCancellable(zlmresTfulUtils.getMediaInfoAsync(mediaServer, app, "rtsp", stream), jsonObject -> {
+            if (jsonObject == null || jsonObject.getInteger("code") != 0) {
+                return null;
+            }
+            return MediaInfo.getInstance(jsonObject, mediaServer, userSetting.getServerId());
+        });
+    }
+
+    @Override
+    public CompletableFuture<Float> getThreadsLoad(MediaServer mediaServer) {
+        return zlmresTfulUtils.getThreadsLoadAsync(mediaServer).thenApply(jsonObject -> {
+            if (jsonObject == null || jsonObject.getInteger("code") != 0) {
+                return null;
+            }
+            JSONArray data = jsonObject.getJSONArray("data");
+            if (data == null || data.isEmpty()) {
+                return null;
+            }
+            float total = 0;
+            for (int i = 0; i < data.size(); i++) {
+                total += data.getJSONObject(i).getFloatValue("load");
+            }
+            return total / data.size();
+        });
+    }
+
     @Override
     public Boolean pauseRtpCheck(MediaServer mediaServer, String streamKey) {
         JSONObject jsonObject = zlmresTfulUtils.pauseRtpCheck(mediaServer, streamKey);
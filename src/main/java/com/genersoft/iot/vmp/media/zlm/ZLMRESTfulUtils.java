@@ -2,163 +2,360 @@ package com.genersoft.iot.vmp.media.zlm;
 
 import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONObject;
+import com.genersoft.iot.vmp.common.MetricsSource;
 import com.genersoft.iot.vmp.media.bean.MediaServer;
+import com.genersoft.iot.vmp.media.event.mediaServer.MediaServerDeleteEvent;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
 import okhttp3.logging.HttpLoggingInterceptor;
 import org.jetbrains.annotations.NotNull;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * ZLM接口调用
+ * 每个流媒体节点使用独立的连接池和调度器，并限制单节点的并发请求数（舱壁），一个节点变慢不会拖垮其他节点。
+ * 异步接口返回CompletableFuture；阻塞接口保持原有调用方式不变，在调用线程上执行，与异步接口共用连接池、舱壁和统计
+ */
 @Slf4j
 @Component
-public class ZLMRESTfulUtils {
+public class ZLMRESTfulUtils implements MetricsSource {
+
+    /**
+     * 单个节点同时执行的请求数
+     */
+    private static final int MAX_REQUESTS_PER_NODE = 32;
+
+    /**
+     * 单个节点执行中和排队中的请求总数，超出后直接失败
+     */
+    private static final int MAX_PENDING_PER_NODE = 256;
+
+    private static final int CONNECT_TIMEOUT = 8;
 
-    private OkHttpClient client;
+    private static final int READ_TIMEOUT = 10;
 
     public interface RequestCallback{
         void run(JSONObject response);
     }
 
-    private OkHttpClient getClient(){
-        return getClient(null);
+    /**
+     * 单个节点的客户端
+     */
+    private static class NodeClient {
+        private final String address;
+        private final OkHttpClient client;
+        private final Semaphore permits = new Semaphore(MAX_PENDING_PER_NODE);
+        private final AtomicLong rejected = new AtomicLong();
+
+        private NodeClient(String address, OkHttpClient client) {
+            this.address = address;
+            this.client = client;
+        }
     }
 
-    private OkHttpClient getClient(Integer readTimeOut){
-        if (client == null) {
-            if (readTimeOut == null) {
-                readTimeOut = 10;
-            }
-            OkHttpClient.Builder httpClientBuilder = new OkHttpClient.Builder();
-            //todo 暂时写死超时时间 均为5s
-            // 设置连接超时时间
-            httpClientBuilder.connectTimeout(8,TimeUnit.SECONDS);
-            // 设置读取超时时间
-            httpClientBuilder.readTimeout(readTimeOut,TimeUnit.SECONDS);
-            // 设置连接池
-            httpClientBuilder.connectionPool(new ConnectionPool(16, 5, TimeUnit.MINUTES));
-            if (log.isDebugEnabled()) {
-                HttpLoggingInterceptor logging = new HttpLoggingInterceptor(message -> {
-                    log.debug("http请求参数：" + message);
-                });
-                logging.setLevel(HttpLoggingInterceptor.Level.BASIC);
-                // OkHttp進行添加攔截器loggingInterceptor
-                httpClientBuilder.addInterceptor(logging);
+    /**
+     * 单个接口的调用统计
+     */
+    private static class ApiMetrics {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder error = new LongAdder();
+        private final LongAdder totalTime = new LongAdder();
+        private final AtomicLong maxTime = new AtomicLong();
+
+        private void record(long time, boolean success) {
+            count.increment();
+            if (!success) {
+                error.increment();
             }
-            client = httpClientBuilder.build();
+            totalTime.add(time);
+            maxTime.accumulateAndGet(time, Math::max);
         }
-        return client;
+    }
+
+    private final OkHttpClient baseClient = buildBaseClient();
+
+    private final Map<String, NodeClient> nodeClientMap = new ConcurrentHashMap<>();
 
+    private final Map<String, ApiMetrics> apiMetricsMap = new ConcurrentHashMap<>();
+
+    private OkHttpClient buildBaseClient() {
+        OkHttpClient.Builder httpClientBuilder = new OkHttpClient.Builder();
+        // 设置连接超时时间
+        httpClientBuilder.connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS);
+        // 设置读取超时时间
+        httpClientBuilder.readTimeout(READ_TIMEOUT, TimeUnit.SECONDS);
+        if (log.isDebugEnabled()) {
+            HttpLoggingInterceptor logging = new HttpLoggingInterceptor(message -> {
+                log.debug("http请求参数：" + message);
+            });
+            logging.setLevel(HttpLoggingInterceptor.Level.BASIC);
+            // OkHttp進行添加攔截器loggingInterceptor
+            httpClientBuilder.addInterceptor(logging);
+        }
+        return httpClientBuilder.build();
     }
 
-    public JSONObject sendPost(MediaServer mediaServerItem, String api, Map<String, Object> param, RequestCallback callback) {
-        return sendPost(mediaServerItem, api, param, callback, null);
+    private NodeClient getNodeClient(MediaServer mediaServer) {
+        String address = mediaServer.getIp() + ":" + mediaServer.getHttpPort();
+        NodeClient nodeClient = nodeClientMap.get(mediaServer.getId());
+        if (nodeClient != null && nodeClient.address.equals(address)) {
+            return nodeClient;
+        }
+        NodeClient newNodeClient = nodeClientMap.compute(mediaServer.getId(), (key, old) -> {
+            if (old != null && old.address.equals(address)) {
+                return old;
+            }
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(MAX_REQUESTS_PER_NODE);
+            dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_NODE);
+            OkHttpClient client = baseClient.newBuilder()
+                    .dispatcher(dispatcher)
+                    .connectionPool(new ConnectionPool(MAX_REQUESTS_PER_NODE, 5, TimeUnit.MINUTES))
+                    .build();
+            return new NodeClient(address, client);
+        });
+        if (nodeClient != null && nodeClient != newNodeClient) {
+            // 节点地址变化，释放旧的连接
+            close(nodeClient);
+        }
+        return newNodeClient;
     }
 
+    private void close(NodeClient nodeClient) {
+        nodeClient.client.dispatcher().executorService().shutdown();
+        nodeClient.client.connectionPool().evictAll();
+    }
 
-    public JSONObject sendPost(MediaServer mediaServerItem, String api, Map<String, Object> param, RequestCallback callback, Integer readTimeOut) {
-        OkHttpClient client = getClient(readTimeOut);
+    @EventListener
+    public void onApplicationEvent(MediaServerDeleteEvent event) {
+        if (event.getMediaServer() == null) {
+            return;
+        }
+        NodeClient nodeClient = nodeClientMap.remove(event.getMediaServer().getId());
+        if (nodeClient != null) {
+            close(nodeClient);
+        }
+    }
 
-        if (mediaServerItem == null) {
-            return null;
+    @PreDestroy
+    public void destroy() {
+        for (NodeClient nodeClient : nodeClientMap.values()) {
+            close(nodeClient);
         }
-        String url = String.format("http://%s:%s/index/api/%s",  mediaServerItem.getIp(), mediaServerItem.getHttpPort(), api);
+        nodeClientMap.clear();
+    }
+
+    private JSONObject getFailResult() {
         JSONObject responseJSON = new JSONObject();
         //-2自定义流媒体 调用错误码
         responseJSON.put("code",-2);
         responseJSON.put("msg","流媒体调用失败");
+        return responseJSON;
+    }
+
+    public JSONObject sendPost(MediaServer mediaServerItem, String api, Map<String, Object> param, RequestCallback callback) {
+        return sendPost(mediaServerItem, api, param, callback, null);
+    }
 
+    public JSONObject sendPost(MediaServer mediaServerItem, String api, Map<String, Object> param, RequestCallback callback, Integer readTimeOut) {
+        if (mediaServerItem == null) {
+            return null;
+        }
+        if (callback == null) {
+            JSONObject response = execute(mediaServerItem, api, param, readTimeOut);
+            return response == null ? getFailResult() : response;
+        }
+        call(mediaServerItem, api, param, readTimeOut).thenAccept(response -> {
+            if (response != null) {
+                callback.run(response);
+            }
+        });
+        return getFailResult();
+    }
+
+    /**
+     * 异步调用ZLM接口
+     * @return 调用失败时结果为code=-2的JSON， 不会异常完成； 取消时中止请求并释放舱壁
+     */
+    public CompletableFuture<JSONObject> sendPostAsync(MediaServer mediaServerItem, String api, Map<String, Object> param) {
+        return sendPostAsync(mediaServerItem, api, param, null);
+    }
+
+    public CompletableFuture<JSONObject> sendPostAsync(MediaServer mediaServerItem, String api, Map<String, Object> param, Integer readTimeOut) {
+        if (mediaServerItem == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return thenApplyCancellable(call(mediaServerItem, api, param, readTimeOut),
+                response -> response == null ? getFailResult() : response);
+    }
+
+    /**
+     * 与thenApply相同，并且取消返回的future时同时取消原来的future，使取消能传递到正在执行的请求
+     */
+    public static <T, R> CompletableFuture<R> thenApplyCancellable(CompletableFuture<T> future, Function<? super T, ? extends R> fn) {
+        CompletableFuture<R> result = future.thenApply(fn);
+        result.whenComplete((value, throwable) -> {
+            if (result.isCancelled()) {
+                future.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    private Request buildRequest(MediaServer mediaServerItem, String url, Map<String, Object> param) {
         FormBody.Builder builder = new FormBody.Builder();
         builder.add("secret",mediaServerItem.getSecret());
-        if (param != null && param.keySet().size() > 0) {
+        if (param != null && !param.isEmpty()) {
             for (String key : param.keySet()){
                 if (param.get(key) != null) {
                     builder.add(key, param.get(key).toString());
                 }
             }
         }
-
-        FormBody body = builder.build();
-
-        Request request = new Request.Builder()
-                .post(body)
+        return new Request.Builder()
+                .post(builder.build())
                 .url(url)
                 .build();
-            if (callback == null) {
-                try {
-                    Response response = client.newCall(request).execute();
-                    if (response.isSuccessful()) {
-                        ResponseBody responseBody = response.body();
-                        if (responseBody != null) {
-                            String responseStr = responseBody.string();
-                            responseJSON = JSON.parseObject(responseStr);
-                        }
-                    }else {
-                        response.close();
-                        Objects.requireNonNull(response.body()).close();
-                    }
-                }catch (IOException e) {
-                    log.error(String.format("[ %s ]请求失败: %s", url, e.getMessage()));
+    }
 
-                    if(e instanceof SocketTimeoutException){
-                        //读取超时超时异常
-                        log.error(String.format("读取ZLM数据超时失败: %s, %s", url, e.getMessage()));
-                    }
-                    if(e instanceof ConnectException){
-                        //判断连接异常，我这里是报Failed to connect to 10.7.5.144
-                        log.error(String.format("连接ZLM连接失败: %s, %s", url, e.getMessage()));
-                    }
+    private OkHttpClient getClient(NodeClient nodeClient, Integer readTimeOut) {
+        if (readTimeOut == null) {
+            return nodeClient.client;
+        }
+        // 共用节点的连接池和调度器，只修改本次请求的超时时间
+        return nodeClient.client.newBuilder().readTimeout(readTimeOut, TimeUnit.SECONDS).build();
+    }
+
+    private boolean tryAcquire(NodeClient nodeClient, ApiMetrics apiMetrics, String url) {
+        if (nodeClient.permits.tryAcquire()) {
+            return true;
+        }
+        nodeClient.rejected.incrementAndGet();
+        apiMetrics.record(0, false);
+        log.warn("[ZLM接口] 节点请求积压过多， 拒绝请求: {}", url);
+        return false;
+    }
 
-                }catch (Exception e){
-                    log.error(String.format("访问ZLM失败: %s, %s", url, e.getMessage()));
+    private JSONObject parseResponse(Response response, String url) {
+        try (Response ignored = response) {
+            if (response.isSuccessful()) {
+                ResponseBody responseBody = response.body();
+                if (responseBody != null) {
+                    return JSON.parseObject(responseBody.string());
                 }
             }else {
-                client.newCall(request).enqueue(new Callback(){
-
-                    @Override
-                    public void onResponse(@NotNull Call call, @NotNull Response response){
-                        if (response.isSuccessful()) {
-                            try {
-                                String responseStr = Objects.requireNonNull(response.body()).string();
-                                callback.run(JSON.parseObject(responseStr));
-                            } catch (IOException e) {
-                                log.error(String.format("[ %s ]请求失败: %s", url, e.getMessage()));
-                            }
-
-                        }else {
-                            response.close();
-                            Objects.requireNonNull(response.body()).close();
-                        }
-                    }
+                log.error(String.format("[ %s ]请求失败: %s %s", url, response.code(), response.message()));
+            }
+        } catch (Exception e) {
+            log.error(String.format("[ %s ]请求失败: %s", url, e.getMessage()));
+        }
+        return null;
+    }
 
-                    @Override
-                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                        log.error(String.format("连接ZLM失败: %s, %s", call.request().toString(), e.getMessage()));
+    private void logFailure(String url, IOException e) {
+        log.error(String.format("[ %s ]请求失败: %s", url, e.getMessage()));
 
-                        if(e instanceof SocketTimeoutException){
-                            //读取超时超时异常
-                            log.error(String.format("读取ZLM数据失败: %s, %s", call.request().toString(), e.getMessage()));
-                        }
-                        if(e instanceof ConnectException){
-                            //判断连接异常，我这里是报Failed to connect to 10.7.5.144
-                            log.error(String.format("连接ZLM失败: %s, %s", call.request().toString(), e.getMessage()));
-                        }
-                    }
-                });
+        if(e instanceof SocketTimeoutException){
+            //读取超时超时异常
+            log.error(String.format("读取ZLM数据超时失败: %s, %s", url, e.getMessage()));
+        }
+        if(e instanceof ConnectException){
+            //判断连接异常，我这里是报Failed to connect to 10.7.5.144
+            log.error(String.format("连接ZLM连接失败: %s, %s", url, e.getMessage()));
+        }
+    }
+
+    /**
+     * 在调用线程上同步执行，不占用节点调度器的线程，避免回调里再同步调用同一节点时互相等待
+     * @return 请求失败时返回null
+     */
+    private JSONObject execute(MediaServer mediaServerItem, String api, Map<String, Object> param, Integer readTimeOut) {
+        String url = String.format("http://%s:%s/index/api/%s",  mediaServerItem.getIp(), mediaServerItem.getHttpPort(), api);
+        ApiMetrics apiMetrics = apiMetricsMap.computeIfAbsent(api, key -> new ApiMetrics());
+        NodeClient nodeClient = getNodeClient(mediaServerItem);
+        if (!tryAcquire(nodeClient, apiMetrics, url)) {
+            return null;
+        }
+        long startTime = System.currentTimeMillis();
+        JSONObject responseJSON = null;
+        try {
+            Response response = getClient(nodeClient, readTimeOut).newCall(buildRequest(mediaServerItem, url, param)).execute();
+            responseJSON = parseResponse(response, url);
+        } catch (IOException e) {
+            logFailure(url, e);
+        } catch (Exception e) {
+            log.error(String.format("访问ZLM失败: %s, %s", url, e.getMessage()));
+        } finally {
+            nodeClient.permits.release();
+            apiMetrics.record(System.currentTimeMillis() - startTime, responseJSON != null);
+        }
+        return responseJSON;
+    }
+
+    /**
+     * 由节点的调度器异步执行
+     * @return 请求失败时结果为null， 取消时中止请求
+     */
+    private CompletableFuture<JSONObject> call(MediaServer mediaServerItem, String api, Map<String, Object> param, Integer readTimeOut) {
+        CompletableFuture<JSONObject> future = new CompletableFuture<>();
+        String url = String.format("http://%s:%s/index/api/%s",  mediaServerItem.getIp(), mediaServerItem.getHttpPort(), api);
+        ApiMetrics apiMetrics = apiMetricsMap.computeIfAbsent(api, key -> new ApiMetrics());
+        NodeClient nodeClient = getNodeClient(mediaServerItem);
+        if (!tryAcquire(nodeClient, apiMetrics, url)) {
+            future.complete(null);
+            return future;
+        }
+        long startTime = System.currentTimeMillis();
+        Call okHttpCall = getClient(nodeClient, readTimeOut).newCall(buildRequest(mediaServerItem, url, param));
+        // 调用方不再需要结果(例如并发查询时其他节点已经返回)，中止请求，舱壁在onFailure中释放
+        future.whenComplete((responseJSON, throwable) -> {
+            if (future.isCancelled()) {
+                okHttpCall.cancel();
             }
+        });
+        okHttpCall.enqueue(new Callback(){
 
+            @Override
+            public void onResponse(@NotNull Call call, @NotNull Response response){
+                finish(parseResponse(response, url));
+            }
 
+            @Override
+            public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                if (call.isCanceled()) {
+                    nodeClient.permits.release();
+                    return;
+                }
+                logFailure(url, e);
+                finish(null);
+            }
 
-        return responseJSON;
+            private void finish(JSONObject responseJSON) {
+                nodeClient.permits.release();
+                apiMetrics.record(System.currentTimeMillis() - startTime, responseJSON != null);
+                future.complete(responseJSON);
+            }
+        });
+        return future;
     }
 
     public void sendGetForImg(MediaServer mediaServerItem, String api, Map<String, Object> params, String targetPath, String fileName) {
@@ -182,9 +379,16 @@ public class ZLMRESTfulUtils {
         if (log.isDebugEnabled()){
             log.debug(request.toString());
         }
+        ApiMetrics apiMetrics = apiMetricsMap.computeIfAbsent(api, key -> new ApiMetrics());
+        NodeClient nodeClient = getNodeClient(mediaServerItem);
+        // 截图同样受节点舱壁限制， 避免大量截图请求占满一个慢节点
+        if (!tryAcquire(nodeClient, apiMetrics, url)) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        boolean success = false;
         try {
-            OkHttpClient client = getClient();
-            Response response = client.newCall(request).execute();
+            Response response = nodeClient.client.newCall(request).execute();
             if (response.isSuccessful()) {
                 if (targetPath != null) {
                     File snapFolder = new File(targetPath);
@@ -200,6 +404,7 @@ public class ZLMRESTfulUtils {
                     outStream.write(Objects.requireNonNull(response.body()).bytes());
                     outStream.flush();
                     outStream.close();
+                    success = true;
                 } else {
                     log.error(String.format("[ %s ]请求失败: %s %s", url, response.code(), response.message()));
                 }
@@ -212,9 +417,46 @@ public class ZLMRESTfulUtils {
             log.info("请检查media配置并确认ZLM已启动...");
         } catch (IOException e) {
             log.error(String.format("[ %s ]请求失败: %s", url, e.getMessage()));
+        } finally {
+            nodeClient.permits.release();
+            apiMetrics.record(System.currentTimeMillis() - startTime, success);
         }
     }
 
+    @Override
+    public String getMetricsName() {
+        return "zlmApi";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        Map<String, Object> apis = new LinkedHashMap<>();
+        for (Map.Entry<String, ApiMetrics> entry : apiMetricsMap.entrySet()) {
+            ApiMetrics apiMetrics = entry.getValue();
+            Map<String, Object> item = new LinkedHashMap<>();
+            long count = apiMetrics.count.sum();
+            item.put("count", count);
+            item.put("error", apiMetrics.error.sum());
+            item.put("avgTime", count == 0 ? 0 : apiMetrics.totalTime.sum() / count);
+            item.put("maxTime", apiMetrics.maxTime.get());
+            apis.put(entry.getKey(), item);
+        }
+        metrics.put("api", apis);
+        Map<String, Object> nodes = new LinkedHashMap<>();
+        for (Map.Entry<String, NodeClient> entry : nodeClientMap.entrySet()) {
+            NodeClient nodeClient = entry.getValue();
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("pending", MAX_PENDING_PER_NODE - nodeClient.permits.availablePermits());
+            item.put("running", nodeClient.client.dispatcher().runningCallsCount());
+            item.put("rejected", nodeClient.rejected.get());
+            item.put("idleConnections", nodeClient.client.connectionPool().idleConnectionCount());
+            nodes.put(entry.getKey(), item);
+        }
+        metrics.put("node", nodes);
+        return metrics;
+    }
+
     public JSONObject isMediaOnline(MediaServer mediaServerItem, String app, String stream, String schema){
         Map<String, Object> param = new HashMap<>();
         if (app != null) {
@@ -262,6 +504,19 @@ public class ZLMRESTfulUtils {
         return sendPost(mediaServerItem, "getMediaInfo",param, null);
     }
 
+    public CompletableFuture<JSONObject> getMediaInfoAsync(MediaServer mediaServerItem, String app, String schema, String stream){
+        Map<String, Object> param = new HashMap<>();
+        param.put("app",app);
+        param.put("schema",schema);
+        param.put("stream",stream);
+        param.put("vhost","__defaultVhost__");
+        return sendPostAsync(mediaServerItem, "getMediaInfo",param);
+    }
+
+    public CompletableFuture<JSONObject> getThreadsLoadAsync(MediaServer mediaServerItem){
+        return sendPostAsync(mediaServerItem, "getThreadsLoad",null);
+    }
+
     public JSONObject getRtpInfo(MediaServer mediaServerItem, String stream_id){
         Map<String, Object> param = new HashMap<>();
         param.put("stream_id",stream_id);
@@ -15,6 +15,8 @@ public interface IMobilePositionService {
 
     List<MobilePosition> queryMobilePositions(String deviceId, String channelId, String startTime, String endTime);
 
+    List<MobilePosition> queryTrack(String deviceId, String channelId, String startTime, String endTime, int maxPoints);
+
     List<Platform> queryEnablePlatformListWithAsMessageChannel();
 
     MobilePosition queryLatestPosition(String deviceId);
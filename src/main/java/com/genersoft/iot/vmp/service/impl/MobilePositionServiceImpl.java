@@ -7,8 +7,8 @@ import com.genersoft.iot.vmp.gb28181.bean.Platform;
 import com.genersoft.iot.vmp.gb28181.dao.PlatformMapper;
 import com.genersoft.iot.vmp.service.IMobilePositionService;
 import com.genersoft.iot.vmp.gb28181.dao.DeviceChannelMapper;
-import com.genersoft.iot.vmp.gb28181.dao.DeviceMobilePositionMapper;
 import com.genersoft.iot.vmp.service.bean.GPSMsgInfo;
+import com.genersoft.iot.vmp.storager.impl.MobilePositionHistoryStore;
 import com.genersoft.iot.vmp.utils.DateUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -30,7 +30,7 @@ public class MobilePositionServiceImpl implements IMobilePositionService {
     private DeviceChannelMapper channelMapper;
 
     @Autowired
-    private DeviceMobilePositionMapper mobilePositionMapper;
+    private MobilePositionHistoryStore mobilePositionHistoryStore;
 
     @Autowired
     private UserSetting userSetting;
@@ -76,8 +76,16 @@ public class MobilePositionServiceImpl implements IMobilePositionService {
      * 查询移动位置轨迹
      */
     @Override
-    public synchronized List<MobilePosition> queryMobilePositions(String deviceId, String channelId, String startTime, String endTime) {
-        return mobilePositionMapper.queryPositionByDeviceIdAndTime(deviceId, channelId, startTime, endTime);
+    public List<MobilePosition> queryMobilePositions(String deviceId, String channelId, String startTime, String endTime) {
+        return mobilePositionHistoryStore.queryTrack(deviceId, channelId, startTime, endTime, 0);
+    }
+
+    /**
+     * 查询抽稀后的移动位置轨迹
+     */
+    @Override
+    public List<MobilePosition> queryTrack(String deviceId, String channelId, String startTime, String endTime, int maxPoints) {
+        return mobilePositionHistoryStore.queryTrack(deviceId, channelId, startTime, endTime, maxPoints);
     }
 
     @Override
@@ -91,7 +99,7 @@ public class MobilePositionServiceImpl implements IMobilePositionService {
      */
     @Override
     public MobilePosition queryLatestPosition(String deviceId) {
-        return mobilePositionMapper.queryLatestPositionByDevice(deviceId);
+        return mobilePositionHistoryStore.queryLatest(deviceId);
     }
 
     @Override
@@ -108,7 +116,7 @@ public class MobilePositionServiceImpl implements IMobilePositionService {
             return;
         }
         if (userSetting.getSavePositionHistory()) {
-            mobilePositionMapper.batchadd(mobilePositions);
+            mobilePositionHistoryStore.insert(mobilePositions);
         }
         log.info("[移动位置订阅]更新通道位置： {}", mobilePositions.size());
         Map<String, DeviceChannel> updateChannelMap = new HashMap<>();
@@ -1,6 +1,7 @@
 package com.genersoft.iot.vmp.service.impl;
 
 import com.baomidou.dynamic.datasource.annotation.DS;
+import com.genersoft.iot.vmp.conf.security.JwtTokenCache;
 import com.genersoft.iot.vmp.service.IUserApiKeyService;
 import com.genersoft.iot.vmp.storager.dao.UserApiKeyMapper;
 import com.genersoft.iot.vmp.storager.dao.dto.UserApiKey;
@@ -24,6 +25,9 @@ public class UserApiKeyServiceImpl implements IUserApiKeyService {
     @Autowired
     private RedisTemplate<Object, Object> redisTemplate;
 
+    @Autowired
+    private JwtTokenCache jwtTokenCache;
+
     @Override
     public int addApiKey(UserApiKey userApiKey) {
         return userApiKeyMapper.add(userApiKey);
@@ -50,13 +54,17 @@ public class UserApiKeyServiceImpl implements IUserApiKeyService {
     @CacheEvict(cacheNames = "userApiKey", key = "#id")
     @Override
     public int enable(Integer id) {
-        return userApiKeyMapper.enable(id);
+        int result = userApiKeyMapper.enable(id);
+        jwtTokenCache.invalidateApiKey(id);
+        return result;
     }
 
     @CacheEvict(cacheNames = "userApiKey", key = "#id")
     @Override
     public int disable(Integer id) {
-        return userApiKeyMapper.disable(id);
+        int result = userApiKeyMapper.disable(id);
+        jwtTokenCache.invalidateApiKey(id);
+        return result;
     }
 
     @CacheEvict(cacheNames = "userApiKey", key = "#id")
@@ -68,13 +76,17 @@ public class UserApiKeyServiceImpl implements IUserApiKeyService {
     @CacheEvict(cacheNames = "userApiKey", key = "#id")
     @Override
     public int delete(Integer id) {
-        return userApiKeyMapper.delete(id);
+        int result = userApiKeyMapper.delete(id);
+        jwtTokenCache.invalidateApiKey(id);
+        return result;
     }
 
     @CacheEvict(cacheNames = "userApiKey", key = "#id")
     @Override
     public int reset(Integer id, String apiKey) {
-        return userApiKeyMapper.apiKey(id, apiKey);
+        int result = userApiKeyMapper.apiKey(id, apiKey);
+        jwtTokenCache.invalidateApiKey(id);
+        return result;
     }
 
 }
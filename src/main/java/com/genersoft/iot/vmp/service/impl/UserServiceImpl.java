@@ -1,6 +1,7 @@
 package com.genersoft.iot.vmp.service.impl;
 
 import com.baomidou.dynamic.datasource.annotation.DS;
+import com.genersoft.iot.vmp.conf.security.JwtTokenCache;
 import com.genersoft.iot.vmp.service.IUserService;
 import com.genersoft.iot.vmp.storager.dao.UserMapper;
 import com.genersoft.iot.vmp.storager.dao.dto.User;
@@ -19,6 +20,9 @@ public class UserServiceImpl implements IUserService {
     @Autowired
     private UserMapper userMapper;
 
+    @Autowired
+    private JwtTokenCache jwtTokenCache;
+
     @Override
     public User getUser(String username, String password) {
         return userMapper.select(username, password);
@@ -28,7 +32,9 @@ public class UserServiceImpl implements IUserService {
     public boolean changePassword(int id, String password) {
         User user = userMapper.selectById(id);
         user.setPassword(password);
-        return userMapper.update(user) > 0;
+        boolean result = userMapper.update(user) > 0;
+        jwtTokenCache.invalidateUser(id);
+        return result;
     }
 
     @Override
@@ -51,7 +57,9 @@ public class UserServiceImpl implements IUserService {
     }
     @Override
     public int deleteUser(int id) {
-        return userMapper.delete(id);
+        int result = userMapper.delete(id);
+        jwtTokenCache.invalidateUser(id);
+        return result;
     }
 
     @Override
@@ -61,7 +69,9 @@ public class UserServiceImpl implements IUserService {
 
     @Override
     public int updateUsers(User user) {
-        return userMapper.update(user);
+        int result = userMapper.update(user);
+        jwtTokenCache.invalidateUser(user.getId());
+        return result;
     }
 
 
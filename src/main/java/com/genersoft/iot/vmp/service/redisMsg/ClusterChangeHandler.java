@@ -0,0 +1,19 @@
+package com.genersoft.iot.vmp.service.redisMsg;
+
+/**
+ * 需要同步其他WVP节点变化的本地缓存或索引
+ * 由RedisClusterChangeMsgListener按主题分发，本节点发出的通知不会回调
+ */
+public interface ClusterChangeHandler {
+
+    /**
+     * 变化通知的redis主题
+     */
+    String getChangeTopic();
+
+    /**
+     * 处理其他节点的变化通知
+     * @param content 去掉节点ID后的消息内容
+     */
+    void onChange(String content);
+}
@@ -0,0 +1,89 @@
+package com.genersoft.iot.vmp.service.redisMsg;
+
+import com.genersoft.iot.vmp.conf.UserSetting;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 本地缓存和索引的跨节点变化通知
+ * 消息格式为 "serverId content"，接收方忽略本节点发出的消息；本地刷新和通知在事务提交后进行，避免读到未提交的数据
+ */
+@Slf4j
+@Component
+public class ClusterChangeNotifier {
+
+    @Autowired
+    private UserSetting userSetting;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 通知其他节点，发送失败只记录日志，其他节点依靠定时刷新或TTL兜底
+     */
+    public void publish(String topic, String content) {
+        try {
+            stringRedisTemplate.convertAndSend(topic, userSetting.getServerId() + " " + content);
+        } catch (Exception e) {
+            log.warn("[变化通知] 发送失败， 主题： {}， 内容： {}", topic, content, e);
+        }
+    }
+
+    /**
+     * 解析收到的通知
+     * @return 去掉节点ID后的内容，本节点发出或者格式错误时返回null
+     */
+    public String parse(String msg) {
+        String[] items = msg.split(" ", 2);
+        if (items.length < 2 || userSetting.getServerId().equals(items[0])) {
+            return null;
+        }
+        return items[1];
+    }
+
+    /**
+     * 有事务时在事务提交后执行，否则立即执行
+     */
+    public static void afterCommit(Runnable task) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    task.run();
+                }
+            });
+        }else {
+            task.run();
+        }
+    }
+
+    public static String join(Collection<?> items) {
+        StringBuilder msg = new StringBuilder();
+        for (Object item : items) {
+            if (msg.length() > 0) {
+                msg.append(",");
+            }
+            msg.append(item);
+        }
+        return msg.toString();
+    }
+
+    /**
+     * @throws NumberFormatException 内容不是逗号分隔的数字
+     */
+    public static Set<Integer> parseIds(String content) {
+        Set<Integer> ids = new HashSet<>();
+        for (String id : content.split(",")) {
+            ids.add(Integer.parseInt(id.trim()));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,61 @@
+package com.genersoft.iot.vmp.service.redisMsg;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 接收其他WVP节点的变化通知，按主题分发给对应的本地缓存或索引
+ * 消息举例： PUBLISH VM_MSG_DEVICE_CHANGE "000000 34020000001320000001"
+ */
+@Slf4j
+@Component
+public class RedisClusterChangeMsgListener implements MessageListener {
+
+    @Autowired
+    private List<ClusterChangeHandler> handlerList;
+
+    @Autowired
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    private final Map<String, ClusterChangeHandler> handlerMap = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        for (ClusterChangeHandler handler : handlerList) {
+            handlerMap.put(handler.getChangeTopic(), handler);
+        }
+    }
+
+    public List<ClusterChangeHandler> getHandlerList() {
+        return handlerList;
+    }
+
+    @Override
+    public void onMessage(@NotNull Message message, byte[] bytes) {
+        String topic = new String(message.getChannel());
+        String msg = new String(message.getBody());
+        log.debug("[REDIS: 变化通知] {}： {}", topic, msg);
+        ClusterChangeHandler handler = handlerMap.get(topic);
+        if (handler == null) {
+            return;
+        }
+        String content = clusterChangeNotifier.parse(msg);
+        if (content == null) {
+            return;
+        }
+        try {
+            handler.onChange(content);
+        } catch (Exception e) {
+            log.warn("[REDIS: 变化通知] 处理失败 {}： {}", topic, msg, e);
+        }
+    }
+}
@@ -25,7 +25,7 @@ import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
 
 /**
- * 其他wvp发起的rpc调用，这里的方法被 RedisRpcConfig 通过反射寻找对应的方法名称调用
+ * 其他wvp发起的rpc调用，这里的方法在启动时被 RedisRpcConfig 解析为方法句柄，按方法名称调用
  */
 @Slf4j
 @Component
@@ -288,6 +288,6 @@ public class RedisRpcController {
         response.setToId(userSetting.getServerId());
         RedisRpcMessage message = new RedisRpcMessage();
         message.setResponse(response);
-        redisTemplate.convertAndSend(RedisRpcConfig.REDIS_REQUEST_CHANNEL_KEY, message);
+        redisTemplate.convertAndSend(RedisRpcConfig.getInboxChannel(response.getFromId()), message);
     }
 }
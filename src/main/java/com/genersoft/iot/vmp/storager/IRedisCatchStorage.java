@@ -82,6 +82,12 @@ public interface IRedisCatchStorage {
      */
     void updateDevice(Device device);
 
+    /**
+     * 批量将device信息写入redis, 一次HMSET完成
+     * @param devices
+     */
+    void updateDevices(List<Device> devices);
+
     void removeDevice(String deviceId);
 
     /**
@@ -109,6 +115,11 @@ public interface IRedisCatchStorage {
 
     void sendMobilePositionMsg(JSONObject jsonObject);
 
+    /**
+     * 批量发送移动位置通知， 一次管道提交
+     */
+    void sendMobilePositionMsg(List<JSONObject> jsonObjects);
+
     void sendStreamPushRequestedMsg(MessageForPushChannel messageForPushChannel);
 
     /**
@@ -0,0 +1,227 @@
+package com.genersoft.iot.vmp.storager.impl;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
+import com.genersoft.iot.vmp.conf.exception.ControllerException;
+import com.genersoft.iot.vmp.gb28181.bean.Device;
+import com.genersoft.iot.vmp.gb28181.bean.DeviceChannel;
+import com.genersoft.iot.vmp.gb28181.dao.DeviceChannelMapper;
+import com.genersoft.iot.vmp.gb28181.dao.DeviceMapper;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeHandler;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeNotifier;
+import com.genersoft.iot.vmp.vmanager.bean.ErrorCode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按 设备编号+通道编号 查询通道的本地缓存，用于移动位置、报警等高频上报时确定通道，未找到的通道也会缓存
+ * 失效以设备为单位：每个设备有一个版本号，设备下的通道新增、修改、删除后版本号加一，旧版本的缓存视为失效，
+ * 并通过redis通知其他节点；TTL兜底其他途径的修改。
+ * 缓存只保证通道与设备的对应关系，状态、推流等信息可能有延迟，需要实时信息时直接查库。返回给调用方的是副本
+ */
+@Slf4j
+@Component
+public class DeviceChannelNearCache implements MetricsSource, ClusterChangeHandler {
+
+    private static final int MAX_SIZE = 200000;
+
+    private static final int EXPIRE_SECONDS = 300;
+
+    /**
+     * 通知其他节点清除全部缓存
+     */
+    private static final String ALL = "*";
+
+    @Autowired
+    private DeviceMapper deviceMapper;
+
+    @Autowired
+    private DeviceChannelMapper channelMapper;
+
+    @Autowired
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    private static class Entry {
+        private final int deviceDbId;
+        private final long version;
+        /**
+         * 未找到时为null
+         */
+        private final DeviceChannel channel;
+
+        private Entry(int deviceDbId, long version, DeviceChannel channel) {
+            this.deviceDbId = deviceDbId;
+            this.version = version;
+            this.channel = channel;
+        }
+    }
+
+    private final Cache<String, Entry> cache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .expireAfterWrite(EXPIRE_SECONDS, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    /**
+     * 设备数据库ID -> 版本号
+     */
+    private final Map<Integer, Long> versionMap = new ConcurrentHashMap<>();
+
+    /**
+     * 全部缓存的版本号
+     */
+    private volatile long globalVersion;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong staleCount = new AtomicLong();
+
+    private final AtomicLong invalidateCount = new AtomicLong();
+
+    private long version(int deviceDbId) {
+        return globalVersion + versionMap.getOrDefault(deviceDbId, 0L);
+    }
+
+    /**
+     * 查询通道，未命中时查库并缓存
+     * @return 通道不存在时返回null
+     */
+    public DeviceChannel getOne(String deviceId, String channelId) {
+        String key = deviceId + "_" + channelId;
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            if (entry.version == version(entry.deviceDbId)) {
+                hitCount.incrementAndGet();
+                return entry.channel == null ? null : copy(entry.channel);
+            }
+            staleCount.incrementAndGet();
+        }else {
+            missCount.incrementAndGet();
+        }
+        Device device = deviceMapper.getDeviceByDeviceId(deviceId);
+        if (device == null) {
+            throw new ControllerException(ErrorCode.ERROR100.getCode(), "未找到设备：" + deviceId);
+        }
+        // 先取版本号再查库，查询期间发生的修改会让这次的缓存直接失效
+        long version = version(device.getId());
+        DeviceChannel channel = channelMapper.getOneByDeviceId(device.getId(), channelId);
+        cache.put(key, new Entry(device.getId(), version, channel == null ? null : copy(channel)));
+        return channel;
+    }
+
+    /**
+     * 设备下的通道发生变化后调用，事务提交后清除本节点缓存并通知其他节点
+     */
+    public void invalidate(int deviceDbId) {
+        ClusterChangeNotifier.afterCommit(() -> {
+            invalidateLocal(deviceDbId);
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_DEVICE_CHANNEL_CHANGE, String.valueOf(deviceDbId));
+        });
+    }
+
+    /**
+     * 通道发生变化后调用，按通道所属的设备清除
+     */
+    public void invalidate(Collection<DeviceChannel> channels) {
+        if (channels == null || channels.isEmpty()) {
+            return;
+        }
+        Set<Integer> deviceDbIds = new HashSet<>();
+        for (DeviceChannel channel : channels) {
+            if (channel.getDeviceDbId() <= 0) {
+                // 无法确定所属设备
+                invalidateAll();
+                return;
+            }
+            deviceDbIds.add(channel.getDeviceDbId());
+        }
+        ClusterChangeNotifier.afterCommit(() -> {
+            for (Integer deviceDbId : deviceDbIds) {
+                invalidateLocal(deviceDbId);
+            }
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_DEVICE_CHANNEL_CHANGE, ClusterChangeNotifier.join(deviceDbIds));
+        });
+    }
+
+    public void invalidateAll() {
+        ClusterChangeNotifier.afterCommit(() -> {
+            invalidateAllLocal();
+            clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_DEVICE_CHANNEL_CHANGE, ALL);
+        });
+    }
+
+    private void invalidateLocal(int deviceDbId) {
+        versionMap.merge(deviceDbId, 1L, Long::sum);
+        invalidateCount.incrementAndGet();
+    }
+
+    private void invalidateAllLocal() {
+        globalVersion++;
+        cache.invalidateAll();
+        invalidateCount.incrementAndGet();
+    }
+
+    @Override
+    public String getChangeTopic() {
+        return VideoManagerConstants.VM_MSG_DEVICE_CHANNEL_CHANGE;
+    }
+
+    /**
+     * 处理其他节点的变化通知
+     */
+    @Override
+    public void onChange(String content) {
+        if (ALL.equals(content)) {
+            invalidateAllLocal();
+            return;
+        }
+        Set<Integer> deviceDbIds;
+        try {
+            deviceDbIds = ClusterChangeNotifier.parseIds(content);
+        } catch (NumberFormatException e) {
+            log.warn("[通道缓存] 无法解析的变化通知： {}", content);
+            invalidateAllLocal();
+            return;
+        }
+        for (Integer deviceDbId : deviceDbIds) {
+            invalidateLocal(deviceDbId);
+        }
+    }
+
+    private DeviceChannel copy(DeviceChannel channel) {
+        DeviceChannel result = new DeviceChannel();
+        BeanUtils.copyProperties(channel, result);
+        return result;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "deviceChannelCache";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        long hit = hitCount.get();
+        long total = hit + missCount.get() + staleCount.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("size", cache.size());
+        metrics.put("hit", hit);
+        metrics.put("miss", missCount.get());
+        metrics.put("stale", staleCount.get());
+        metrics.put("hitRate", total == 0 ? 1.0 : (double) hit / total);
+        metrics.put("eviction", cache.stats().evictionCount());
+        metrics.put("invalidate", invalidateCount.get());
+        return metrics;
+    }
+}
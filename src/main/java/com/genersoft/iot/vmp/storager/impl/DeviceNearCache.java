@@ -0,0 +1,109 @@
+package com.genersoft.iot.vmp.storager.impl;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
+import com.genersoft.iot.vmp.gb28181.bean.Device;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeHandler;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeNotifier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 设备信息的本地缓存，位于redis之前
+ * 本节点写入设备信息时同步更新缓存，并通过redis通知其他节点清除缓存；TTL兜底其他节点的延迟变化。
+ * 返回给调用方的是副本，调用方修改设备信息不会影响缓存
+ */
+@Slf4j
+@Component
+public class DeviceNearCache implements MetricsSource, ClusterChangeHandler {
+
+    private static final int MAX_SIZE = 100000;
+
+    private static final int EXPIRE_SECONDS = 60;
+
+    @Autowired
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    private final Cache<String, Device> cache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .expireAfterWrite(EXPIRE_SECONDS, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    public Device get(String deviceId) {
+        Device device = cache.getIfPresent(deviceId);
+        return device == null ? null : copy(device);
+    }
+
+    public void put(Device device) {
+        cache.put(device.getDeviceId(), copy(device));
+    }
+
+    /**
+     * 清除本地缓存
+     */
+    public void invalidate(String deviceId) {
+        cache.invalidate(deviceId);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * 通知其他节点清除缓存
+     * @param deviceId 设备ID， 为空时清除全部
+     */
+    public void publishChange(String deviceId) {
+        clusterChangeNotifier.publish(VideoManagerConstants.VM_MSG_DEVICE_CHANGE, deviceId == null ? "" : deviceId);
+    }
+
+    @Override
+    public String getChangeTopic() {
+        return VideoManagerConstants.VM_MSG_DEVICE_CHANGE;
+    }
+
+    /**
+     * 处理其他节点的变化通知
+     */
+    @Override
+    public void onChange(String content) {
+        if (content.isEmpty()) {
+            invalidateAll();
+        }else {
+            invalidate(content);
+        }
+    }
+
+    private Device copy(Device device) {
+        Device result = new Device();
+        BeanUtils.copyProperties(device, result);
+        return result;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "deviceCache";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("size", cache.size());
+        metrics.put("hit", stats.hitCount());
+        metrics.put("miss", stats.missCount());
+        metrics.put("hitRate", stats.hitRate());
+        metrics.put("eviction", stats.evictionCount());
+        return metrics;
+    }
+}
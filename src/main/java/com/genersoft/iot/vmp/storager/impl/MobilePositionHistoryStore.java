@@ -0,0 +1,444 @@
+package com.genersoft.iot.vmp.storager.impl;
+
+import com.genersoft.iot.vmp.common.MetricsSource;
+import com.genersoft.iot.vmp.conf.UserSetting;
+import com.genersoft.iot.vmp.gb28181.bean.MobilePosition;
+import com.genersoft.iot.vmp.gb28181.dao.DeviceMobilePositionMapper;
+import com.genersoft.iot.vmp.utils.DateUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 移动位置历史轨迹的存储
+ * 可以按天或者按月分表，表名为wvp_device_mobile_position_yyyyMMdd或wvp_device_mobile_position_yyyyMM，表结构和索引复制自主表，写入时按需创建；
+ * 超过保留天数的分表整表删除，主表中的数据按时间删除。查询轨迹时只读取与时间范围有交集的表，逐条读取并按时间分段抽稀。
+ * 分表可能由其他节点创建或删除，定时任务和查询前都从数据库重新读取分表列表
+ */
+@Slf4j
+@Component
+@Order(value=4)
+public class MobilePositionHistoryStore implements CommandLineRunner, MetricsSource {
+
+    public static final String TABLE = "wvp_device_mobile_position";
+
+    private static final String PARTITION_DAY = "day";
+
+    private static final String PARTITION_MONTH = "month";
+
+    private static final Pattern PARTITION_PATTERN = Pattern.compile(TABLE + "_(\\d{8}|\\d{6})");
+
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+
+    /**
+     * 单条插入语句的最大行数
+     */
+    private static final int INSERT_LIMIT = 500;
+
+    @Autowired
+    private DeviceMobilePositionMapper deviceMobilePositionMapper;
+
+    @Autowired
+    private UserSetting userSetting;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * 已存在的分表 -> 分表的时间范围，以数据库为准
+     */
+    private final Map<String, Partition> partitionMap = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong insertCount = new AtomicLong();
+
+    private final AtomicLong queryCount = new AtomicLong();
+
+    private final AtomicLong queryRowCount = new AtomicLong();
+
+    private final AtomicLong queryResultCount = new AtomicLong();
+
+    private final AtomicLong dropCount = new AtomicLong();
+
+    private volatile long lastQueryCost;
+
+    private static class Partition {
+        private final String table;
+        private final LocalDate start;
+        /**
+         * 不包含
+         */
+        private final LocalDate end;
+
+        private Partition(String table, LocalDate start, LocalDate end) {
+            this.table = table;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    @Override
+    public void run(String... args) {
+        try {
+            refreshPartitions();
+        } catch (Exception e) {
+            log.warn("[移动位置历史] 读取分表失败", e);
+        }
+        if (isPartitioned()) {
+            log.info("[移动位置历史] 分表方式： {}， 已有分表： {}", userSetting.getPositionHistoryPartition(), partitionMap.size());
+            prepare();
+        }
+    }
+
+    /**
+     * 从数据库重新读取分表，同步其他节点创建或者删除的分表
+     */
+    private void refreshPartitions() {
+        Set<String> exist = new HashSet<>();
+        for (String table : deviceMobilePositionMapper.queryPartitions()) {
+            Partition partition = parse(table);
+            if (partition != null) {
+                partitionMap.put(table, partition);
+                exist.add(table);
+            }
+        }
+        partitionMap.keySet().retainAll(exist);
+    }
+
+    /**
+     * 查询前刷新分表列表，失败时使用本地的分表列表
+     */
+    private void refreshPartitionsForQuery() {
+        try {
+            refreshPartitions();
+        } catch (Exception e) {
+            log.warn("[移动位置历史] 读取分表失败， 使用本地的分表列表", e);
+        }
+    }
+
+    /**
+     * 查询失败时判断分表是否已经被删除(例如其他节点的定时清理)，已删除的分表视为没有数据
+     */
+    private boolean isDropped(String table) {
+        if (TABLE.equals(table)) {
+            return false;
+        }
+        try {
+            refreshPartitions();
+        } catch (Exception e) {
+            return false;
+        }
+        return !partitionMap.containsKey(table);
+    }
+
+    private boolean isPartitioned() {
+        String mode = userSetting.getPositionHistoryPartition();
+        return PARTITION_DAY.equalsIgnoreCase(mode) || PARTITION_MONTH.equalsIgnoreCase(mode);
+    }
+
+    private Partition parse(String table) {
+        Matcher matcher = PARTITION_PATTERN.matcher(table.toLowerCase());
+        if (!matcher.matches()) {
+            return null;
+        }
+        String date = matcher.group(1);
+        try {
+            if (date.length() == 8) {
+                LocalDate start = LocalDate.parse(date, DAY_FORMATTER);
+                return new Partition(table, start, start.plusDays(1));
+            }else {
+                LocalDate start = LocalDate.parse(date + "01", DAY_FORMATTER);
+                return new Partition(table, start, start.plusMonths(1));
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 位置时间所在的表
+     */
+    private String getTable(String time) {
+        if (!isPartitioned()) {
+            return TABLE;
+        }
+        LocalDate date;
+        try {
+            date = LocalDate.parse(time.substring(0, 10), DateUtil.DateFormatter);
+        } catch (Exception e) {
+            date = LocalDate.now(ZoneId.of(DateUtil.zoneStr));
+        }
+        return getTable(date);
+    }
+
+    private String getTable(LocalDate date) {
+        if (PARTITION_DAY.equalsIgnoreCase(userSetting.getPositionHistoryPartition())) {
+            return TABLE + "_" + date.format(DAY_FORMATTER);
+        }else {
+            return TABLE + "_" + date.format(MONTH_FORMATTER);
+        }
+    }
+
+    private void ensureTable(String table) {
+        if (TABLE.equals(table) || partitionMap.containsKey(table)) {
+            return;
+        }
+        deviceMobilePositionMapper.createPartition(table);
+        partitionMap.put(table, parse(table));
+        log.info("[移动位置历史] 创建分表： {}", table);
+    }
+
+    public void insert(List<MobilePosition> mobilePositions) {
+        Map<String, List<MobilePosition>> tableMap = new LinkedHashMap<>();
+        for (MobilePosition mobilePosition : mobilePositions) {
+            tableMap.computeIfAbsent(getTable(mobilePosition.getTime()), key -> new ArrayList<>()).add(mobilePosition);
+        }
+        for (Map.Entry<String, List<MobilePosition>> entry : tableMap.entrySet()) {
+            ensureTable(entry.getKey());
+            List<MobilePosition> list = entry.getValue();
+            for (int i = 0; i < list.size(); i += INSERT_LIMIT) {
+                deviceMobilePositionMapper.batchInsert(entry.getKey(), list.subList(i, Math.min(i + INSERT_LIMIT, list.size())));
+            }
+        }
+        insertCount.addAndGet(mobilePositions.size());
+    }
+
+    /**
+     * 时间范围涉及的表，按时间先后排序。
+     * 不分表时主表的数据比分表新，分表时主表的数据是启用分表之前的
+     */
+    private List<String> getTables(String startTime, String endTime) {
+        LocalDate startDate = null;
+        LocalDate endDate = null;
+        try {
+            if (startTime != null) {
+                startDate = LocalDate.parse(startTime.substring(0, 10), DateUtil.DateFormatter);
+            }
+            if (endTime != null) {
+                endDate = LocalDate.parse(endTime.substring(0, 10), DateUtil.DateFormatter);
+            }
+        } catch (Exception e) {
+            log.warn("[移动位置历史] 无法解析的时间范围： {} - {}", startTime, endTime);
+        }
+        List<Partition> partitions = new ArrayList<>();
+        for (Partition partition : partitionMap.values()) {
+            if (startDate != null && !partition.end.isAfter(startDate)) {
+                continue;
+            }
+            if (endDate != null && partition.start.isAfter(endDate)) {
+                continue;
+            }
+            partitions.add(partition);
+        }
+        partitions.sort(Comparator.comparing(partition -> partition.start));
+        List<String> tables = new ArrayList<>(partitions.size() + 1);
+        if (isPartitioned()) {
+            tables.add(TABLE);
+        }
+        for (Partition partition : partitions) {
+            tables.add(partition.table);
+        }
+        if (!isPartitioned()) {
+            tables.add(TABLE);
+        }
+        return tables;
+    }
+
+    /**
+     * 查询轨迹
+     * @param maxPoints 最多返回的点数，指定了开始和结束时间时按时间平均分段，每段只保留第一个点，最后一个点总是保留； 0为不抽稀
+     */
+    public List<MobilePosition> queryTrack(String deviceId, String channelId, String startTime, String endTime, int maxPoints) {
+        long start = System.currentTimeMillis();
+        long interval = 0;
+        long startMs = 0;
+        if (maxPoints > 0 && startTime != null && endTime != null) {
+            try {
+                startMs = DateUtil.yyyy_MM_dd_HH_mm_ssToTimestampMs(startTime);
+                interval = (DateUtil.yyyy_MM_dd_HH_mm_ssToTimestampMs(endTime) - startMs) / maxPoints;
+            } catch (Exception e) {
+                log.warn("[移动位置历史] 无法解析的时间范围： {} - {}， 不抽稀", startTime, endTime);
+            }
+        }
+        TrackSampler sampler = new TrackSampler(startMs, interval);
+        refreshPartitionsForQuery();
+        // 每个表使用单独的只读事务：PostgreSQL只有在事务中才按fetchSize逐批读取；
+        // 而且PostgreSQL/Kingbase中语句失败后整个事务不能再执行语句，事务结束后才能查询分表是否已被删除
+        TransactionTemplate readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        readOnlyTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        for (String table : getTables(startTime, endTime)) {
+            try {
+                readOnlyTransaction.executeWithoutResult(status -> deviceMobilePositionMapper.queryPositionByDeviceIdAndTime(
+                        table, deviceId, channelId, startTime, endTime, resultContext -> sampler.accept(resultContext.getResultObject())));
+            } catch (RuntimeException e) {
+                if (!isDropped(table)) {
+                    throw e;
+                }
+                log.info("[移动位置历史] 分表已被删除， 跳过： {}", table);
+            }
+        }
+        List<MobilePosition> result = sampler.finish();
+        queryCount.incrementAndGet();
+        queryRowCount.addAndGet(sampler.count);
+        queryResultCount.addAndGet(result.size());
+        lastQueryCost = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    /**
+     * 按时间分段抽稀， 每段保留第一个点
+     */
+    private static class TrackSampler {
+        private final long startMs;
+        private final long interval;
+        private final List<MobilePosition> result = new ArrayList<>();
+        private long lastBucket = -1;
+        private MobilePosition last;
+        private boolean lastKept;
+        private long count;
+
+        private TrackSampler(long startMs, long interval) {
+            this.startMs = startMs;
+            this.interval = interval;
+        }
+
+        private void accept(MobilePosition mobilePosition) {
+            count++;
+            last = mobilePosition;
+            if (interval <= 0) {
+                result.add(mobilePosition);
+                lastKept = true;
+                return;
+            }
+            long bucket;
+            try {
+                bucket = (DateUtil.yyyy_MM_dd_HH_mm_ssToTimestampMs(mobilePosition.getTime()) - startMs) / interval;
+            } catch (Exception e) {
+                lastKept = false;
+                return;
+            }
+            if (bucket != lastBucket) {
+                lastBucket = bucket;
+                result.add(mobilePosition);
+                lastKept = true;
+            }else {
+                lastKept = false;
+            }
+        }
+
+        private List<MobilePosition> finish() {
+            if (last != null && !lastKept) {
+                result.add(last);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 设备的最新位置
+     */
+    public MobilePosition queryLatest(String deviceId) {
+        refreshPartitionsForQuery();
+        List<String> tables = getTables(null, null);
+        Collections.reverse(tables);
+        for (String table : tables) {
+            MobilePosition mobilePosition;
+            try {
+                mobilePosition = deviceMobilePositionMapper.queryLatestPositionByDevice(table, deviceId);
+            } catch (RuntimeException e) {
+                if (!isDropped(table)) {
+                    throw e;
+                }
+                log.info("[移动位置历史] 分表已被删除， 跳过： {}", table);
+                continue;
+            }
+            if (mobilePosition != null) {
+                return mobilePosition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 提前创建下一个分表，删除超过保留天数的数据
+     */
+    @Scheduled(cron = "0 30 0 * * ?")
+    public void execute() {
+        try {
+            refreshPartitions();
+            prepare();
+            clean();
+        } catch (Exception e) {
+            log.error("[移动位置历史] 定时维护失败", e);
+        }
+    }
+
+    private void prepare() {
+        if (!isPartitioned()) {
+            return;
+        }
+        LocalDate today = LocalDate.now(ZoneId.of(DateUtil.zoneStr));
+        ensureTable(getTable(today));
+        if (PARTITION_DAY.equalsIgnoreCase(userSetting.getPositionHistoryPartition())) {
+            ensureTable(getTable(today.plusDays(1)));
+        }else {
+            ensureTable(getTable(today.plusMonths(1).withDayOfMonth(1)));
+        }
+    }
+
+    private void clean() {
+        int keepDays = userSetting.getPositionHistoryKeepDays();
+        if (keepDays <= 0) {
+            return;
+        }
+        LocalDate cutoff = LocalDate.now(ZoneId.of(DateUtil.zoneStr)).minusDays(keepDays);
+        for (Partition partition : new ArrayList<>(partitionMap.values())) {
+            if (!partition.end.isAfter(cutoff)) {
+                deviceMobilePositionMapper.dropPartition(partition.table);
+                partitionMap.remove(partition.table);
+                dropCount.incrementAndGet();
+                log.info("[移动位置历史] 删除过期分表： {}", partition.table);
+            }
+        }
+        int count = deviceMobilePositionMapper.deleteBefore(cutoff.format(DateUtil.DateFormatter) + " 00:00:00");
+        if (count > 0) {
+            log.info("[移动位置历史] 删除过期位置： {}条", count);
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "mobilePositionHistory";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("partition", userSetting.getPositionHistoryPartition());
+        metrics.put("partitionCount", partitionMap.size());
+        metrics.put("insert", insertCount.get());
+        metrics.put("drop", dropCount.get());
+        metrics.put("query", queryCount.get());
+        metrics.put("queryRow", queryRowCount.get());
+        metrics.put("queryResult", queryResultCount.get());
+        metrics.put("lastQueryCost", lastQueryCost);
+        return metrics;
+    }
+}
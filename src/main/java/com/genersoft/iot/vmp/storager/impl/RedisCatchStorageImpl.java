@@ -21,8 +21,10 @@ import com.genersoft.iot.vmp.utils.SystemInfoUtils;
 import com.genersoft.iot.vmp.utils.redis.RedisUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
@@ -49,6 +51,9 @@ public class RedisCatchStorageImpl implements IRedisCatchStorage {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private DeviceNearCache deviceNearCache;
+
     @Override
     public List<SendRtpInfo> queryAllSendRTPServer() {
         return Collections.emptyList();
@@ -164,18 +169,39 @@ public class RedisCatchStorageImpl implements IRedisCatchStorage {
     public void updateDevice(Device device) {
         String key = VideoManagerConstants.DEVICE_PREFIX;
         redisTemplate.opsForHash().put(key, device.getDeviceId(), device);
+        deviceNearCache.put(device);
+        deviceNearCache.publishChange(device.getDeviceId());
+    }
+
+    @Override
+    public void updateDevices(List<Device> devices) {
+        if (devices == null || devices.isEmpty()) {
+            return;
+        }
+        String key = VideoManagerConstants.DEVICE_PREFIX;
+        Map<String, Device> deviceMap = new HashMap<>(devices.size());
+        for (Device device : devices) {
+            deviceMap.put(device.getDeviceId(), device);
+            deviceNearCache.put(device);
+        }
+        redisTemplate.opsForHash().putAll(key, deviceMap);
+        // 批量写入只有心跳信息变化，其他节点的缓存依靠过期时间刷新，不逐个发送通知
     }
 
     @Override
     public void removeDevice(String deviceId) {
         String key = VideoManagerConstants.DEVICE_PREFIX;
         redisTemplate.opsForHash().delete(key, deviceId);
+        deviceNearCache.invalidate(deviceId);
+        deviceNearCache.publishChange(deviceId);
     }
 
     @Override
     public void removeAllDevice() {
         String key = VideoManagerConstants.DEVICE_PREFIX;
         redisTemplate.delete(key);
+        deviceNearCache.invalidateAll();
+        deviceNearCache.publishChange(null);
     }
 
     @Override
@@ -193,16 +219,22 @@ public class RedisCatchStorageImpl implements IRedisCatchStorage {
 
     @Override
     public Device getDevice(String deviceId) {
+        Device device = deviceNearCache.get(deviceId);
+        if (device != null) {
+            return device;
+        }
         String key = VideoManagerConstants.DEVICE_PREFIX;
-        Device device;
         Object object = redisTemplate.opsForHash().get(key, deviceId);
         if (object == null){
             device = deviceMapper.getDeviceByDeviceId(deviceId);
             if (device != null) {
-                updateDevice(device);
+                // 从数据库补齐缓存，数据没有变化，不需要通知其他节点
+                redisTemplate.opsForHash().put(key, deviceId, device);
+                deviceNearCache.put(device);
             }
         }else {
             device = (Device)object;
+            deviceNearCache.put(device);
         }
         return device;
     }
@@ -375,6 +407,25 @@ public class RedisCatchStorageImpl implements IRedisCatchStorage {
         redisTemplate.convertAndSend(key, jsonObject);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public void sendMobilePositionMsg(List<JSONObject> jsonObjects) {
+        if (jsonObjects.isEmpty()) {
+            return;
+        }
+        String key = VideoManagerConstants.VM_MSG_SUBSCRIBE_MOBILE_POSITION;
+        log.debug("[redis发送通知] 批量发送 移动位置 {}: {}条", key, jsonObjects.size());
+        // 与convertAndSend使用相同的序列化方式
+        byte[] channel = redisTemplate.getStringSerializer().serialize(key);
+        RedisSerializer<Object> serializer = (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (JSONObject jsonObject : jsonObjects) {
+                connection.publish(channel, serializer.serialize(jsonObject));
+            }
+            return null;
+        });
+    }
+
     @Override
     public void sendStreamPushRequestedMsg(MessageForPushChannel msg) {
         String key = VideoManagerConstants.VM_MSG_STREAM_PUSH_REQUESTED;
@@ -8,6 +8,7 @@ import org.springframework.util.ObjectUtils;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
@@ -17,19 +18,35 @@ public enum CivilCodeUtil {
     // 用与消息的缓存
     private final Map<String, CivilCodePo> civilCodeMap = new ConcurrentHashMap<>();
 
+    /**
+     * 父节点编号 -> 子节点编号，顶级节点的父节点编号为空字符串
+     */
+    private final Map<String, Set<String>> childrenMap = new ConcurrentHashMap<>();
+
     CivilCodeUtil() {
     }
 
     public void add(List<CivilCodePo> civilCodePoList) {
         if (!civilCodePoList.isEmpty()) {
             for (CivilCodePo civilCodePo : civilCodePoList) {
-                civilCodeMap.put(civilCodePo.getCode(), civilCodePo);
+                add(civilCodePo);
             }
         }
     }
 
     public void add(CivilCodePo civilCodePo) {
-        civilCodeMap.put(civilCodePo.getCode(), civilCodePo);
+        CivilCodePo old = civilCodeMap.put(civilCodePo.getCode(), civilCodePo);
+        if (old != null) {
+            Set<String> children = childrenMap.get(parentKey(old));
+            if (children != null) {
+                children.remove(old.getCode());
+            }
+        }
+        childrenMap.computeIfAbsent(parentKey(civilCodePo), key -> ConcurrentHashMap.newKeySet()).add(civilCodePo.getCode());
+    }
+
+    private String parentKey(CivilCodePo civilCodePo) {
+        return civilCodePo.getParentCode() == null ? "" : civilCodePo.getParentCode().trim();
     }
 
     public CivilCodePo getParentCode(String code) {
@@ -85,13 +102,14 @@ public enum CivilCodeUtil {
 
     public List<Region> getAllChild(String parent) {
         List<Region> result = new ArrayList<>();
-        for (String key : civilCodeMap.keySet()) {
-            if (parent == null) {
-                if (ObjectUtils.isEmpty(civilCodeMap.get(key).getParentCode().trim())) {
-                    result.add(Region.getInstance(key, civilCodeMap.get(key).getName(), civilCodeMap.get(key).getParentCode()));
-                }
-            }else if (civilCodeMap.get(key).getParentCode().equals(parent)) {
-                result.add(Region.getInstance(key, civilCodeMap.get(key).getName(), civilCodeMap.get(key).getParentCode()));
+        Set<String> children = childrenMap.get(ObjectUtils.isEmpty(parent) ? "" : parent);
+        if (children == null) {
+            return result;
+        }
+        for (String code : children) {
+            CivilCodePo civilCodePo = civilCodeMap.get(code);
+            if (civilCodePo != null) {
+                result.add(Region.getInstance(code, civilCodePo.getName(), civilCodePo.getParentCode()));
             }
         }
         return result;
@@ -2,6 +2,7 @@ package com.genersoft.iot.vmp.vmanager.server;
 
 import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONObject;
+import com.genersoft.iot.vmp.common.MetricsSource;
 import com.genersoft.iot.vmp.common.SystemAllInfo;
 import com.genersoft.iot.vmp.common.VersionPo;
 import com.genersoft.iot.vmp.conf.SipConfig;
@@ -88,6 +89,9 @@ public class ServerController {
     @Autowired
     private ApplicationEventPublisher applicationEventPublisher;
 
+    @Autowired(required = false)
+    private List<MetricsSource> metricsSources;
+
 
     @GetMapping(value = "/media_server/list")
     @ResponseBody
@@ -275,6 +279,20 @@ public class ServerController {
         return result;
     }
 
+    @GetMapping(value = "/metrics")
+    @ResponseBody
+    @Operation(summary = "获取运行指标")
+    public Map<String, Map<String, Object>> getMetrics() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        if (metricsSources == null) {
+            return result;
+        }
+        for (MetricsSource metricsSource : metricsSources) {
+            result.put(metricsSource.getMetricsName(), metricsSource.getMetrics());
+        }
+        return result;
+    }
+
     @GetMapping(value = "/resource/info")
     @ResponseBody
     @Operation(summary = "获取负载信息")
@@ -0,0 +1,130 @@
+package com.genersoft.iot.vmp.conf;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimingWheelTest {
+
+    private TimingWheel timingWheel;
+
+    @AfterEach
+    public void shutdown() {
+        if (timingWheel != null) {
+            timingWheel.shutdown();
+        }
+    }
+
+    @Test
+    public void expireAfterDelay() throws InterruptedException {
+        timingWheel = new TimingWheel("test-wheel", 10, 64, Runnable::run);
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        timingWheel.schedule("key", latch::countDown, 100);
+        assertTrue(timingWheel.contains("key"));
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        // 按槽位触发，最多提前一个槽位
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertFalse(timingWheel.contains("key"));
+        assertEquals(0, timingWheel.size());
+    }
+
+    @Test
+    public void expireAfterMoreThanOneRound() throws InterruptedException {
+        // 一圈40毫秒
+        timingWheel = new TimingWheel("test-wheel", 10, 4, Runnable::run);
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        timingWheel.schedule("key", latch::countDown, 150);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 140);
+    }
+
+    @Test
+    public void cancel() throws InterruptedException {
+        timingWheel = new TimingWheel("test-wheel", 10, 64, Runnable::run);
+        AtomicInteger fired = new AtomicInteger();
+        timingWheel.schedule("key", fired::incrementAndGet, 50);
+
+        assertTrue(timingWheel.cancel("key"));
+        assertFalse(timingWheel.cancel("key"));
+        assertNull(timingWheel.get("key"));
+        Thread.sleep(200);
+        assertEquals(0, fired.get());
+    }
+
+    @Test
+    public void refreshPostponesExpiry() throws InterruptedException {
+        timingWheel = new TimingWheel("test-wheel", 10, 64, Runnable::run);
+        AtomicInteger fired = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1);
+        Runnable task = () -> {
+            fired.incrementAndGet();
+            latch.countDown();
+        };
+        timingWheel.schedule("key", task, 100);
+        long end = System.currentTimeMillis() + 500;
+        while (System.currentTimeMillis() < end) {
+            timingWheel.schedule("key", task, 100);
+            Thread.sleep(10);
+        }
+        assertEquals(0, fired.get());
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void scheduleAgainAfterExpiry() throws InterruptedException {
+        timingWheel = new TimingWheel("test-wheel", 10, 64, Runnable::run);
+        CountDownLatch first = new CountDownLatch(1);
+        timingWheel.schedule("key", first::countDown, 20);
+        assertTrue(first.await(2, TimeUnit.SECONDS));
+
+        CountDownLatch second = new CountDownLatch(1);
+        timingWheel.schedule("key", second::countDown, 20);
+        assertTrue(timingWheel.contains("key"));
+        assertTrue(second.await(2, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 持续刷新的任务不能按刷新前的到期时间触发
+     */
+    @Test
+    public void concurrentRefreshNeverFires() throws InterruptedException {
+        // 槽位1毫秒，一圈4毫秒，槽位不停地被扫描
+        timingWheel = new TimingWheel("test-wheel", 1, 4, Runnable::run);
+        int threadCount = 4;
+        int keyCount = 200;
+        AtomicInteger fired = new AtomicInteger();
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                while (running.get()) {
+                    for (int key = index; key < keyCount; key += threadCount) {
+                        timingWheel.schedule("key" + key, fired::incrementAndGet, 200);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        Thread.sleep(1000);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, fired.get());
+        assertEquals(keyCount, timingWheel.size());
+    }
+}
@@ -0,0 +1,146 @@
+package com.genersoft.iot.vmp.conf.security;
+
+import com.genersoft.iot.vmp.common.VideoManagerConstants;
+import com.genersoft.iot.vmp.conf.security.dto.JwtUser;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeNotifier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+public class JwtTokenCacheTest {
+
+    @Mock
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    @InjectMocks
+    private JwtTokenCache jwtTokenCache;
+
+    @BeforeEach
+    public void setUp() {
+        new JwtUtils().setTokenCache(jwtTokenCache);
+    }
+
+    private static long nowSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static JwtTokenCache.VerifiedToken verifiedToken(int userId, Long expirationTime, Integer apiKeyId, boolean apiKeyDisabled) {
+        return new JwtTokenCache.VerifiedToken("user" + userId, "password", userId, 1, expirationTime, apiKeyId, apiKeyDisabled);
+    }
+
+    @Test
+    public void hashIsStable() {
+        String hash = JwtTokenCache.hash("token");
+        assertEquals(64, hash.length());
+        assertEquals(hash, JwtTokenCache.hash("token"));
+        assertNotEquals(hash, JwtTokenCache.hash("token2"));
+    }
+
+    @Test
+    public void verifyFromCache() {
+        String token = "cached-token";
+        jwtTokenCache.put(JwtTokenCache.hash(token), verifiedToken(1, null, null, false));
+
+        JwtUser jwtUser = JwtUtils.verifyToken(token);
+
+        assertEquals(JwtUser.TokenStatus.NORMAL, jwtUser.getStatus());
+        assertEquals("user1", jwtUser.getUserName());
+        assertEquals(1, jwtUser.getUserId());
+        assertEquals(1L, jwtTokenCache.getMetrics().get("hit"));
+    }
+
+    @Test
+    public void verifyNotExpiredFromCache() {
+        String token = "valid-token";
+        String key = JwtTokenCache.hash(token);
+        jwtTokenCache.put(key, verifiedToken(1, nowSeconds() + 3600, null, false));
+
+        assertNotEquals(JwtUser.TokenStatus.EXPIRED, JwtUtils.verifyToken(token).getStatus());
+        assertNotNull(jwtTokenCache.get(key));
+    }
+
+    @Test
+    public void expiredWhileCached() {
+        String token = "expired-token";
+        String key = JwtTokenCache.hash(token);
+        // 超过允许的时钟偏差
+        jwtTokenCache.put(key, verifiedToken(1, nowSeconds() - 60, null, false));
+
+        assertEquals(JwtUser.TokenStatus.EXPIRED, JwtUtils.verifyToken(token).getStatus());
+        // 过期的token不再留在缓存里
+        assertNull(jwtTokenCache.get(key));
+    }
+
+    @Test
+    public void expiredWithinClockSkew() {
+        String token = "skew-token";
+        jwtTokenCache.put(JwtTokenCache.hash(token), verifiedToken(1, nowSeconds() - 5, null, false));
+
+        assertNotEquals(JwtUser.TokenStatus.EXPIRED, JwtUtils.verifyToken(token).getStatus());
+    }
+
+    @Test
+    public void disabledApiKeyStaysCached() {
+        String token = "disabled-api-key";
+        String key = JwtTokenCache.hash(token);
+        jwtTokenCache.put(key, verifiedToken(1, null, 5, true));
+
+        assertEquals(JwtUser.TokenStatus.EXPIRED, JwtUtils.verifyToken(token).getStatus());
+        // 禁用状态也缓存，避免每次请求查库
+        assertNotNull(jwtTokenCache.get(key));
+    }
+
+    @Test
+    public void invalidateUser() {
+        jwtTokenCache.put("a", verifiedToken(1, null, null, false));
+        jwtTokenCache.put("b", verifiedToken(1, null, 5, false));
+        jwtTokenCache.put("c", verifiedToken(2, null, null, false));
+
+        jwtTokenCache.invalidateUser(1);
+
+        assertNull(jwtTokenCache.get("a"));
+        assertNull(jwtTokenCache.get("b"));
+        assertNotNull(jwtTokenCache.get("c"));
+        verify(clusterChangeNotifier).publish(VideoManagerConstants.VM_MSG_USER_CHANGE, "u:1");
+    }
+
+    @Test
+    public void invalidateApiKey() {
+        jwtTokenCache.put("a", verifiedToken(1, null, null, false));
+        jwtTokenCache.put("b", verifiedToken(1, null, 5, false));
+        jwtTokenCache.put("c", verifiedToken(1, null, 6, false));
+
+        jwtTokenCache.invalidateApiKey(5);
+
+        assertNotNull(jwtTokenCache.get("a"));
+        assertNull(jwtTokenCache.get("b"));
+        assertNotNull(jwtTokenCache.get("c"));
+        verify(clusterChangeNotifier).publish(VideoManagerConstants.VM_MSG_USER_CHANGE, "k:5");
+    }
+
+    @Test
+    public void changeFromOtherNode() {
+        jwtTokenCache.put("a", verifiedToken(1, null, null, false));
+        jwtTokenCache.put("b", verifiedToken(2, null, 5, false));
+        jwtTokenCache.put("c", verifiedToken(3, null, null, false));
+
+        jwtTokenCache.onChange("u:1");
+        assertNull(jwtTokenCache.get("a"));
+        assertNotNull(jwtTokenCache.get("b"));
+
+        jwtTokenCache.onChange("k:5");
+        assertNull(jwtTokenCache.get("b"));
+        assertNotNull(jwtTokenCache.get("c"));
+
+        // 无法解析时全部清除
+        jwtTokenCache.onChange("u:abc");
+        assertNull(jwtTokenCache.get("c"));
+    }
+}
@@ -0,0 +1,58 @@
+package com.genersoft.iot.vmp.conf.security;
+
+import com.genersoft.iot.vmp.conf.security.dto.JwtUser;
+import com.genersoft.iot.vmp.service.IUserApiKeyService;
+import com.genersoft.iot.vmp.service.IUserService;
+import com.genersoft.iot.vmp.storager.dao.dto.Role;
+import com.genersoft.iot.vmp.storager.dao.dto.User;
+import com.genersoft.iot.vmp.utils.Benchmark;
+import org.mockito.Mockito;
+
+/**
+ * 每个请求在JwtAuthenticationFilter中验证token的耗时
+ * 缓存命中：计算token的SHA-256后直接使用缓存的声明和用户；未命中：RSA验签并查询用户，与加缓存之前每个请求的开销相当（还少了每次新建JwtConsumer）。
+ * 用户查询使用mock，不包含数据库的耗时，实际部署中未命中的开销更大
+ */
+public class JwtVerifyBenchmark {
+
+    private static final int WARM_UP = 20_000;
+
+    private static final int ITERATIONS = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        Role role = new Role();
+        role.setId(1);
+        User user = new User();
+        user.setId(1);
+        user.setUsername("admin");
+        user.setPassword("password");
+        user.setRole(role);
+        IUserService userService = Mockito.mock(IUserService.class);
+        Mockito.when(userService.getUserByUsername("admin")).thenReturn(user);
+
+        JwtTokenCache tokenCache = new JwtTokenCache();
+        JwtUtils jwtUtils = new JwtUtils();
+        jwtUtils.setUserService(userService);
+        jwtUtils.setUserApiKeyService(Mockito.mock(IUserApiKeyService.class));
+        jwtUtils.setTokenCache(tokenCache);
+        jwtUtils.afterPropertiesSet();
+
+        String token = JwtUtils.createToken("admin");
+        String key = JwtTokenCache.hash(token);
+        JwtUser jwtUser = JwtUtils.verifyToken(token);
+        if (jwtUser.getStatus() == JwtUser.TokenStatus.EXPIRED || jwtUser.getStatus() == JwtUser.TokenStatus.EXCEPTION) {
+            throw new IllegalStateException("token验证失败");
+        }
+
+        report("缓存命中", () -> JwtUtils.verifyToken(token));
+        report("缓存未命中", () -> {
+            tokenCache.invalidate(key);
+            return JwtUtils.verifyToken(token);
+        });
+        System.out.println(tokenCache.getMetrics());
+    }
+
+    private static void report(String name, Benchmark.Operation operation) throws Exception {
+        Benchmark.report(name, "请求", Benchmark.nanosPerOp(WARM_UP, ITERATIONS, operation));
+    }
+}
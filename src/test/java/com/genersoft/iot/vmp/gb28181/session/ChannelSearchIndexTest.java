@@ -0,0 +1,157 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.genersoft.iot.vmp.gb28181.bean.ChannelSearchItem;
+import com.genersoft.iot.vmp.gb28181.dao.CommonGBChannelMapper;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeNotifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class ChannelSearchIndexTest {
+
+    @Mock
+    private CommonGBChannelMapper commonGBChannelMapper;
+
+    @Mock
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    @InjectMocks
+    private ChannelSearchIndex channelSearchIndex;
+
+    private static ChannelSearchItem item(int id, Integer deviceDbId, String deviceId, String name) {
+        ChannelSearchItem item = new ChannelSearchItem();
+        item.setId(id);
+        item.setDeviceDbId(deviceDbId);
+        item.setDeviceId(deviceId);
+        item.setName(name);
+        return item;
+    }
+
+    private void load(ChannelSearchItem... items) {
+        when(commonGBChannelMapper.queryForSearchAfter(anyInt(), anyInt())).thenReturn(Arrays.asList(items));
+        channelSearchIndex.run();
+        assertTrue(channelSearchIndex.isReady());
+    }
+
+    private void loadDefault() {
+        load(item(1, 1, "34020000001320000001", "东门 摄像头"),
+                item(2, 1, "34020000001320000002", "西门Camera"),
+                item(3, 2, "34020000001320000003", "东门出口"));
+    }
+
+    @Test
+    public void searchBeforeReady() {
+        assertFalse(channelSearchIndex.isReady());
+        assertNull(channelSearchIndex.search("东门", null));
+    }
+
+    @Test
+    public void searchByName() {
+        loadDefault();
+
+        assertEquals(Arrays.asList(1, 3), channelSearchIndex.search("东门", null));
+        assertEquals(Collections.singletonList(3), channelSearchIndex.search("东门出", null));
+        assertEquals(Collections.singletonList(1), channelSearchIndex.search("门 摄", null));
+        assertEquals(Collections.emptyList(), channelSearchIndex.search("南门", null));
+    }
+
+    @Test
+    public void searchIgnoreCase() {
+        loadDefault();
+
+        assertEquals(Collections.singletonList(2), channelSearchIndex.search("camera", null));
+        assertEquals(Collections.singletonList(2), channelSearchIndex.search("CAMERA", null));
+    }
+
+    @Test
+    public void searchByDeviceId() {
+        loadDefault();
+
+        assertEquals(Collections.singletonList(2), channelSearchIndex.search("0002", null));
+        assertEquals(Arrays.asList(1, 2, 3), channelSearchIndex.search("3402", null));
+    }
+
+    @Test
+    public void searchSingleChar() {
+        loadDefault();
+
+        assertEquals(Collections.singletonList(2), channelSearchIndex.search("c", null));
+        assertEquals(Arrays.asList(1, 3), channelSearchIndex.search("东", null));
+    }
+
+    @Test
+    public void searchInDevice() {
+        loadDefault();
+
+        assertEquals(Collections.singletonList(3), channelSearchIndex.search("东门", 2));
+        assertEquals(Collections.singletonList(1), channelSearchIndex.search("东门", 1));
+        assertEquals(Collections.emptyList(), channelSearchIndex.search("东门", 9));
+    }
+
+    @Test
+    public void searchNotAcrossIdAndName() {
+        loadDefault();
+
+        // 编号结尾和名称开头拼在一起不算匹配
+        assertEquals(Collections.emptyList(), channelSearchIndex.search("0001东", null));
+        assertNull(channelSearchIndex.search("\u0000", null));
+    }
+
+    @Test
+    public void searchTooManyResults() {
+        List<ChannelSearchItem> items = new ArrayList<>();
+        for (int i = 1; i <= 5001; i++) {
+            items.add(item(i, 1, String.format("340200000013200%05d", i), "通道" + i));
+        }
+        // 第一页读满，按最后一个ID继续读取第二页
+        when(commonGBChannelMapper.queryForSearchAfter(eq(0), anyInt())).thenReturn(items.subList(0, 5000));
+        when(commonGBChannelMapper.queryForSearchAfter(eq(5000), anyInt())).thenReturn(items.subList(5000, 5001));
+        channelSearchIndex.run();
+
+        // 匹配超过上限时交给数据库查询
+        assertNull(channelSearchIndex.search("通道", null));
+        assertEquals(Collections.singletonList(5001), channelSearchIndex.search("通道5001", null));
+    }
+
+    @Test
+    public void refreshChannel() {
+        loadDefault();
+        when(commonGBChannelMapper.queryForSearchByIds(any())).thenReturn(
+                Collections.singletonList(item(1, 1, "34020000001320000001", "北门 摄像头")));
+
+        channelSearchIndex.refresh(Arrays.asList(1, 2));
+
+        // 修改后旧名称不再匹配，数据库里不存在的通道被删除
+        assertEquals(Collections.singletonList(3), channelSearchIndex.search("东门", null));
+        assertEquals(Collections.singletonList(1), channelSearchIndex.search("北门", null));
+        assertEquals(Collections.emptyList(), channelSearchIndex.search("camera", null));
+        verify(clusterChangeNotifier).publish(any(), eq("c:1,2"));
+    }
+
+    @Test
+    public void changeFromOtherNode() {
+        loadDefault();
+        when(commonGBChannelMapper.queryForSearchByDeviceDbId(1)).thenReturn(
+                Collections.singletonList(item(2, 1, "34020000001320000002", "西门Camera")));
+
+        channelSearchIndex.onChange("d:1");
+
+        assertEquals(Collections.singletonList(3), channelSearchIndex.search("东门", null));
+        assertEquals(Collections.singletonList(2), channelSearchIndex.search("camera", null));
+    }
+}
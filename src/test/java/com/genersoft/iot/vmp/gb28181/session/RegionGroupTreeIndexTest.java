@@ -0,0 +1,216 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.genersoft.iot.vmp.gb28181.bean.Group;
+import com.genersoft.iot.vmp.gb28181.bean.GroupTree;
+import com.genersoft.iot.vmp.gb28181.bean.Region;
+import com.genersoft.iot.vmp.gb28181.bean.RegionTree;
+import com.genersoft.iot.vmp.gb28181.bean.TreeChannelCount;
+import com.genersoft.iot.vmp.gb28181.dao.CommonGBChannelMapper;
+import com.genersoft.iot.vmp.gb28181.dao.GroupMapper;
+import com.genersoft.iot.vmp.gb28181.dao.RegionMapper;
+import com.genersoft.iot.vmp.service.redisMsg.ClusterChangeNotifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class RegionGroupTreeIndexTest {
+
+    @Mock
+    private RegionMapper regionMapper;
+
+    @Mock
+    private GroupMapper groupMapper;
+
+    @Mock
+    private CommonGBChannelMapper commonGBChannelMapper;
+
+    @Mock
+    private ClusterChangeNotifier clusterChangeNotifier;
+
+    @InjectMocks
+    private RegionGroupTreeIndex regionGroupTreeIndex;
+
+    private static Region region(int id, String deviceId, Integer parentId, String parentDeviceId) {
+        Region region = new Region();
+        region.setId(id);
+        region.setDeviceId(deviceId);
+        region.setName("区域" + deviceId);
+        region.setParentId(parentId);
+        region.setParentDeviceId(parentDeviceId);
+        return region;
+    }
+
+    private static Group group(int id, String deviceId, Integer parentId, String parentDeviceId, String businessGroup) {
+        Group group = new Group();
+        group.setId(id);
+        group.setDeviceId(deviceId);
+        group.setName("分组" + deviceId);
+        group.setParentId(parentId);
+        group.setParentDeviceId(parentDeviceId);
+        group.setBusinessGroup(businessGroup);
+        return group;
+    }
+
+    private static TreeChannelCount count(String code, int channelCount) {
+        TreeChannelCount count = new TreeChannelCount();
+        count.setCode(code);
+        count.setChannelCount(channelCount);
+        return count;
+    }
+
+    /**
+     * 11 ── 1101 ── 110101
+     * 12
+     * 直属通道： 1101有2个，110101有3个，12有1个
+     */
+    private void loadRegions() {
+        when(regionMapper.queryAll()).thenReturn(Arrays.asList(
+                region(1, "11", null, null),
+                region(2, "1101", 1, "11"),
+                region(3, "110101", 2, "1101"),
+                region(4, "12", null, null)));
+        when(commonGBChannelMapper.countByCivilCode(isNull())).thenReturn(Arrays.asList(
+                count("1101", 2), count("110101", 3), count("12", 1)));
+        regionGroupTreeIndex.run();
+        assertTrue(regionGroupTreeIndex.isReady());
+    }
+
+    private long regionCount(Integer parentId, String deviceId) {
+        for (RegionTree regionTree : regionGroupTreeIndex.getRegionChildren(parentId, null)) {
+            if (regionTree.getDeviceId().equals(deviceId)) {
+                return regionTree.getChannelCount();
+            }
+        }
+        fail("区域不存在： " + deviceId);
+        return 0;
+    }
+
+    @Test
+    public void regionCountIncludesChildren() {
+        loadRegions();
+
+        assertEquals(5, regionCount(null, "11"));
+        assertEquals(1, regionCount(null, "12"));
+        assertEquals(5, regionCount(1, "1101"));
+        assertEquals(3, regionCount(2, "110101"));
+        assertTrue(regionGroupTreeIndex.getRegionChildren(3, null).isEmpty());
+    }
+
+    @Test
+    public void regionChildrenSortedAndFiltered() {
+        loadRegions();
+
+        List<String> roots = regionGroupTreeIndex.getRegionChildren(null, null).stream()
+                .map(Region::getDeviceId).collect(Collectors.toList());
+        assertEquals(Arrays.asList("11", "12"), roots);
+        List<RegionTree> filtered = regionGroupTreeIndex.getRegionChildren(null, "12");
+        assertEquals(1, filtered.size());
+        assertEquals("region4", filtered.get(0).getTreeId());
+    }
+
+    @Test
+    public void regionPath() {
+        loadRegions();
+
+        List<String> path = regionGroupTreeIndex.getRegionPath("110101").stream()
+                .map(Region::getDeviceId).collect(Collectors.toList());
+        assertEquals(Arrays.asList("11", "1101", "110101"), path);
+        assertNull(regionGroupTreeIndex.getRegionPath("13"));
+    }
+
+    @Test
+    public void refreshChannelCount() {
+        loadRegions();
+        when(commonGBChannelMapper.countByCivilCode(anyCollection())).thenReturn(
+                Collections.singletonList(count("110101", 1)));
+
+        // 12下的通道改到了110101
+        regionGroupTreeIndex.refreshRegionChannelCount(Arrays.asList("110101", "12"));
+
+        assertEquals(3, regionCount(null, "11"));
+        assertEquals(3, regionCount(1, "1101"));
+        assertEquals(1, regionCount(2, "110101"));
+        assertEquals(0, regionCount(null, "12"));
+    }
+
+    @Test
+    public void recountAll() {
+        loadRegions();
+        when(commonGBChannelMapper.countByCivilCode(isNull())).thenReturn(
+                Collections.singletonList(count("110101", 10)));
+
+        regionGroupTreeIndex.markChannelChanged();
+        regionGroupTreeIndex.recountIfDirty();
+
+        assertEquals(10, regionCount(null, "11"));
+        assertEquals(10, regionCount(1, "1101"));
+        assertEquals(0, regionCount(null, "12"));
+    }
+
+    @Test
+    public void removeAndRestoreRegion() {
+        loadRegions();
+        when(regionMapper.queryByIds(any())).thenReturn(Collections.emptyList());
+
+        regionGroupTreeIndex.refreshRegion(Collections.singletonList(3));
+
+        assertEquals(2, regionCount(null, "11"));
+        assertEquals(2, regionCount(1, "1101"));
+        assertTrue(regionGroupTreeIndex.getRegionChildren(2, null).isEmpty());
+
+        // 重新加入时恢复直属通道数量
+        when(regionMapper.queryByIds(any())).thenReturn(Collections.singletonList(region(3, "110101", 2, "1101")));
+        regionGroupTreeIndex.refreshRegion(Collections.singletonList(3));
+
+        assertEquals(5, regionCount(null, "11"));
+        assertEquals(3, regionCount(2, "110101"));
+    }
+
+    @Test
+    public void moveRegion() {
+        loadRegions();
+        when(regionMapper.queryByIds(any())).thenReturn(Collections.singletonList(region(2, "1101", 4, "12")));
+
+        // 1101连同下级移动到12下
+        regionGroupTreeIndex.refreshRegion(Collections.singletonList(2));
+
+        assertEquals(0, regionCount(null, "11"));
+        assertEquals(6, regionCount(null, "12"));
+        assertEquals(5, regionCount(4, "1101"));
+        assertTrue(regionGroupTreeIndex.getRegionChildren(1, null).isEmpty());
+    }
+
+    @Test
+    public void groupCountIncludesChildren() {
+        when(groupMapper.queryAll()).thenReturn(Arrays.asList(
+                group(10, "B1", null, null, "B1"),
+                group(11, "G1", 10, "B1", "B1"),
+                group(12, "G2", 11, "G1", "B1")));
+        when(commonGBChannelMapper.countByParentId(isNull())).thenReturn(Arrays.asList(
+                count("G1", 1), count("G2", 4)));
+        regionGroupTreeIndex.run();
+
+        List<GroupTree> roots = regionGroupTreeIndex.getGroupChildren(null, null);
+        assertEquals(1, roots.size());
+        assertEquals(5, roots.get(0).getChannelCount().longValue());
+        assertEquals(4, regionGroupTreeIndex.getGroupChildren(11, null).get(0).getChannelCount().longValue());
+
+        List<String> parents = regionGroupTreeIndex.getGroupParents(group(12, "G2", 11, "G1", "B1")).stream()
+                .map(Group::getDeviceId).collect(Collectors.toList());
+        assertEquals(Arrays.asList("B1", "G1"), parents);
+    }
+}
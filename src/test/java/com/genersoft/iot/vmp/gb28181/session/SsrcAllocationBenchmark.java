@@ -0,0 +1,74 @@
+package com.genersoft.iot.vmp.gb28181.session;
+
+import com.genersoft.iot.vmp.utils.Benchmark;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ssrc分配的吞吐量对比：本地位图 vs 原来每次分配都执行的 SCARD + SPOP（释放时 SADD）
+ * 每次操作为一次分配加一次释放。参数为 [redisHost] [redisPort]，不指定redis地址时只测试本地位图
+ */
+public class SsrcAllocationBenchmark {
+
+    private static final int MAX_SN = 10000;
+
+    private static final long WARM_UP_MS = 2000;
+
+    private static final long MEASURE_MS = 5000;
+
+    private static final String REDIS_KEY = "VMP_SSRC_BENCHMARK";
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = {1, 4, 16};
+
+        SsrcBitSet bitSet = new SsrcBitSet(MAX_SN);
+        for (int block = 0; block < bitSet.blockCount(); block++) {
+            bitSet.addBlock(block, 0L);
+        }
+        for (int threads : threadCounts) {
+            Benchmark.report("本地位图", threads, Benchmark.opsPerSecond(threads, WARM_UP_MS, MEASURE_MS, () -> {
+                int sn = bitSet.allocate();
+                if (sn < 0) {
+                    throw new IllegalStateException("ssrc已经用完");
+                }
+                bitSet.release(sn);
+                return sn;
+            }));
+        }
+
+        if (args.length == 0) {
+            System.out.println("未指定redis地址，跳过 SCARD + SPOP 的对比");
+            return;
+        }
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(
+                new RedisStandaloneConfiguration(args[0], args.length > 1 ? Integer.parseInt(args[1]) : 6379));
+        connectionFactory.afterPropertiesSet();
+        try {
+            StringRedisTemplate redisTemplate = new StringRedisTemplate(connectionFactory);
+            List<String> ssrcList = new ArrayList<>();
+            for (int i = 1; i < MAX_SN; i++) {
+                ssrcList.add(String.format("%04d", i));
+            }
+            redisTemplate.delete(REDIS_KEY);
+            redisTemplate.opsForSet().add(REDIS_KEY, ssrcList.toArray(new String[0]));
+            for (int threads : threadCounts) {
+                Benchmark.report("SCARD + SPOP", threads, Benchmark.opsPerSecond(threads, WARM_UP_MS, MEASURE_MS, () -> {
+                    Long size = redisTemplate.opsForSet().size(REDIS_KEY);
+                    if (size == null || size == 0) {
+                        throw new IllegalStateException("ssrc已经用完");
+                    }
+                    String sn = redisTemplate.opsForSet().pop(REDIS_KEY);
+                    redisTemplate.opsForSet().add(REDIS_KEY, sn);
+                    return sn;
+                }));
+            }
+            redisTemplate.delete(REDIS_KEY);
+        } finally {
+            connectionFactory.destroy();
+        }
+    }
+}
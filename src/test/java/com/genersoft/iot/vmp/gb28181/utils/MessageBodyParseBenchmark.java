@@ -0,0 +1,148 @@
+package com.genersoft.iot.vmp.gb28181.utils;
+
+import com.genersoft.iot.vmp.utils.Benchmark;
+import com.google.common.primitives.Bytes;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SIP MESSAGE消息体的解析耗时，分别使用心跳、移动位置通知和目录响应（10个通道）
+ * 原来：逐字节复制到List<Byte>去掉未转义的'&'，每次新建SAXReader；MessageRequestProcessor按gb2312解析一次，具体的处理类再按设备字符集解析一次。
+ * 现在：同一请求只解析一次，只有一层子节点的消息直接扫描字节，其他消息使用线程内复用的SAXReader。
+ */
+public class MessageBodyParseBenchmark {
+
+    private static final String CHARSET = "GB2312";
+
+    private static final int WARM_UP = 50_000;
+
+    private static final int ITERATIONS = 200_000;
+
+    private static final ThreadLocal<SAXReader> saxReader = ThreadLocal.withInitial(SAXReader::new);
+
+    private static final String[] ESCAPE_ARRAY = new String[]{"&lt;", "&gt;", "&amp;", "&apos;", "&quot;"};
+
+    public static void main(String[] args) throws Exception {
+        byte[] keepalive = ("<?xml version=\"1.0\" encoding=\"GB2312\"?>\r\n"
+                + "<Notify>\r\n"
+                + "<CmdType>Keepalive</CmdType>\r\n"
+                + "<SN>43</SN>\r\n"
+                + "<DeviceID>34020000001320000001</DeviceID>\r\n"
+                + "<Status>OK</Status>\r\n"
+                + "</Notify>\r\n").getBytes(CHARSET);
+        byte[] mobilePosition = ("<?xml version=\"1.0\" encoding=\"GB2312\"?>\r\n"
+                + "<Notify>\r\n"
+                + "<CmdType>MobilePosition</CmdType>\r\n"
+                + "<SN>44</SN>\r\n"
+                + "<DeviceID>34020000001320000001</DeviceID>\r\n"
+                + "<Time>2024-10-18T12:30:45</Time>\r\n"
+                + "<Longitude>113.943210</Longitude>\r\n"
+                + "<Latitude>22.543210</Latitude>\r\n"
+                + "<Speed>60.0</Speed>\r\n"
+                + "<Direction>90</Direction>\r\n"
+                + "<Altitude>30</Altitude>\r\n"
+                + "</Notify>\r\n").getBytes(CHARSET);
+        Map<String, byte[]> payloads = new LinkedHashMap<>();
+        payloads.put("心跳", keepalive);
+        payloads.put("移动位置", mobilePosition);
+        payloads.put("目录", catalog(10).getBytes(CHARSET));
+
+        for (Map.Entry<String, byte[]> payload : payloads.entrySet()) {
+            byte[] content = payload.getValue();
+            check(parseBefore(content, CHARSET));
+            check(parseAfter(content, CHARSET));
+            double before = Benchmark.nanosPerOp(WARM_UP, ITERATIONS, () -> {
+                parseBefore(content, "gb2312");
+                return parseBefore(content, CHARSET);
+            });
+            double after = Benchmark.nanosPerOp(WARM_UP, ITERATIONS, () -> parseAfter(content, CHARSET));
+            System.out.printf("%-6s %5d字节  原来: %,8.0f ns  现在: %,8.0f ns  %.1fx%n", payload.getKey(), content.length,
+                    before, after, before / after);
+        }
+    }
+
+    private static String catalog(int count) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"GB2312\"?>\r\n")
+                .append("<Response>\r\n")
+                .append("<CmdType>Catalog</CmdType>\r\n")
+                .append("<SN>45</SN>\r\n")
+                .append("<DeviceID>34020000001320000001</DeviceID>\r\n")
+                .append("<SumNum>").append(count).append("</SumNum>\r\n")
+                .append("<DeviceList Num=\"").append(count).append("\">\r\n");
+        for (int i = 1; i <= count; i++) {
+            xml.append("<Item>\r\n")
+                    .append("<DeviceID>3402000000131000").append(String.format("%04d", i)).append("</DeviceID>\r\n")
+                    .append("<Name>东门通道").append(i).append("</Name>\r\n")
+                    .append("<Manufacturer>Hikvision</Manufacturer>\r\n")
+                    .append("<Model>IP Camera</Model>\r\n")
+                    .append("<Owner>Owner</Owner>\r\n")
+                    .append("<CivilCode>3402000000</CivilCode>\r\n")
+                    .append("<Address>Address</Address>\r\n")
+                    .append("<Parental>0</Parental>\r\n")
+                    .append("<ParentID>34020000001320000001</ParentID>\r\n")
+                    .append("<SafetyWay>0</SafetyWay>\r\n")
+                    .append("<RegisterWay>1</RegisterWay>\r\n")
+                    .append("<Secrecy>0</Secrecy>\r\n")
+                    .append("<Status>ON</Status>\r\n")
+                    .append("</Item>\r\n");
+        }
+        xml.append("</DeviceList>\r\n")
+                .append("</Response>\r\n");
+        return xml.toString();
+    }
+
+    /**
+     * 原来的解析方式
+     */
+    private static Element parseBefore(byte[] rawContent, String charset) throws DocumentException {
+        SAXReader reader = new SAXReader();
+        reader.setEncoding(charset);
+        List<Byte> result = new ArrayList<>();
+        for (int i = 0; i < rawContent.length; i++) {
+            if (rawContent[i] == '&') {
+                boolean escape = false;
+                for (String destStr : ESCAPE_ARRAY) {
+                    if (i + destStr.length() <= rawContent.length) {
+                        byte[] bytes = Arrays.copyOfRange(rawContent, i, i + destStr.length());
+                        escape = escape || (Arrays.equals(bytes, destStr.getBytes()));
+                    }
+                }
+                if (escape) {
+                    result.add(rawContent[i]);
+                }
+            }else {
+                result.add(rawContent[i]);
+            }
+        }
+        return reader.read(new ByteArrayInputStream(Bytes.toArray(result))).getRootElement();
+    }
+
+    /**
+     * 与SIPRequestProcessorParent.parse相同，消息体中没有未转义的'&'
+     */
+    private static Element parseAfter(byte[] rawContent, String charset) throws DocumentException {
+        Element element = FlatXmlScanner.scan(rawContent, Charset.forName(charset));
+        if (element != null) {
+            return element;
+        }
+        SAXReader reader = saxReader.get();
+        reader.setEncoding(charset);
+        return reader.read(new ByteArrayInputStream(rawContent)).getRootElement();
+    }
+
+    private static void check(Element element) {
+        if (element == null || element.element("CmdType") == null) {
+            throw new IllegalStateException("解析失败");
+        }
+    }
+}
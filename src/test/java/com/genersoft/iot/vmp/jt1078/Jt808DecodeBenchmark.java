@@ -0,0 +1,98 @@
+package com.genersoft.iot.vmp.jt1078;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.genersoft.iot.vmp.jt1078.codec.decode.Jt808Decoder;
+import com.genersoft.iot.vmp.jt1078.proc.Header;
+import com.genersoft.iot.vmp.jt1078.proc.factory.CodecFactory;
+import com.genersoft.iot.vmp.jt1078.proc.request.J0200;
+import com.genersoft.iot.vmp.jt1078.session.Session;
+import com.genersoft.iot.vmp.jt1078.session.SessionManager;
+import com.genersoft.iot.vmp.jt1078.util.ClassUtil;
+import com.genersoft.iot.vmp.utils.Benchmark;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JT808解码吞吐量，使用0200位置信息汇报（2013版本，无转义字节）
+ * 1. 完整解码：Jt808Decoder 处理已经去掉分隔符的帧，与 DelimiterBasedFrameDecoder 之后的输入一致
+ * 2. 消息头解析和分发：原来每帧十六进制转换 + 正则去0 + 反射创建处理类， 与现在的数值分发表对比
+ */
+public class Jt808DecodeBenchmark {
+
+    private static final int WARM_UP = 1_000_000;
+
+    private static final int ITERATIONS = 5_000_000;
+
+    public static void main(String[] args) throws Exception {
+        // 没有spring的日志配置时logback默认输出DEBUG，会把每一帧都打印出来
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+        CodecFactory.init();
+        ByteBuf frame = frame();
+
+        EmbeddedChannel channel = new EmbeddedChannel(new Jt808Decoder());
+        Session session = SessionManager.INSTANCE.newSession(channel);
+        channel.attr(Session.KEY).set(session);
+        report("完整解码", () -> {
+            channel.writeInbound(frame.retainedDuplicate());
+            return channel.readInbound();
+        });
+
+        report("原来的消息头解析和分发", () -> {
+            ByteBuf in = frame.duplicate();
+            Header header = new Header();
+            header.setMsgId(ByteBufUtil.hexDump(in.readSlice(2)));
+            header.setMsgPro(in.readUnsignedShort());
+            header.setDevId(ByteBufUtil.hexDump(in.readSlice(6)).replaceFirst("^0*", ""));
+            header.setSn(in.readUnsignedShort());
+            return ClassUtil.getBean(J0200.class);
+        });
+
+        report("现在的消息头分发", () -> {
+            ByteBuf in = frame.duplicate();
+            Header header = new Header();
+            int msgId = in.readUnsignedShort();
+            header.setMsgPro(in.readUnsignedShort());
+            // 手机号由Jt808Decoder按连接缓存，这里只跳过
+            in.skipBytes(6);
+            header.setSn(in.readUnsignedShort());
+            header.setMsgId(CodecFactory.getMsgId(msgId));
+            return CodecFactory.getHandler(msgId);
+        });
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 消息头 + 28字节的位置基本信息 + 校验码
+     */
+    private static ByteBuf frame() {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeShort(0x0200);
+        buf.writeShort(28);
+        buf.writeBytes(new byte[]{0x01, 0x39, 0x12, 0x34, 0x56, 0x78});
+        buf.writeShort(1);
+        // 报警标志、状态、纬度、经度
+        buf.writeInt(0);
+        buf.writeInt(2);
+        buf.writeInt(22543210);
+        buf.writeInt(113943210);
+        // 高程、速度、方向、时间
+        buf.writeShort(30);
+        buf.writeShort(600);
+        buf.writeShort(90);
+        buf.writeBytes(new byte[]{0x24, 0x10, 0x18, 0x12, 0x30, 0x45});
+        byte checkSum = 0;
+        for (int i = 0; i < buf.writerIndex(); i++) {
+            checkSum ^= buf.getByte(i);
+        }
+        buf.writeByte(checkSum);
+        return buf;
+    }
+
+    private static void report(String name, Benchmark.Operation operation) throws Exception {
+        Benchmark.report(name, "帧", Benchmark.nanosPerOp(WARM_UP, ITERATIONS, operation));
+    }
+}
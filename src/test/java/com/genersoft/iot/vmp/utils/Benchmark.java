@@ -0,0 +1,89 @@
+package com.genersoft.iot.vmp.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基准测试的公共部分：预热后计时，统计每次操作的耗时或者每秒操作次数
+ * 各个*Benchmark类都是普通的main方法，不在单元测试中执行，test-compile之后运行：
+ * java -cp target/test-classes:target/classes:依赖 <*Benchmark类名> [参数]
+ */
+public final class Benchmark {
+
+    public interface Operation {
+        /**
+         * @return 操作的结果，使用结果避免被JIT优化掉，为null时视为操作失败
+         */
+        Object run() throws Exception;
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * 在当前线程先执行warmUp次预热，再计时执行iterations次
+     * @return 每次操作的耗时 /纳秒
+     */
+    public static double nanosPerOp(int warmUp, int iterations, Operation operation) throws Exception {
+        Object result = null;
+        for (int i = 0; i < warmUp; i++) {
+            result = operation.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            result = operation.run();
+        }
+        long cost = System.nanoTime() - start;
+        if (result == null) {
+            throw new IllegalStateException("操作失败");
+        }
+        return (double) cost / iterations;
+    }
+
+    /**
+     * 多个线程持续执行，先预热warmUpMs，再计时measureMs
+     * @return 每秒操作次数
+     */
+    public static double opsPerSecond(int threads, long warmUpMs, long measureMs, Operation operation) throws InterruptedException {
+        run(threads, warmUpMs, operation);
+        return run(threads, measureMs, operation) * 1000.0 / measureMs;
+    }
+
+    private static long run(int threads, long durationMs, Operation operation) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder count = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        if (operation.run() == null) {
+                            throw new IllegalStateException("操作失败");
+                        }
+                        count.increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        Thread.sleep(durationMs);
+        running.set(false);
+        done.await();
+        return count.sum();
+    }
+
+    /**
+     * @param unit 一次操作的单位，例如 帧、请求
+     */
+    public static void report(String name, String unit, double nanosPerOp) {
+        System.out.printf("%-12s %,10.0f ns/%s  %,12.0f %s/s%n", name, nanosPerOp, unit, 1_000_000_000 / nanosPerOp, unit);
+    }
+
+    public static void report(String name, int threads, double opsPerSecond) {
+        System.out.printf("%-14s 线程: %2d  %,14.0f ops/s%n", name, threads, opsPerSecond);
+    }
+}
@@ -66,6 +66,7 @@ create table wvp_device_mobile_position
     report_source   character varying(50),
     create_time     character varying(50)
 );
+create index idx_mobile_position_device_time on wvp_device_mobile_position (device_id, time);
 
 create table wvp_device_channel
 (
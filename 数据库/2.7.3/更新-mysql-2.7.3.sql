@@ -0,0 +1 @@
+create index idx_mobile_position_device_time on wvp_device_mobile_position (device_id, time);